@@ -0,0 +1,109 @@
+package com.acertainbookstore.business;
+
+/**
+ * {@link BookDemand} is used to represent the sales and sale misses of a book
+ * over a window of time, either as counts within the window or decayed by
+ * their age.
+ */
+public class BookDemand {
+
+	/** The ISBN. */
+	private final int isbn;
+
+	/** The copies sold. */
+	private final double sales;
+
+	/** The sale misses. */
+	private final double saleMisses;
+
+	/** The milliseconds the demand was counted over. */
+	private final long windowMillis;
+
+	/**
+	 * Instantiates a new {@link BookDemand}.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param sales
+	 *            the copies sold
+	 * @param saleMisses
+	 *            the sale misses
+	 * @param windowMillis
+	 *            the milliseconds the demand was counted over
+	 */
+	public BookDemand(int isbn, double sales, double saleMisses, long windowMillis) {
+		this.isbn = isbn;
+		this.sales = sales;
+		this.saleMisses = saleMisses;
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Gets the ISBN of the book.
+	 *
+	 * @return the ISBN
+	 */
+	public int getISBN() {
+		return isbn;
+	}
+
+	/**
+	 * Gets the copies sold.
+	 *
+	 * @return the copies sold
+	 */
+	public double getSales() {
+		return sales;
+	}
+
+	/**
+	 * Gets the sale misses.
+	 *
+	 * @return the sale misses
+	 */
+	public double getSaleMisses() {
+		return saleMisses;
+	}
+
+	/**
+	 * Gets the milliseconds the demand was counted over.
+	 *
+	 * @return the window
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Gets the sales velocity of the book.
+	 *
+	 * @return the copies sold per hour over the window
+	 */
+	public double getSalesPerHour() {
+		return sales * 3600000 / windowMillis;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == null || getClass() != obj.getClass()) {
+			return false;
+		}
+
+		return this.getISBN() == ((BookDemand) obj).getISBN();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return getISBN();
+	}
+}
@@ -0,0 +1,60 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+
+/**
+ * {@link BookPage} is used to represent a page of the books in the store, in
+ * ascending ISBN order, together with the cursor of the next page.
+ * <p>
+ * A page may hold fewer books than asked for even if more books follow, e.g.
+ * when a shard left out the books it does not own, so only a null cursor ends
+ * the listing.
+ */
+public class BookPage {
+
+	/** The books. */
+	private final List<StockBook> books;
+
+	/** The cursor of the next page, or null. */
+	private final String nextCursor;
+
+	/**
+	 * Instantiates a new {@link BookPage}.
+	 *
+	 * @param books
+	 *            the books, in ascending ISBN order
+	 * @param nextCursor
+	 *            the cursor of the next page, or null if no books follow
+	 */
+	public BookPage(List<StockBook> books, String nextCursor) {
+		this.books = books;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Gets the books.
+	 *
+	 * @return the books, in ascending ISBN order
+	 */
+	public List<StockBook> getBooks() {
+		return books;
+	}
+
+	/**
+	 * Gets the cursor of the next page.
+	 *
+	 * @return the cursor, or null if no books follow
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * Checks whether the page is the last one.
+	 *
+	 * @return true, if no books follow
+	 */
+	public boolean isLast() {
+		return nextCursor == null;
+	}
+}
@@ -1,11 +1,22 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link BookStoreBook} implements all parts of the book. Only parts of it are
  * available in the bookstore client and stock manager, cf. the {@link Book} and
  * {@link StockBook} interfaces.
+ * <p>
+ * The rating and sale miss counters are striped {@link LongAdder}s, so they
+ * can be updated concurrently without an exclusive lock on the book; reads
+ * fold the stripes. The sales and sale misses of the last hour are kept in a
+ * {@link DemandHistory}, created by the first of them.
+ * <p>
+ * A book restored from a {@link MappedCatalog} leaves its title and author in
+ * the mapping and decodes them when they are first needed.
  * 
  * @see Book
  * @see StockBook
@@ -17,17 +28,42 @@ public class BookStoreBook extends ImmutableBook {
 	private int numCopies;
 
 	/** The total rating. */
-	private long totalRating;
+	private final LongAdder totalRating = new LongAdder();
 
 	/** The number of times rated. */
-	private long numTimesRated;
+	private final LongAdder numTimesRated = new LongAdder();
 
 	/** The number of sale misses. */
-	private long numSaleMisses;
+	private final LongAdder numSaleMisses = new LongAdder();
+
+	/** The recent sales and sale misses, or null if there were none. */
+	private volatile DemandHistory demandHistory;
 
 	/** Whether the book is editor picked. */
 	private boolean editorPick;
 
+	/** The catalog holding the title and author, or null. */
+	private final MappedCatalog catalog;
+
+	/** The slot of the book in the catalog. */
+	private final int slot;
+
+	/**
+	 * The cached {@link ImmutableBook} view, the book part never changes. It is
+	 * built on first use for books in a {@link MappedCatalog}.
+	 */
+	private volatile ImmutableBook bookSnapshot;
+
+	/** The placeholder of a {@link ImmutableStockBook} view being built. */
+	private static final ImmutableStockBook BUILDING = new ImmutableStockBook();
+
+	/**
+	 * The cached {@link ImmutableStockBook} view, or null once the book is
+	 * mutated. Every mutator clears it, and {@link #immutableStockBook()}
+	 * builds the next one.
+	 */
+	private final AtomicReference<ImmutableStockBook> stockBookSnapshot = new AtomicReference<>();
+
 	/**
 	 * Instantiates a new {@link BookStoreBook}.
 	 *
@@ -50,6 +86,10 @@ public class BookStoreBook extends ImmutableBook {
 		this.setNumCopies(numCopies);
 		this.setTotalRating(0);
 		this.setEditorPick(false);
+
+		this.catalog = null;
+		this.slot = -1;
+		this.bookSnapshot = new ImmutableBook(isbn, title, author, price);
 	}
 
 	/**
@@ -67,6 +107,53 @@ public class BookStoreBook extends ImmutableBook {
 		this.setNumCopies(bookToCopy.getNumCopies());
 		this.setTotalRating(bookToCopy.getTotalRating());
 		this.setEditorPick(bookToCopy.isEditorPick());
+
+		this.catalog = null;
+		this.slot = -1;
+		this.bookSnapshot = new ImmutableBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice());
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreBook} from a slot of a
+	 * {@link MappedCatalog}. Only the fixed-size fields are read, the title
+	 * and author stay in the mapping until they are needed.
+	 *
+	 * @param catalog
+	 *            the catalog
+	 * @param slot
+	 *            the slot of the book
+	 */
+	public BookStoreBook(MappedCatalog catalog, int slot) {
+		super(catalog.getISBN(slot), null, null, catalog.getPrice(slot));
+
+		this.numCopies = catalog.getNumCopies(slot);
+		this.numSaleMisses.add(catalog.getNumSaleMisses(slot));
+		this.numTimesRated.add(catalog.getNumTimesRated(slot));
+		this.totalRating.add(catalog.getTotalRating(slot));
+		this.editorPick = catalog.isEditorPick(slot);
+
+		this.catalog = catalog;
+		this.slot = slot;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.business.ImmutableBook#getTitle()
+	 */
+	@Override
+	public String getTitle() {
+		return (catalog == null) ? super.getTitle() : immutableBook().getTitle();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.business.ImmutableBook#getAuthor()
+	 */
+	@Override
+	public String getAuthor() {
+		return (catalog == null) ? super.getAuthor() : immutableBook().getAuthor();
 	}
 
 	/**
@@ -75,7 +162,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the total rating
 	 */
 	public long getTotalRating() {
-		return totalRating;
+		return totalRating.sum();
 	}
 
 	/**
@@ -84,7 +171,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of times rated
 	 */
 	public long getNumTimesRated() {
-		return numTimesRated;
+		return numTimesRated.sum();
 	}
 
 	/**
@@ -102,7 +189,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of sale misses
 	 */
 	public long getNumSaleMisses() {
-		return numSaleMisses;
+		return numSaleMisses.sum();
 	}
 
 	/**
@@ -111,7 +198,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the average rating
 	 */
 	public float getAverageRating() {
-		return (numTimesRated == 0 ? -1.0f : (float) totalRating / numTimesRated);
+		long timesRated = numTimesRated.sum();
+		return (timesRated == 0 ? -1.0f : (float) totalRating.sum() / timesRated);
 	}
 
 	/**
@@ -130,7 +218,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new total rating
 	 */
 	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+		this.totalRating.reset();
+		this.totalRating.add(totalRating);
 	}
 
 	/**
@@ -140,7 +229,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new number of times rated
 	 */
 	private void setNumTimesRated(long numTimesRated) {
-		this.numTimesRated = numTimesRated;
+		this.numTimesRated.reset();
+		this.numTimesRated.add(numTimesRated);
 	}
 
 	/**
@@ -161,7 +251,8 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the new sale misses
 	 */
 	private void setNumSaleMisses(long numSaleMisses) {
-		this.numSaleMisses = numSaleMisses;
+		this.numSaleMisses.reset();
+		this.numSaleMisses.add(numSaleMisses);
 	}
 
 	/**
@@ -173,6 +264,7 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void setEditorPick(boolean editorPick) {
 		this.editorPick = editorPick;
+		this.invalidateSnapshot();
 	}
 
 	/**
@@ -196,6 +288,8 @@ public class BookStoreBook extends ImmutableBook {
 	public boolean buyCopies(int numCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(numCopies) && areCopiesInStore(numCopies)) {
 			this.numCopies -= numCopies;
+			this.invalidateSnapshot();
+			demandHistory().recordSales(numCopies, System.currentTimeMillis());
 			return true;
 		}
 
@@ -211,30 +305,117 @@ public class BookStoreBook extends ImmutableBook {
 	public void addCopies(int numNewCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(numNewCopies)) {
 			this.numCopies += numNewCopies;
-			this.numSaleMisses = 0;
+			this.numSaleMisses.reset();
+			this.invalidateSnapshot();
+		}
+	}
+
+	/**
+	 * Adds back copies whose purchase is undone, as if they had never been
+	 * bought: unlike {@link #addCopies(int)}, the sale misses are kept, and
+	 * the copies are taken out of the sales of the demand history.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @param soldAt
+	 *            the time the copies were bought, in milliseconds
+	 */
+	public void restoreCopies(int numCopies, long soldAt) {
+		if (!BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			this.numCopies += numCopies;
+			this.invalidateSnapshot();
+			DemandHistory history = demandHistory;
+			if (history != null) {
+				history.unrecordSales(numCopies, soldAt);
+			}
 		}
 	}
 
 	/**
-	 * Increments the amount of missed sales of the book.
+	 * Increments the amount of missed sales of the book. Safe to call without
+	 * an exclusive lock on the book.
 	 * 
 	 * @param numSaleMisses
 	 *            the number of sales misses encountered
 	 */
 	public void addSaleMiss(int numSaleMisses) {
-		this.numSaleMisses += numSaleMisses;
+		this.numSaleMisses.add(numSaleMisses);
+		this.invalidateSnapshot();
+		demandHistory().recordSaleMisses(numSaleMisses, System.currentTimeMillis());
+	}
+
+	/**
+	 * Gets the sales and sale misses of the book within a window.
+	 *
+	 * @param windowMillis
+	 *            the milliseconds before now, at most
+	 *            {@link DemandHistory#HISTORY_MILLIS}
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the demand
+	 */
+	public BookDemand getDemand(long windowMillis, long now) {
+		DemandHistory history = demandHistory;
+		if (history == null) {
+			return new BookDemand(getISBN(), 0, 0, windowMillis);
+		}
+		return new BookDemand(getISBN(), history.getSales(windowMillis, now),
+				history.getSaleMisses(windowMillis, now), windowMillis);
+	}
+
+	/**
+	 * Gets the sales and sale misses of the book, decayed by their age. The
+	 * window of the demand is the mean lifetime of the decay, so that its
+	 * sales velocity estimates the current rate of sales.
+	 *
+	 * @param halfLifeMillis
+	 *            the half-life in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the demand
+	 */
+	public BookDemand getDecayedDemand(long halfLifeMillis, long now) {
+		long meanLifetime = Math.round(halfLifeMillis / Math.log(2));
+		DemandHistory history = demandHistory;
+		if (history == null) {
+			return new BookDemand(getISBN(), 0, 0, meanLifetime);
+		}
+		return new BookDemand(getISBN(), history.getDecayedSales(halfLifeMillis, now),
+				history.getDecayedSaleMisses(halfLifeMillis, now), meanLifetime);
+	}
+
+	/**
+	 * Gets the demand history, creating it on first use.
+	 *
+	 * @return the demand history
+	 */
+	private DemandHistory demandHistory() {
+		DemandHistory history = demandHistory;
+		if (history == null) {
+			synchronized (this) {
+				history = demandHistory;
+				if (history == null) {
+					history = new DemandHistory();
+					demandHistory = history;
+				}
+			}
+		}
+		return history;
 	}
 
 	/**
-	 * Adds the rating to the total rating of the book.
+	 * Adds the rating to the total rating of the book. Safe to call without an
+	 * exclusive lock on the book; a concurrent reader may then observe the
+	 * total rating and the number of times rated of different ratings.
 	 *
 	 * @param rating
 	 *            the rating
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.numTimesRated++;
+			this.totalRating.add(rating);
+			this.numTimesRated.increment();
+			this.invalidateSnapshot();
 		}
 	}
 
@@ -245,7 +426,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean hadSaleMiss() {
-		return this.numSaleMisses > 0;
+		return this.numSaleMisses.sum() > 0;
 	}
 
 	/**
@@ -260,24 +441,62 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a {@link ImmutableBook} copy of the book.
+	 * Clears the cached {@link ImmutableStockBook} view after the book is
+	 * mutated, including a view being built meanwhile, so reads only compare
+	 * one reference instead of folding the counters.
+	 */
+	private void invalidateSnapshot() {
+		this.stockBookSnapshot.set(null);
+	}
+
+	/**
+	 * Builds an {@link ImmutableStockBook} view of the current state.
+	 */
+	private ImmutableStockBook newSnapshot() {
+		ImmutableBook book = immutableBook();
+		return new ImmutableStockBook(this.getISBN(), book.getTitle(), book.getAuthor(), this.getPrice(),
+				this.numCopies, this.numSaleMisses.sum(), this.numTimesRated.sum(), this.totalRating.sum(),
+				this.editorPick);
+	}
+
+	/**
+	 * Returns a {@link ImmutableBook} view of the book. The instance is shared
+	 * between callers.
 	 *
 	 * @return the immutable book
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice());
+		ImmutableBook snapshot = bookSnapshot;
+
+		if (snapshot == null) {
+			// Racing readers decode the same strings, either result is fine
+			snapshot = new ImmutableBook(this.getISBN(), catalog.getTitle(slot), catalog.getAuthor(slot),
+					this.getPrice());
+			bookSnapshot = snapshot;
+		}
+
+		return snapshot;
 	}
 
 	/**
-	 * Returns a {@link StockBook} copy of the book.
+	 * Returns a {@link StockBook} view of the book as of its last mutation. The
+	 * instance is shared between callers until the book changes.
 	 *
 	 * @return the stock book
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
-				this.editorPick);
+		ImmutableStockBook snapshot = stockBookSnapshot.get();
+		if (snapshot != null && snapshot != BUILDING) {
+			return snapshot;
+		}
+
+		// A mutation while the view is built clears the placeholder, so a stale view is never cached
+		boolean building = (snapshot == null) && stockBookSnapshot.compareAndSet(null, BUILDING);
+		snapshot = newSnapshot();
+		if (building) {
+			stockBookSnapshot.compareAndSet(BUILDING, snapshot);
+		}
+		return snapshot;
 	}
 
 	/**
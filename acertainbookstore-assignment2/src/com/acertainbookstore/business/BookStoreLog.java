@@ -0,0 +1,971 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.acertainbookstore.interfaces.RecoverableBookStore;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResultCode;
+
+/**
+ * {@link BookStoreLog} is a write-ahead log of the mutations of a bookstore.
+ * <p>
+ * The stores append a record for every mutation while they hold the locks of
+ * the mutated books, so the log is ordered like the mutations themselves, and
+ * wait for the record to be durable after releasing them. A single flusher
+ * thread writes all records appended in the meantime with one fsync, so
+ * concurrent requests share the cost of syncing. Appends wait while
+ * {@link #MAX_PENDING_BYTES} are waiting for the flusher, so a slow disk holds
+ * the writers back instead of filling the heap.
+ * <p>
+ * The log is a directory of segment files named after the position of their
+ * first record. A record is its length, the ordinal of its
+ * {@link BookStoreMessageTag}, its arguments and a CRC32 checksum. A torn
+ * record at the end of the log is discarded on recovery.
+ * <p>
+ * A checkpoint is a {@link MappedCatalog} of every book with its counters,
+ * named after the log position it reflects. Writing one deletes the older checkpoints and the
+ * segments which end before it, and recovery loads the latest checkpoint and
+ * replays only the records after it.
+ * <p>
+ * Replicas tail the synced records from the segments and start from the
+ * latest checkpoint when the records they need were truncated.
+ * <p>
+ * A backup is a replica whose polls acknowledge the records it received.
+ * While a backup is attached every mutation also waits until the backup
+ * acknowledged its record, and a backup which stays silent for
+ * {@link #BACKUP_TIMEOUT} is detached so that the primary carries on alone.
+ * The detaches are counted. A log which requires a backup refuses mutations
+ * instead of carrying on alone.
+ */
+public class BookStoreLog implements Closeable {
+
+	/** The position returned for mutations which were not logged. */
+	public static final long NO_RECORD = -1;
+
+	/** The default size above which a new segment is started. */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	/** The tags of the messages which mutate the store. */
+	public static final Set<BookStoreMessageTag> MUTATIONS = EnumSet.of(BookStoreMessageTag.ADDBOOKS,
+			BookStoreMessageTag.ADDCOPIES, BookStoreMessageTag.BUYBOOKS, BookStoreMessageTag.RATEBOOKS,
+			BookStoreMessageTag.UPDATEEDITORPICKS, BookStoreMessageTag.REMOVEBOOKS,
+			BookStoreMessageTag.REMOVEALLBOOKS, BookStoreMessageTag.RESTORECOPIES);
+
+	/** The bytes of records waiting for the flusher above which appends wait. */
+	public static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+	/** The milliseconds without acknowledgement after which a backup is detached. */
+	public static final long BACKUP_TIMEOUT = 1000;
+
+	/** The suffix of segment files. */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** The suffix of checkpoint files. */
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	/** The suffix of checkpoints being written. */
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/** The size of the length and checksum framing a record. */
+	private static final int RECORD_OVERHEAD = 8;
+
+	/** The directory of the segments. */
+	private final File directory;
+
+	/** The logged store. */
+	private final RecoverableBookStore store;
+
+	/** The tags of the mutations which wait for their records to be synced. */
+	private final Set<BookStoreMessageTag> syncTags;
+
+	/** The size above which a new segment is started. */
+	private final long segmentSize;
+
+	/** The segment being written, only used by the flusher. */
+	private FileChannel segment;
+
+	/** The records appended but not yet written. */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/** The position after the last appended record. */
+	private long appendedPosition;
+
+	/** The position after the last synced record. */
+	private long durablePosition;
+
+	/** The position after the last record acknowledged by the backup. */
+	private long acknowledgedPosition;
+
+	/** The time of the last acknowledgement of the backup. */
+	private long acknowledgedAt;
+
+	/** Whether mutations wait for the backup. */
+	private boolean backupAttached = false;
+
+	/** Whether mutations are refused while no backup is attached. */
+	private boolean backupRequired = false;
+
+	/** The number of times the backup was detached. */
+	private long numBackupDetaches = 0;
+
+	/** The error which stopped the flusher, or null. */
+	private IOException failure = null;
+
+	/** Whether the log is closed. */
+	private boolean closed = false;
+
+	/** Whether the flusher starts a new segment with the next group. */
+	private boolean rollRequested = false;
+
+	/** Takes the periodic checkpoints, or null. */
+	private ScheduledExecutorService checkpointer = null;
+
+	/** The thread writing and syncing the records. */
+	private final Thread flusher;
+
+	/**
+	 * Opens the log in the given directory and replays its records into the
+	 * store, which must be empty and not yet logging.
+	 *
+	 * @param directory
+	 *            the directory of the segments
+	 * @param syncTags
+	 *            the tags of the mutations which return only once their
+	 *            records are synced; other mutations are synced with the next
+	 *            group, but do not wait for it
+	 * @param store
+	 *            the store to recover
+	 * @throws IOException
+	 *             if the log cannot be read or opened
+	 */
+	public BookStoreLog(File directory, Set<BookStoreMessageTag> syncTags, RecoverableBookStore store)
+			throws IOException {
+		this(directory, syncTags, DEFAULT_SEGMENT_SIZE, store);
+	}
+
+	/**
+	 * Opens the log in the given directory and replays its records into the
+	 * store, which must be empty and not yet logging.
+	 *
+	 * @param directory
+	 *            the directory of the segments
+	 * @param syncTags
+	 *            the tags of the mutations which return only once their
+	 *            records are synced
+	 * @param segmentSize
+	 *            the size above which a new segment is started
+	 * @param store
+	 *            the store to recover
+	 * @throws IOException
+	 *             if the log cannot be read or opened
+	 */
+	public BookStoreLog(File directory, Set<BookStoreMessageTag> syncTags, long segmentSize,
+			RecoverableBookStore store) throws IOException {
+		this.directory = directory;
+		this.store = store;
+		this.syncTags = syncTags.isEmpty() ? EnumSet.noneOf(BookStoreMessageTag.class) : EnumSet.copyOf(syncTags);
+		this.segmentSize = segmentSize;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the log directory " + directory);
+		}
+
+		long position = loadCheckpoint();
+		File[] segments = listSegments();
+		for (int i = 0; i < segments.length; i++) {
+			long start = segmentStart(segments[i]);
+			if (i + 1 < segments.length && segmentStart(segments[i + 1]) <= position) {
+				continue; // Reflected by the checkpoint
+			}
+			long length = replay(segments[i], Math.max(position - start, 0), store);
+			position = start + length;
+			if (length < segments[i].length()) {
+				// A torn record ends the log, later segments cannot follow it
+				truncate(segments[i], length);
+				for (int j = i + 1; j < segments.length; j++) {
+					if (!segments[j].delete()) {
+						throw new IOException("Cannot delete the log segment " + segments[j]);
+					}
+				}
+				break;
+			}
+		}
+
+		appendedPosition = position;
+		durablePosition = position;
+		segment = openSegment(segments.length == 0 ? position : segmentStart(lastSegment(position)));
+
+		flusher = new Thread(this::flush, "bookstore-log-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Appends the record of a mutation, waiting while too many records wait
+	 * for the flusher. The caller must still hold the locks of the mutated
+	 * books.
+	 *
+	 * @param tag
+	 *            the mutation
+	 * @param arguments
+	 *            the arguments of the mutation
+	 * @return the position after the record
+	 * @throws BookStoreException
+	 *             if the log is closed or failed, or, with
+	 *             {@link BookStoreResultCode#NO_BACKUP}, if it requires a
+	 *             backup and none is attached
+	 */
+	public long append(BookStoreMessageTag tag, Collection<?> arguments) throws BookStoreException {
+		byte[] record = encode(tag, arguments);
+		synchronized (this) {
+			checkOpen();
+			while (pending.size() > 0 && pending.size() + record.length > MAX_PENDING_BYTES) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new BookStoreException("Interrupted while waiting for the log", ex);
+				}
+				checkOpen();
+			}
+			if (backupRequired && !backupAttached) {
+				throw new BookStoreException(BookStoreResultCode.NO_BACKUP,
+						"No backup is attached, the mutation is refused");
+			}
+			pending.write(record, 0, record.length);
+			appendedPosition += record.length;
+			notifyAll();
+			return appendedPosition;
+		}
+	}
+
+	/**
+	 * Waits until the record of a mutation is synced, if mutations of its kind
+	 * are synchronous, and acknowledged by the backup, if one is attached. The
+	 * caller should have released its locks, so that other mutations can join
+	 * the group.
+	 *
+	 * @param tag
+	 *            the mutation
+	 * @param position
+	 *            the position returned by
+	 *            {@link #append(BookStoreMessageTag, Collection)}
+	 * @throws BookStoreException
+	 *             if the record could not be synced, or the log requires a
+	 *             backup and the backup was detached before acknowledging it,
+	 *             with {@link BookStoreResultCode#UNKNOWN_OUTCOME}; the
+	 *             mutation may still have been applied
+	 */
+	public void await(BookStoreMessageTag tag, long position) throws BookStoreException {
+		if (position == NO_RECORD) {
+			return;
+		}
+		boolean sync = syncTags.contains(tag);
+		synchronized (this) {
+			// Records appended before close are still synced by the flusher
+			while ((sync && durablePosition < position) || (backupAttached && acknowledgedPosition < position)) {
+				if (failure != null) {
+					throw new BookStoreException("The log failed", failure);
+				}
+				try {
+					if (backupAttached && (!sync || durablePosition >= position)) {
+						long silence = System.currentTimeMillis() - acknowledgedAt;
+						if (silence >= BACKUP_TIMEOUT) {
+							backupAttached = false;
+							numBackupDetaches++;
+							notifyAll();
+							if (backupRequired) {
+								throw new BookStoreException(BookStoreResultCode.UNKNOWN_OUTCOME,
+										"The backup was detached before acknowledging the mutation");
+							}
+						} else {
+							wait(BACKUP_TIMEOUT - silence);
+						}
+					} else {
+						wait();
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new BookStoreException("Interrupted while syncing the log", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that the backup received the records before a position, and
+	 * attaches it if it was not.
+	 *
+	 * @param position
+	 *            the position after the last record the backup received
+	 */
+	public synchronized void acknowledge(long position) {
+		if (position > durablePosition) {
+			return; // Not a position this log shipped
+		}
+		acknowledgedPosition = Math.max(acknowledgedPosition, position);
+		acknowledgedAt = System.currentTimeMillis();
+		if (!backupAttached) {
+			// Mutations wait from the next record on, not for the catch up
+			backupAttached = true;
+			acknowledgedPosition = Math.max(acknowledgedPosition, appendedPosition);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Gets the position after the last record acknowledged by the backup.
+	 *
+	 * @return the position
+	 */
+	public synchronized long getAcknowledgedPosition() {
+		return acknowledgedPosition;
+	}
+
+	/**
+	 * Checks whether mutations wait for a backup.
+	 *
+	 * @return true if a backup is attached
+	 */
+	public synchronized boolean isBackupAttached() {
+		return backupAttached;
+	}
+
+	/**
+	 * Gets the number of times a backup stopped acknowledging and was
+	 * detached.
+	 *
+	 * @return the number of detaches
+	 */
+	public synchronized long getNumBackupDetaches() {
+		return numBackupDetaches;
+	}
+
+	/**
+	 * Sets whether mutations are refused while no backup is attached, rather
+	 * than applied by the primary alone.
+	 *
+	 * @param backupRequired
+	 *            whether a backup is required
+	 */
+	public synchronized void setBackupRequired(boolean backupRequired) {
+		this.backupRequired = backupRequired;
+	}
+
+	/**
+	 * Gets the position after the last appended record.
+	 *
+	 * @return the position
+	 */
+	public synchronized long getAppendedPosition() {
+		return appendedPosition;
+	}
+
+	/**
+	 * Gets the position after the last synced record.
+	 *
+	 * @return the position
+	 */
+	public synchronized long getDurablePosition() {
+		return durablePosition;
+	}
+
+	/**
+	 * Reads synced records from a position, for a replica tailing the log.
+	 * Waits for a record if there is none yet, and returns whole records of
+	 * one segment, at most the given number of bytes unless the first record
+	 * is larger.
+	 *
+	 * @param position
+	 *            the position of the first record
+	 * @param maxBytes
+	 *            the number of bytes to read at most
+	 * @param timeoutMillis
+	 *            the time to wait for a record
+	 * @param records
+	 *            the stream the records are written to
+	 * @return the position after the last synced record when the records were
+	 *         read, or {@link #NO_RECORD} if the position is no longer or not
+	 *         yet in the log
+	 * @throws IOException
+	 *             if the log cannot be read
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a record
+	 */
+	public long readRecords(long position, int maxBytes, long timeoutMillis, ByteArrayOutputStream records)
+			throws IOException, InterruptedException {
+		long end;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (durablePosition == position && failure == null && !closed && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			end = durablePosition;
+		}
+		if (position > end) {
+			return NO_RECORD;
+		}
+
+		// Records do not span segments, the first segment starting after the
+		// position bounds the records to read
+		File[] segments = listSegments();
+		int i = segments.length - 1;
+		while (i >= 0 && segmentStart(segments[i]) > position) {
+			i--;
+		}
+		if (i < 0) {
+			return position == end ? end : NO_RECORD;
+		}
+		long start = segmentStart(segments[i]);
+		long limit = (i + 1 < segments.length) ? Math.min(end, segmentStart(segments[i + 1])) : end;
+
+		try (FileChannel channel = FileChannel.open(segments[i].toPath(), StandardOpenOption.READ)) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			for (long offset = position - start; start + offset < limit;) {
+				length.clear();
+				readFully(channel, length, offset);
+				int recordLength = RECORD_OVERHEAD + length.getInt(0);
+				if (records.size() > 0 && records.size() + recordLength > maxBytes) {
+					break;
+				}
+				ByteBuffer record = ByteBuffer.allocate(recordLength);
+				readFully(channel, record, offset);
+				records.write(record.array(), 0, recordLength);
+				offset += recordLength;
+			}
+		} catch (NoSuchFileException ex) {
+			// Deleted by a checkpoint in the meantime
+			return NO_RECORD;
+		}
+		return end;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException("The log segment ends within a record");
+			}
+		}
+	}
+
+	/**
+	 * Applies records read by
+	 * {@link #readRecords(long, int, long, ByteArrayOutputStream)} to a
+	 * replica.
+	 *
+	 * @param records
+	 *            the records
+	 * @param store
+	 *            the replica
+	 * @throws IOException
+	 *             if a record is corrupt or does not match the replica
+	 */
+	public static void applyRecords(byte[] records, RecoverableBookStore store) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+		int offset = 0;
+		while (offset < records.length) {
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			if ((int) crc.getValue() != in.readInt()) {
+				throw new IOException("The record at " + offset + " is corrupt");
+			}
+			apply(body, store);
+			offset += RECORD_OVERHEAD + body.length;
+		}
+	}
+
+	/**
+	 * Gets the latest checkpoint, from which a replica starts.
+	 *
+	 * @return the checkpoint, or null if there is none
+	 */
+	public File getLatestCheckpoint() {
+		File[] checkpoints = listFiles(CHECKPOINT_SUFFIX);
+		return checkpoints.length == 0 ? null : checkpoints[checkpoints.length - 1];
+	}
+
+	/**
+	 * Syncs the appended records and closes the log.
+	 *
+	 * @throws IOException
+	 *             if the records could not be synced
+	 */
+	@Override
+	public void close() throws IOException {
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+			try {
+				checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		segment.close();
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private void checkOpen() throws BookStoreException {
+		if (failure != null) {
+			throw new BookStoreException("The log failed", failure);
+		}
+		if (closed) {
+			throw new BookStoreException("The log is closed");
+		}
+	}
+
+	/**
+	 * Writes and syncs the pending records in groups until the log is closed.
+	 */
+	private void flush() {
+		while (true) {
+			ByteArrayOutputStream group;
+			long groupEnd;
+			synchronized (this) {
+				while (pending.size() == 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						// Only close stops the flusher
+					}
+				}
+				if (pending.size() == 0) {
+					return;
+				}
+				group = pending;
+				groupEnd = appendedPosition;
+				pending = new ByteArrayOutputStream();
+				notifyAll();
+			}
+
+			try {
+				boolean roll;
+				synchronized (this) {
+					roll = rollRequested;
+					rollRequested = false;
+				}
+				if ((roll && segment.position() > 0) || segment.position() >= segmentSize) {
+					segment.close();
+					segment = openSegment(groupEnd - group.size());
+				}
+				group.writeTo(Channels.newOutputStream(segment));
+				segment.force(false);
+			} catch (IOException ex) {
+				synchronized (this) {
+					failure = ex;
+					notifyAll();
+				}
+				return;
+			}
+
+			synchronized (this) {
+				durablePosition = groupEnd;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Encodes the record of a mutation.
+	 */
+	private static byte[] encode(BookStoreMessageTag tag, Collection<?> arguments) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0); // Length, filled in below
+			out.writeByte(tag.ordinal());
+			out.writeInt(arguments.size());
+			for (Object argument : arguments) {
+				switch (tag) {
+				case ADDBOOKS:
+					writeBook(out, (StockBook) argument);
+					break;
+				case ADDCOPIES:
+				case BUYBOOKS:
+				case RESTORECOPIES:
+					BookCopy bookCopy = (BookCopy) argument;
+					out.writeInt(bookCopy.getISBN());
+					out.writeInt(bookCopy.getNumCopies());
+					break;
+				case RATEBOOKS:
+					BookRating bookRating = (BookRating) argument;
+					out.writeInt(bookRating.getISBN());
+					out.writeInt(bookRating.getRating());
+					break;
+				case UPDATEEDITORPICKS:
+					BookEditorPick editorPick = (BookEditorPick) argument;
+					out.writeInt(editorPick.getISBN());
+					out.writeBoolean(editorPick.isEditorPick());
+					break;
+				case REMOVEBOOKS:
+					out.writeInt((Integer) argument);
+					break;
+				default:
+					throw new IllegalArgumentException(tag + " is not a mutation");
+				}
+			}
+			out.writeInt(0); // Checksum, filled in below
+		} catch (IOException ex) {
+			// Writing to memory does not fail, and validation keeps titles and authors within writeUTF
+			throw new IllegalStateException(ex);
+		}
+
+		byte[] record = bytes.toByteArray();
+		int bodyLength = record.length - RECORD_OVERHEAD;
+		CRC32 crc = new CRC32();
+		crc.update(record, 4, bodyLength);
+		writeInt(record, 0, bodyLength);
+		writeInt(record, record.length - 4, (int) crc.getValue());
+		return record;
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Writes a book with all its counters; also the record format of a
+	 * {@link CatalogStream}. The title and the author are at most
+	 * {@link com.acertainbookstore.utils.BookStoreConstants#MAX_TEXT_LENGTH}
+	 * bytes, as validated by the stores.
+	 */
+	static void writeBook(DataOutputStream out, StockBook book) throws IOException {
+		out.writeInt(book.getISBN());
+		out.writeUTF(book.getTitle());
+		out.writeUTF(book.getAuthor());
+		out.writeFloat(book.getPrice());
+		out.writeInt(book.getNumCopies());
+		out.writeLong(book.getNumSaleMisses());
+		out.writeLong(book.getNumTimesRated());
+		out.writeLong(book.getTotalRating());
+		out.writeBoolean(book.isEditorPick());
+	}
+
+	/**
+	 * Reads a book written by {@link #writeBook(DataOutputStream, StockBook)}.
+	 */
+	static StockBook readBook(DataInputStream in) throws IOException {
+		return new ImmutableStockBook(in.readInt(), in.readUTF(), in.readUTF(), in.readFloat(), in.readInt(),
+				in.readLong(), in.readLong(), in.readLong(), in.readBoolean());
+	}
+
+	/**
+	 * Replays the records of a segment from the given offset into the store.
+	 *
+	 * @return the offset after the intact records
+	 */
+	private static long replay(File file, long offset, RecoverableBookStore store) throws IOException {
+		long length = offset;
+		FileInputStream fileIn = new FileInputStream(file);
+		fileIn.getChannel().position(offset);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+			while (true) {
+				byte[] body;
+				int checksum;
+				try {
+					int bodyLength = in.readInt();
+					if (bodyLength < 0 || length + RECORD_OVERHEAD + bodyLength > file.length()) {
+						return length;
+					}
+					body = new byte[bodyLength];
+					in.readFully(body);
+					checksum = in.readInt();
+				} catch (EOFException ex) {
+					return length;
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(body, 0, body.length);
+				if ((int) crc.getValue() != checksum) {
+					return length;
+				}
+				apply(body, store);
+				length += RECORD_OVERHEAD + body.length;
+			}
+		}
+	}
+
+	/**
+	 * Applies a record to the store.
+	 */
+	private static void apply(byte[] body, RecoverableBookStore store) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		BookStoreMessageTag tag = BookStoreMessageTag.values()[in.readUnsignedByte()];
+		int size = in.readInt();
+
+		try {
+			switch (tag) {
+			case ADDBOOKS:
+				Set<StockBook> books = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					books.add(readBook(in));
+				}
+				store.addBooks(books);
+				break;
+			case ADDCOPIES:
+			case BUYBOOKS:
+			case RESTORECOPIES:
+				Set<BookCopy> bookCopies = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					bookCopies.add(new BookCopy(in.readInt(), in.readInt()));
+				}
+				if (tag == BookStoreMessageTag.ADDCOPIES) {
+					store.addCopies(bookCopies);
+				} else if (tag == BookStoreMessageTag.BUYBOOKS) {
+					store.buyBooks(bookCopies);
+				} else {
+					// The replayed purchase was recorded as sold just now
+					store.restoreCopies(bookCopies, System.currentTimeMillis());
+				}
+				break;
+			case RATEBOOKS:
+				Set<BookRating> bookRatings = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					bookRatings.add(new BookRating(in.readInt(), in.readInt()));
+				}
+				store.rateBooks(bookRatings);
+				break;
+			case UPDATEEDITORPICKS:
+				Set<BookEditorPick> editorPicks = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					editorPicks.add(new BookEditorPick(in.readInt(), in.readBoolean()));
+				}
+				store.updateEditorPicks(editorPicks);
+				break;
+			case REMOVEBOOKS:
+				Set<Integer> isbns = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					isbns.add(in.readInt());
+				}
+				store.removeBooks(isbns);
+				break;
+			case REMOVEALLBOOKS:
+				store.removeAllBooks();
+				break;
+			default:
+				throw new IOException("Unexpected log record " + tag);
+			}
+		} catch (BookStoreException ex) {
+			// Buys which missed are logged for their sale misses and miss again
+			if (ex.getResultCode() != BookStoreResultCode.NOT_AVAILABLE || tag != BookStoreMessageTag.BUYBOOKS) {
+				throw new IOException("The log does not match the store: " + ex.getMessage(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of the store and deletes the checkpoints and the
+	 * segments it supersedes. The books must reflect exactly the records
+	 * before the position, so the store collects them while no mutation can
+	 * append.
+	 *
+	 * @param books
+	 *            the books of the store
+	 * @param position
+	 *            the position after the last record reflected by the books
+	 * @throws IOException
+	 *             if the checkpoint cannot be written
+	 */
+	public void writeCheckpoint(List<StockBook> books, long position) throws IOException {
+		// Recovery continues after the checkpoint, so the records before it
+		// must be in the log, even the ones nobody waited for
+		synchronized (this) {
+			while (durablePosition < position && failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while syncing the log", ex);
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		File temporary = new File(directory, String.format("%020d", position) + TEMPORARY_SUFFIX);
+		MappedCatalog.write(temporary, books, position);
+		Files.move(temporary.toPath(), checkpointFile(position).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		for (File checkpoint : listFiles(CHECKPOINT_SUFFIX)) {
+			if (checkpointStart(checkpoint) < position) {
+				Files.delete(checkpoint.toPath());
+			}
+		}
+		File[] segments = listSegments();
+		for (int i = 0; i + 1 < segments.length && segmentStart(segments[i + 1]) <= position; i++) {
+			Files.delete(segments[i].toPath());
+		}
+
+		// The segment being written becomes removable with the next checkpoint
+		synchronized (this) {
+			rollRequested = true;
+		}
+	}
+
+	/**
+	 * Takes a checkpoint of the store periodically until the log is closed.
+	 *
+	 * @param period
+	 *            the time between checkpoints
+	 * @param unit
+	 *            the unit of the period
+	 */
+	public synchronized void scheduleCheckpoints(long period, TimeUnit unit) {
+		if (checkpointer == null) {
+			checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "bookstore-checkpointer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		checkpointer.scheduleWithFixedDelay(() -> {
+			try {
+				store.checkpoint();
+			} catch (IOException ex) {
+				System.err.println("Could not write a checkpoint: " + ex.getMessage());
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Maps the latest checkpoint into the store and removes checkpoints which
+	 * were not completely written.
+	 *
+	 * @return the position after the last record reflected by the checkpoint
+	 */
+	private long loadCheckpoint() throws IOException {
+		for (File temporary : listFiles(TEMPORARY_SUFFIX)) {
+			Files.delete(temporary.toPath());
+		}
+		File[] checkpoints = listFiles(CHECKPOINT_SUFFIX);
+		if (checkpoints.length == 0) {
+			return 0;
+		}
+
+		// Checkpoints are renamed into place once complete, so the latest one
+		// is intact and can be mapped without reading it
+		File checkpoint = checkpoints[checkpoints.length - 1];
+		MappedCatalog catalog = new MappedCatalog(checkpoint);
+		if (catalog.getPosition() != checkpointStart(checkpoint)) {
+			throw new IOException("The checkpoint " + checkpoint + " is corrupt");
+		}
+		store.restoreCatalog(catalog);
+		return catalog.getPosition();
+	}
+
+	private File[] listFiles(String suffix) {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(suffix));
+		// Names are zero-padded positions, so they sort like the positions
+		Arrays.sort(files);
+		return files;
+	}
+
+	private File checkpointFile(long position) {
+		return new File(directory, String.format("%020d", position) + CHECKPOINT_SUFFIX);
+	}
+
+	private static long checkpointStart(File checkpoint) {
+		String name = checkpoint.getName();
+		return Long.parseLong(name.substring(0, name.length() - CHECKPOINT_SUFFIX.length()));
+	}
+
+	private File[] listSegments() {
+		return listFiles(SEGMENT_SUFFIX);
+	}
+
+	private File lastSegment(long position) {
+		File[] segments = listSegments();
+		return segments.length == 0 ? segmentFile(position) : segments[segments.length - 1];
+	}
+
+	private File segmentFile(long start) {
+		return new File(directory, String.format("%020d", start) + SEGMENT_SUFFIX);
+	}
+
+	private static long segmentStart(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private FileChannel openSegment(long start) throws IOException {
+		FileChannel channel = FileChannel.open(segmentFile(start).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(length);
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of message tags.
+	 *
+	 * @param tags
+	 *            the list, or null for all mutations
+	 * @return the tags
+	 * @throws IllegalArgumentException
+	 *             if a tag is unknown
+	 */
+	public static Set<BookStoreMessageTag> parseTags(String tags) {
+		if (tags == null) {
+			return EnumSet.copyOf(MUTATIONS);
+		}
+		Set<BookStoreMessageTag> parsed = EnumSet.noneOf(BookStoreMessageTag.class);
+		for (String tag : tags.split(",")) {
+			if (!tag.trim().isEmpty()) {
+				parsed.add(BookStoreMessageTag.valueOf(tag.trim().toUpperCase()));
+			}
+		}
+		return parsed;
+	}
+}
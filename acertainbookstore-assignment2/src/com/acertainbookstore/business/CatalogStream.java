@@ -0,0 +1,507 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResultCode;
+
+/**
+ * {@link CatalogStream} imports books into a {@link StockManager} from a stream
+ * and exports its books to a stream, as CSV or in a binary format.
+ * <p>
+ * An import reads the stream in chunks of records, parses the chunks in a pool
+ * of threads and adds the books of every chunk with one call, in stream order.
+ * Only a few chunks per parser are read ahead of the chunk being added, so the
+ * input is never held in memory as a whole, and a store which adds slowly
+ * slows down the reading of the stream. Every chunk is added atomically; if a
+ * chunk fails, the chunks before it stay added.
+ * <p>
+ * An export lists the books page by page, so it does not hold the catalog in
+ * memory either; books added or removed during an export may or may not be
+ * exported.
+ * <p>
+ * A CSV stream has a header line followed by one line per book with the ISBN,
+ * title, author, price, number of copies, sale misses, times rated, total
+ * rating and editor pick. Fields are quoted if they contain commas, quotes or
+ * line breaks. A binary stream has a magic number followed by one record per
+ * book, prefixed with its length so that the reader can split the stream
+ * without decoding it.
+ */
+public final class CatalogStream {
+
+	/**
+	 * The formats of a stream.
+	 */
+	public enum Format {
+
+		/** Comma-separated values. */
+		CSV,
+
+		/** Length-prefixed binary records. */
+		BINARY;
+	}
+
+	/** The default number of books added with one call. */
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	/** The default number of books listed per page by an export. */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	/** The number of chunks read ahead per parser. */
+	private static final int CHUNKS_PER_PARSER = 2;
+
+	/** The first bytes of a binary stream. */
+	private static final int MAGIC = 0x42534231;
+
+	/** The largest binary record: two strings of at most 64 KB and the rest. */
+	private static final int MAX_RECORD_LENGTH = 1 << 18;
+
+	/** The header line of a CSV stream. */
+	private static final String CSV_HEADER = "isbn,title,author,price,numCopies,numSaleMisses,numTimesRated,totalRating,editorPick";
+
+	/** The number of fields of a CSV line. */
+	private static final int CSV_FIELDS = 9;
+
+	private CatalogStream() {
+		// Prevent instantiation
+	}
+
+	/**
+	 * Converts the name of a format, as sent in a request, to the format.
+	 *
+	 * @param name
+	 *            the name, in any case
+	 * @return the format
+	 * @throws BookStoreException
+	 *             if the name is not a format
+	 */
+	public static Format parseFormat(String name) throws BookStoreException {
+		try {
+			return Format.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException | NullPointerException ex) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, "The format: " + name + " is invalid");
+		}
+	}
+
+	/**
+	 * Imports books in chunks of {@link #DEFAULT_CHUNK_SIZE}, with one parser
+	 * per processor.
+	 *
+	 * @param in
+	 *            the stream, which is not closed
+	 * @param format
+	 *            the format of the stream
+	 * @param stockManager
+	 *            the store to add the books to
+	 * @return the number of books added
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws BookStoreException
+	 *             if a record is invalid or a chunk is rejected by the store
+	 */
+	public static long importBooks(InputStream in, Format format, StockManager stockManager)
+			throws IOException, BookStoreException {
+		return importBooks(in, format, stockManager, DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Imports books.
+	 *
+	 * @param in
+	 *            the stream, which is not closed
+	 * @param format
+	 *            the format of the stream
+	 * @param stockManager
+	 *            the store to add the books to
+	 * @param chunkSize
+	 *            the number of books added with one call
+	 * @param parsers
+	 *            the number of threads parsing chunks
+	 * @return the number of books added
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws BookStoreException
+	 *             if a record is invalid or a chunk is rejected by the store
+	 */
+	public static long importBooks(InputStream in, Format format, StockManager stockManager, int chunkSize,
+			int parsers) throws IOException, BookStoreException {
+		if (chunkSize < 1 || parsers < 1) {
+			throw new IllegalArgumentException("The chunk size and the number of parsers must be positive");
+		}
+
+		ChunkReader reader = (format == Format.CSV) ? new CsvChunkReader(in, chunkSize)
+				: new BinaryChunkReader(in, chunkSize);
+		ExecutorService pool = Executors.newFixedThreadPool(parsers);
+		Deque<Future<Set<StockBook>>> chunks = new ArrayDeque<>();
+		long count = 0;
+
+		try {
+			Callable<Set<StockBook>> chunk;
+			while ((chunk = reader.next()) != null) {
+				chunks.add(pool.submit(chunk));
+
+				// Stop reading until the oldest chunk is added
+				if (chunks.size() >= parsers * CHUNKS_PER_PARSER) {
+					count += add(chunks.remove(), stockManager);
+				}
+			}
+
+			while (!chunks.isEmpty()) {
+				count += add(chunks.remove(), stockManager);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Exports all books with their counters, in pages of
+	 * {@link #DEFAULT_PAGE_SIZE}.
+	 *
+	 * @param stockManager
+	 *            the store
+	 * @param out
+	 *            the stream, which is flushed but not closed
+	 * @param format
+	 *            the format of the stream
+	 * @return the number of books exported
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws BookStoreException
+	 *             if the books cannot be listed
+	 */
+	public static long exportBooks(StockManager stockManager, OutputStream out, Format format)
+			throws IOException, BookStoreException {
+		return exportBooks(stockManager, out, format, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Exports all books with their counters.
+	 *
+	 * @param stockManager
+	 *            the store
+	 * @param out
+	 *            the stream, which is flushed but not closed
+	 * @param format
+	 *            the format of the stream
+	 * @param pageSize
+	 *            the number of books listed at once
+	 * @return the number of books exported
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws BookStoreException
+	 *             if the page size is invalid or the books cannot be listed
+	 */
+	public static long exportBooks(StockManager stockManager, OutputStream out, Format format, int pageSize)
+			throws IOException, BookStoreException {
+		Writer writer = null;
+		DataOutputStream dataOut = null;
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream recordOut = new DataOutputStream(record);
+		if (format == Format.CSV) {
+			writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			writer.write(CSV_HEADER);
+			writer.write('\n');
+		} else {
+			dataOut = new DataOutputStream(new BufferedOutputStream(out));
+			dataOut.writeInt(MAGIC);
+		}
+
+		long count = 0;
+		String cursor = null;
+		do {
+			BookPage page = stockManager.getBooks(cursor, pageSize);
+			for (StockBook book : page.getBooks()) {
+				if (format == Format.CSV) {
+					writer.write(Integer.toString(book.getISBN()));
+					writer.write(',');
+					writer.write(quote(book.getTitle()));
+					writer.write(',');
+					writer.write(quote(book.getAuthor()));
+					writer.write(',' + Float.toString(book.getPrice()) + ',' + book.getNumCopies() + ','
+							+ book.getNumSaleMisses() + ',' + book.getNumTimesRated() + ',' + book.getTotalRating()
+							+ ',' + book.isEditorPick() + '\n');
+				} else {
+					record.reset();
+					BookStoreLog.writeBook(recordOut, book);
+					dataOut.writeInt(record.size());
+					record.writeTo(dataOut);
+				}
+				count++;
+			}
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+
+		if (format == Format.CSV) {
+			writer.flush();
+		} else {
+			dataOut.flush();
+		}
+		return count;
+	}
+
+	/**
+	 * Waits for a chunk to be parsed and adds its books.
+	 */
+	private static int add(Future<Set<StockBook>> chunk, StockManager stockManager) throws BookStoreException {
+		Set<StockBook> books;
+
+		try {
+			books = chunk.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException("The import was interrupted", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+			throw new BookStoreException(ex.getCause());
+		}
+
+		stockManager.addBooks(books);
+		return books.size();
+	}
+
+	private static String quote(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+			return field;
+		}
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * Reads the records of the next chunk, without parsing them.
+	 */
+	private interface ChunkReader {
+
+		/**
+		 * Reads the next chunk.
+		 *
+		 * @return the task parsing the chunk, or null at the end of the stream
+		 */
+		Callable<Set<StockBook>> next() throws IOException;
+	}
+
+	/**
+	 * Splits a CSV stream into lines, joining the lines of quoted line breaks.
+	 */
+	private static final class CsvChunkReader implements ChunkReader {
+
+		/** The reader. */
+		private final BufferedReader reader;
+
+		/** The number of records per chunk. */
+		private final int chunkSize;
+
+		/** The number of lines read. */
+		private long lineNumber = 0;
+
+		CsvChunkReader(InputStream in, int chunkSize) {
+			this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			this.chunkSize = chunkSize;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.CatalogStream.ChunkReader#next()
+		 */
+		@Override
+		public Callable<Set<StockBook>> next() throws IOException {
+			List<String> records = new ArrayList<>(chunkSize);
+			long[] lineNumbers = new long[chunkSize];
+			String line;
+
+			while (records.size() < chunkSize && (line = reader.readLine()) != null) {
+				lineNumber++;
+				long recordLineNumber = lineNumber;
+				if (line.isEmpty() || (recordLineNumber == 1 && line.startsWith("isbn,"))) {
+					continue;
+				}
+
+				// An odd number of quotes leaves a quoted field open
+				String nextLine;
+				while (countQuotes(line) % 2 != 0 && (nextLine = reader.readLine()) != null) {
+					lineNumber++;
+					line = line + '\n' + nextLine;
+				}
+
+				lineNumbers[records.size()] = recordLineNumber;
+				records.add(line);
+			}
+
+			if (records.isEmpty()) {
+				return null;
+			}
+
+			return () -> {
+				Set<StockBook> books = new HashSet<>();
+				for (int i = 0; i < records.size(); i++) {
+					books.add(parse(records.get(i), lineNumbers[i]));
+				}
+				return books;
+			};
+		}
+
+		private static int countQuotes(String line) {
+			int quotes = 0;
+			for (int i = 0; i < line.length(); i++) {
+				if (line.charAt(i) == '"') {
+					quotes++;
+				}
+			}
+			return quotes;
+		}
+
+		private static StockBook parse(String record, long lineNumber) throws BookStoreException {
+			List<String> fields = new ArrayList<>(CSV_FIELDS);
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+
+			for (int i = 0; i < record.length(); i++) {
+				char c = record.charAt(i);
+				if (quoted) {
+					if (c != '"') {
+						field.append(c);
+					} else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+						field.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else {
+					field.append(c);
+				}
+			}
+			fields.add(field.toString());
+
+			if (quoted || fields.size() != CSV_FIELDS || !isBoolean(fields.get(8))) {
+				throw invalidLine(lineNumber);
+			}
+
+			try {
+				return new ImmutableStockBook(Integer.parseInt(fields.get(0)), fields.get(1), fields.get(2),
+						Float.parseFloat(fields.get(3)), Integer.parseInt(fields.get(4)), Long.parseLong(fields.get(5)),
+						Long.parseLong(fields.get(6)), Long.parseLong(fields.get(7)), Boolean.parseBoolean(fields.get(8)));
+			} catch (NumberFormatException ex) {
+				throw invalidLine(lineNumber);
+			}
+		}
+
+		private static boolean isBoolean(String field) {
+			return field.equals("true") || field.equals("false");
+		}
+
+		private static BookStoreException invalidLine(long lineNumber) {
+			return new BookStoreException(BookStoreResultCode.INVALID, "The line: " + lineNumber + " is invalid");
+		}
+	}
+
+	/**
+	 * Splits a binary stream into records by their lengths.
+	 */
+	private static final class BinaryChunkReader implements ChunkReader {
+
+		/** The stream. */
+		private final DataInputStream in;
+
+		/** The number of records per chunk. */
+		private final int chunkSize;
+
+		/** The number of records read, or -1 before the magic number. */
+		private long recordNumber = -1;
+
+		BinaryChunkReader(InputStream in, int chunkSize) {
+			this.in = new DataInputStream(in);
+			this.chunkSize = chunkSize;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.CatalogStream.ChunkReader#next()
+		 */
+		@Override
+		public Callable<Set<StockBook>> next() throws IOException {
+			if (recordNumber < 0) {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("The stream is not a binary catalog");
+				}
+				recordNumber = 0;
+			}
+
+			List<byte[]> records = new ArrayList<>(chunkSize);
+			long firstRecordNumber = recordNumber + 1;
+
+			while (records.size() < chunkSize) {
+				int first = in.read();
+				if (first < 0) {
+					break;
+				}
+				int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+				if (length < 0 || length > MAX_RECORD_LENGTH) {
+					throw new IOException("The record: " + (recordNumber + 1) + " has an invalid length");
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				recordNumber++;
+				records.add(record);
+			}
+
+			if (records.isEmpty()) {
+				return null;
+			}
+
+			return () -> {
+				Set<StockBook> books = new HashSet<>();
+				for (int i = 0; i < records.size(); i++) {
+					ByteArrayInputStream recordIn = new ByteArrayInputStream(records.get(i));
+					StockBook book;
+					try {
+						book = BookStoreLog.readBook(new DataInputStream(recordIn));
+					} catch (IOException ex) {
+						book = null;
+					}
+					if (book == null || recordIn.available() > 0) {
+						throw new BookStoreException(BookStoreResultCode.INVALID,
+								"The record: " + (firstRecordNumber + i) + " is invalid");
+					}
+					books.add(book);
+				}
+				return books;
+			};
+		}
+	}
+}
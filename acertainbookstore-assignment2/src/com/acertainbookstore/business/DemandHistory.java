@@ -0,0 +1,201 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link DemandHistory} counts the copies sold and the sale misses of a book
+ * over the last {@link #HISTORY_MILLIS}, in a ring of {@link #NUM_BUCKETS}
+ * buckets of {@link #BUCKET_MILLIS} each.
+ * <p>
+ * Every bucket is a single long holding the index of the time bucket it
+ * counts in its high bits and the count in its low bits. A bucket left from
+ * an earlier turn of the ring is restarted by the first update which finds
+ * it stale, with one compare-and-set, so recording neither locks nor
+ * allocates and queries skip stale buckets.
+ * <p>
+ * Windows are measured in whole buckets: a window covers the buckets which
+ * overlap it, including the current one.
+ */
+public final class DemandHistory {
+
+	/** The milliseconds counted by a bucket. */
+	public static final long BUCKET_MILLIS = 60 * 1000;
+
+	/** The number of buckets. */
+	public static final int NUM_BUCKETS = 60;
+
+	/** The milliseconds the history covers. */
+	public static final long HISTORY_MILLIS = BUCKET_MILLIS * NUM_BUCKETS;
+
+	/** The bits of a bucket holding its count. */
+	private static final int COUNT_BITS = 40;
+
+	/** The mask of the count of a bucket. */
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	/** The mask of the time bucket index kept in a bucket. */
+	private static final long STAMP_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+	/** The buckets of the copies sold, then those of the sale misses. */
+	private final AtomicLongArray buckets = new AtomicLongArray(2 * NUM_BUCKETS);
+
+	/**
+	 * Records copies sold.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void recordSales(int numCopies, long now) {
+		record(0, numCopies, now);
+	}
+
+	/**
+	 * Takes back copies recorded as sold, for a purchase which is undone. The
+	 * copies are taken out of the bucket of the time they were sold, as long
+	 * as the bucket still counts that time.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @param soldAt
+	 *            the time the copies were sold, in milliseconds
+	 */
+	public void unrecordSales(int numCopies, long soldAt) {
+		if (numCopies <= 0) {
+			return;
+		}
+		long index = soldAt / BUCKET_MILLIS;
+		int slot = (int) (index % NUM_BUCKETS);
+		long stamp = (index & STAMP_MASK) << COUNT_BITS;
+		while (true) {
+			long bucket = buckets.get(slot);
+			if ((bucket & ~COUNT_MASK) != stamp) {
+				return; // Restarted since, the sale is out of the history
+			}
+			long updated = stamp | Math.max((bucket & COUNT_MASK) - numCopies, 0);
+			if (buckets.compareAndSet(slot, bucket, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records sale misses.
+	 *
+	 * @param numSaleMisses
+	 *            the number of copies which could not be sold
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void recordSaleMisses(int numSaleMisses, long now) {
+		record(NUM_BUCKETS, numSaleMisses, now);
+	}
+
+	/**
+	 * Gets the copies sold within a window.
+	 *
+	 * @param windowMillis
+	 *            the milliseconds before now, at most {@link #HISTORY_MILLIS}
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the number of copies
+	 */
+	public long getSales(long windowMillis, long now) {
+		return sum(0, windowMillis, now);
+	}
+
+	/**
+	 * Gets the sale misses within a window.
+	 *
+	 * @param windowMillis
+	 *            the milliseconds before now, at most {@link #HISTORY_MILLIS}
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the number of sale misses
+	 */
+	public long getSaleMisses(long windowMillis, long now) {
+		return sum(NUM_BUCKETS, windowMillis, now);
+	}
+
+	/**
+	 * Gets the copies sold over the history, each bucket weighted by half for
+	 * every half-life between its middle and now.
+	 *
+	 * @param halfLifeMillis
+	 *            the half-life in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the decayed number of copies
+	 */
+	public double getDecayedSales(long halfLifeMillis, long now) {
+		return decayedSum(0, halfLifeMillis, now);
+	}
+
+	/**
+	 * Gets the sale misses over the history, each bucket weighted by half for
+	 * every half-life between its middle and now.
+	 *
+	 * @param halfLifeMillis
+	 *            the half-life in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the decayed number of sale misses
+	 */
+	public double getDecayedSaleMisses(long halfLifeMillis, long now) {
+		return decayedSum(NUM_BUCKETS, halfLifeMillis, now);
+	}
+
+	/**
+	 * Adds to the bucket of the current time, restarting it if it counted an
+	 * earlier time bucket.
+	 */
+	private void record(int offset, int count, long now) {
+		if (count <= 0) {
+			return;
+		}
+		long index = now / BUCKET_MILLIS;
+		int slot = offset + (int) (index % NUM_BUCKETS);
+		long stamp = (index & STAMP_MASK) << COUNT_BITS;
+		while (true) {
+			long bucket = buckets.get(slot);
+			long updated = ((bucket & ~COUNT_MASK) == stamp) ? bucket + count : stamp | count;
+			if (buckets.compareAndSet(slot, bucket, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the count of the bucket of a time bucket index, 0 if the bucket
+	 * counts another one.
+	 */
+	private long count(int offset, long index) {
+		long bucket = buckets.get(offset + (int) (index % NUM_BUCKETS));
+		return ((bucket >>> COUNT_BITS) == (index & STAMP_MASK)) ? bucket & COUNT_MASK : 0;
+	}
+
+	private long sum(int offset, long windowMillis, long now) {
+		long index = now / BUCKET_MILLIS;
+		long first = Math.max((now - Math.min(windowMillis, HISTORY_MILLIS)) / BUCKET_MILLIS,
+				index - NUM_BUCKETS + 1);
+		long sum = 0;
+		for (long i = Math.max(first, 0); i <= index; i++) {
+			sum += count(offset, i);
+		}
+		return sum;
+	}
+
+	private double decayedSum(int offset, long halfLifeMillis, long now) {
+		long index = now / BUCKET_MILLIS;
+		double sum = 0;
+		for (long i = Math.max(index - NUM_BUCKETS + 1, 0); i <= index; i++) {
+			long count = count(offset, i);
+			if (count > 0) {
+				long age = Math.max(now - (i * BUCKET_MILLIS + BUCKET_MILLIS / 2), 0);
+				sum += count * Math.pow(0.5, (double) age / halfLifeMillis);
+			}
+		}
+		return sum;
+	}
+}
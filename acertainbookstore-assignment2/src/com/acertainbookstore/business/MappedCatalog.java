@@ -0,0 +1,313 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link MappedCatalog} is a catalog file which is memory-mapped instead of
+ * read, so that a store can serve the books in it right after mapping it.
+ * <p>
+ * The file has a header followed by three regions. The index holds the ISBN
+ * of every book, sorted, and the offset of its static data. The counters hold
+ * the number of copies, sale misses, ratings and the editor pick of every book
+ * in index order, in fixed-size slots. The static data holds the price, title
+ * and author of every book; strings are only decoded when a book is asked
+ * for them.
+ */
+public class MappedCatalog {
+
+	/** The first bytes of a catalog file. */
+	private static final int MAGIC = 0x42534331;
+
+	/** The size of the header. */
+	private static final int HEADER_SIZE = 32;
+
+	/** The size of an index slot: ISBN and offset of the static data. */
+	private static final int INDEX_SLOT_SIZE = 8;
+
+	/** The size of a counters slot, padded to eight bytes. */
+	private static final int COUNTERS_SLOT_SIZE = 32;
+
+	/** The ISBNs and the offsets of the static data. */
+	private final MappedByteBuffer index;
+
+	/** The counters of the books. */
+	private final MappedByteBuffer counters;
+
+	/** The prices, titles and authors of the books. */
+	private final MappedByteBuffer staticData;
+
+	/** The number of books. */
+	private final int size;
+
+	/** The log position reflected by the catalog. */
+	private final long position;
+
+	/**
+	 * Maps a catalog file.
+	 *
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 *             if the file is not a catalog or cannot be mapped
+	 */
+	public MappedCatalog(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException("The catalog " + file + " is truncated");
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a catalog");
+			}
+			size = header.getInt(4);
+			position = header.getLong(8);
+			long staticLength = header.getLong(16);
+
+			long indexLength = (long) size * INDEX_SLOT_SIZE;
+			long countersLength = (long) size * COUNTERS_SLOT_SIZE;
+			if (channel.size() != HEADER_SIZE + indexLength + countersLength + staticLength) {
+				throw new IOException("The catalog " + file + " is truncated");
+			}
+
+			// The mappings outlive the channel
+			index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, indexLength);
+			counters = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + indexLength, countersLength);
+			staticData = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + indexLength + countersLength,
+					staticLength);
+		}
+	}
+
+	/**
+	 * Writes a catalog file and syncs it.
+	 *
+	 * @param file
+	 *            the file
+	 * @param books
+	 *            the books
+	 * @param position
+	 *            the log position reflected by the books
+	 * @throws IOException
+	 *             if the file cannot be written or a region exceeds 2 GB
+	 */
+	public static void write(File file, List<StockBook> books, long position) throws IOException {
+		List<StockBook> sortedBooks = new ArrayList<>(books);
+		sortedBooks.sort(Comparator.comparingInt(StockBook::getISBN));
+
+		// The static data is laid out first, the index points into it
+		List<byte[]> titles = new ArrayList<>(sortedBooks.size());
+		List<byte[]> authors = new ArrayList<>(sortedBooks.size());
+		long staticLength = 0;
+		for (StockBook book : sortedBooks) {
+			byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+			byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+			titles.add(title);
+			authors.add(author);
+			staticLength += 12 + title.length + author.length;
+		}
+		if (staticLength > Integer.MAX_VALUE || (long) sortedBooks.size() * COUNTERS_SLOT_SIZE > Integer.MAX_VALUE) {
+			throw new IOException("The catalog is too large to be mapped");
+		}
+
+		try (FileOutputStream fileOut = new FileOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeInt(MAGIC);
+			out.writeInt(sortedBooks.size());
+			out.writeLong(position);
+			out.writeLong(staticLength);
+			out.writeLong(0);
+
+			int staticOffset = 0;
+			for (int i = 0; i < sortedBooks.size(); i++) {
+				out.writeInt(sortedBooks.get(i).getISBN());
+				out.writeInt(staticOffset);
+				staticOffset += 12 + titles.get(i).length + authors.get(i).length;
+			}
+
+			for (StockBook book : sortedBooks) {
+				out.writeInt(book.getNumCopies());
+				out.writeLong(book.getNumSaleMisses());
+				out.writeLong(book.getNumTimesRated());
+				out.writeLong(book.getTotalRating());
+				out.writeBoolean(book.isEditorPick());
+				out.write(new byte[3]);
+			}
+
+			for (int i = 0; i < sortedBooks.size(); i++) {
+				out.writeFloat(sortedBooks.get(i).getPrice());
+				out.writeInt(titles.get(i).length);
+				out.write(titles.get(i));
+				out.writeInt(authors.get(i).length);
+				out.write(authors.get(i));
+			}
+			out.flush();
+			fileOut.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Gets the number of books.
+	 *
+	 * @return the number of books
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the log position reflected by the catalog.
+	 *
+	 * @return the position
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Finds the slot of a book by binary search in the index.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the slot, or -1 if the book is not in the catalog
+	 */
+	public int find(int isbn) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleISBN = getISBN(middle);
+			if (middleISBN < isbn) {
+				low = middle + 1;
+			} else if (middleISBN > isbn) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the ISBN of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the ISBN
+	 */
+	public int getISBN(int slot) {
+		return index.getInt(slot * INDEX_SLOT_SIZE);
+	}
+
+	/**
+	 * Gets the price of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the price
+	 */
+	public float getPrice(int slot) {
+		return staticData.getFloat(staticOffset(slot));
+	}
+
+	/**
+	 * Decodes the title of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the title
+	 */
+	public String getTitle(int slot) {
+		return getString(staticOffset(slot) + 4);
+	}
+
+	/**
+	 * Decodes the author of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the author
+	 */
+	public String getAuthor(int slot) {
+		int titleOffset = staticOffset(slot) + 4;
+		return getString(titleOffset + 4 + staticData.getInt(titleOffset));
+	}
+
+	/**
+	 * Gets the number of copies of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the number of copies
+	 */
+	public int getNumCopies(int slot) {
+		return counters.getInt(slot * COUNTERS_SLOT_SIZE);
+	}
+
+	/**
+	 * Gets the number of sale misses of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the number of sale misses
+	 */
+	public long getNumSaleMisses(int slot) {
+		return counters.getLong(slot * COUNTERS_SLOT_SIZE + 4);
+	}
+
+	/**
+	 * Gets the number of times the book in a slot was rated.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the number of times rated
+	 */
+	public long getNumTimesRated(int slot) {
+		return counters.getLong(slot * COUNTERS_SLOT_SIZE + 12);
+	}
+
+	/**
+	 * Gets the total rating of the book in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the total rating
+	 */
+	public long getTotalRating(int slot) {
+		return counters.getLong(slot * COUNTERS_SLOT_SIZE + 20);
+	}
+
+	/**
+	 * Checks if the book in a slot is editor picked.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return true, if it is editor picked
+	 */
+	public boolean isEditorPick(int slot) {
+		return counters.get(slot * COUNTERS_SLOT_SIZE + 28) != 0;
+	}
+
+	private int staticOffset(int slot) {
+		return index.getInt(slot * INDEX_SLOT_SIZE + 4);
+	}
+
+	private String getString(int offset) {
+		int length = staticData.getInt(offset);
+		byte[] bytes = new byte[length];
+		// Absolute reads, so that concurrent readers do not share a position
+		for (int i = 0; i < length; i++) {
+			bytes[i] = staticData.get(offset + 4 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -1,9 +1,16 @@
 package com.acertainbookstore.business;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.Random;
@@ -11,9 +18,12 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.RecoverableBookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResultCode;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /** {@link SingleLockConcurrentCertainBookStore} implements the {@link BookStore} and
@@ -21,20 +31,120 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * 
  * @see BookStore
  * @see StockManager
+ * @see RecoverableBookStore
  */
-public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager {
+public class SingleLockConcurrentCertainBookStore implements RecoverableBookStore {
+
+	/**
+	 * The outcome of a buy with too few copies in stock. Sale misses are
+	 * common, so the stackless exception is allocated once and shared.
+	 */
+	private static final BookStoreException SALE_MISS = new BookStoreException(BookStoreResultCode.NOT_AVAILABLE,
+			BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
 
 	private ReadWriteLock globalLock;
-	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, BookStoreBook> bookMap = null;
+	/**
+	 * The mapping of books from ISBN to {@link BookStoreBook}, sorted so that
+	 * a page of the books starts where the previous one ended.
+	 */
+	private NavigableMap<Integer, BookStoreBook> bookMap = null;
+
+	/** Whether ratings are applied under the shared lock. */
+	private final boolean relaxedRatings;
+
+	/** The log the mutations are appended to, or null. */
+	private BookStoreLog log = null;
 
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
 	public SingleLockConcurrentCertainBookStore() {
+		this(false);
+	}
+
+	/**
+	 * Instantiates a new {@link SingleLockConcurrentCertainBookStore}.
+	 *
+	 * @param relaxedRatings
+	 *            if true, rateBooks still validates every rating before
+	 *            applying any of them, but applies them under shared locks so
+	 *            concurrent raters of the same book do not serialize; readers
+	 *            may then observe part of a multi-book rating
+	 */
+	public SingleLockConcurrentCertainBookStore(boolean relaxedRatings) {
 		globalLock = new ReentrantReadWriteLock();
 		// Constructors are not synchronized
-		bookMap = new HashMap<>();
+		bookMap = new TreeMap<>();
+		this.relaxedRatings = relaxedRatings;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.RecoverableBookStore#setLog(com.
+	 * acertainbookstore.business.BookStoreLog)
+	 */
+	@Override
+	public void setLog(BookStoreLog log) {
+		this.log = log;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.RecoverableBookStore#restoreCatalog(com.
+	 * acertainbookstore.business.MappedCatalog)
+	 */
+	@Override
+	public void restoreCatalog(MappedCatalog catalog) {
+		globalLock.writeLock().lock();
+		try {
+			for (int slot = 0; slot < catalog.size(); slot++) {
+				bookMap.put(catalog.getISBN(slot), new BookStoreBook(catalog, slot));
+			}
+		} finally {
+			globalLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.RecoverableBookStore#checkpoint()
+	 */
+	@Override
+	public void checkpoint() throws IOException {
+		if (log == null) {
+			throw new IllegalStateException("The store is not logged");
+		}
+
+		List<StockBook> books;
+		long position;
+
+		// Writers append to the log, so excluding them fixes the position
+		// Relaxed ratings are applied under the shared lock
+		Lock lock = relaxedRatings ? globalLock.writeLock() : globalLock.readLock();
+		lock.lock();
+		try {
+			books = bookMap.values().stream()
+				.map(book -> book.immutableStockBook())
+				.collect(Collectors.toList());
+			position = log.getAppendedPosition();
+		} finally {
+			lock.unlock();
+		}
+		log.writeCheckpoint(books, position);
+	}
+
+	private long appendToLog(BookStoreMessageTag tag, Collection<?> arguments) throws BookStoreException {
+		return (log == null) ? BookStoreLog.NO_RECORD : log.append(tag, arguments);
+	}
+
+	private void awaitLog(BookStoreMessageTag tag, long logPosition) throws BookStoreException {
+		if (log != null) {
+			log.await(tag, logPosition);
+		}
 	}
 
 	private void validate(StockBook book) throws BookStoreException {
@@ -45,27 +155,27 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		float bookPrice = book.getPrice();
 
 		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
 		}
 
-		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		if (BookStoreUtility.isInvalidText(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
-		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		if (BookStoreUtility.isInvalidText(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
 		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
 		if (bookPrice < 0.0) { // Check if the price of the book is valid
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
 		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+			throw new BookStoreException(BookStoreResultCode.DUPLICATED, BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
 		}
 	}	
 	
@@ -76,7 +186,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
 
 		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
-			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
 		}
 	}
 	
@@ -87,10 +197,10 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	
 	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
 		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
 		}
 		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
-			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+			throw new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 		}
 	}
 
@@ -103,10 +213,11 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
 		if (bookSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Validation and adding the books utilize same exclusive lock
 		//as there are no garrentees that something might mutate the bookMap
@@ -117,6 +228,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			for (StockBook book : bookSet) {
 				validate(book);
 			}
+			logPosition = appendToLog(BookStoreMessageTag.ADDBOOKS, bookSet);
 
 			for (StockBook book : bookSet) {
 				int isbn = book.getISBN();
@@ -128,6 +240,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.ADDBOOKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
@@ -143,10 +256,11 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		int numCopies;
 
 		if (bookCopiesSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Validation and adding the books utilize same exclusive lock
 		//as there are no garrentees that something might mutate the bookMap
@@ -156,6 +270,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			for (BookCopy bookCopy : bookCopiesSet) {
 				validate(bookCopy);
 			}
+			logPosition = appendToLog(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
 			
 			// Update the number of copies
 			for (BookCopy bookCopy : bookCopiesSet) {
@@ -169,10 +284,52 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.ADDCOPIES, logPosition);
 		if (exception != null)
 			throw exception;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.RecoverableBookStore#restoreCopies(java.
+	 * util.Set, long)
+	 */
+	@Override
+	public void restoreCopies(Set<BookCopy> bookCopiesSet, long soldAt) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+		for (BookCopy bookCopy : bookCopiesSet) {
+			if (bookCopy == null) {
+				throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+			}
+			if (BookStoreUtility.isInvalidNoCopies(bookCopy.getNumCopies())) {
+				throw new BookStoreException(BookStoreResultCode.INVALID,
+						BookStoreConstants.NUM_COPIES + bookCopy.getNumCopies() + BookStoreConstants.INVALID);
+			}
+		}
+
+		long logPosition;
+
+		globalLock.writeLock().lock();
+		try {
+			// Books removed since the purchase get nothing back
+			Set<BookCopy> restored = bookCopiesSet.stream()
+				.filter(bookCopy -> bookMap.containsKey(bookCopy.getISBN()))
+				.collect(Collectors.toSet());
+			logPosition = appendToLog(BookStoreMessageTag.RESTORECOPIES, restored);
+
+			for (BookCopy bookCopy : restored) {
+				bookMap.get(bookCopy.getISBN()).restoreCopies(bookCopy.getNumCopies(), soldAt);
+			}
+		} finally {
+			globalLock.writeLock().unlock();
+		}
+		awaitLog(BookStoreMessageTag.RESTORECOPIES, logPosition);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -194,6 +351,35 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		return returnVal;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException {
+		int after = BookStoreUtility.decodeCursor(cursor);
+		if (BookStoreUtility.isInvalidPageSize(pageSize)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.PAGE_SIZE + pageSize + BookStoreConstants.INVALID);
+		}
+
+		List<StockBook> books = new ArrayList<>();
+
+		//Safe for reading, the page only visits the books it lists
+		globalLock.readLock().lock();
+		try {
+			for (BookStoreBook book : bookMap.tailMap(after, false).values()) {
+				if (books.size() == pageSize) {
+					return new BookPage(books, BookStoreUtility.encodeCursor(books.get(pageSize - 1).getISBN()));
+				}
+				books.add(book.immutableStockBook());
+			}
+		} finally {
+			globalLock.readLock().unlock();
+		}
+		return new BookPage(books, null);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -204,10 +390,11 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
 		// Check that all ISBNs that we add/remove are there first.
 		if (editorPicks == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Requires write lock as it mutates a value, validation step needs to be consistant
 		//when we get to the write step
@@ -216,6 +403,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			for (BookEditorPick editorPickArg : editorPicks) {
 				validate(editorPickArg);
 			}
+			logPosition = appendToLog(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicks);
 			
 			for (BookEditorPick editorPickArg : editorPicks) {
 				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
@@ -225,6 +413,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.UPDATEEDITORPICKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
@@ -236,7 +425,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
 		if (bookCopiesToBuy == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		// Check that all ISBNs that we buy are there first.
@@ -247,6 +436,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		Map<Integer, Integer> salesMisses = new HashMap<>();
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Writelock required to have consistancy between validation and write phase
 		globalLock.writeLock().lock();
@@ -268,14 +458,16 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			// We throw exception now since we want to see how many books in the
 			// order incurred misses which is used by books in demand
 			if (saleMiss) {
+				logPosition = appendToLog(BookStoreMessageTag.BUYBOOKS, bookCopiesToBuy);
 				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
 					book = bookMap.get(saleMissEntry.getKey());
 					book.addSaleMiss(saleMissEntry.getValue());
 				}
-				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				throw SALE_MISS;
 			}
 			
 			// Then make the purchase.
+			logPosition = appendToLog(BookStoreMessageTag.BUYBOOKS, bookCopiesToBuy);
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 				book = bookMap.get(bookCopyToBuy.getISBN());
 				book.buyCopies(bookCopyToBuy.getNumCopies());
@@ -285,6 +477,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.BUYBOOKS, logPosition);
 		if (exception != null) 
 			throw exception;
 	}
@@ -298,7 +491,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		List<StockBook> returnVal = null;
@@ -333,7 +526,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		List<Book> returnVal = null;
@@ -369,7 +562,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
 		if (numBooks < 0) {
-			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+			throw new BookStoreException(BookStoreResultCode.INVALID, "numBooks = " + numBooks + ", but it must be positive");
 		}
 
 		List<BookStoreBook> listAllEditorPicks;
@@ -422,7 +615,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		if(numBooks <= 0) throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		if(numBooks <= 0) throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NULL_INPUT);
 
 		List<Book> returnVal = null;
 
@@ -431,8 +624,9 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			returnVal = 
 				bookMap.values().stream()
 					.sequential()
-					.sorted((book1, book2) -> Float.compare(book2.getAverageRating(), book1.getAverageRating()))
+					// Sort the snapshots, ratings may change while sorting
 					.map(book -> book.immutableStockBook())
+					.sorted((book1, book2) -> Float.compare(book2.getAverageRating(), book1.getAverageRating()))
 					.limit(numBooks)
 					.collect(Collectors.toList());
 		} finally {
@@ -464,6 +658,104 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		return returnVal;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(long)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException {
+		if (BookStoreUtility.isInvalidWindow(windowMillis)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.WINDOW + windowMillis + BookStoreConstants.INVALID);
+		}
+
+		List<StockBook> returnVal = null;
+		long now = System.currentTimeMillis();
+
+		globalLock.readLock().lock();
+		try {
+			returnVal = 
+				bookMap.values().stream()
+					.filter(book -> book.getDemand(windowMillis, now).getSaleMisses() > 0)
+					.map(book -> book.immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			globalLock.readLock().unlock();
+		}
+		return returnVal;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getTopBooksInDemand(int, long)
+	 */
+	@Override
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException {
+		if (numBooks <= 0) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NUM_BOOKS + numBooks + BookStoreConstants.INVALID);
+		}
+		if (halfLifeMillis <= 0) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.HALF_LIFE + halfLifeMillis + BookStoreConstants.INVALID);
+		}
+
+		List<BookDemand> returnVal = null;
+		long now = System.currentTimeMillis();
+
+		globalLock.readLock().lock();
+		try {
+			returnVal = 
+				bookMap.values().stream()
+					.map(book -> book.getDecayedDemand(halfLifeMillis, now))
+					.filter(demand -> demand.getSaleMisses() > 0)
+					.sorted((demand1, demand2) -> Double.compare(demand2.getSaleMisses(), demand1.getSaleMisses()))
+					.limit(numBooks)
+					.collect(Collectors.toList());
+		} finally {
+			globalLock.readLock().unlock();
+		}
+		return returnVal;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getSalesVelocity(java.util.Set, long)
+	 */
+	@Override
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbnSet, long windowMillis) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+		if (BookStoreUtility.isInvalidWindow(windowMillis)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.WINDOW + windowMillis + BookStoreConstants.INVALID);
+		}
+
+		List<BookDemand> returnVal = null;
+		BookStoreException exception = null;
+		long now = System.currentTimeMillis();
+
+		globalLock.readLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			returnVal = 
+				isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).getDemand(windowMillis, now))
+					.collect(Collectors.toList());
+		} catch (BookStoreException ex) {
+			exception = ex;
+		} finally {
+			globalLock.readLock().unlock();
+		}
+		if (exception != null)
+			throw exception;
+		else
+			return returnVal;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -472,22 +764,27 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
 		if(bookRating == null) {
-            throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+            throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 		
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
-		globalLock.writeLock().lock();
+		// The counters of a book are striped, so in relaxed mode the shared
+		// lock suffices to keep the books in place between both phases
+		Lock lock = relaxedRatings ? globalLock.readLock() : globalLock.writeLock();
+		lock.lock();
 		try {
 			// Check whether all books are in the collection.
 			for (BookRating bookRate : bookRating) {
 				validateISBNInStock(bookRate.getISBN());
 				if (bookRate.getRating() < 0 || bookRate.getRating() > 5) {
-					throw new BookStoreException("Invalid rating provided, expected between 0 and 5");
+					throw new BookStoreException(BookStoreResultCode.INVALID, "Invalid rating provided, expected between 0 and 5");
 				}
 			}
 
 			// If all books validated, then perform the ratings (all-or-nothing)
+			logPosition = appendToLog(BookStoreMessageTag.RATEBOOKS, bookRating);
 			for (BookRating bookRate : bookRating) {
 				BookStoreBook book = bookMap.get(bookRate.getISBN());
 				book.addRating(bookRate.getRating());
@@ -495,8 +792,9 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
-			globalLock.writeLock().unlock();
+			lock.unlock();
 		}
+		awaitLog(BookStoreMessageTag.RATEBOOKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
@@ -507,12 +805,16 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
+		long logPosition;
+
 		globalLock.writeLock().lock();
 		try {
+			logPosition = appendToLog(BookStoreMessageTag.REMOVEALLBOOKS, Collections.emptySet());
 			bookMap.clear();
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.REMOVEALLBOOKS, logPosition);
 	}
 
 	/*
@@ -523,24 +825,26 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		globalLock.writeLock().lock();
 		try {
 
 			for (Integer ISBN : isbnSet) {
 				if (BookStoreUtility.isInvalidISBN(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+					throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
 				}
 				
 				if (!bookMap.containsKey(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+					throw new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 				}
 			}
 			
+			logPosition = appendToLog(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
 			for (int isbn : isbnSet) {
 				bookMap.remove(isbn);
 			}
@@ -549,6 +853,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.REMOVEBOOKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
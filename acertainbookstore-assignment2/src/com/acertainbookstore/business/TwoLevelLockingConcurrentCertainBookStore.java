@@ -1,117 +1,659 @@
 package com.acertainbookstore.business;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.Random;
 import java.util.Set;
-import java.util.AbstractMap.SimpleEntry;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.RecoverableBookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResultCode;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /** {@link TwoLevelLockingConcurrentCertainBookStore} implements the {@link BookStore} and
  * {@link StockManager} functionalities.
+ * <p>
+ * Transactions on a few books lock the catalog with an intention lock and then
+ * each book. Transactions touching more books than the escalation threshold,
+ * or more than the escalation fraction of the catalog, lock the whole catalog
+ * instead of acquiring thousands of book locks.
+ * <p>
+ * With a staged catalog, addBooks and removeBooks prepare their changes
+ * without locking and only take the catalog's write lock to publish them,
+ * which takes constant time however many books are changed.
  * 
  * @see BookStore
  * @see StockManager
+ * @see RecoverableBookStore
  */
-public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager {
+public class TwoLevelLockingConcurrentCertainBookStore implements RecoverableBookStore {
 
+	/**
+	 * The outcome of a buy with too few copies in stock. Sale misses are
+	 * common, so the stackless exception is allocated once and shared.
+	 */
+	private static final BookStoreException SALE_MISS = new BookStoreException(BookStoreResultCode.NOT_AVAILABLE,
+			BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+
+	/** The default number of books above which a transaction is escalated. */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+	/** The default fraction of the catalog above which a transaction is escalated. */
+	public static final float DEFAULT_ESCALATION_FRACTION = 0.5f;
+
+	/**
+	 * The catalog lock. Per-book transactions and shared escalations hold its
+	 * read lock, structural changes and exclusive escalations its write lock.
+	 */
 	private ReadWriteLock globalLock;
-	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, SimpleEntry<ReadWriteLock, BookStoreBook>> bookMap = null;
+
+	/**
+	 * Separates per-book writers, which hold it intention-exclusive, from
+	 * shared escalations and catalog-wide reads, which hold it shared and so
+	 * do not exclude each other.
+	 */
+	private IntentionLock intentionLock;
+
+	/**
+	 * The mapping of books from ISBN to {@link CatalogEntry}, sorted so that a
+	 * page of the books starts where the previous one ended.
+	 */
+	private ConcurrentNavigableMap<Integer, CatalogEntry> bookMap = null;
+
+	/**
+	 * The number of entries in the map, whose size is not kept by a skip list.
+	 * Dead entries are counted until they are reclaimed.
+	 */
+	private final AtomicInteger numEntries = new AtomicInteger();
+
+	/** Whether ratings are applied under the books' read locks. */
+	private final boolean relaxedRatings;
+
+	/** Whether structural changes are staged and published atomically. */
+	private final boolean stagedCatalog;
+
+	/**
+	 * The generation of the catalog. Removing all books of a staged catalog
+	 * starts a new generation, which hides every book published before it.
+	 */
+	private volatile long catalogEpoch = 0;
+
+	/** Removes the entries of removed books from a staged catalog. */
+	private final ExecutorService reclaimer;
+
+	/** The log the mutations are appended to, or null. */
+	private BookStoreLog log = null;
+
+	/** The number of books above which a transaction is escalated. */
+	private final int escalationThreshold;
+
+	/** The fraction of the catalog above which a transaction is escalated. */
+	private final float escalationFraction;
+
+	/** The number of transactions escalated to a shared catalog lock. */
+	private final LongAdder numSharedEscalations = new LongAdder();
+
+	/** The number of transactions escalated to an exclusive catalog lock. */
+	private final LongAdder numExclusiveEscalations = new LongAdder();
 
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
 	public TwoLevelLockingConcurrentCertainBookStore() {
+		this(false);
+	}
+
+	/**
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore}.
+	 *
+	 * @param relaxedRatings
+	 *            if true, rateBooks still validates every rating before
+	 *            applying any of them, but applies them under shared locks so
+	 *            concurrent raters of the same book do not serialize; readers
+	 *            may then observe part of a multi-book rating
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(boolean relaxedRatings) {
+		this(relaxedRatings, DEFAULT_ESCALATION_THRESHOLD, DEFAULT_ESCALATION_FRACTION);
+	}
+
+	/**
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore}.
+	 *
+	 * @param relaxedRatings
+	 *            whether ratings are applied under shared locks
+	 * @param escalationThreshold
+	 *            the number of books above which a transaction locks the
+	 *            whole catalog
+	 * @param escalationFraction
+	 *            the fraction of the catalog above which a transaction locks
+	 *            the whole catalog
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(boolean relaxedRatings, int escalationThreshold,
+			float escalationFraction) {
+		this(relaxedRatings, false, escalationThreshold, escalationFraction);
+	}
+
+	/**
+	 * Instantiates a new {@link TwoLevelLockingConcurrentCertainBookStore}.
+	 *
+	 * @param relaxedRatings
+	 *            whether ratings are applied under shared locks
+	 * @param stagedCatalog
+	 *            if true, addBooks, removeBooks and removeAllBooks stage their
+	 *            changes without locking and hold the catalog's write lock only
+	 *            to publish them; removed books are reclaimed in the background
+	 * @param escalationThreshold
+	 *            the number of books above which a transaction locks the
+	 *            whole catalog
+	 * @param escalationFraction
+	 *            the fraction of the catalog above which a transaction locks
+	 *            the whole catalog
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(boolean relaxedRatings, boolean stagedCatalog,
+			int escalationThreshold, float escalationFraction) {
 		// Constructors are not synchronized
-		bookMap = new HashMap<>();
+		bookMap = new ConcurrentSkipListMap<>();
 		globalLock = new ReentrantReadWriteLock();
+		intentionLock = new IntentionLock();
+		this.relaxedRatings = relaxedRatings;
+		this.stagedCatalog = stagedCatalog;
+		this.escalationThreshold = escalationThreshold;
+		this.escalationFraction = escalationFraction;
+		reclaimer = stagedCatalog ? Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "catalog-reclaimer");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
 	}
 
-	private SimpleEntry<ReadWriteLock, BookStoreBook> BundleBookAndLock(BookStoreBook book) {
-		return new SimpleEntry<>(new ReentrantReadWriteLock(), book);
+	/**
+	 * A book in the catalog together with its lock and the structural changes
+	 * which added and removed it.
+	 */
+	private static final class CatalogEntry {
+
+		/** The lock of the book. */
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/** The book. */
+		private final BookStoreBook book;
+
+		/** The change which added the book. */
+		private final CatalogChange added;
+
+		/** The change which removes the book, or null. */
+		private final AtomicReference<CatalogChange> removed = new AtomicReference<>();
+
+		private CatalogEntry(BookStoreBook book, CatalogChange added) {
+			this.book = book;
+			this.added = added;
+		}
 	}
 
-	private void ReadLockByISBN(Integer isbn) {
-		if (bookMap.containsKey(isbn))
-			bookMap.get(isbn).getKey().readLock().lock();
+	/**
+	 * A structural change of the catalog. Every book added or removed by one
+	 * call refers to the same change, so publishing it is a single write.
+	 */
+	private static final class CatalogChange {
+
+		/** The change of books added under the catalog's write lock. */
+		private static final CatalogChange PUBLISHED = new CatalogChange(true);
+
+		/** Whether the change is visible. */
+		private volatile boolean published;
+
+		/** The generation of the catalog the change was published in. */
+		private volatile long epoch;
+
+		private CatalogChange(boolean published) {
+			this.published = published;
+		}
 	}
 
-	private void ReadUnlockByISBN(Integer isbn) {
-		if (bookMap.containsKey(isbn))
-		{
-			//Unlocking should be inconsequential, therefore report if unlocking non-existing locks, but otherwise continue
+	/**
+	 * The intention lock of the catalog, with two modes. Per-book writers hold
+	 * it intention-exclusive and shared escalations hold it shared: holders of
+	 * one mode are compatible with each other but exclude the other mode. A
+	 * mode waiting for the other one to drain stops newcomers of the other
+	 * mode, so that neither starves. The lock is not reentrant.
+	 */
+	private static final class IntentionLock {
+
+		/** The number of holders of the shared mode. */
+		private int numShared = 0;
+
+		/** The number of holders of the intention-exclusive mode. */
+		private int numIntentions = 0;
+
+		/** The number of threads waiting for the shared mode. */
+		private int waitingShared = 0;
+
+		/** The number of threads waiting for the intention-exclusive mode. */
+		private int waitingIntentions = 0;
+
+		/** The shared mode. */
+		private final Lock shared = new Mode(true);
+
+		/** The intention-exclusive mode. */
+		private final Lock intentionExclusive = new Mode(false);
+
+		private boolean isGrantable(boolean isShared) {
+			int held = isShared ? numShared : numIntentions;
+			int other = isShared ? numIntentions : numShared;
+			int otherWaiting = isShared ? waitingIntentions : waitingShared;
+			return other == 0 && (held == 0 || otherWaiting == 0);
+		}
+
+		private synchronized void acquire(boolean isShared) {
+			boolean interrupted = false;
+			if (isShared) {
+				waitingShared++;
+			} else {
+				waitingIntentions++;
+			}
 			try {
-				bookMap.get(isbn).getKey().readLock().unlock();
-			} catch (IllegalMonitorStateException ex) {
-				System.out.println("Warning: " + Thread.currentThread().getName() + " attempted to unlock a lock it did not hold.");
+				while (!isGrantable(isShared)) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (isShared) {
+					waitingShared--;
+				} else {
+					waitingIntentions--;
+				}
+			}
+			if (isShared) {
+				numShared++;
+			} else {
+				numIntentions++;
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private synchronized boolean tryAcquire(boolean isShared) {
+			if (!isGrantable(isShared)) {
+				return false;
+			}
+			if (isShared) {
+				numShared++;
+			} else {
+				numIntentions++;
+			}
+			return true;
+		}
+
+		private synchronized void release(boolean isShared) {
+			int held = isShared ? --numShared : --numIntentions;
+			if (held == 0) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * A mode of the lock, taken and released like any other lock.
+		 */
+		private final class Mode implements Lock {
+
+			/** Whether the mode is the shared one. */
+			private final boolean isShared;
+
+			private Mode(boolean isShared) {
+				this.isShared = isShared;
+			}
+
+			@Override
+			public void lock() {
+				acquire(isShared);
+			}
+
+			@Override
+			public void lockInterruptibly() {
+				throw new UnsupportedOperationException("The intention lock is taken uninterruptibly");
+			}
+
+			@Override
+			public boolean tryLock() {
+				return tryAcquire(isShared);
+			}
+
+			@Override
+			public boolean tryLock(long time, TimeUnit unit) {
+				throw new UnsupportedOperationException("The intention lock is taken without a timeout");
+			}
+
+			@Override
+			public void unlock() {
+				release(isShared);
+			}
+
+			@Override
+			public Condition newCondition() {
+				throw new UnsupportedOperationException("The intention lock has no conditions");
 			}
 		}
 	}
 
-	private void ReadUnlockByISBN(Iterable<Integer> isbns) {
-		isbns.forEach(isbn -> ReadUnlockByISBN(isbn));
+	/**
+	 * Checks whether the entry is a book of the catalog. Entries only change
+	 * visibility under the catalog's write lock.
+	 *
+	 * @param entry
+	 *            the entry, or null
+	 * @return true, if the book is in the catalog
+	 */
+	private boolean isLive(CatalogEntry entry) {
+		if (entry == null || !entry.added.published || entry.added.epoch != catalogEpoch) {
+			return false;
+		}
+		CatalogChange removed = entry.removed.get();
+		return removed == null || !removed.published;
+	}
+
+	/**
+	 * Checks whether the entry was removed from the catalog for good, so that
+	 * it can be replaced or reclaimed.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @return true, if the entry is dead
+	 */
+	private boolean isDead(CatalogEntry entry) {
+		CatalogChange removed = entry.removed.get();
+		return (removed != null && removed.published)
+				|| (entry.added.published && entry.added.epoch != catalogEpoch);
 	}
 
-	private void ReadLockAll() {
-		bookMap.values().forEach(entry -> entry.getKey().readLock().lock());
+	/**
+	 * Gets the book with the given ISBN; validation must have found it.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the book
+	 */
+	private BookStoreBook getBook(int isbn) {
+		return bookMap.get(isbn).book;
 	}
 
-	private void ReadUnlockAll() {
-		bookMap.values().forEach(entry -> {
-			//Unlocking should be inconsequential, therefore report if unlocking non-existing locks, but otherwise continue
-			try {
-				entry.getKey().readLock().unlock();
-			} catch (IllegalMonitorStateException ex) {
-				System.out.println("Warning: " + Thread.currentThread().getName() + " attempted to unlock a lock it did not hold.");
-			}	
-		});
+	/**
+	 * Gets the books of the catalog.
+	 *
+	 * @return the books
+	 */
+	private List<BookStoreBook> liveBooks() {
+		return bookMap.values().stream()
+			.filter(this::isLive)
+			.map(entry -> entry.book)
+			.collect(Collectors.toList());
 	}
 
-	private void WriteLockByISBN(Integer isbn) {
-		if (bookMap.containsKey(isbn))
-			bookMap.get(isbn).getKey().writeLock().lock();
+	/**
+	 * Inserts or replaces the entry of a book under the catalog's write lock.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param entry
+	 *            the entry
+	 */
+	private void insert(int isbn, CatalogEntry entry) {
+		if (bookMap.put(isbn, entry) == null) {
+			numEntries.incrementAndGet();
+		}
 	}
 
-	private void WriteUnlockByISBN(Integer isbn) {
-		if (bookMap.containsKey(isbn)) {
-			//Unlocking should be inconsequential, therefore report if unlocking non-existing locks, but otherwise continue
-			try {
-				bookMap.get(isbn).getKey().writeLock().unlock();
-			} catch (IllegalMonitorStateException ex) {
-				System.out.println("Warning: " + Thread.currentThread().getName() + " attempted to unlock a lock it did not hold.");
+	/**
+	 * Removes an entry, unless it was replaced meanwhile.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param entry
+	 *            the entry
+	 */
+	private void reclaim(int isbn, CatalogEntry entry) {
+		if (bookMap.remove(isbn, entry)) {
+			numEntries.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Logs and publishes a staged change. The catalog's write lock is held
+	 * only for the append and two writes, so that no transaction sees part of
+	 * the change and the log is ordered like the changes.
+	 *
+	 * @param change
+	 *            the change
+	 * @param tag
+	 *            the mutation
+	 * @param arguments
+	 *            the arguments of the mutation
+	 * @return the position of the change in the log
+	 * @throws BookStoreException
+	 *             if the change cannot be logged; it is not published then
+	 */
+	private long publish(CatalogChange change, BookStoreMessageTag tag, Collection<?> arguments)
+			throws BookStoreException {
+		globalLock.writeLock().lock();
+		try {
+			long logPosition = appendToLog(tag, arguments);
+			change.epoch = catalogEpoch;
+			change.published = true;
+			return logPosition;
+		} finally {
+			globalLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.RecoverableBookStore#setLog(com.
+	 * acertainbookstore.business.BookStoreLog)
+	 */
+	@Override
+	public void setLog(BookStoreLog log) {
+		this.log = log;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.RecoverableBookStore#restoreCatalog(com.
+	 * acertainbookstore.business.MappedCatalog)
+	 */
+	@Override
+	public void restoreCatalog(MappedCatalog catalog) {
+		globalLock.writeLock().lock();
+		try {
+			// Emptying a staged catalog before restoring it started a new generation
+			CatalogChange restored = new CatalogChange(true);
+			restored.epoch = catalogEpoch;
+			for (int slot = 0; slot < catalog.size(); slot++) {
+				insert(catalog.getISBN(slot), new CatalogEntry(new BookStoreBook(catalog, slot), restored));
 			}
+		} finally {
+			globalLock.writeLock().unlock();
 		}
 	}
 
-	private void WriteUnlockByISBN(Iterable<Integer> isbns) {
-		isbns.forEach(isbn -> WriteUnlockByISBN(isbn));
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.RecoverableBookStore#checkpoint()
+	 */
+	@Override
+	public void checkpoint() throws IOException {
+		if (log == null) {
+			throw new IllegalStateException("The store is not logged");
+		}
+
+		List<StockBook> books;
+		long position;
+
+		// Writers append to the log, so excluding them fixes the position
+		// Relaxed ratings are applied under shared book locks
+		List<Lock> locks = relaxedRatings ? lockCatalogExclusive() : lockCatalogShared();
+		try {
+			books = liveBooks().stream()
+				.map(book -> book.immutableStockBook())
+				.collect(Collectors.toList());
+			position = log.getAppendedPosition();
+		} finally {
+			unlock(locks);
+		}
+		log.writeCheckpoint(books, position);
 	}
 
-	@SuppressWarnings("unused")
-	private void WriteLockAll() {
-		bookMap.values().forEach(entry -> entry.getKey().writeLock().lock());
+	private long appendToLog(BookStoreMessageTag tag, Collection<?> arguments) throws BookStoreException {
+		return (log == null) ? BookStoreLog.NO_RECORD : log.append(tag, arguments);
 	}
 
-	@SuppressWarnings("unused")
-	private void WriteUnlockAll() {
-		bookMap.values().forEach(entry -> {
-			try {
-				entry.getKey().writeLock().unlock();
-			} catch (IllegalMonitorStateException ex) {
-				System.out.println("Warning: " + Thread.currentThread().getName() + " attempted to unlock a lock it did not hold.");
-			}	
-		});
+	private void awaitLog(BookStoreMessageTag tag, long logPosition) throws BookStoreException {
+		if (log != null) {
+			log.await(tag, logPosition);
+		}
+	}
+
+	/**
+	 * Checks whether a transaction on <code>numBooks</code> books should take
+	 * a catalog-wide lock instead of one lock per book. The catalog size is
+	 * read without synchronization, so the fraction is approximate.
+	 *
+	 * @param numBooks
+	 *            the number of books touched by the transaction
+	 * @return true, if the transaction should be escalated
+	 */
+	private boolean isEscalated(int numBooks) {
+		return numBooks > escalationThreshold || numBooks > escalationFraction * numEntries.get();
+	}
+
+	/**
+	 * Acquires the locks for a transaction on the books with the given ISBNs.
+	 * The book locks are taken in ascending ISBN order, so that concurrent
+	 * transactions cannot deadlock. If the transaction is escalated, the
+	 * catalog is locked in the requested mode instead.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @param exclusive
+	 *            whether the books are mutated
+	 * @return the acquired locks, in acquisition order
+	 */
+	private List<Lock> lockBooks(Collection<Integer> isbns, boolean exclusive) {
+		if (isEscalated(isbns.size())) {
+			if (exclusive) {
+				numExclusiveEscalations.increment();
+				return lockCatalogExclusive();
+			}
+			numSharedEscalations.increment();
+			return lockCatalogShared();
+		}
+
+		List<Lock> locks = new ArrayList<>();
+		locks.add(globalLock.readLock());
+		if (exclusive)
+			locks.add(intentionLock.intentionExclusive);
+		locks.forEach(Lock::lock);
+
+		//Books which are not in the store are reported by validation, there is nothing to lock
+		List<ReadWriteLock> bookLocks = isbns.stream()
+			.distinct()
+			.sorted()
+			.map(isbn -> bookMap.get(isbn))
+			.filter(entry -> entry != null)
+			.map(entry -> entry.lock)
+			.collect(Collectors.toList());
+		for (ReadWriteLock bookLock : bookLocks) {
+			Lock lock = exclusive ? bookLock.writeLock() : bookLock.readLock();
+			lock.lock();
+			locks.add(lock);
+		}
+		return locks;
+	}
+
+	/**
+	 * Acquires a shared lock on the whole catalog. It excludes transactions
+	 * mutating books, but neither per-book readers nor other shared locks.
+	 *
+	 * @return the acquired locks, in acquisition order
+	 */
+	private List<Lock> lockCatalogShared() {
+		List<Lock> locks = Arrays.asList(globalLock.readLock(), intentionLock.shared);
+		locks.forEach(Lock::lock);
+		return locks;
+	}
+
+	/**
+	 * Acquires an exclusive lock on the whole catalog.
+	 *
+	 * @return the acquired locks, in acquisition order
+	 */
+	private List<Lock> lockCatalogExclusive() {
+		List<Lock> locks = Arrays.asList(globalLock.writeLock());
+		locks.forEach(Lock::lock);
+		return locks;
+	}
+
+	/**
+	 * Releases locks acquired by {@link #lockBooks(Collection, boolean)}, in
+	 * reverse acquisition order.
+	 *
+	 * @param locks
+	 *            the locks
+	 */
+	private void unlock(List<Lock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of transactions that took a shared catalog-wide lock
+	 * instead of per-book read locks.
+	 *
+	 * @return the number of shared escalations
+	 */
+	public long getNumSharedEscalations() {
+		return numSharedEscalations.sum();
+	}
+
+	/**
+	 * Gets the number of transactions that took the exclusive catalog-wide
+	 * lock instead of per-book write locks.
+	 *
+	 * @return the number of exclusive escalations
+	 */
+	public long getNumExclusiveEscalations() {
+		return numExclusiveEscalations.sum();
 	}
 
 	private void validate(StockBook book) throws BookStoreException {
@@ -122,27 +664,27 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		float bookPrice = book.getPrice();
 
 		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
 		}
 
-		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		if (BookStoreUtility.isInvalidText(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
-		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		if (BookStoreUtility.isInvalidText(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
 		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
 		if (bookPrice < 0.0) { // Check if the price of the book is valid
-			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 		}
 
-		if (bookMap.containsKey(isbn)) {// Check if the book is not in stock
-			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		if (isLive(bookMap.get(isbn))) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreResultCode.DUPLICATED, BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
 		}
 	}	
 	
@@ -153,7 +695,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
 
 		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
-			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
 		}
 	}
 	
@@ -164,10 +706,10 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	
 	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
 		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
-			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
 		}
-		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
-			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		if (!isLive(bookMap.get(ISBN))) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 		}
 	}
 
@@ -179,10 +721,16 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
 		if (bookSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+
+		if (stagedCatalog) {
+			stageBooks(bookSet);
+			return;
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Already correct from singlelock, as it inserts elements
 		globalLock.writeLock().lock();
@@ -191,10 +739,11 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			for (StockBook book : bookSet) {
 				validate(book);
 			}
+			logPosition = appendToLog(BookStoreMessageTag.ADDBOOKS, bookSet);
 
 			for (StockBook book : bookSet) {
 				int isbn = book.getISBN();
-				bookMap.put(isbn, BundleBookAndLock(new BookStoreBook(book)));
+				insert(isbn, new CatalogEntry(new BookStoreBook(book), CatalogChange.PUBLISHED));
 			}
 		} catch (BookStoreException ex) {
 			exception = ex;
@@ -202,10 +751,70 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.ADDBOOKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
 
+	/**
+	 * Adds the books to a staged catalog. The books are inserted invisibly,
+	 * published together and withdrawn again if any of them is a duplicate.
+	 *
+	 * @param bookSet
+	 *            the books
+	 * @throws BookStoreException
+	 *             if a book is invalid or already in the catalog
+	 */
+	private void stageBooks(Set<StockBook> bookSet) throws BookStoreException {
+		for (StockBook book : bookSet) {
+			validate(book);
+		}
+
+		CatalogChange change = new CatalogChange(false);
+		Map<Integer, CatalogEntry> staged = new HashMap<>();
+		long logPosition;
+		try {
+			for (StockBook book : bookSet) {
+				int isbn = book.getISBN();
+				CatalogEntry entry = new CatalogEntry(new BookStoreBook(book), change);
+				if (staged.containsKey(isbn) || !stage(isbn, entry)) {
+					throw new BookStoreException(BookStoreResultCode.DUPLICATED, BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+				}
+				staged.put(isbn, entry);
+			}
+			logPosition = publish(change, BookStoreMessageTag.ADDBOOKS, bookSet);
+		} catch (BookStoreException ex) {
+			// Nobody has seen the staged books, they can be withdrawn right away
+			staged.forEach(this::reclaim);
+			throw ex;
+		}
+		awaitLog(BookStoreMessageTag.ADDBOOKS, logPosition);
+	}
+
+	/**
+	 * Inserts an unpublished entry, replacing the entry of a removed book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param entry
+	 *            the entry
+	 * @return false, if the book is in the catalog or being added
+	 */
+	private boolean stage(int isbn, CatalogEntry entry) {
+		CatalogEntry existing;
+		while ((existing = bookMap.putIfAbsent(isbn, entry)) != null) {
+			// Dead entries never come back to life, so replacing one is safe
+			if (!isDead(existing)) {
+				return false;
+			}
+			if (bookMap.replace(isbn, existing, entry)) {
+				return true;
+			}
+		}
+		numEntries.incrementAndGet();
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -217,37 +826,78 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		int numCopies;
 
 		if (bookCopiesSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Works as intension lock, this mutates entries, therefore do not exclusive lock
-		globalLock.readLock().lock();
+		List<Lock> locks = lockBooks(bookCopiesSet.stream().map(bookCopy -> bookCopy.getISBN()).collect(Collectors.toList()), true);
 		try {
 			for (BookCopy bookCopy : bookCopiesSet) {
-				//As it is a set, the same thread cannot lock the same isbn.
-				WriteLockByISBN(bookCopy.getISBN());
 				validate(bookCopy);
 			}
+			logPosition = appendToLog(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
 			
 			// Update the number of copies
 			for (BookCopy bookCopy : bookCopiesSet) {
 				isbn = bookCopy.getISBN();
 				numCopies = bookCopy.getNumCopies();
-				bookMap.get(isbn).getValue().addCopies(numCopies);
+				getBook(isbn).addCopies(numCopies);
 			}
 		} catch (BookStoreException ex) {
 			exception = ex;
 		// Finally is always called after either try has finished or the catch
 		} finally {
-			WriteUnlockByISBN(bookCopiesSet.stream().map(bookCopy -> bookCopy.getISBN()).collect(Collectors.toList()));
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
+		awaitLog(BookStoreMessageTag.ADDCOPIES, logPosition);
 		if (exception != null)
 			throw exception;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.RecoverableBookStore#restoreCopies(java.
+	 * util.Set, long)
+	 */
+	@Override
+	public void restoreCopies(Set<BookCopy> bookCopiesSet, long soldAt) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+		for (BookCopy bookCopy : bookCopiesSet) {
+			if (bookCopy == null) {
+				throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+			}
+			if (BookStoreUtility.isInvalidNoCopies(bookCopy.getNumCopies())) {
+				throw new BookStoreException(BookStoreResultCode.INVALID,
+						BookStoreConstants.NUM_COPIES + bookCopy.getNumCopies() + BookStoreConstants.INVALID);
+			}
+		}
+
+		long logPosition;
+
+		List<Lock> locks = lockBooks(bookCopiesSet.stream().map(bookCopy -> bookCopy.getISBN()).collect(Collectors.toList()), true);
+		try {
+			// Books removed since the purchase get nothing back
+			Set<BookCopy> restored = bookCopiesSet.stream()
+				.filter(bookCopy -> isLive(bookMap.get(bookCopy.getISBN())))
+				.collect(Collectors.toSet());
+			logPosition = appendToLog(BookStoreMessageTag.RESTORECOPIES, restored);
+
+			for (BookCopy bookCopy : restored) {
+				getBook(bookCopy.getISBN()).restoreCopies(bookCopy.getNumCopies(), soldAt);
+			}
+		} finally {
+			unlock(locks);
+		}
+		awaitLog(BookStoreMessageTag.RESTORECOPIES, logPosition);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -258,20 +908,50 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		List<StockBook> returnVal;
 
 		//Safe for reading
-		globalLock.readLock().lock();
+		List<Lock> locks = lockCatalogShared();
 		try {
-			ReadLockAll();
 			returnVal = 
-				bookMap.values().stream()
-					.map(book -> book.getValue().immutableStockBook())
+				liveBooks().stream()
+					.map(book -> book.immutableStockBook())
 					.collect(Collectors.toList());
 		} finally {
-			ReadUnlockAll();
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
 		return returnVal;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException {
+		int after = BookStoreUtility.decodeCursor(cursor);
+		if (BookStoreUtility.isInvalidPageSize(pageSize)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.PAGE_SIZE + pageSize + BookStoreConstants.INVALID);
+		}
+
+		List<StockBook> books = new ArrayList<>();
+
+		//Safe for reading, the page only visits the books it lists
+		List<Lock> locks = lockCatalogShared();
+		try {
+			for (CatalogEntry entry : bookMap.tailMap(after, false).values()) {
+				if (!isLive(entry)) {
+					continue;
+				}
+				if (books.size() == pageSize) {
+					return new BookPage(books, BookStoreUtility.encodeCursor(books.get(pageSize - 1).getISBN()));
+				}
+				books.add(entry.book.immutableStockBook());
+			}
+		} finally {
+			unlock(locks);
+		}
+		return new BookPage(books, null);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -282,29 +962,30 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
 		// Check that all ISBNs that we add/remove are there first.
 		if (editorPicks == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Requires write lock as it mutates a value, validation step needs to be consistant
 		//when we get to the write step
-		globalLock.readLock().lock();
+		List<Lock> locks = lockBooks(editorPicks.stream().map(bookEditorPick -> bookEditorPick.getISBN()).collect(Collectors.toList()), true);
 		try {
 			for (BookEditorPick editorPickArg : editorPicks) {
-				WriteLockByISBN(editorPickArg.getISBN());
 				validate(editorPickArg);
 			}
+			logPosition = appendToLog(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicks);
 			
 			for (BookEditorPick editorPickArg : editorPicks) {
-				bookMap.get(editorPickArg.getISBN()).getValue().setEditorPick(editorPickArg.isEditorPick());
+				getBook(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
 			}
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
-			WriteUnlockByISBN(editorPicks.stream().map(bookEditorPick -> bookEditorPick.getISBN()).collect(Collectors.toList()));
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
+		awaitLog(BookStoreMessageTag.UPDATEEDITORPICKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
@@ -316,7 +997,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
 		if (bookCopiesToBuy == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		// Check that all ISBNs that we buy are there first.
@@ -327,17 +1008,17 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		Map<Integer, Integer> salesMisses = new HashMap<>();
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Intension lock as it only mutates existing books
-		globalLock.readLock().lock();
+		List<Lock> locks = lockBooks(bookCopiesToBuy.stream().map(bookCopy -> bookCopy.getISBN()).collect(Collectors.toList()), true);
 		try {
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 				isbn = bookCopyToBuy.getISBN();
 				
-				WriteLockByISBN(isbn);
 				validate(bookCopyToBuy);
 				
-				book = bookMap.get(isbn).getValue();
+				book = getBook(isbn);
 				
 				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
 					// If we cannot sell the copies of the book, it is a miss.
@@ -349,24 +1030,26 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			// We throw exception now since we want to see how many books in the
 			// order incurred misses which is used by books in demand
 			if (saleMiss) {
+				logPosition = appendToLog(BookStoreMessageTag.BUYBOOKS, bookCopiesToBuy);
 				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
-					book = bookMap.get(saleMissEntry.getKey()).getValue();
+					book = getBook(saleMissEntry.getKey());
 					book.addSaleMiss(saleMissEntry.getValue());
 				}
-				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				throw SALE_MISS;
 			}
 			
 			// Then make the purchase.
+			logPosition = appendToLog(BookStoreMessageTag.BUYBOOKS, bookCopiesToBuy);
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				book = bookMap.get(bookCopyToBuy.getISBN()).getValue();
+				book = getBook(bookCopyToBuy.getISBN());
 				book.buyCopies(bookCopyToBuy.getNumCopies());
 			}
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
-			WriteUnlockByISBN(bookCopiesToBuy.stream().map(bookCopy -> bookCopy.getISBN()).collect(Collectors.toList()));
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
+		awaitLog(BookStoreMessageTag.BUYBOOKS, logPosition);
 		if (exception != null) 
 			throw exception;
 	}
@@ -380,29 +1063,27 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		List<StockBook> returnVal = null;
 		BookStoreException exception = null;
 
 		//Safe for reading
-		globalLock.readLock().lock();
+		List<Lock> locks = lockBooks(isbnSet, false);
 		try {
 			for (Integer ISBN : isbnSet) {
-				ReadLockByISBN(ISBN);
 				validateISBNInStock(ISBN);
 			}
 
 			returnVal = 
 				isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).getValue().immutableStockBook())
+					.map(isbn -> getBook(isbn).immutableStockBook())
 					.collect(Collectors.toList());
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
-			ReadUnlockByISBN(isbnSet);
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
 		if (exception != null)
 			throw exception;
@@ -417,30 +1098,28 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 
 		List<Book> returnVal = null;
 		BookStoreException exception = null;
 
 		//Safe for reading
-		globalLock.readLock().lock();
+		List<Lock> locks = lockBooks(isbnSet, false);
 		try {
 			// Check that all ISBNs that we rate are there to start with.
 			for (Integer ISBN : isbnSet) {
-				ReadLockByISBN(ISBN);
 				validateISBNInStock(ISBN);
 			}
 			
 			returnVal = 
 				isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).getValue().immutableBook())
+					.map(isbn -> getBook(isbn).immutableBook())
 					.collect(Collectors.toList());
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
-			ReadUnlockByISBN(isbnSet);
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
 		if (exception != null)
 			throw exception;
@@ -455,24 +1134,21 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
 		if (numBooks < 0) {
-			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+			throw new BookStoreException(BookStoreResultCode.INVALID, "numBooks = " + numBooks + ", but it must be positive");
 		}
 
 		List<BookStoreBook> listAllEditorPicks;
 
 		//Only need readlock when initially fetching
 		//Unconcerned for the data to have changed upon return
-		globalLock.readLock().lock();
-		ReadLockAll();
+		List<Lock> locks = lockCatalogShared();
 		try {
 			listAllEditorPicks = 
-				bookMap.entrySet().stream()
-					.map(pair -> pair.getValue().getValue()) //Lol
+				liveBooks().stream()
 					.filter(book -> book.isEditorPick())
 					.collect(Collectors.toList());
 		} finally {
-			ReadUnlockAll();
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
 
 		// Find numBooks random indices of books that will be picked.
@@ -510,24 +1186,22 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		if(numBooks <= 0) throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		if(numBooks <= 0) throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NULL_INPUT);
 
 		List<Book> returnVal = null;
 
-		globalLock.readLock().lock();
-		ReadLockAll();
+		List<Lock> locks = lockCatalogShared();
 		try {
 			returnVal = 
-				bookMap.values().stream()
-					.map(entry -> entry.getValue())
+				liveBooks().stream()
 					.sequential()
-					.sorted((book1, book2) -> Float.compare(book2.getAverageRating(), book1.getAverageRating()))
+					// Sort the snapshots, relaxed ratings may change while sorting
 					.map(book -> book.immutableStockBook())
+					.sorted((book1, book2) -> Float.compare(book2.getAverageRating(), book1.getAverageRating()))
 					.limit(numBooks)
 					.collect(Collectors.toList());
 		} finally {
-			ReadUnlockAll();
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
 		return returnVal;
 	}
@@ -541,23 +1215,118 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
 		List<StockBook> returnVal = null;
 
-		globalLock.readLock().lock();
-		ReadLockAll();
+		List<Lock> locks = lockCatalogShared();
 		try {
 			//Filter any non-zero sale miss books and return the ones which had missed sales
 			returnVal = 
-				bookMap.values().stream()
-					.map(entry -> entry.getValue())
+				liveBooks().stream()
 					.filter(book -> book.getNumSaleMisses() > 0)
 					.map(book -> book.immutableStockBook())
 					.collect(Collectors.toList());
 		} finally {
-			ReadUnlockAll();
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
 		return returnVal;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(long)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException {
+		if (BookStoreUtility.isInvalidWindow(windowMillis)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.WINDOW + windowMillis + BookStoreConstants.INVALID);
+		}
+
+		List<StockBook> returnVal = null;
+		long now = System.currentTimeMillis();
+
+		List<Lock> locks = lockCatalogShared();
+		try {
+			returnVal = 
+				liveBooks().stream()
+					.filter(book -> book.getDemand(windowMillis, now).getSaleMisses() > 0)
+					.map(book -> book.immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			unlock(locks);
+		}
+		return returnVal;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getTopBooksInDemand(int, long)
+	 */
+	@Override
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException {
+		if (numBooks <= 0) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NUM_BOOKS + numBooks + BookStoreConstants.INVALID);
+		}
+		if (halfLifeMillis <= 0) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.HALF_LIFE + halfLifeMillis + BookStoreConstants.INVALID);
+		}
+
+		List<BookDemand> returnVal = null;
+		long now = System.currentTimeMillis();
+
+		List<Lock> locks = lockCatalogShared();
+		try {
+			returnVal = 
+				liveBooks().stream()
+					.map(book -> book.getDecayedDemand(halfLifeMillis, now))
+					.filter(demand -> demand.getSaleMisses() > 0)
+					.sorted((demand1, demand2) -> Double.compare(demand2.getSaleMisses(), demand1.getSaleMisses()))
+					.limit(numBooks)
+					.collect(Collectors.toList());
+		} finally {
+			unlock(locks);
+		}
+		return returnVal;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getSalesVelocity(java.util.Set, long)
+	 */
+	@Override
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbnSet, long windowMillis) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+		if (BookStoreUtility.isInvalidWindow(windowMillis)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.WINDOW + windowMillis + BookStoreConstants.INVALID);
+		}
+
+		List<BookDemand> returnVal = null;
+		BookStoreException exception = null;
+		long now = System.currentTimeMillis();
+
+		List<Lock> locks = lockBooks(isbnSet, false);
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			returnVal = 
+				isbnSet.stream()
+					.map(isbn -> getBook(isbn).getDemand(windowMillis, now))
+					.collect(Collectors.toList());
+		} catch (BookStoreException ex) {
+			exception = ex;
+		} finally {
+			unlock(locks);
+		}
+		if (exception != null)
+			throw exception;
+		else
+			return returnVal;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -566,33 +1335,36 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
 		if(bookRating == null) {
-            throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+            throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
 		}
 		
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
-		globalLock.readLock().lock();
+		// The counters of a book are striped, so in relaxed mode the read
+		// locks suffice to keep the books from changing otherwise
+		List<Lock> locks = lockBooks(bookRating.stream().map(bookRate -> bookRate.getISBN()).collect(Collectors.toList()), !relaxedRatings);
 		try {
 			// Check whether all books are in the collection.
 			for (BookRating bookRate : bookRating) {
-				WriteLockByISBN(bookRate.getISBN());
 				validateISBNInStock(bookRate.getISBN());
 				if (bookRate.getRating() < 0 || bookRate.getRating() > 5) {
-					throw new BookStoreException("Invalid rating provided, expected between 0 and 5");
+					throw new BookStoreException(BookStoreResultCode.INVALID, "Invalid rating provided, expected between 0 and 5");
 				}
 			}
 
 			// If all books validated, then perform the ratings (all-or-nothing)
+			logPosition = appendToLog(BookStoreMessageTag.RATEBOOKS, bookRating);
 			for (BookRating bookRate : bookRating) {
-				BookStoreBook book = bookMap.get(bookRate.getISBN()).getValue();
+				BookStoreBook book = getBook(bookRate.getISBN());
 				book.addRating(bookRate.getRating());
 			}
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
-			WriteUnlockByISBN(bookRating.stream().map(bookRate -> bookRate.getISBN()).collect(Collectors.toList()));
-			globalLock.readLock().unlock();
+			unlock(locks);
 		}
+		awaitLog(BookStoreMessageTag.RATEBOOKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
@@ -603,13 +1375,30 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
+		long logPosition;
+
 		//Already fine as all intention locks has to be freed
 		globalLock.writeLock().lock();
 		try {
-			bookMap.clear();
+			logPosition = appendToLog(BookStoreMessageTag.REMOVEALLBOOKS, Collections.emptySet());
+			if (stagedCatalog) {
+				// Books being staged are published into the new generation
+				catalogEpoch++;
+			} else {
+				bookMap.clear();
+				numEntries.set(0);
+			}
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		if (stagedCatalog) {
+			reclaimer.execute(() -> bookMap.forEach((isbn, entry) -> {
+				if (isDead(entry)) {
+					reclaim(isbn, entry);
+				}
+			}));
+		}
+		awaitLog(BookStoreMessageTag.REMOVEALLBOOKS, logPosition);
 	}
 
 	/*
@@ -620,33 +1409,82 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+
+		if (stagedCatalog) {
+			tombstoneBooks(isbnSet);
+			return;
 		}
 
 		BookStoreException exception = null;
+		long logPosition = BookStoreLog.NO_RECORD;
 
 		//Already fine as it requires all intention to locks be gone
 		globalLock.writeLock().lock();
 		try {
 			for (Integer ISBN : isbnSet) {
 				if (BookStoreUtility.isInvalidISBN(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+					throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
 				}
 				
-				if (!bookMap.containsKey(ISBN)) {
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+				if (!isLive(bookMap.get(ISBN))) {
+					throw new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 				}
 			}
 			
+			logPosition = appendToLog(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
 			for (int isbn : isbnSet) {
-				bookMap.remove(isbn);
+				if (bookMap.remove(isbn) != null) {
+					numEntries.decrementAndGet();
+				}
 			}
 		} catch (BookStoreException ex) {
 			exception = ex;
 		} finally {
 			globalLock.writeLock().unlock();
 		}
+		awaitLog(BookStoreMessageTag.REMOVEBOOKS, logPosition);
 		if (exception != null)
 			throw exception;
 	}
+
+	/**
+	 * Removes the books from a staged catalog. Each book is claimed by a
+	 * tombstone, the tombstones are published together and the entries are
+	 * reclaimed in the background. If a book is missing or claimed by a
+	 * concurrent removal, the claims are released and nothing is removed.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs of the books
+	 * @throws BookStoreException
+	 *             if an ISBN is invalid or its book is not in the catalog
+	 */
+	private void tombstoneBooks(Set<Integer> isbnSet) throws BookStoreException {
+		for (Integer ISBN : isbnSet) {
+			validateISBNInStock(ISBN);
+		}
+
+		CatalogChange change = new CatalogChange(false);
+		Map<Integer, CatalogEntry> claimed = new HashMap<>();
+		for (Integer ISBN : isbnSet) {
+			CatalogEntry entry = bookMap.get(ISBN);
+			if (!isLive(entry) || !entry.removed.compareAndSet(null, change)) {
+				claimed.values().forEach(claimedEntry -> claimedEntry.removed.compareAndSet(change, null));
+				throw new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+			}
+			claimed.put(ISBN, entry);
+		}
+
+		long logPosition;
+		try {
+			logPosition = publish(change, BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+		} catch (BookStoreException ex) {
+			claimed.values().forEach(claimedEntry -> claimedEntry.removed.compareAndSet(change, null));
+			throw ex;
+		}
+
+		reclaimer.execute(() -> claimed.forEach(this::reclaim));
+		awaitLog(BookStoreMessageTag.REMOVEBOOKS, logPosition);
+	}
 }
@@ -0,0 +1,198 @@
+package com.acertainbookstore.client;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link AsyncBookStoreHTTPProxy} implements the client level asynchronous
+ * {@link CertainBookStore} API declared in the {@link AsyncBookStore} class.
+ * Requests are sent with Jetty's non-blocking client, and the responses are
+ * deserialized by a pool of its own, so that neither the caller nor the I/O
+ * threads wait. Unlike {@link BookStoreHTTPProxy}, it does not fail over to a
+ * backup nor read from replicas.
+ *
+ * @see AsyncBookStore
+ * @see BookStoreHTTPProxy
+ */
+public class AsyncBookStoreHTTPProxy implements AsyncBookStore {
+
+	/** The client. */
+	protected HttpClient client;
+
+	/** The server address. */
+	protected volatile String serverAddress;
+
+	/** The threads deserializing the responses. */
+	private final ExecutorService deserializers;
+
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
+
+	/**
+	 * Initializes a new {@link AsyncBookStoreHTTPProxy}.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress) throws Exception {
+		setServerAddress(serverAddress);
+		client = new HttpClient();
+
+		// Max concurrent connections to every address.
+		client.setMaxConnectionsPerDestination(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS);
+
+		// Max number of threads.
+		client.setExecutor(new QueuedThreadPool(BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS));
+
+		// Seconds timeout; if no server reply, the request expires.
+		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+
+		// Accept the codings large responses are compressed with.
+		BookStoreEncoding.addDecoders(client);
+
+		client.start();
+
+		deserializers = Executors.newFixedThreadPool(BookStoreClientConstants.CLIENT_DESERIALIZER_THREADS,
+				runnable -> {
+					Thread thread = new Thread(runnable, "bookstore-deserializer");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Gets the server address.
+	 *
+	 * @return the server address
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	/**
+	 * Sets the server address.
+	 *
+	 * @param serverAddress
+	 *            the new server address
+	 */
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
+	/**
+	 * Sends a request to the server.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 * @param bookStoreRequest
+	 *            the request
+	 * @param result
+	 *            gets the result from the book store response
+	 * @return the future of the result
+	 */
+	private <T> CompletableFuture<T> perform(BookStoreRequest bookStoreRequest,
+			Function<BookStoreResponse, T> result) {
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer, deserializers, result);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#buyBooks(java.util.Set)
+	 */
+	public CompletableFuture<Void> buyBooks(Set<BookCopy> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#rateBooks(java.util.Set)
+	 */
+	public CompletableFuture<Void> rateBooks(Set<BookRating> bookRating) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookRating);
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#getBooks(java.util.Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getBooks(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooks(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getTopRatedBooks(int numBooks) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETTOPRATEDBOOKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicks(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getEditorPicks(int numBooks) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETEDITORPICKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/**
+	 * Stops the proxy. Pending futures may never complete.
+	 */
+	public void stop() {
+		try {
+			client.stop();
+		} catch (Exception ex) {
+			System.err.println("Could not stop the HTTP client: " + ex.getMessage());
+		}
+		deserializers.shutdown();
+	}
+}
@@ -0,0 +1,298 @@
+package com.acertainbookstore.client;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.AsyncStockManager;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link AsyncStockManagerHTTPProxy} implements the client level asynchronous
+ * {@link CertainBookStore} API declared in the {@link AsyncStockManager}
+ * class. Requests are sent with Jetty's non-blocking client, and the responses
+ * are deserialized by a pool of its own, so that neither the caller nor the
+ * I/O threads wait. Unlike {@link StockManagerHTTPProxy}, it does not fail
+ * over to a backup.
+ *
+ * @see AsyncStockManager
+ * @see StockManagerHTTPProxy
+ */
+public class AsyncStockManagerHTTPProxy implements AsyncStockManager {
+
+	/** The client. */
+	protected HttpClient client;
+
+	/** The server address. */
+	protected volatile String serverAddress;
+
+	/** The threads deserializing the responses. */
+	private final ExecutorService deserializers;
+
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
+
+	/**
+	 * Initializes a new {@link AsyncStockManagerHTTPProxy}.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress) throws Exception {
+		setServerAddress(serverAddress);
+		client = new HttpClient();
+
+		// Max concurrent connections to every address.
+		client.setMaxConnectionsPerDestination(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS);
+
+		// Max number of threads.
+		client.setExecutor(new QueuedThreadPool(BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS));
+
+		// Seconds timeout; if no server reply, the request expires.
+		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+
+		// Accept the codings large responses are compressed with.
+		BookStoreEncoding.addDecoders(client);
+
+		client.start();
+
+		deserializers = Executors.newFixedThreadPool(BookStoreClientConstants.CLIENT_DESERIALIZER_THREADS,
+				runnable -> {
+					Thread thread = new Thread(runnable, "stockmanager-deserializer");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Gets the server address.
+	 *
+	 * @return the server address
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	/**
+	 * Sets the server address.
+	 *
+	 * @param serverAddress
+	 *            the new server address
+	 */
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
+	/**
+	 * Sends a request to the server.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 * @param bookStoreRequest
+	 *            the request
+	 * @param result
+	 *            gets the result from the book store response
+	 * @return the future of the result
+	 */
+	private <T> CompletableFuture<T> perform(BookStoreRequest bookStoreRequest,
+			Function<BookStoreResponse, T> result) {
+		return BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, serializer, deserializers, result);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#addBooks(java.util.Set)
+	 */
+	public CompletableFuture<Void> addBooks(Set<StockBook> bookSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet);
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#addCopies(java.util.Set)
+	 */
+	public CompletableFuture<Void> addCopies(Set<BookCopy> bookCopiesSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet);
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooks()
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooks() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<BookPage> getBooks(String cursor, int pageSize) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKPAGE + "?"
+				+ BookStoreConstants.PAGE_SIZE_PARAM + "=" + pageSize;
+		if (cursor != null) {
+			urlString += "&" + BookStoreConstants.CURSOR_PARAM + "=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8);
+		}
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> new BookPage(
+				(List<StockBook>) bookStoreResponse.getList(), bookStoreResponse.getCursor()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBN(java.
+	 * util.Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksByISBN(Set<Integer> isbns) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemand()
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksInDemand() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSINDEMAND;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemand(long)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<StockBook>> getBooksInDemand(long windowMillis) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETRECENTBOOKSINDEMAND + "?"
+				+ BookStoreConstants.WINDOW_PARAM + "=" + windowMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getTopBooksInDemand(
+	 * int, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<BookDemand>> getTopBooksInDemand(int numBooks, long halfLifeMillis) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETTOPBOOKSINDEMAND + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + numBooks + "&" + BookStoreConstants.HALF_LIFE_PARAM + "="
+				+ halfLifeMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<BookDemand>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getSalesVelocity(java.
+	 * util.Set, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<BookDemand>> getSalesVelocity(Set<Integer> isbns, long windowMillis) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSALESVELOCITY + "?"
+				+ BookStoreConstants.WINDOW_PARAM + "=" + windowMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
+		return perform(bookStoreRequest, bookStoreResponse -> (List<BookDemand>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicks(java
+	 * .util.Set)
+	 */
+	public CompletableFuture<Void> updateEditorPicks(Set<BookEditorPick> editorPicksValues) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues);
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooks()
+	 */
+	public CompletableFuture<Void> removeAllBooks() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#removeBooks(java.util.
+	 * Set)
+	 */
+	public CompletableFuture<Void> removeBooks(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		return perform(bookStoreRequest, bookStoreResponse -> null);
+	}
+
+	/**
+	 * Stops the proxy. Pending futures may never complete.
+	 */
+	public void stop() {
+		try {
+			client.stop();
+		} catch (Exception ex) {
+			System.err.println("Could not stop the HTTP client: " + ex.getMessage());
+		}
+		deserializers.shutdown();
+	}
+}
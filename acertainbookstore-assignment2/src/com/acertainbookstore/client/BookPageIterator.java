@@ -0,0 +1,124 @@
+package com.acertainbookstore.client;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookPageIterator} iterates over the books of a {@link StockManager}
+ * page by page, in ascending ISBN order. The first page is fetched by the
+ * first call of {@link #hasNext()}; while a page is iterated the next one is
+ * fetched in the background, so that at most two pages are held at once.
+ * <p>
+ * If a page cannot be fetched, the iterator throws an
+ * {@link IllegalStateException} caused by the {@link BookStoreException}. The
+ * iterator is not thread-safe.
+ *
+ * @see StockManager#getBooks(String, int)
+ */
+public class BookPageIterator implements Iterator<StockBook> {
+
+	/** The stock manager. */
+	private final StockManager stockManager;
+
+	/** The most books fetched at once. */
+	private final int pageSize;
+
+	/** Fetches the next page. */
+	private final Executor executor;
+
+	/** The books of the current page. */
+	private Iterator<StockBook> books = Collections.emptyIterator();
+
+	/** Whether the first page was fetched. */
+	private boolean started = false;
+
+	/** The fetch of the next page, or null once the last page was fetched. */
+	private CompletableFuture<BookPage> nextPage = null;
+
+	/**
+	 * Instantiates a new {@link BookPageIterator}.
+	 *
+	 * @param stockManager
+	 *            the stock manager
+	 * @param pageSize
+	 *            the most books fetched at once
+	 * @param executor
+	 *            fetches the next page while a page is iterated
+	 */
+	public BookPageIterator(StockManager stockManager, int pageSize, Executor executor) {
+		this.stockManager = stockManager;
+		this.pageSize = pageSize;
+		this.executor = executor;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.Iterator#hasNext()
+	 */
+	@Override
+	public boolean hasNext() {
+		// Pages may be empty without being the last one
+		while (!books.hasNext()) {
+			if (!started) {
+				started = true;
+				advance(fetch(null));
+			} else if (nextPage != null) {
+				advance(await(nextPage));
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.Iterator#next()
+	 */
+	@Override
+	public StockBook next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return books.next();
+	}
+
+	/**
+	 * Moves to a page and starts fetching the one after it.
+	 */
+	private void advance(BookPage page) {
+		books = page.getBooks().iterator();
+		String cursor = page.getNextCursor();
+		nextPage = (cursor == null) ? null : CompletableFuture.supplyAsync(() -> fetch(cursor), executor);
+	}
+
+	private BookPage fetch(String cursor) {
+		try {
+			return stockManager.getBooks(cursor, pageSize);
+		} catch (BookStoreException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static BookPage await(CompletableFuture<BookPage> page) {
+		try {
+			return page.join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+}
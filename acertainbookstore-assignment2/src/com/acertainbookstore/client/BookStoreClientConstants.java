@@ -11,9 +11,15 @@ public final class BookStoreClientConstants {
 	/** The Constant CLIENT_MAX_CONNECTION_ADDRESS. */
 	public static final int CLIENT_MAX_CONNECTION_ADDRESS = 200;
 
+	/** The Constant CLIENT_MAX_STREAMS_ADDRESS, the concurrent HTTP/2 requests to every address. */
+	public static final int CLIENT_MAX_STREAMS_ADDRESS = 200;
+
 	/** The Constant CLIENT_MAX_THREADSPOOL_THREADS. */
 	public static final int CLIENT_MAX_THREADSPOOL_THREADS = 250;
 
+	/** The Constant CLIENT_DESERIALIZER_THREADS, the threads deserializing the responses of an asynchronous proxy. */
+	public static final int CLIENT_DESERIALIZER_THREADS = Runtime.getRuntime().availableProcessors();
+
 	/** The Constant CLIENT_MAX_TIMEOUT_MILLISECS. */
 	public static final int CLIENT_MAX_TIMEOUT_MILLISECS = 30000;
 
@@ -0,0 +1,1028 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResultCode;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.ConsistentHashRing;
+
+/**
+ * {@link BookStoreClusterProxy} implements the {@link BookStore} and
+ * {@link StockManager} APIs over a cluster of servers, each owning the ISBNs a
+ * {@link ConsistentHashRing} assigns to it. It can be used by clients
+ * directly, or by a router server in front of the cluster.
+ * <p>
+ * Requests naming ISBNs are split by shard and the parts are sent in
+ * parallel; a request on a single shard is sent as is. Catalog-wide queries
+ * are sent to every shard and the answers are merged. Every shard applies
+ * its part of a mutation atomically. A buyBooks or addCopies spanning shards
+ * is committed by the proxy with two-phase commit, so that it stays
+ * all-or-nothing.
+ * <p>
+ * The other mutations are not atomic across shards: when a shard refuses its
+ * part of an addBooks, rateBooks, updateEditorPicks or removeBooks, the parts
+ * of the other shards may still have been applied, and they are not undone.
+ * Before a rateBooks, updateEditorPicks or removeBooks spanning shards the
+ * proxy reads the books it names from every shard, so that a request naming
+ * a missing book is usually refused before any part is applied; a book
+ * removed concurrently can still slip past this check.
+ * <p>
+ * The books can be moved between running shards with {@link #rebalance}.
+ * A shard refuses requests on books it does not own with
+ * {@link BookStoreResultCode#MOVED}; the proxy then fetches the routing from
+ * the shards and sends the refused parts again. The routing is also fetched
+ * every {@link #ROUTING_REFRESH} milliseconds, so that catalog-wide queries
+ * reach the shards added by another proxy.
+ *
+ * @see BookStoreHTTPProxy
+ * @see StockManagerHTTPProxy
+ */
+public class BookStoreClusterProxy implements BookStore, StockManager {
+
+	/** The milliseconds between fetches of the routing. */
+	public static final long ROUTING_REFRESH = 1000;
+
+	/** The longest a request is sent again while its books move, in milliseconds. */
+	private static final long MAX_ROUTING_WAIT = BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS;
+
+	/** The milliseconds to wait before sending a refused request again. */
+	private static final long ROUTING_RETRY_DELAY = 10;
+
+	/** The ring assigning ISBNs to shards. */
+	private volatile ConsistentHashRing ring;
+
+	/** The epoch of the routing of the ring, 0 until the shards have one. */
+	private volatile long epoch = 0;
+
+	/** The book store proxies by shard. */
+	private final Map<String, BookStoreHTTPProxy> bookStores = new ConcurrentHashMap<>();
+
+	/** The stock manager proxies by shard. */
+	private final Map<String, StockManagerHTTPProxy> stockManagers = new ConcurrentHashMap<>();
+
+	/** Sends the parts of a request in parallel. */
+	private final ExecutorService executor;
+
+	/** Fetches the routing. */
+	private final ScheduledExecutorService refresher;
+
+	/** Held while the proxy rebalances the shards. */
+	private final Object rebalanceLock = new Object();
+
+	/**
+	 * A request which is sent again if a shard refuses it as moved.
+	 *
+	 * @param <R>
+	 *            the type of the answer
+	 */
+	@FunctionalInterface
+	private interface Routed<R> {
+
+		/**
+		 * Sends the request.
+		 *
+		 * @return the answer
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		R send() throws BookStoreException;
+	}
+
+	/**
+	 * A call of a shard with its part of a request.
+	 *
+	 * @param <P>
+	 *            the type of the part
+	 * @param <R>
+	 *            the type of the answer
+	 */
+	@FunctionalInterface
+	private interface ShardCall<P, R> {
+
+		/**
+		 * Calls a shard.
+		 *
+		 * @param shard
+		 *            the shard
+		 * @param part
+		 *            the part of the request
+		 * @return the answer
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		R call(String shard, P part) throws BookStoreException;
+	}
+
+	/**
+	 * Initializes a new {@link BookStoreClusterProxy}.
+	 *
+	 * @param shardAddresses
+	 *            the addresses of the internal ports of the servers, e.g.
+	 *            http://localhost:9081, where they answer two-phase commit
+	 *            and rebalancing
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreClusterProxy(List<String> shardAddresses) throws Exception {
+		ring = new ConsistentHashRing(shardAddresses);
+		connect(shardAddresses);
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-cluster");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-routing");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refreshRouting, ROUTING_REFRESH, ROUTING_REFRESH,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the ring assigning ISBNs to shards.
+	 *
+	 * @return the ring
+	 */
+	public ConsistentHashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Gets the epoch of the routing.
+	 *
+	 * @return the epoch, 0 if the shards were never rebalanced
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> booksToBuy) throws BookStoreException {
+		// Sent again as a whole, since nothing is applied if a shard refuses
+		retry(() -> {
+			Map<String, Set<BookCopy>> parts = split(booksToBuy, BookCopy::getISBN);
+			if (parts.size() > 1) {
+				commitAcross(BookStoreMessageTag.BUYBOOKS, parts);
+			} else {
+				scatter(parts, (shard, part) -> {
+					bookStores.get(shard).buyBooks(part);
+					return null;
+				});
+			}
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		checkAcross(bookRating, BookRating::getISBN);
+		for (BookRating rating : bookRating) {
+			if (BookStoreUtility.isInvalidRating(rating.getRating())) {
+				throw new BookStoreException(BookStoreResultCode.INVALID,
+						BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+			}
+		}
+		route(bookRating, BookRating::getISBN, (shard, part) -> {
+			bookStores.get(shard).rateBooks(part);
+			return Collections.emptyList();
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return route(isbnSet, Integer::intValue, (shard, part) -> bookStores.get(shard).getBooks(part));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks <= 0) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, BookStoreConstants.NULL_INPUT);
+		}
+
+		// Every shard sorts its best books, so merging the heads suffices
+		List<List<Book>> answers = scatter(everyShard(),
+				(shard, part) -> bookStores.get(shard).getTopRatedBooks(numBooks));
+		PriorityQueue<PeekingIterator> heads = new PriorityQueue<>(Math.max(answers.size(), 1),
+				Comparator.comparing((PeekingIterator head) -> averageRating(head.peek())).reversed());
+		for (List<Book> answer : answers) {
+			if (!answer.isEmpty()) {
+				heads.add(new PeekingIterator(answer.iterator()));
+			}
+		}
+
+		List<Book> topRatedBooks = new ArrayList<>(numBooks);
+		while (topRatedBooks.size() < numBooks && !heads.isEmpty()) {
+			PeekingIterator head = heads.poll();
+			topRatedBooks.add(head.next());
+			if (head.hasNext()) {
+				heads.add(head);
+			}
+		}
+		return topRatedBooks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException(BookStoreResultCode.INVALID,
+					"numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Every shard picks up to numBooks at random, the merge picks again
+		List<Book> editorPicks = concat(
+				scatter(everyShard(), (shard, part) -> bookStores.get(shard).getEditorPicks(numBooks)));
+		if (editorPicks.size() <= numBooks) {
+			return editorPicks;
+		}
+		Collections.shuffle(editorPicks);
+		return new ArrayList<>(editorPicks.subList(0, numBooks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		// Not atomic across shards, the parts of the other shards stay added
+		route(bookSet, StockBook::getISBN, (shard, part) -> {
+			stockManagers.get(shard).addBooks(part);
+			return Collections.emptyList();
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		retry(() -> {
+			Map<String, Set<BookCopy>> parts = split(bookCopiesSet, BookCopy::getISBN);
+			if (parts.size() > 1) {
+				commitAcross(BookStoreMessageTag.ADDCOPIES, parts);
+			} else {
+				scatter(parts, (shard, part) -> {
+					stockManagers.get(shard).addCopies(part);
+					return null;
+				});
+			}
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		return concat(scatter(everyShard(), (shard, part) -> stockManagers.get(shard).getBooks()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	@Override
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException {
+		// Every shard lists its next books after the same ISBN
+		List<BookPage> answers = scatter(everyShard(),
+				(shard, part) -> stockManagers.get(shard).getBooks(cursor, pageSize));
+
+		// Only the books up to where the shortest listing stopped are complete
+		int bound = Integer.MAX_VALUE;
+		List<StockBook> books = new ArrayList<>();
+		for (BookPage answer : answers) {
+			if (!answer.isLast()) {
+				bound = Math.min(bound, BookStoreUtility.decodeCursor(answer.getNextCursor()));
+			}
+			books.addAll(answer.getBooks());
+		}
+		books.sort(Comparator.comparingInt(StockBook::getISBN));
+
+		List<StockBook> page = new ArrayList<>(Math.min(books.size(), pageSize));
+		for (StockBook book : books) {
+			if (book.getISBN() > bound) {
+				break;
+			}
+			if (page.size() == pageSize) {
+				return new BookPage(page, BookStoreUtility.encodeCursor(page.get(pageSize - 1).getISBN()));
+			}
+			page.add(book);
+		}
+		if (bound != Integer.MAX_VALUE) {
+			return new BookPage(page, BookStoreUtility.encodeCursor(bound));
+		}
+		return new BookPage(page, null);
+	}
+
+	/**
+	 * Iterates over the books of all shards page by page. The next page is
+	 * fetched in the background while the current one is iterated.
+	 *
+	 * @param pageSize
+	 *            the most books fetched at once from every shard
+	 * @return the iterator
+	 * @see StockManagerHTTPProxy#iterateBooks(int)
+	 */
+	public Iterator<StockBook> iterateBooks(int pageSize) {
+		return new BookPageIterator(this, pageSize, executor);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException {
+		return route(isbns, Integer::intValue, (shard, part) -> stockManagers.get(shard).getBooksByISBN(part));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return concat(scatter(everyShard(), (shard, part) -> stockManagers.get(shard).getBooksInDemand()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(long)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException {
+		return concat(
+				scatter(everyShard(), (shard, part) -> stockManagers.get(shard).getBooksInDemand(windowMillis)));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getTopBooksInDemand(int,
+	 * long)
+	 */
+	@Override
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException {
+		// Every shard ranks its own books, the best of all are among their heads
+		List<BookDemand> heads = concat(scatter(everyShard(),
+				(shard, part) -> stockManagers.get(shard).getTopBooksInDemand(numBooks, halfLifeMillis)));
+		heads.sort(Comparator.comparingDouble(BookDemand::getSaleMisses).reversed());
+		return new ArrayList<>(heads.subList(0, Math.min(numBooks, heads.size())));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getSalesVelocity(java.util.
+	 * Set, long)
+	 */
+	@Override
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbns, long windowMillis) throws BookStoreException {
+		return route(isbns, Integer::intValue,
+				(shard, part) -> stockManagers.get(shard).getSalesVelocity(part, windowMillis));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		checkAcross(editorPicks, BookEditorPick::getISBN);
+		route(editorPicks, BookEditorPick::getISBN, (shard, part) -> {
+			stockManagers.get(shard).updateEditorPicks(part);
+			return Collections.emptyList();
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		retry(() -> scatter(everyShard(), (shard, part) -> {
+			stockManagers.get(shard).removeAllBooks();
+			return null;
+		}));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		checkAcross(isbnSet, Integer::intValue);
+		route(isbnSet, Integer::intValue, (shard, part) -> {
+			stockManagers.get(shard).removeBooks(part);
+			return Collections.emptyList();
+		});
+	}
+
+	/**
+	 * Moves the books between running shards to match a new set of shards,
+	 * e.g. to add a shard or to take one out, while the cluster is in use.
+	 * <p>
+	 * Every shard first learns the current routing. The books leaving a shard
+	 * are copied to their new shards with all their counters while traffic
+	 * continues. The shards are then fenced: writes to the leaving books are
+	 * refused until the cut-over ends, and the books which changed since the
+	 * copy are copied again. Finally every shard installs the new routing, and
+	 * the books are dropped from the shards they left.
+	 * <p>
+	 * Only one rebalancing may run at a time in a cluster. If it fails before
+	 * the cut-over, the fences are lifted and the copies dropped; if it fails
+	 * during the cut-over, rebalancing to the same shards again completes it.
+	 *
+	 * @param shardAddresses
+	 *            the internal addresses of the shards after the rebalancing
+	 * @throws BookStoreException
+	 *             if a shard cannot be reached, or a fence is not granted
+	 */
+	public void rebalance(List<String> shardAddresses) throws BookStoreException {
+		synchronized (rebalanceLock) {
+			refreshRouting();
+			ConsistentHashRing from = ring;
+			ConsistentHashRing to = new ConsistentHashRing(shardAddresses);
+			long current = epoch;
+			connect(to.getShards());
+
+			Map<String, Void> everyShard = shardsOf(from);
+			everyShard.putAll(shardsOf(to));
+			scatter(everyShard, (shard, part) -> {
+				stockManagers.get(shard).setRouting(current, shard, from.getShards());
+				return null;
+			});
+
+			Map<Integer, StockBook> copies = new HashMap<>();
+			List<Set<StockBook>> leaving;
+			try {
+				// The copy, while traffic continues
+				for (Set<StockBook> books : scatter(shardsOf(from), (shard, part) -> leaving(shard, to))) {
+					for (StockBook book : books) {
+						copies.put(book.getISBN(), book);
+					}
+				}
+				install(to, copies.values());
+
+				// The cut-over, the books which changed since the copy are copied again
+				scatter(shardsOf(from), (shard, part) -> {
+					stockManagers.get(shard).fence(to.getShards());
+					return null;
+				});
+				leaving = scatter(shardsOf(from), (shard, part) -> leaving(shard, to));
+				List<StockBook> changed = new ArrayList<>();
+				Set<Integer> gone = new HashSet<>(copies.keySet());
+				for (Set<StockBook> books : leaving) {
+					for (StockBook book : books) {
+						gone.remove(book.getISBN());
+						if (!sameState(book, copies.get(book.getISBN()))) {
+							changed.add(book);
+						}
+					}
+				}
+				install(to, changed);
+				drop(to, gone);
+			} catch (BookStoreException ex) {
+				scatter(everyShard, (shard, part) -> {
+					try {
+						stockManagers.get(shard).setRouting(current, shard, from.getShards());
+					} catch (BookStoreException rollback) {
+						// The fence stays until a routing is installed
+					}
+					return null;
+				});
+				try {
+					drop(to, copies.keySet());
+				} catch (BookStoreException rollback) {
+					// The copies are not owned, and never seen
+				}
+				throw ex;
+			}
+
+			long next = current + 1;
+			scatter(everyShard, (shard, part) -> {
+				stockManagers.get(shard).setRouting(next, shard, to.getShards());
+				return null;
+			});
+			synchronized (this) {
+				ring = to;
+				epoch = next;
+			}
+
+			Set<Integer> left = new HashSet<>();
+			for (Set<StockBook> books : leaving) {
+				for (StockBook book : books) {
+					left.add(book.getISBN());
+				}
+			}
+			drop(from, left);
+		}
+	}
+
+	/**
+	 * Stops the proxy.
+	 */
+	public void stop() {
+		refresher.shutdownNow();
+		executor.shutdownNow();
+		for (BookStoreHTTPProxy bookStore : bookStores.values()) {
+			bookStore.stop();
+		}
+		for (StockManagerHTTPProxy stockManager : stockManagers.values()) {
+			stockManager.stop();
+		}
+	}
+
+	/**
+	 * Applies the parts of a buyBooks or addCopies on several shards with
+	 * two-phase commit. Every shard prepares its part, holding its books, and
+	 * the first shard decides: it is committed first and logs the decision,
+	 * then the others are committed. A shard which misses the decision learns
+	 * it from the decider when its prepare times out. The shards are prepared
+	 * one after the other in the order of their addresses, so that two
+	 * transactions never wait for the books the other holds.
+	 *
+	 * @param operation
+	 *            the operation, BUYBOOKS or ADDCOPIES
+	 * @param parts
+	 *            the copies by shard
+	 * @throws BookStoreException
+	 *             the exception of a shard which refused its part, if the
+	 *             transaction aborted
+	 */
+	private void commitAcross(BookStoreMessageTag operation, Map<String, Set<BookCopy>> parts)
+			throws BookStoreException {
+		String transaction = UUID.randomUUID().toString();
+		Map<String, Set<BookCopy>> ordered = new TreeMap<>(parts);
+		String decider = ordered.keySet().iterator().next();
+		StockManagerHTTPProxy deciderProxy = stockManagers.get(decider);
+
+		try {
+			for (Map.Entry<String, Set<BookCopy>> part : ordered.entrySet()) {
+				String shard = part.getKey();
+				stockManagers.get(shard).prepare(transaction, operation, shard.equals(decider) ? null : decider,
+						part.getValue());
+			}
+		} catch (BookStoreException ex) {
+			abortAll(transaction, parts);
+			throw ex;
+		}
+
+		try {
+			deciderProxy.commit(transaction);
+		} catch (BookStoreException ex) {
+			// A lost answer may hide a commit, so the decider settles it
+			if (ex.getResultCode() != null || !deciderProxy.getOutcome(transaction)) {
+				abortAll(transaction, parts);
+				throw ex;
+			}
+		}
+
+		Map<String, Set<BookCopy>> others = new LinkedHashMap<>(parts);
+		others.remove(decider);
+		scatter(others, (shard, part) -> {
+			try {
+				stockManagers.get(shard).commit(transaction);
+			} catch (BookStoreException ex) {
+				// The shard asks the decider once its prepare times out
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Checks, before a mutation spanning shards, that every shard has the
+	 * books of its part, by reading them, so that a part which would be
+	 * refused for an invalid or missing ISBN is usually refused before any
+	 * part is applied. The check takes no locks and does not make the
+	 * mutation atomic. A mutation on a single shard is atomic there and is not
+	 * checked.
+	 *
+	 * @throws BookStoreException
+	 *             the exception of the first shard which does not have a book
+	 */
+	private <E> void checkAcross(Set<E> items, ToIntFunction<E> isbnOf) throws BookStoreException {
+		if (split(items, isbnOf).size() <= 1) {
+			return;
+		}
+		route(items, isbnOf, (shard, part) -> {
+			Set<Integer> isbns = new HashSet<>();
+			part.forEach(item -> isbns.add(isbnOf.applyAsInt(item)));
+			return stockManagers.get(shard).getBooksByISBN(isbns);
+		});
+	}
+
+	/**
+	 * Aborts a transaction on its shards. A shard which cannot be reached
+	 * aborts once its prepare times out.
+	 */
+	private void abortAll(String transaction, Map<String, Set<BookCopy>> parts) throws BookStoreException {
+		scatter(parts, (shard, part) -> {
+			try {
+				stockManagers.get(shard).abort(transaction);
+			} catch (BookStoreException ex) {
+				// Presumed abort, the decider knows no commit
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Gets the books which leave a shard with a new ring.
+	 */
+	private Set<StockBook> leaving(String shard, ConsistentHashRing to) throws BookStoreException {
+		Set<StockBook> books = new HashSet<>();
+		for (StockBook book : stockManagers.get(shard).getBooks()) {
+			if (!to.shardOf(book.getISBN()).equals(shard)) {
+				books.add(book);
+			}
+		}
+		return books;
+	}
+
+	/**
+	 * Copies books into their shards on a ring.
+	 */
+	private void install(ConsistentHashRing to, Collection<StockBook> books) throws BookStoreException {
+		Map<String, Set<StockBook>> parts = new LinkedHashMap<>();
+		for (StockBook book : books) {
+			parts.computeIfAbsent(to.shardOf(book.getISBN()), shard -> new HashSet<>()).add(book);
+		}
+		scatter(parts, (shard, part) -> {
+			stockManagers.get(shard).installBooks(part);
+			return null;
+		});
+	}
+
+	/**
+	 * Drops books from their shards on a ring.
+	 */
+	private void drop(ConsistentHashRing on, Collection<Integer> isbns) throws BookStoreException {
+		Map<String, Set<Integer>> parts = new LinkedHashMap<>();
+		for (Integer isbn : isbns) {
+			parts.computeIfAbsent(on.shardOf(isbn), shard -> new HashSet<>()).add(isbn);
+		}
+		scatter(parts, (shard, part) -> {
+			stockManagers.get(shard).dropBooks(part);
+			return null;
+		});
+	}
+
+	private static boolean sameState(StockBook book, StockBook copy) {
+		return copy != null && book.equals(copy) && book.getNumCopies() == copy.getNumCopies()
+				&& book.getNumSaleMisses() == copy.getNumSaleMisses()
+				&& book.getNumTimesRated() == copy.getNumTimesRated()
+				&& book.getTotalRating() == copy.getTotalRating() && book.isEditorPick() == copy.isEditorPick();
+	}
+
+	/**
+	 * Connects to shards the proxy has no proxies for yet.
+	 *
+	 * @throws BookStoreException
+	 *             if a proxy cannot be started
+	 */
+	private synchronized void connect(Collection<String> shardAddresses) throws BookStoreException {
+		for (String shardAddress : shardAddresses) {
+			if (stockManagers.containsKey(shardAddress)) {
+				continue;
+			}
+			try {
+				bookStores.put(shardAddress, new BookStoreHTTPProxy(shardAddress));
+				stockManagers.put(shardAddress, new StockManagerHTTPProxy(shardAddress + "/stock"));
+			} catch (Exception ex) {
+				throw new BookStoreException("Cannot connect to " + shardAddress, ex);
+			}
+		}
+	}
+
+	/**
+	 * Fetches the routing from the shards and switches to the newest one.
+	 *
+	 * @return true if the routing changed
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized boolean refreshRouting() {
+		long newest = epoch;
+		List<String> shards = null;
+		for (String shard : ring.getShards()) {
+			try {
+				List<Object> routing = stockManagers.get(shard).getRouting();
+				long shardEpoch = (Long) routing.get(0);
+				if (shardEpoch > newest) {
+					newest = shardEpoch;
+					shards = (List<String>) routing.get(1);
+				}
+			} catch (BookStoreException ex) {
+				// Down, or not a shard which can be rebalanced
+			}
+		}
+		if (shards == null) {
+			return false;
+		}
+
+		try {
+			connect(shards);
+		} catch (BookStoreException ex) {
+			return false;
+		}
+		ring = new ConsistentHashRing(shards);
+		epoch = newest;
+		return true;
+	}
+
+	/**
+	 * Sends a request again while a shard refuses it as moved, fetching the
+	 * routing in between. The request must apply nothing when it is refused.
+	 *
+	 * @return the answer
+	 * @throws BookStoreException
+	 *             the exception of the request, or MOVED if the books kept
+	 *             moving for too long
+	 */
+	private <R> R retry(Routed<R> request) throws BookStoreException {
+		long deadline = System.currentTimeMillis() + MAX_ROUTING_WAIT;
+		while (true) {
+			try {
+				return request.send();
+			} catch (BookStoreException ex) {
+				if (ex.getResultCode() != BookStoreResultCode.MOVED || System.currentTimeMillis() >= deadline) {
+					throw ex;
+				}
+			}
+			awaitRouting();
+		}
+	}
+
+	/**
+	 * Splits the items of a request by shard and sends the parts in
+	 * parallel. A part refused as moved is split again by the fetched
+	 * routing, so that the parts which were applied are not sent again.
+	 *
+	 * @return the concatenated answers
+	 * @throws BookStoreException
+	 *             the exception of the first failed part
+	 */
+	private <E, T> List<T> route(Set<E> items, ToIntFunction<E> isbnOf, ShardCall<Set<E>, List<T>> call)
+			throws BookStoreException {
+		long deadline = System.currentTimeMillis() + MAX_ROUTING_WAIT;
+		return concat(scatter(split(items, isbnOf), (shard, part) -> resend(shard, part, isbnOf, call, deadline)));
+	}
+
+	/**
+	 * Sends a part to its shard, and while the shard refuses it as moved,
+	 * sends it again to the shards of the fetched routing.
+	 */
+	private <E, T> List<T> resend(String shard, Set<E> part, ToIntFunction<E> isbnOf,
+			ShardCall<Set<E>, List<T>> call, long deadline) throws BookStoreException {
+		while (true) {
+			try {
+				return call.call(shard, part);
+			} catch (BookStoreException ex) {
+				if (ex.getResultCode() != BookStoreResultCode.MOVED || System.currentTimeMillis() >= deadline) {
+					throw ex;
+				}
+			}
+			awaitRouting();
+
+			Map<String, Set<E>> parts = split(part, isbnOf);
+			if (parts.size() == 1 && parts.containsKey(shard)) {
+				continue; // Still fenced
+			}
+			List<T> answers = new ArrayList<>();
+			for (Map.Entry<String, Set<E>> next : parts.entrySet()) {
+				answers.addAll(resend(next.getKey(), next.getValue(), isbnOf, call, deadline));
+			}
+			return answers;
+		}
+	}
+
+	/**
+	 * Fetches the routing, and waits a little if it did not change yet.
+	 */
+	private void awaitRouting() throws BookStoreException {
+		if (refreshRouting()) {
+			return;
+		}
+		try {
+			Thread.sleep(ROUTING_RETRY_DELAY);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		}
+	}
+
+	/**
+	 * Splits the items of a request by the shard of their ISBN.
+	 *
+	 * @param items
+	 *            the items
+	 * @param isbnOf
+	 *            gets the ISBN of an item
+	 * @return the parts by shard
+	 * @throws BookStoreException
+	 *             if the items are null
+	 */
+	private <E> Map<String, Set<E>> split(Set<E> items, ToIntFunction<E> isbnOf) throws BookStoreException {
+		if (items == null) {
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+
+		ConsistentHashRing ring = this.ring;
+		Map<String, Set<E>> parts = new LinkedHashMap<>();
+		for (E item : items) {
+			if (item == null) {
+				throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+			}
+			parts.computeIfAbsent(ring.shardOf(isbnOf.applyAsInt(item)), shard -> new HashSet<>()).add(item);
+		}
+		return parts;
+	}
+
+	/**
+	 * Gets an empty part for every shard, for catalog-wide requests.
+	 */
+	private Map<String, Void> everyShard() {
+		return shardsOf(ring);
+	}
+
+	/**
+	 * Gets an empty part for every shard of a ring.
+	 */
+	private static Map<String, Void> shardsOf(ConsistentHashRing on) {
+		Map<String, Void> parts = new LinkedHashMap<>();
+		for (String shard : on.getShards()) {
+			parts.put(shard, null);
+		}
+		return parts;
+	}
+
+	/**
+	 * Sends the parts of a request to their shards in parallel and waits for
+	 * all of them. A single part is sent by the calling thread.
+	 *
+	 * @return the answers, in the order of the parts
+	 * @throws BookStoreException
+	 *             the exception of the first failed part
+	 */
+	private <P, R> List<R> scatter(Map<String, P> parts, ShardCall<P, R> call) throws BookStoreException {
+		if (parts.size() == 1) {
+			Map.Entry<String, P> part = parts.entrySet().iterator().next();
+			return Collections.singletonList(call.call(part.getKey(), part.getValue()));
+		}
+
+		List<Future<R>> futures = new ArrayList<>(parts.size());
+		for (Map.Entry<String, P> part : parts.entrySet()) {
+			futures.add(executor.submit(() -> call.call(part.getKey(), part.getValue())));
+		}
+
+		List<R> answers = new ArrayList<>(parts.size());
+		BookStoreException exception = null;
+		for (Future<R> future : futures) {
+			try {
+				answers.add(future.get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+			} catch (ExecutionException ex) {
+				if (exception == null) {
+					exception = (ex.getCause() instanceof BookStoreException) ? (BookStoreException) ex.getCause()
+							: new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_UNKNOWN, ex.getCause());
+				}
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+		return answers;
+	}
+
+	private static <T> List<T> concat(List<List<T>> answers) {
+		List<T> merged = new ArrayList<>();
+		for (List<T> answer : answers) {
+			merged.addAll(answer);
+		}
+		return merged;
+	}
+
+	private static float averageRating(Book book) {
+		// The shards answer with stock books, which carry their ratings
+		return (book instanceof StockBook) ? ((StockBook) book).getAverageRating() : -1.0f;
+	}
+
+	/**
+	 * An iterator which shows its next element, for the k-way merge.
+	 */
+	private static final class PeekingIterator implements Iterator<Book> {
+
+		/** The iterator. */
+		private final Iterator<Book> iterator;
+
+		/** The next element. */
+		private Book next;
+
+		PeekingIterator(Iterator<Book> iterator) {
+			this.iterator = iterator;
+			this.next = iterator.next();
+		}
+
+		Book peek() {
+			return next;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Book next() {
+			Book current = next;
+			next = iterator.hasNext() ? iterator.next() : null;
+			return current;
+		}
+	}
+}
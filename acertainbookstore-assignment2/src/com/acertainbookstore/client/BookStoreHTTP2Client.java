@@ -0,0 +1,370 @@
+package com.acertainbookstore.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.GoAwayFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.Promise;
+
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.CompressingOutputStream;
+
+/**
+ * {@link BookStoreHTTP2Client} sends requests to the servers over cleartext
+ * HTTP/2 (h2c with prior knowledge). The requests to a server are multiplexed
+ * as concurrent streams over a single connection, whose headers are
+ * compressed with HPACK, instead of taking one HTTP/1.1 connection each.
+ * <p>
+ * At most {@link BookStoreClientConstants#CLIENT_MAX_STREAMS_ADDRESS}
+ * requests are in flight to a server at once; further requests wait for a
+ * stream. A connection which closes or fails is opened again by the next
+ * request. The contents of requests and responses are held as a whole, and
+ * compressed as over HTTP/1.1; imports and exports, which stream their
+ * contents, are still sent over HTTP/1.1.
+ *
+ * @see BookStoreHTTPProxy
+ * @see StockManagerHTTPProxy
+ */
+public class BookStoreHTTP2Client {
+
+	/** The client. */
+	private final HTTP2Client client;
+
+	/** The connections, by address of the server. */
+	private final ConcurrentMap<String, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+
+	/** The Accept-Encoding header of every request. */
+	private static final String ACCEPT_ENCODING = Arrays.stream(BookStoreEncoding.values())
+			.map(BookStoreEncoding::getName).collect(Collectors.joining(", "));
+
+	/**
+	 * Instantiates and starts a new {@link BookStoreHTTP2Client}.
+	 *
+	 * @param executor
+	 *            runs the callbacks of the connections
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTP2Client(Executor executor) throws Exception {
+		client = new HTTP2Client();
+		client.setExecutor(executor);
+		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		client.start();
+	}
+
+	/**
+	 * Perform the exchange of a request over the connection to its server.
+	 *
+	 * @param bookStoreRequest
+	 *            the request
+	 * @param serializer
+	 *            the serializer
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public BookStoreResponse performExchange(BookStoreRequest bookStoreRequest, BookStoreSerializer serializer)
+			throws BookStoreException {
+		HttpURI uri = new HttpURI(bookStoreRequest.getURLString());
+		HttpFields fields = new HttpFields();
+		fields.put(HttpHeader.ACCEPT_ENCODING, ACCEPT_ENCODING);
+
+		ByteBuffer content = null;
+		switch (bookStoreRequest.getMethod()) {
+		case GET:
+			break;
+
+		case POST:
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (CompressingOutputStream out = new CompressingOutputStream(BookStoreEncoding.preferred(),
+					BookStoreConstants.COMPRESSION_THRESHOLD, encoding -> {
+						if (encoding != null) {
+							fields.put(HttpHeader.CONTENT_ENCODING, encoding.getName());
+						}
+						return bytes;
+					})) {
+				serializer.serialize(bookStoreRequest.getInputValue(), out);
+			} catch (IOException ex) {
+				throw new BookStoreException("Serialization error", ex);
+			}
+			content = ByteBuffer.wrap(bytes.toByteArray());
+			fields.putLongField(HttpHeader.CONTENT_LENGTH, content.remaining());
+			break;
+
+		default:
+			throw new IllegalArgumentException("HTTP Method not supported.");
+		}
+
+		MetaData.Request metaData = new MetaData.Request(bookStoreRequest.getMethod().name(), uri,
+				HttpVersion.HTTP_2, fields);
+		ResponseListener listener = new ResponseListener();
+		Connection connection = connect(uri);
+		Stream stream = null;
+
+		try {
+			if (!connection.streams.tryAcquire(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS,
+					TimeUnit.MILLISECONDS)) {
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT);
+			}
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		}
+
+		try {
+			FuturePromise<Stream> promise = new FuturePromise<>();
+			connection.session.newStream(new HeadersFrame(metaData, null, content == null), promise, listener);
+			stream = promise.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
+			if (content != null) {
+				stream.data(new DataFrame(stream.getId(), content, true), new Callback() {
+
+					@Override
+					public void failed(Throwable x) {
+						listener.response.completeExceptionally(x);
+					}
+				});
+			}
+			listener.response.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			if (stream != null) {
+				stream.reset(new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code), Callback.NOOP);
+			}
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		} finally {
+			connection.streams.release();
+		}
+
+		BookStoreResponse bookStoreResponse;
+
+		try (InputStream in = listener.getContent()) {
+			bookStoreResponse = (BookStoreResponse) serializer.deserialize(in);
+		} catch (IOException ex) {
+			throw new BookStoreException("Deserialization error", ex);
+		}
+
+		BookStoreException exception = bookStoreResponse.getException();
+
+		if (exception != null) {
+			throw exception;
+		}
+
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Gets the connection to the server of a request, opening it if needed.
+	 */
+	private Connection connect(HttpURI uri) throws BookStoreException {
+		int port = (uri.getPort() > 0) ? uri.getPort() : 80;
+		String address = uri.getHost() + ":" + port;
+
+		CompletableFuture<Connection> connection = connections.get(address);
+		if (connection == null) {
+			CompletableFuture<Connection> opened = new CompletableFuture<>();
+			connection = connections.putIfAbsent(address, opened);
+			if (connection == null) {
+				// Opened outside of the map, which a failure updates again
+				connection = opened;
+				open(address, uri.getHost(), port, opened);
+			}
+		}
+
+		try {
+			return connection.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			connections.remove(address, connection);
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+	}
+
+	/**
+	 * Opens a connection, which is dropped from the connections once it closes
+	 * or fails.
+	 */
+	private void open(String address, String host, int port, CompletableFuture<Connection> opened) {
+		Session.Listener listener = new Session.Listener.Adapter() {
+
+			@Override
+			public void onClose(Session session, GoAwayFrame frame) {
+				connections.remove(address, opened);
+			}
+
+			@Override
+			public void onFailure(Session session, Throwable failure) {
+				connections.remove(address, opened);
+			}
+		};
+
+		client.connect(new InetSocketAddress(host, port), listener, new Promise<Session>() {
+
+			@Override
+			public void succeeded(Session session) {
+				opened.complete(new Connection(session));
+			}
+
+			@Override
+			public void failed(Throwable x) {
+				connections.remove(address, opened);
+				opened.completeExceptionally(x);
+			}
+		});
+	}
+
+	/**
+	 * Stops the client, closing its connections.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	public void stop() throws Exception {
+		client.stop();
+	}
+
+	/**
+	 * A connection to a server and the streams left on it.
+	 */
+	private static final class Connection {
+
+		/** The session. */
+		private final Session session;
+
+		/** The streams which may still be opened. */
+		private final Semaphore streams = new Semaphore(BookStoreClientConstants.CLIENT_MAX_STREAMS_ADDRESS);
+
+		private Connection(Session session) {
+			this.session = session;
+		}
+	}
+
+	/**
+	 * Collects the response to a request.
+	 */
+	private static final class ResponseListener extends Stream.Listener.Adapter {
+
+		/** Completes once the response was received. */
+		private final CompletableFuture<Void> response = new CompletableFuture<>();
+
+		/** The content received. */
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		/** The Content-Encoding header of the response, or null. */
+		private volatile String contentEncoding = null;
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * org.eclipse.jetty.http2.api.Stream.Listener.Adapter#onHeaders(org.
+		 * eclipse.jetty.http2.api.Stream,
+		 * org.eclipse.jetty.http2.frames.HeadersFrame)
+		 */
+		@Override
+		public void onHeaders(Stream stream, HeadersFrame frame) {
+			if (frame.getMetaData() instanceof MetaData.Response) {
+				contentEncoding = frame.getMetaData().getFields().get(HttpHeader.CONTENT_ENCODING);
+			}
+			if (frame.isEndStream()) {
+				response.complete(null);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * org.eclipse.jetty.http2.api.Stream.Listener.Adapter#onData(org.eclipse.
+		 * jetty.http2.api.Stream, org.eclipse.jetty.http2.frames.DataFrame,
+		 * org.eclipse.jetty.util.Callback)
+		 */
+		@Override
+		public void onData(Stream stream, DataFrame frame, Callback callback) {
+			ByteBuffer data = frame.getData();
+			synchronized (content) {
+				while (data.hasRemaining()) {
+					content.write(data.get());
+				}
+			}
+			callback.succeeded();
+			if (frame.isEndStream()) {
+				response.complete(null);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * org.eclipse.jetty.http2.api.Stream.Listener.Adapter#onReset(org.eclipse
+		 * .jetty.http2.api.Stream, org.eclipse.jetty.http2.frames.ResetFrame)
+		 */
+		@Override
+		public void onReset(Stream stream, ResetFrame frame) {
+			response.completeExceptionally(new IOException("Stream reset with error " + frame.getError()));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * org.eclipse.jetty.http2.api.Stream.Listener.Adapter#onIdleTimeout(org.
+		 * eclipse.jetty.http2.api.Stream, java.lang.Throwable)
+		 */
+		@Override
+		public boolean onIdleTimeout(Stream stream, Throwable x) {
+			response.completeExceptionally(x);
+			return true;
+		}
+
+		/**
+		 * Gets the content received, decompressed.
+		 */
+		private InputStream getContent() throws IOException {
+			InputStream in;
+			synchronized (content) {
+				in = new ByteArrayInputStream(content.toByteArray());
+			}
+			BookStoreEncoding encoding = BookStoreEncoding.of(contentEncoding);
+			return (encoding == null) ? in : encoding.decompress(in);
+		}
+	}
+}
@@ -2,8 +2,13 @@ package com.acertainbookstore.client;
 
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
@@ -11,14 +16,15 @@ import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.interfaces.BookStore;
-import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
-import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
 import com.acertainbookstore.utils.BookStoreRequest;
 import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResultCode;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -33,11 +39,30 @@ public class BookStoreHTTPProxy implements BookStore {
 	/** The client. */
 	protected HttpClient client;
 
+	/** The client multiplexing the requests over HTTP/2, or null. */
+	private BookStoreHTTP2Client http2Client = null;
+
 	/** The server address. */
-	protected String serverAddress;
+	protected volatile String serverAddress;
+
+	/** The address of the backup of the server, or null. */
+	private String backupAddress = null;
+
+	/** The address of the internal port of the backup, which promotes it. */
+	private String promoteAddress = null;
+
+	/** The addresses of the read replicas of the server. */
+	private final List<String> replicaAddresses;
 
-	/** The serializer. */
-	private static ThreadLocal<BookStoreSerializer> serializer;
+	/** The counter choosing the replica of the next read. */
+	private final AtomicInteger nextReplica = new AtomicInteger();
+
+	/** The staleness of the last read of every thread. */
+	private final ThreadLocal<Long> lastStaleness = ThreadLocal.withInitial(() -> 0L);
+
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
 
 	/**
 	 * Initializes a new {@link BookStoreHTTPProxy}.
@@ -48,13 +73,24 @@ public class BookStoreHTTPProxy implements BookStore {
 	 *             the exception
 	 */
 	public BookStoreHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, Collections.emptyList());
+	}
 
-		// Setup the type of serializer.
-		if (BookStoreConstants.BINARY_SERIALIZATION) {
-			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
-		} else {
-			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
-		}
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} which sends getBooks,
+	 * getEditorPicks and getTopRatedBooks to read replicas in turn, and the
+	 * other messages to the server. A read refused by a stale or unreachable
+	 * replica is sent to the server instead.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param replicaAddresses
+	 *            the addresses of the read replicas of the server
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(String serverAddress, List<String> replicaAddresses) throws Exception {
+		this.replicaAddresses = new ArrayList<>(replicaAddresses);
 
 		setServerAddress(serverAddress);
 		client = new HttpClient();
@@ -68,7 +104,14 @@ public class BookStoreHTTPProxy implements BookStore {
 		// Seconds timeout; if no server reply, the request expires.
 		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
 
+		// Accept the codings large responses are compressed with.
+		BookStoreEncoding.addDecoders(client);
+
 		client.start();
+
+		if (Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_HTTP2)) {
+			http2Client = new BookStoreHTTP2Client(client.getExecutor());
+		}
 	}
 
 	/**
@@ -90,6 +133,99 @@ public class BookStoreHTTPProxy implements BookStore {
 		this.serverAddress = serverAddress;
 	}
 
+	/**
+	 * Sets the address of the backup of the server. Once the server cannot be
+	 * reached, the backup is promoted and the proxy sends every message to it.
+	 *
+	 * @param backupAddress
+	 *            the address of the backup, or null
+	 */
+	public void setBackupAddress(String backupAddress) {
+		setBackupAddress(backupAddress, backupAddress);
+	}
+
+	/**
+	 * Sets the address of the backup of the server, and the address of its
+	 * internal port the promotion is sent to, as a backup only answers it
+	 * there.
+	 *
+	 * @param backupAddress
+	 *            the address of the backup, or null
+	 * @param promoteAddress
+	 *            the address of the internal port of the backup
+	 */
+	public synchronized void setBackupAddress(String backupAddress, String promoteAddress) {
+		this.backupAddress = backupAddress;
+		this.promoteAddress = promoteAddress;
+	}
+
+	/**
+	 * Sends a request to the server. A request which could not reach the
+	 * server is resent to its backup once the backup took over; a request
+	 * which may have reached it is not, since it may have been applied.
+	 *
+	 * @param bookStoreRequest
+	 *            the request
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse perform(BookStoreRequest bookStoreRequest) throws BookStoreException {
+		String address = serverAddress;
+		try {
+			return performExchange(bookStoreRequest);
+		} catch (BookStoreException ex) {
+			if (ex.getResultCode() != null || !BookStoreUtility.isUnreachable(ex) || !failOver(address)) {
+				throw ex;
+			}
+			return performExchange(bookStoreRequest.redirect(address, serverAddress));
+		}
+	}
+
+	/**
+	 * Sends a request over HTTP/2 if the proxy multiplexes its requests, and
+	 * over HTTP/1.1 otherwise.
+	 *
+	 * @param bookStoreRequest
+	 *            the request
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse performExchange(BookStoreRequest bookStoreRequest) throws BookStoreException {
+		if (http2Client != null) {
+			return http2Client.performExchange(bookStoreRequest, serializer.get());
+		}
+		return BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+	}
+
+	/**
+	 * Promotes the backup after the server failed, unless another request
+	 * already did.
+	 *
+	 * @param failedAddress
+	 *            the address of the server which failed
+	 * @return true if the proxy now sends to the backup
+	 */
+	private synchronized boolean failOver(String failedAddress) {
+		if (!failedAddress.equals(serverAddress)) {
+			return true;
+		}
+		if (backupAddress == null) {
+			return false;
+		}
+		try {
+			// The backup refuses while it still hears from the server
+			performExchange(BookStoreRequest.newGetRequest(promoteAddress + "/" + BookStoreMessageTag.PROMOTE));
+		} catch (BookStoreException ex) {
+			return false;
+		}
+		serverAddress = backupAddress;
+		backupAddress = null;
+		promoteAddress = null;
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -98,7 +234,7 @@ public class BookStoreHTTPProxy implements BookStore {
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 	}
 
 	/*
@@ -108,10 +244,8 @@ public class BookStoreHTTPProxy implements BookStore {
 	 */
 	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = performRead(address -> BookStoreRequest
+				.newPostRequest(address + "/" + BookStoreMessageTag.GETBOOKS, isbnSet));
 		return (List<Book>) bookStoreResponse.getList();
 	}
 
@@ -126,20 +260,83 @@ public class BookStoreHTTPProxy implements BookStore {
 
 		urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
 
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETEDITORPICKS + "?"
-				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+		String path = "/" + BookStoreMessageTag.GETEDITORPICKS + "?" + BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ urlEncodedNumBooks;
 
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = performRead(address -> BookStoreRequest.newGetRequest(address + path));
 		return (List<Book>) bookStoreResponse.getList();
 	}
 
+	/**
+	 * Gets the staleness of the last read of the calling thread.
+	 *
+	 * @return the milliseconds the replica which answered may lag behind the
+	 *         server, or 0 if the server answered
+	 */
+	public long getLastStaleness() {
+		return lastStaleness.get();
+	}
+
+	/**
+	 * Sends a read to the next replica, or to the server if the replica is
+	 * stale or unreachable or if there are no replicas.
+	 *
+	 * @param request
+	 *            builds the request for the address of a server
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse performRead(Function<String, BookStoreRequest> request) throws BookStoreException {
+		if (!replicaAddresses.isEmpty()) {
+			String replicaAddress = replicaAddresses
+					.get(Math.floorMod(nextReplica.getAndIncrement(), replicaAddresses.size()));
+			try {
+				BookStoreResponse bookStoreResponse = performExchange(request.apply(replicaAddress));
+				lastStaleness.set(bookStoreResponse.getStaleness());
+				return bookStoreResponse;
+			} catch (BookStoreException ex) {
+				// Business outcomes are answers, anything else is retried
+				if (ex.getResultCode() != null && ex.getResultCode() != BookStoreResultCode.STALE) {
+					throw ex;
+				}
+			}
+		}
+
+		BookStoreResponse bookStoreResponse = perform(request.apply(serverAddress));
+		lastStaleness.set(0L);
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Sends a batch of independent operations to the server in one request.
+	 * The server performs them in order; one failing does not stop the ones
+	 * after it. Operations of the book store and of the stock manager may be
+	 * mixed.
+	 *
+	 * @param operations
+	 *            the operations, at most
+	 *            {@link BookStoreConstants#MAX_BATCH_SIZE}
+	 * @return the responses of the operations in the same order, whose lists
+	 *         hold their results and whose exceptions their failures
+	 * @throws BookStoreException
+	 *             if the batch could not be performed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookStoreResponse> performBatch(List<BookStoreOperation> operations) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, new ArrayList<>(operations));
+		return (List<BookStoreResponse>) perform(bookStoreRequest).getList();
+	}
+
 	/**
 	 * Stops the proxy.
 	 */
 	public void stop() {
 		try {
+			if (http2Client != null) {
+				http2Client.stop();
+			}
 			client.stop();
 		} catch (Exception ex) {
 			System.err.println(ex.getStackTrace());
@@ -154,7 +351,7 @@ public class BookStoreHTTPProxy implements BookStore {
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookRating);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 		//throw new BookStoreException();
 	}
 
@@ -167,11 +364,10 @@ public class BookStoreHTTPProxy implements BookStore {
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
 		String urlEncodedNumBooks = null;
 		urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETTOPRATEDBOOKS + "?"
-				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+		String path = "/" + BookStoreMessageTag.GETTOPRATEDBOOKS + "?" + BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ urlEncodedNumBooks;
 
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreResponse bookStoreResponse = performRead(address -> BookStoreRequest.newGetRequest(address + path));
 		return (List<Book>) bookStoreResponse.getList();
 	}
 }
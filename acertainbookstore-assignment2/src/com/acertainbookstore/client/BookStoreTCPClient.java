@@ -0,0 +1,246 @@
+package com.acertainbookstore.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.server.BookStoreTCPServer;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreTCPClient} sends operations to a {@link BookStoreTCPServer}
+ * over one connection, on which the requests of all the threads using the
+ * client are pipelined: a request is written as soon as it is made, and a
+ * reader thread hands every response to the thread waiting for it by its
+ * request id. A connection which fails fails the requests waiting on it, and
+ * the next request opens a new one.
+ *
+ * @see BookStoreTCPServer
+ */
+public class BookStoreTCPClient {
+
+	/** The address of the server. */
+	private final InetSocketAddress address;
+
+	/** The ids of the requests. */
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+
+	/** The connection, or null until the next request opens one. */
+	private Connection connection = null;
+
+	/** Whether the client is stopped. */
+	private boolean stopped = false;
+
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
+
+	/**
+	 * Instantiates a new {@link BookStoreTCPClient}.
+	 *
+	 * @param host
+	 *            the host of the server
+	 * @param port
+	 *            the port the server serves the binary protocol on
+	 */
+	public BookStoreTCPClient(String host, int port) {
+		this.address = new InetSocketAddress(host, port);
+	}
+
+	/**
+	 * Sends an operation and waits for its response.
+	 *
+	 * @param operation
+	 *            the operation
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             if the operation fails or the exchange does
+	 */
+	public BookStoreResponse performExchange(BookStoreOperation operation) throws BookStoreException {
+		byte[] content;
+		try {
+			content = serializer.get().serialize(operation);
+		} catch (IOException ex) {
+			throw new BookStoreException("Serialization error", ex);
+		}
+
+		int requestId = nextRequestId.incrementAndGet();
+		Connection current;
+		CompletableFuture<byte[]> answer;
+		try {
+			current = connection();
+			answer = current.send(requestId, content);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		}
+
+		BookStoreResponse bookStoreResponse;
+		try {
+			byte[] response = answer.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
+			bookStoreResponse = (BookStoreResponse) serializer.get().deserialize(response);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		} catch (TimeoutException ex) {
+			current.pending.remove(requestId);
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex.getCause());
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_RESPONSE_DECODING, ex);
+		}
+
+		BookStoreException exception = bookStoreResponse.getException();
+		if (exception != null) {
+			throw exception;
+		}
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Stops the client and closes its connection.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (connection != null) {
+			connection.fail(new IOException("The client is stopped"));
+			connection = null;
+		}
+	}
+
+	/**
+	 * Gets the open connection, opening one if there is none.
+	 *
+	 * @return the connection
+	 * @throws IOException
+	 *             if the connection cannot be opened
+	 */
+	private synchronized Connection connection() throws IOException {
+		if (stopped) {
+			throw new IOException("The client is stopped");
+		}
+		if (connection == null || connection.closed) {
+			connection = new Connection(SocketChannel.open(address));
+		}
+		return connection;
+	}
+
+	/**
+	 * A connection and the requests waiting for their responses on it.
+	 */
+	private static final class Connection {
+
+		/** The channel, blocking. */
+		private final SocketChannel channel;
+
+		/** The requests waiting for their responses, by id. */
+		private final Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+		/** Whether the connection failed or was closed. */
+		private volatile boolean closed = false;
+
+		private Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			channel.socket().setTcpNoDelay(true);
+
+			Thread reader = new Thread(this::read, "bookstore-tcp-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Writes a request.
+		 *
+		 * @param requestId
+		 *            the id of the request
+		 * @param content
+		 *            the serialized operation
+		 * @return the future of the serialized response
+		 * @throws IOException
+		 *             if the request cannot be written
+		 */
+		private CompletableFuture<byte[]> send(int requestId, byte[] content) throws IOException {
+			CompletableFuture<byte[]> answer = new CompletableFuture<>();
+			pending.put(requestId, answer);
+			if (closed) {
+				pending.remove(requestId);
+				throw new IOException("The connection is closed");
+			}
+
+			ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + BookStoreTCPServer.HEADER_SIZE + content.length);
+			frame.putInt(BookStoreTCPServer.HEADER_SIZE + content.length).putInt(requestId).put(content).flip();
+			try {
+				synchronized (channel) {
+					while (frame.hasRemaining()) {
+						channel.write(frame);
+					}
+				}
+			} catch (IOException ex) {
+				fail(ex);
+				throw ex;
+			}
+			return answer;
+		}
+
+		/**
+		 * Reads the responses until the connection fails.
+		 */
+		private void read() {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+				while (true) {
+					int length = in.readInt();
+					if (length < BookStoreTCPServer.HEADER_SIZE || length > BookStoreConstants.MAX_FRAME_SIZE) {
+						throw new IOException("Invalid frame length " + length);
+					}
+					int requestId = in.readInt();
+					byte[] content = new byte[length - BookStoreTCPServer.HEADER_SIZE];
+					in.readFully(content);
+
+					CompletableFuture<byte[]> answer = pending.remove(requestId);
+					if (answer != null) {
+						answer.complete(content);
+					}
+				}
+			} catch (IOException ex) {
+				fail(ex);
+			}
+		}
+
+		/**
+		 * Closes the connection and fails the requests waiting on it.
+		 *
+		 * @param cause
+		 *            the cause
+		 */
+		private void fail(IOException cause) {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// Closed anyway
+			}
+			for (Integer requestId : pending.keySet()) {
+				CompletableFuture<byte[]> answer = pending.remove(requestId);
+				if (answer != null) {
+					answer.completeExceptionally(cause);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.acertainbookstore.client;
+
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.server.BookStoreTCPServer;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreOperation;
+
+/**
+ * {@link BookStoreTCPProxy} implements the client level synchronous
+ * {@link CertainBookStore} API declared in the {@link BookStore} class. Uses
+ * the binary protocol of the {@link BookStoreTCPServer} for communication
+ * with the server; the calls of concurrent threads are pipelined over one
+ * connection.
+ *
+ * @see BookStore
+ * @see BookStoreTCPClient
+ */
+public class BookStoreTCPProxy implements BookStore {
+
+	/** The client. */
+	private final BookStoreTCPClient client;
+
+	/**
+	 * Initializes a new {@link BookStoreTCPProxy}.
+	 *
+	 * @param host
+	 *            the host of the server
+	 * @param port
+	 *            the port the server serves the binary protocol on
+	 */
+	public BookStoreTCPProxy(String host, int port) {
+		client = new BookStoreTCPClient(host, port);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		client.performExchange(BookStoreOperation.buyBooks(isbnSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		client.performExchange(BookStoreOperation.rateBooks(bookRating));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return (List<Book>) client.performExchange(BookStoreOperation.getBooks(isbnSet)).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		return (List<Book>) client.performExchange(BookStoreOperation.getTopRatedBooks(numBooks)).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		return (List<Book>) client.performExchange(BookStoreOperation.getEditorPicks(numBooks)).getList();
+	}
+
+	/**
+	 * Stops the proxy.
+	 */
+	public void stop() {
+		client.stop();
+	}
+}
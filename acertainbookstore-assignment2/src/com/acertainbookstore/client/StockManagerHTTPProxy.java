@@ -1,21 +1,40 @@
 package com.acertainbookstore.client;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.InputStreamContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.CatalogStream;
 import com.acertainbookstore.business.StockBook;
-import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
-import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
 import com.acertainbookstore.utils.BookStoreRequest;
 import com.acertainbookstore.utils.BookStoreResponse;
 import com.acertainbookstore.utils.BookStoreUtility;
@@ -33,11 +52,21 @@ public class StockManagerHTTPProxy implements StockManager {
 	/** The client. */
 	protected HttpClient client;
 
+	/** The client multiplexing the requests over HTTP/2, or null. */
+	private BookStoreHTTP2Client http2Client = null;
+
 	/** The server address. */
-	protected String serverAddress;
+	protected volatile String serverAddress;
+
+	/** The address of the backup of the server, or null. */
+	private String backupAddress = null;
+
+	/** The address of the internal port of the backup, which promotes it. */
+	private String promoteAddress = null;
 
-	/** The serializer. */
-	private static ThreadLocal<BookStoreSerializer> serializer;
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
 
 	/**
 	 * Initializes a new {@link StockManagerHTTPProxy}.
@@ -48,14 +77,6 @@ public class StockManagerHTTPProxy implements StockManager {
 	 *             the exception
 	 */
 	public StockManagerHTTPProxy(String serverAddress) throws Exception {
-
-		// Setup the type of serializer.
-		if (BookStoreConstants.BINARY_SERIALIZATION) {
-			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
-		} else {
-			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
-		}
-
 		setServerAddress(serverAddress);
 		client = new HttpClient();
 
@@ -68,7 +89,14 @@ public class StockManagerHTTPProxy implements StockManager {
 		// Seconds timeout; if no server reply, the request expires.
 		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
 
+		// Accept the codings large responses are compressed with.
+		BookStoreEncoding.addDecoders(client);
+
 		client.start();
+
+		if (Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_HTTP2)) {
+			http2Client = new BookStoreHTTP2Client(client.getExecutor());
+		}
 	}
 
 	/**
@@ -90,6 +118,99 @@ public class StockManagerHTTPProxy implements StockManager {
 		this.serverAddress = serverAddress;
 	}
 
+	/**
+	 * Sets the address of the backup of the server. Once the server cannot be
+	 * reached, the backup is promoted and the proxy sends every message to it.
+	 *
+	 * @param backupAddress
+	 *            the address of the backup, or null
+	 */
+	public void setBackupAddress(String backupAddress) {
+		setBackupAddress(backupAddress, backupAddress);
+	}
+
+	/**
+	 * Sets the address of the backup of the server, and the address of its
+	 * internal port the promotion is sent to, as a backup only answers it
+	 * there.
+	 *
+	 * @param backupAddress
+	 *            the address of the backup, or null
+	 * @param promoteAddress
+	 *            the address of the internal port of the backup
+	 */
+	public synchronized void setBackupAddress(String backupAddress, String promoteAddress) {
+		this.backupAddress = backupAddress;
+		this.promoteAddress = promoteAddress;
+	}
+
+	/**
+	 * Sends a request to the server. A request which could not reach the
+	 * server is resent to its backup once the backup took over; a request
+	 * which may have reached it is not, since it may have been applied.
+	 *
+	 * @param bookStoreRequest
+	 *            the request
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse perform(BookStoreRequest bookStoreRequest) throws BookStoreException {
+		String address = serverAddress;
+		try {
+			return performExchange(bookStoreRequest);
+		} catch (BookStoreException ex) {
+			if (ex.getResultCode() != null || !BookStoreUtility.isUnreachable(ex) || !failOver(address)) {
+				throw ex;
+			}
+			return performExchange(bookStoreRequest.redirect(address, serverAddress));
+		}
+	}
+
+	/**
+	 * Sends a request over HTTP/2 if the proxy multiplexes its requests, and
+	 * over HTTP/1.1 otherwise.
+	 *
+	 * @param bookStoreRequest
+	 *            the request
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse performExchange(BookStoreRequest bookStoreRequest) throws BookStoreException {
+		if (http2Client != null) {
+			return http2Client.performExchange(bookStoreRequest, serializer.get());
+		}
+		return BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+	}
+
+	/**
+	 * Promotes the backup after the server failed, unless another request
+	 * already did.
+	 *
+	 * @param failedAddress
+	 *            the address of the server which failed
+	 * @return true if the proxy now sends to the backup
+	 */
+	private synchronized boolean failOver(String failedAddress) {
+		if (!failedAddress.equals(serverAddress)) {
+			return true;
+		}
+		if (backupAddress == null) {
+			return false;
+		}
+		try {
+			// The backup refuses while it still hears from the server
+			performExchange(BookStoreRequest.newGetRequest(promoteAddress + "/" + BookStoreMessageTag.PROMOTE));
+		} catch (BookStoreException ex) {
+			return false;
+		}
+		serverAddress = backupAddress;
+		backupAddress = null;
+		promoteAddress = null;
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -99,7 +220,7 @@ public class StockManagerHTTPProxy implements StockManager {
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 	}
 
 	/*
@@ -111,7 +232,7 @@ public class StockManagerHTTPProxy implements StockManager {
 	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 	}
 
 	/*
@@ -123,11 +244,43 @@ public class StockManagerHTTPProxy implements StockManager {
 	public List<StockBook> getBooks() throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKPAGE + "?"
+				+ BookStoreConstants.PAGE_SIZE_PARAM + "=" + pageSize;
+		if (cursor != null) {
+			urlString += "&" + BookStoreConstants.CURSOR_PARAM + "=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8);
+		}
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
+		return new BookPage((List<StockBook>) bookStoreResponse.getList(), bookStoreResponse.getCursor());
+	}
+
+	/**
+	 * Iterates over the books page by page. The next page is fetched in the
+	 * background while the current one is iterated.
+	 *
+	 * @param pageSize
+	 *            the most books fetched at once, at most
+	 *            {@link BookStoreConstants#MAX_PAGE_SIZE}
+	 * @return the iterator, which throws an {@link IllegalStateException}
+	 *         caused by the {@link BookStoreException} if a page cannot be
+	 *         fetched
+	 */
+	public Iterator<StockBook> iterateBooks(int pageSize) {
+		return new BookPageIterator(this, pageSize, client.getExecutor());
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -138,7 +291,7 @@ public class StockManagerHTTPProxy implements StockManager {
 	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS + "?";
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 	}
 
 	
@@ -151,10 +304,52 @@ public class StockManagerHTTPProxy implements StockManager {
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSINDEMAND;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(long)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETRECENTBOOKSINDEMAND + "?"
+				+ BookStoreConstants.WINDOW_PARAM + "=" + windowMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getTopBooksInDemand(int, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETTOPBOOKSINDEMAND + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + numBooks + "&" + BookStoreConstants.HALF_LIFE_PARAM + "="
+				+ halfLifeMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
+		return (List<BookDemand>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getSalesVelocity(java.util.Set, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbns, long windowMillis) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSALESVELOCITY + "?"
+				+ BookStoreConstants.WINDOW_PARAM + "=" + windowMillis;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
+		return (List<BookDemand>) bookStoreResponse.getList();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -167,7 +362,7 @@ public class StockManagerHTTPProxy implements StockManager {
 		// need to send any data; this request is just a signal to remove all
 		// books.
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 	}
 
 	/*
@@ -179,7 +374,7 @@ public class StockManagerHTTPProxy implements StockManager {
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		perform(bookStoreRequest);
 	}
 
 	/*
@@ -193,16 +388,254 @@ public class StockManagerHTTPProxy implements StockManager {
 	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/**
+	 * Imports books from a stream. The stream is sent in chunks as it is read,
+	 * and the server adds the books as it parses them.
+	 *
+	 * @param in
+	 *            the stream, which is not closed
+	 * @param format
+	 *            the format of the stream
+	 * @return the number of books added
+	 * @throws BookStoreException
+	 *             if a record is invalid or a chunk is rejected by the store
+	 */
+	public long importBooks(InputStream in, CatalogStream.Format format) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.IMPORTBOOKS + "?"
+				+ BookStoreConstants.FORMAT_PARAM + "=" + format;
+		Request request = client.POST(urlString).content(new InputStreamContentProvider(in, 64 * 1024, false));
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(request, serializer.get());
+		return (Long) bookStoreResponse.getList().get(0);
+	}
+
+	/**
+	 * Exports the books to a stream, as the server sends them.
+	 *
+	 * @param out
+	 *            the stream, which is not closed
+	 * @param format
+	 *            the format of the stream
+	 * @throws BookStoreException
+	 *             if the books cannot be listed or received
+	 */
+	public void exportBooks(OutputStream out, CatalogStream.Format format) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.EXPORTBOOKS + "?"
+				+ BookStoreConstants.FORMAT_PARAM + "=" + format;
+		InputStreamResponseListener listener = new InputStreamResponseListener();
+		client.newRequest(urlString).method(HttpMethod.GET).send(listener);
+
+		Response response;
+		try {
+			response = listener.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+
+		try (InputStream in = listener.getInputStream()) {
+			if (response.getStatus() != HttpStatus.OK_200) {
+				throw new BookStoreException("The export failed with status " + response.getStatus());
+			}
+
+			byte[] buffer = new byte[64 * 1024];
+			int length;
+			while ((length = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, length);
+			}
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+	}
+
+	/**
+	 * Prepares the server's part of a cross-shard transaction.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @param operation
+	 *            the operation, BUYBOOKS or ADDCOPIES
+	 * @param decider
+	 *            the address of the decider, or null if the server decides
+	 * @param bookCopies
+	 *            the copies of the server's part
+	 * @throws BookStoreException
+	 *             if the server votes to abort
+	 */
+	public void prepare(String transaction, BookStoreMessageTag operation, String decider, Set<BookCopy> bookCopies)
+			throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.PREPARE + "?" + transactionParam(transaction)
+				+ "&" + BookStoreConstants.OPERATION_PARAM + "=" + operation;
+		if (decider != null) {
+			urlString += "&" + BookStoreConstants.DECIDER_PARAM + "=" + URLEncoder.encode(decider, StandardCharsets.UTF_8);
+		}
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopies);
+		perform(bookStoreRequest);
+	}
+
+	/**
+	 * Commits the server's prepared part of a transaction.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @throws BookStoreException
+	 *             if the server, as the decider, already aborted it
+	 */
+	public void commit(String transaction) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.COMMIT + "?" + transactionParam(transaction);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
+		perform(bookStoreRequest);
+	}
+
+	/**
+	 * Aborts the server's prepared part of a transaction.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @throws BookStoreException
+	 *             if the server cannot be reached
+	 */
+	public void abort(String transaction) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ABORT + "?" + transactionParam(transaction);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
+		perform(bookStoreRequest);
+	}
+
+	/**
+	 * Asks the decider of a transaction for its outcome. A transaction which
+	 * is not decided yet is aborted.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @return true if the transaction committed
+	 * @throws BookStoreException
+	 *             if the server cannot be reached
+	 */
+	public boolean getOutcome(String transaction) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.OUTCOME + "?" + transactionParam(transaction);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
+		return (Boolean) bookStoreResponse.getList().get(0);
+	}
+
+	/**
+	 * Gets the routing of a shard.
+	 *
+	 * @return the epoch of the routing, a {@link Long}, followed by the list
+	 *         of shards, which is empty if the shard has no routing
+	 * @throws BookStoreException
+	 *             if the server is not a shard
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object> getRouting() throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETROUTING;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = perform(bookStoreRequest);
+		return (List<Object>) bookStoreResponse.getList();
+	}
+
+	/**
+	 * Installs a routing on a shard and lifts its fence.
+	 *
+	 * @param epoch
+	 *            the epoch of the routing
+	 * @param shard
+	 *            the name of the shard on the ring
+	 * @param shards
+	 *            the shards of the ring
+	 * @throws BookStoreException
+	 *             if the routing is older than the shard's
+	 */
+	public void setRouting(long epoch, String shard, List<String> shards) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.SETROUTING + "?" + BookStoreConstants.EPOCH_PARAM
+				+ "=" + epoch + "&" + BookStoreConstants.SHARD_PARAM + "=" + URLEncoder.encode(shard, StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, new ArrayList<>(shards));
+		perform(bookStoreRequest);
+	}
+
+	/**
+	 * Fences the writes to the books a routing moves away from a shard. Returns
+	 * once the writes in flight and the transactions on those books are done.
+	 *
+	 * @param shards
+	 *            the shards of the next routing
+	 * @throws BookStoreException
+	 *             if the transactions were not decided in time
+	 */
+	public void fence(List<String> shards) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.FENCE;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, new ArrayList<>(shards));
+		perform(bookStoreRequest);
+	}
+
+	/**
+	 * Copies books into a shard as they are, replacing the books with the same
+	 * ISBNs.
+	 *
+	 * @param books
+	 *            the books, with all their counters
+	 * @throws BookStoreException
+	 *             if the books cannot be added
+	 */
+	public void installBooks(Set<StockBook> books) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.INSTALLBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, books);
+		perform(bookStoreRequest);
+	}
+
+	/**
+	 * Drops books from a shard, whether or not it owns them.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @throws BookStoreException
+	 *             if the books cannot be removed
+	 */
+	public void dropBooks(Set<Integer> isbns) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.DROPBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
+		perform(bookStoreRequest);
+	}
+
+	private static String transactionParam(String transaction) {
+		return BookStoreConstants.TRANSACTION_PARAM + "=" + URLEncoder.encode(transaction, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Sends a batch of independent operations to the server in one request.
+	 * The server performs them in order; one failing does not stop the ones
+	 * after it. Operations of the book store and of the stock manager may be
+	 * mixed.
+	 *
+	 * @param operations
+	 *            the operations, at most
+	 *            {@link BookStoreConstants#MAX_BATCH_SIZE}
+	 * @return the responses of the operations in the same order, whose lists
+	 *         hold their results and whose exceptions their failures
+	 * @throws BookStoreException
+	 *             if the batch could not be performed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookStoreResponse> performBatch(List<BookStoreOperation> operations) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, new ArrayList<>(operations));
+		return (List<BookStoreResponse>) perform(bookStoreRequest).getList();
+	}
+
 	/**
 	 * Stops the proxy.
 	 */
 	public void stop() {
 		try {
+			if (http2Client != null) {
+				http2Client.stop();
+			}
 			client.stop();
 		} catch (Exception ex) {
 			System.err.println(ex.getStackTrace());
@@ -0,0 +1,177 @@
+package com.acertainbookstore.client;
+
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.server.BookStoreTCPServer;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * {@link StockManagerTCPProxy} implements the client level synchronous
+ * {@link CertainBookStore} API declared in the {@link StockManager} class.
+ * Uses the binary protocol of the {@link BookStoreTCPServer} for
+ * communication with the server; the calls of concurrent threads are
+ * pipelined over one connection.
+ *
+ * @see StockManager
+ * @see BookStoreTCPClient
+ */
+public class StockManagerTCPProxy implements StockManager {
+
+	/** The client. */
+	private final BookStoreTCPClient client;
+
+	/**
+	 * Initializes a new {@link StockManagerTCPProxy}.
+	 *
+	 * @param host
+	 *            the host of the server
+	 * @param port
+	 *            the port the server serves the binary protocol on
+	 */
+	public StockManagerTCPProxy(String host, int port) {
+		client = new BookStoreTCPClient(host, port);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		client.performExchange(BookStoreOperation.addBooks(bookSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		client.performExchange(BookStoreOperation.addCopies(bookCopiesSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooks() throws BookStoreException {
+		return (List<StockBook>) client.performExchange(BookStoreOperation.listBooks()).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException {
+		BookStoreResponse bookStoreResponse = client.performExchange(BookStoreOperation.listBooks(cursor, pageSize));
+		return new BookPage((List<StockBook>) bookStoreResponse.getList(), bookStoreResponse.getCursor());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException {
+		return (List<StockBook>) client.performExchange(BookStoreOperation.getBooksByISBN(isbns)).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return (List<StockBook>) client.performExchange(BookStoreOperation.getBooksInDemand()).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(long)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException {
+		return (List<StockBook>) client.performExchange(BookStoreOperation.getBooksInDemand(windowMillis))
+				.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getTopBooksInDemand(int, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException {
+		return (List<BookDemand>) client
+				.performExchange(BookStoreOperation.getTopBooksInDemand(numBooks, halfLifeMillis)).getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getSalesVelocity(java.util.Set, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbns, long windowMillis) throws BookStoreException {
+		return (List<BookDemand>) client.performExchange(BookStoreOperation.getSalesVelocity(isbns, windowMillis))
+				.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		client.performExchange(BookStoreOperation.updateEditorPicks(editorPicks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		client.performExchange(BookStoreOperation.removeAllBooks());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		client.performExchange(BookStoreOperation.removeBooks(isbnSet));
+	}
+
+	/**
+	 * Stops the proxy.
+	 */
+	public void stop() {
+		client.stop();
+	}
+}
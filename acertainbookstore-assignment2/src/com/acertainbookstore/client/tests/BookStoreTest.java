@@ -2,18 +2,38 @@ package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.Thread.State;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.AbstractMap.SimpleEntry;
 
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -22,17 +42,46 @@ import org.junit.Test;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.CatalogStream;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.MappedCatalog;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.AsyncBookStoreHTTPProxy;
+import com.acertainbookstore.client.AsyncStockManagerHTTPProxy;
+import com.acertainbookstore.client.BookStoreClusterProxy;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.BookStoreTCPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.client.StockManagerTCPProxy;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.server.AsyncBookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPServerUtility;
+import com.acertainbookstore.server.BookStoreReplica;
+import com.acertainbookstore.server.BookStoreTCPServer;
+import com.acertainbookstore.server.ShardGuard;
+import com.acertainbookstore.server.TransactionParticipant;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCompactSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResultCode;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.ConsistentHashRing;
 
 /**
  * {@link BookStoreTest} tests the {@link BookStore} interface.
@@ -53,6 +102,12 @@ public class BookStoreTest {
 	/** Single lock test */
 	private static boolean singleLock = false;
 
+	/** Relaxed ratings test */
+	private static boolean relaxedRatings = false;
+
+	/** Staged catalog test */
+	private static boolean stagedCatalog = false;
+
 	/** Concurrency test variables */
 	private static Integer numberOfOperations = 1000;
 	
@@ -74,13 +129,21 @@ public class BookStoreTest {
 			String singleLockProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SINGLE_LOCK);
 			singleLock = (singleLockProperty != null) ? Boolean.parseBoolean(singleLockProperty) : singleLock;
 
+			String relaxedRatingsProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_RELAXED_RATINGS);
+			relaxedRatings = (relaxedRatingsProperty != null) ? Boolean.parseBoolean(relaxedRatingsProperty) : relaxedRatings;
+
+			String stagedCatalogProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_STAGED_CATALOG);
+			stagedCatalog = (stagedCatalogProperty != null) ? Boolean.parseBoolean(stagedCatalogProperty) : stagedCatalog;
+
 			if (localTest) {
 				if (singleLock) {
-					SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
+					SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(relaxedRatings);
 					storeManager = store;
 					client = store;
 				} else {
-					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(relaxedRatings,
+							stagedCatalog, TwoLevelLockingConcurrentCertainBookStore.DEFAULT_ESCALATION_THRESHOLD,
+							TwoLevelLockingConcurrentCertainBookStore.DEFAULT_ESCALATION_FRACTION);
 					storeManager = store;
 					client = store;
 				}
@@ -306,6 +369,35 @@ public class BookStoreTest {
 				&& booksInStorePreTest.size() == booksInStorePostTest.size());
 	}
 
+	/**
+	 * Tests that business outcomes are reported with a result code.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testBuyResultCodes() throws BookStoreException {
+		HashSet<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+		}
+
+		booksToBuy.clear();
+		booksToBuy.add(new BookCopy(-1, 1));
+
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+	}
+
 	/**
 	 * Tests that all books can be retrieved.
 	 *
@@ -552,6 +644,54 @@ public class BookStoreTest {
 		}
 	}
 
+	/**
+	 * Tests that concurrent ratings of the same books are all counted.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testConcurrentRatings() throws BookStoreException {
+		List<StockBook> booksInStorePreTest = storeManager.getBooks();
+		Set<BookRating> booksToRate = booksInStorePreTest.stream()
+				.map(book -> new BookRating(book.getISBN(), 3))
+				.collect(Collectors.toSet());
+
+		Integer N = 1000; //Number of ratings per thread
+		Consumer<Integer> rateBooksClient = (Integer n) -> {
+			for (int i = 0; i < n; i++) {
+				try {
+					client.rateBooks(booksToRate);
+				} catch (BookStoreException ex) {
+					Thread.currentThread().setName(ex.toString());
+					break;
+				}
+			}
+		};
+
+		List<Thread> rateBooksThreads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			rateBooksThreads.add(new Thread(EncapsulateConsumer(rateBooksClient, N), "success"));
+		}
+
+		try {
+			for (Thread thread : rateBooksThreads)
+				thread.start();
+			for (Thread thread : rateBooksThreads) {
+				thread.join();
+				assertTrue(thread.getName() == "success");
+			}
+		} catch (InterruptedException ex) {
+			fail(ex.toString());
+		}
+
+		for (StockBook book : storeManager.getBooks()) {
+			assertEquals(8 * N, book.getNumTimesRated());
+			assertEquals(3 * 8 * N, book.getTotalRating());
+			assertEquals(3.0f, book.getAverageRating(), BookStoreConstants.EPSILON);
+		}
+	}
+
 	/**
 	 * Test get K-top rated books with a valid K
 	 *
@@ -1169,6 +1309,1895 @@ public class BookStoreTest {
 		}
 	}
 
+	/**
+	 * Tests that large transactions on the two-level locking store lock the
+	 * whole catalog, and small ones do not.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testLockEscalation() throws BookStoreException {
+		TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(false, 4, 1.0f);
+		store.addBooks(new HashSet<StockBook>(getDefaultBooks()));
+		List<StockBook> books = store.getBooks();
+
+		// Catalog-wide queries are not escalations
+		assertEquals(0, store.getNumSharedEscalations());
+
+		// Below the threshold, one lock per book
+		Set<Integer> fewISBNs = books.stream().limit(2).map(book -> book.getISBN()).collect(Collectors.toSet());
+		store.getBooksByISBN(fewISBNs);
+		store.addCopies(fewISBNs.stream().map(isbn -> new BookCopy(isbn, 1)).collect(Collectors.toSet()));
+		assertEquals(0, store.getNumSharedEscalations());
+		assertEquals(0, store.getNumExclusiveEscalations());
+
+		// Above the threshold, the catalog lock in the matching mode
+		Set<Integer> allISBNs = books.stream().map(book -> book.getISBN()).collect(Collectors.toSet());
+		store.getBooksByISBN(allISBNs);
+		store.addCopies(allISBNs.stream().map(isbn -> new BookCopy(isbn, 1)).collect(Collectors.toSet()));
+		assertEquals(1, store.getNumSharedEscalations());
+		assertEquals(1, store.getNumExclusiveEscalations());
+
+		for (StockBook book : store.getBooksByISBN(fewISBNs)) {
+			assertEquals(books.stream().filter(b -> b.getISBN() == book.getISBN()).findFirst().get().getNumCopies() + 2,
+					book.getNumCopies());
+		}
+	}
+
+	/**
+	 * Tests that a staged catalog publishes added and removed books all at
+	 * once and keeps structural changes all-or-nothing.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testStagedCatalog() throws BookStoreException, InterruptedException, IOException {
+		TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(false, true,
+				TwoLevelLockingConcurrentCertainBookStore.DEFAULT_ESCALATION_THRESHOLD,
+				TwoLevelLockingConcurrentCertainBookStore.DEFAULT_ESCALATION_FRACTION);
+		int numBooks = 2000;
+		Set<StockBook> books = new HashSet<>();
+		for (int i = 1; i <= numBooks; i++) {
+			books.add(new ImmutableStockBook(TEST_ISBN + i, "Staged", "Author", 10, NUM_COPIES, 0, 0, 0, false));
+		}
+
+		// A reader sees either none or all of the books being added
+		Set<Integer> observedSizes = Collections.synchronizedSet(new HashSet<>());
+		Thread reader = new Thread(() -> {
+			while (observedSizes.add(store.getBooks().size()) || !observedSizes.contains(numBooks)) {
+				Thread.yield();
+			}
+		});
+		reader.start();
+		store.addBooks(books);
+		reader.join();
+		assertTrue(Arrays.asList(0, numBooks).containsAll(observedSizes));
+
+		// Adding a duplicate or removing a missing book changes nothing
+		Set<StockBook> duplicated = new HashSet<>();
+		duplicated.add(new ImmutableStockBook(TEST_ISBN - 1, "Staged", "Author", 10, NUM_COPIES, 0, 0, 0, false));
+		duplicated.add(books.iterator().next());
+		try {
+			store.addBooks(duplicated);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.DUPLICATED, ex.getResultCode());
+		}
+		try {
+			store.removeBooks(new HashSet<>(Arrays.asList(TEST_ISBN + 1, TEST_ISBN - 1)));
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+		}
+		assertEquals(numBooks, store.getBooks().size());
+
+		// Removed books may be added again before they are reclaimed
+		store.removeBooks(new HashSet<>(Arrays.asList(TEST_ISBN + 1, TEST_ISBN + 2)));
+		assertEquals(numBooks - 2, store.getBooks().size());
+		store.removeAllBooks();
+		assertTrue(store.getBooks().isEmpty());
+		store.addBooks(books);
+		assertEquals(numBooks, store.getBooks().size());
+
+		// A checkpoint restored into an emptied catalog belongs to the new generation
+		File file = File.createTempFile("bookstore-staged", ".checkpoint");
+		try {
+			MappedCatalog.write(file, store.getBooks(), 0);
+			store.removeAllBooks();
+			store.restoreCatalog(new MappedCatalog(file));
+			assertEquals(numBooks, store.getBooks().size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests that a store recovered from its log matches the logged store,
+	 * including sale misses, and that a torn record at the end is ignored.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLogRecovery() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		try {
+			TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+			BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.MUTATIONS, store);
+			store.setLog(log);
+
+			List<StockBook> books = getDefaultBooks();
+			store.addBooks(new HashSet<>(books));
+			store.addCopies(Collections.singleton(new BookCopy(TEST_ISBN, 2)));
+			store.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, 3)));
+			try {
+				store.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, 100)));
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+			store.rateBooks(Collections.singleton(new BookRating(TEST_ISBN, 4)));
+			store.updateEditorPicks(Collections.singleton(new BookEditorPick(TEST_ISBN, true)));
+			store.removeBooks(Collections.singleton(books.get(1).getISBN()));
+			log.close();
+
+			// A crash in the middle of writing a record leaves a torn tail
+			File[] segments = logDirectory.listFiles();
+			assertEquals(1, segments.length);
+			Files.write(segments[0].toPath(), new byte[] { 0, 0, 1 }, StandardOpenOption.APPEND);
+
+			TwoLevelLockingConcurrentCertainBookStore recovered = new TwoLevelLockingConcurrentCertainBookStore();
+			BookStoreLog recoveredLog = new BookStoreLog(logDirectory, BookStoreLog.MUTATIONS, recovered);
+			recovered.setLog(recoveredLog);
+
+			List<StockBook> expected = store.getBooks();
+			assertEquals(books.size() - 1, recovered.getBooks().size());
+			for (StockBook book : recovered.getBooks()) {
+				StockBook expectedBook = expected.stream().filter(b -> b.getISBN() == book.getISBN()).findFirst().get();
+				assertEquals(expectedBook.getNumCopies(), book.getNumCopies());
+				assertEquals(expectedBook.getNumSaleMisses(), book.getNumSaleMisses());
+				assertEquals(expectedBook.getNumTimesRated(), book.getNumTimesRated());
+				assertEquals(expectedBook.getTotalRating(), book.getTotalRating());
+				assertEquals(expectedBook.isEditorPick(), book.isEditorPick());
+			}
+
+			// The log continues after the last intact record
+			recovered.addCopies(Collections.singleton(new BookCopy(TEST_ISBN, 1)));
+			recoveredLog.close();
+			assertEquals(recoveredLog.getAppendedPosition(), segments[0].length());
+		} finally {
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that recovery from a mapped checkpoint and the log tail restores
+	 * every field, also of sold out books, and that the checkpoint truncates
+	 * the log.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCheckpointRecovery() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		try {
+			TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+			BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.MUTATIONS, 256, store);
+			store.setLog(log);
+
+			List<StockBook> books = getDefaultBooks();
+			store.addBooks(new HashSet<>(books));
+			for (int i = 0; i < 10; i++) {
+				store.rateBooks(Collections.singleton(new BookRating(TEST_ISBN, i % 6)));
+			}
+			store.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, NUM_COPIES)));
+			try {
+				store.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, 1)));
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+			int numSegments = logDirectory.listFiles((dir, name) -> name.endsWith(".log")).length;
+			assertTrue(numSegments > 1);
+
+			store.checkpoint();
+			assertEquals(1, logDirectory.listFiles((dir, name) -> name.endsWith(".checkpoint")).length);
+			assertEquals(1, logDirectory.listFiles((dir, name) -> name.endsWith(".log")).length);
+
+			// The tail after the checkpoint
+			store.updateEditorPicks(Collections.singleton(new BookEditorPick(TEST_ISBN, true)));
+			store.removeBooks(Collections.singleton(books.get(1).getISBN()));
+			log.close();
+
+			TwoLevelLockingConcurrentCertainBookStore recovered = new TwoLevelLockingConcurrentCertainBookStore();
+			BookStoreLog recoveredLog = new BookStoreLog(logDirectory, BookStoreLog.MUTATIONS, 256, recovered);
+			recovered.setLog(recoveredLog);
+
+			List<StockBook> expected = store.getBooks();
+			assertEquals(books.size() - 1, recovered.getBooks().size());
+			for (StockBook book : recovered.getBooks()) {
+				StockBook expectedBook = expected.stream().filter(b -> b.getISBN() == book.getISBN()).findFirst().get();
+				assertEquals(expectedBook.getNumCopies(), book.getNumCopies());
+				assertEquals(expectedBook.getNumSaleMisses(), book.getNumSaleMisses());
+				assertEquals(expectedBook.getNumTimesRated(), book.getNumTimesRated());
+				assertEquals(expectedBook.getTotalRating(), book.getTotalRating());
+				assertEquals(expectedBook.isEditorPick(), book.isEditorPick());
+				assertEquals(expectedBook.getTitle(), book.getTitle());
+				assertEquals(expectedBook.getAuthor(), book.getAuthor());
+				assertEquals(expectedBook.getPrice(), book.getPrice(), BookStoreConstants.EPSILON);
+			}
+			recoveredLog.close();
+		} finally {
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that books exported as CSV and in the binary format are imported
+	 * back with all their fields, in chunks parsed in parallel, and that an
+	 * invalid line is rejected.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCatalogStream() throws Exception {
+		Set<StockBook> booksToAdd = new HashSet<>();
+		for (int i = 1; i <= 50; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Title, \"quoted\"\nline " + i, "Author " + i,
+					(float) i / 3, NUM_COPIES + i, 0, 0, 0, i % 2 == 0));
+		}
+		storeManager.addBooks(booksToAdd);
+		client.rateBooks(new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN + 1, 4))));
+		List<StockBook> expectedBooks = storeManager.getBooks();
+
+		for (CatalogStream.Format format : CatalogStream.Format.values()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			exportBooks(out, format);
+			storeManager.removeAllBooks();
+			assertEquals(expectedBooks.size(), importBooks(new ByteArrayInputStream(out.toByteArray()), format));
+
+			List<StockBook> books = storeManager.getBooks();
+			assertEquals(expectedBooks.size(), books.size());
+			for (StockBook expectedBook : expectedBooks) {
+				StockBook book = books.stream().filter(b -> b.getISBN() == expectedBook.getISBN()).findAny().get();
+				assertEquals(expectedBook.getTitle(), book.getTitle());
+				assertEquals(expectedBook.getAuthor(), book.getAuthor());
+				assertEquals(expectedBook.getPrice(), book.getPrice(), BookStoreConstants.EPSILON);
+				assertEquals(expectedBook.getNumCopies(), book.getNumCopies());
+				assertEquals(expectedBook.getNumTimesRated(), book.getNumTimesRated());
+				assertEquals(expectedBook.getTotalRating(), book.getTotalRating());
+				assertEquals(expectedBook.isEditorPick(), book.isEditorPick());
+			}
+		}
+
+		String invalidCSV = "isbn,title,author,price,numCopies,numSaleMisses,numTimesRated,totalRating,editorPick\n"
+				+ (TEST_ISBN - 1) + ",Title,Author,1.0,1,0,0,0,maybe\n";
+		try {
+			importBooks(new ByteArrayInputStream(invalidCSV.getBytes(StandardCharsets.UTF_8)), CatalogStream.Format.CSV);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+		assertEquals(expectedBooks.size(), storeManager.getBooks().size());
+	}
+
+	/**
+	 * Imports books into the store, over HTTP if the store is remote. Local
+	 * imports use small chunks so that several are parsed at once.
+	 */
+	private static long importBooks(InputStream in, CatalogStream.Format format) throws Exception {
+		if (storeManager instanceof StockManagerHTTPProxy) {
+			return ((StockManagerHTTPProxy) storeManager).importBooks(in, format);
+		}
+		return CatalogStream.importBooks(in, format, storeManager, 7, 3);
+	}
+
+	/**
+	 * Exports the books of the store, over HTTP if the store is remote. Local
+	 * exports use small pages so that several are listed.
+	 */
+	private static void exportBooks(OutputStream out, CatalogStream.Format format) throws Exception {
+		if (storeManager instanceof StockManagerHTTPProxy) {
+			((StockManagerHTTPProxy) storeManager).exportBooks(out, format);
+		} else {
+			CatalogStream.exportBooks(storeManager, out, format, 7);
+		}
+	}
+
+	/**
+	 * Tests that the compact serializer decodes every message type it encodes,
+	 * including business outcomes, faults and mixed lists, in fewer bytes than
+	 * Kryo.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCompactSerializer() throws Exception {
+		BookStoreCompactSerializer serializer = new BookStoreCompactSerializer();
+
+		Set<BookCopy> bookCopies = new HashSet<>(
+				Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES), new BookCopy(-1, -5)));
+		Set<BookRating> bookRatings = new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN, 4)));
+		Set<BookEditorPick> editorPicks = new HashSet<>(Arrays.asList(new BookEditorPick(TEST_ISBN, true)));
+		Set<Integer> isbns = new HashSet<>(Arrays.asList(TEST_ISBN, Integer.MAX_VALUE, Integer.MIN_VALUE));
+		for (Object message : Arrays.asList(bookCopies, bookRatings, editorPicks, isbns, "", new HashSet<>())) {
+			assertEquals(message, serializer.deserialize(serializer.serialize(message)));
+		}
+
+		StockBook stockBook = new ImmutableStockBook(TEST_ISBN, "Titl\u00e9 \u2603", null, 10.5f, NUM_COPIES,
+				Long.MAX_VALUE, 3, 12, true);
+		Set<StockBook> stockBooks = new HashSet<>(Arrays.asList(stockBook));
+		@SuppressWarnings("unchecked")
+		StockBook decodedStockBook = ((Set<StockBook>) serializer.deserialize(serializer.serialize(stockBooks)))
+				.iterator().next();
+		assertEquals(stockBook.getISBN(), decodedStockBook.getISBN());
+		assertEquals(stockBook.getTitle(), decodedStockBook.getTitle());
+		assertNull(decodedStockBook.getAuthor());
+		assertEquals(stockBook.getPrice(), decodedStockBook.getPrice(), 0);
+		assertEquals(stockBook.getNumCopies(), decodedStockBook.getNumCopies());
+		assertEquals(stockBook.getNumSaleMisses(), decodedStockBook.getNumSaleMisses());
+		assertEquals(stockBook.getNumTimesRated(), decodedStockBook.getNumTimesRated());
+		assertEquals(stockBook.getTotalRating(), decodedStockBook.getTotalRating());
+		assertEquals(stockBook.isEditorPick(), decodedStockBook.isEditorPick());
+
+		List<Book> books = new ArrayList<>();
+		for (int i = 1; i <= 100; i++) {
+			books.add(new ImmutableBook(TEST_ISBN + i, "Title " + i, "Author " + i, i));
+		}
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(books);
+		response.setStaleness(42);
+		BookStoreResponse decoded = (BookStoreResponse) serializer.deserialize(serializer.serialize(response));
+		assertNull(decoded.getException());
+		assertEquals(42, decoded.getStaleness());
+		assertEquals(books, decoded.getList());
+		assertEquals("Title 100", ((Book) decoded.getList().get(99)).getTitle());
+		assertTrue(serializer.serialize(response).length < new BookStoreKryoSerializer().serialize(response).length);
+
+		response = new BookStoreResponse();
+		response.setList(Arrays.asList(7L, new ArrayList<>(Arrays.asList("a", "b")), null, true,
+				new BookDemand(TEST_ISBN, 1.5, 2, 60000)));
+		decoded = (BookStoreResponse) serializer.deserialize(serializer.serialize(response));
+		assertEquals(7L, decoded.getList().get(0));
+		assertEquals(Arrays.asList("a", "b"), decoded.getList().get(1));
+		assertNull(decoded.getList().get(2));
+		assertEquals(Boolean.TRUE, decoded.getList().get(3));
+		assertEquals(1.5, ((BookDemand) decoded.getList().get(4)).getSales(), 0);
+		assertEquals(60000, ((BookDemand) decoded.getList().get(4)).getWindowMillis());
+
+		response = new BookStoreResponse();
+		response.setException(new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, "missing"));
+		decoded = (BookStoreResponse) serializer.deserialize(serializer.serialize(response));
+		assertEquals(BookStoreResultCode.NOT_AVAILABLE, decoded.getResultCode());
+		assertEquals("missing", decoded.getException().getMessage());
+		assertNull(decoded.getList());
+
+		response = new BookStoreResponse();
+		response.setException(new BookStoreException("fault"));
+		decoded = (BookStoreResponse) serializer.deserialize(serializer.serialize(response));
+		assertNull(decoded.getResultCode());
+		assertEquals("fault", decoded.getException().getMessage());
+
+		List<BookStoreOperation> operations = Arrays.asList(BookStoreOperation.buyBooks(bookCopies),
+				BookStoreOperation.getEditorPicks(3), BookStoreOperation.listBooks());
+		@SuppressWarnings("unchecked")
+		List<BookStoreOperation> decodedOperations = (List<BookStoreOperation>) serializer
+				.deserialize(serializer.serialize(operations));
+		assertEquals(BookStoreMessageTag.BUYBOOKS, decodedOperations.get(0).getMessageTag());
+		assertEquals(bookCopies, decodedOperations.get(0).getArgument());
+		assertEquals(3, decodedOperations.get(1).getArgument());
+		assertNull(decodedOperations.get(2).getArgument());
+
+		try {
+			serializer.serialize(new Object());
+			fail();
+		} catch (IOException ex) {
+			// Only the message types of the bookstore are encoded
+		}
+		try {
+			serializer.deserialize(new byte[] { 127 });
+			fail();
+		} catch (IOException ex) {
+			// Unknown tag
+		}
+	}
+
+	/**
+	 * Tests that Kryo with and without registration decodes what it encodes,
+	 * that registration shortens the messages and refuses the classes it does
+	 * not register, and that a serializer reuses its buffers across messages
+	 * of any size.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testKryoRegistration() throws Exception {
+		List<Book> books = new ArrayList<>();
+		for (int i = 1; i <= 100; i++) {
+			books.add(new ImmutableBook(TEST_ISBN + i, "Title " + i, "Author " + i, i));
+		}
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(books);
+		Set<BookCopy> bookCopies = new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, NUM_COPIES)));
+
+		BookStoreKryoSerializer registered = new BookStoreKryoSerializer(true);
+		BookStoreKryoSerializer unregistered = new BookStoreKryoSerializer(false);
+		for (BookStoreKryoSerializer serializer : Arrays.asList(registered, unregistered)) {
+			assertEquals(books, ((BookStoreResponse) serializer.deserialize(serializer.serialize(response))).getList());
+			assertEquals(bookCopies, serializer.deserialize(serializer.serialize(bookCopies)));
+		}
+		assertTrue(registered.serialize(response).length < unregistered.serialize(response).length);
+		assertTrue(registered.serialize(bookCopies).length < unregistered.serialize(bookCopies).length);
+
+		// The exceptions and the collection wrappers which are sent, and no class which is not registered
+		response = new BookStoreResponse();
+		response.setException(new BookStoreException(BookStoreResultCode.NOT_AVAILABLE, "Sold out"));
+		response = (BookStoreResponse) registered.deserialize(registered.serialize(response));
+		assertEquals(BookStoreResultCode.NOT_AVAILABLE, response.getException().getResultCode());
+		assertEquals("Sold out", response.getException().getMessage());
+		List<Integer> numbers = Arrays.asList(1, 2);
+		assertEquals(numbers, registered.deserialize(registered.serialize(numbers)));
+		assertEquals(numbers, registered.deserialize(registered.serialize(Collections.unmodifiableList(numbers))));
+		assertEquals(bookCopies, registered.deserialize(registered.serialize(Collections.unmodifiableSet(bookCopies))));
+		try {
+			registered.serialize(Collections.synchronizedList(numbers));
+			fail();
+		} catch (IOException ex) {
+			// Written by name otherwise
+		}
+
+		StringBuilder title = new StringBuilder();
+		while (title.length() < 2 << 20) {
+			title.append("Long title ");
+		}
+		List<Book> longBooks = Arrays.asList(new ImmutableBook(TEST_ISBN, title.toString(), "Author", 1));
+		response.setList(new ArrayList<>(longBooks));
+		assertEquals(title.toString(),
+				((Book) ((BookStoreResponse) registered.deserialize(registered.serialize(response))).getList().get(0))
+						.getTitle());
+		assertEquals(bookCopies, registered.deserialize(registered.serialize(bookCopies)));
+	}
+
+	/**
+	 * Tests that requests and answers larger than the buffers of the client
+	 * and the server are streamed through HTTP.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLargeMessages() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		Server server = new Server(0);
+		server.setHandler(new BookStoreHTTPMessageHandler(store, store, null, null));
+		StockManagerHTTPProxy stockProxy = null;
+
+		try {
+			server.start();
+			stockProxy = new StockManagerHTTPProxy(
+					"http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort());
+
+			// Several megabytes of books, past the 2 MB a buffered response may hold
+			char[] padding = new char[2048];
+			Arrays.fill(padding, 'x');
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 1; i <= 2000; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i + new String(padding), "Author", 10,
+						NUM_COPIES, 0, 0, 0, false));
+			}
+			stockProxy.addBooks(books);
+
+			List<StockBook> listedBooks = stockProxy.getBooks();
+			assertEquals(books.size(), listedBooks.size());
+			for (StockBook book : listedBooks) {
+				assertEquals("Title " + (book.getISBN() - TEST_ISBN) + new String(padding), book.getTitle());
+			}
+		} finally {
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that a batch performs its operations in order, answering each one
+	 * with its result or its failure without stopping the others.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		Server server = new Server(0);
+		server.setHandler(new BookStoreHTTPMessageHandler(store, store, null, null));
+		BookStoreHTTPProxy bookStoreProxy = null;
+		StockManagerHTTPProxy stockProxy = null;
+
+		try {
+			server.start();
+			String address = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+			bookStoreProxy = new BookStoreHTTPProxy(address);
+			stockProxy = new StockManagerHTTPProxy(address + "/stock");
+
+			StockBook book = new ImmutableStockBook(TEST_ISBN, "Title", "Author", 10, NUM_COPIES, 0, 0, 0, false);
+			List<BookStoreResponse> results = stockProxy.performBatch(Arrays.asList(
+					BookStoreOperation.addBooks(Collections.singleton(book)),
+					BookStoreOperation.updateEditorPicks(
+							Collections.singleton(new BookEditorPick(TEST_ISBN, true)))));
+			assertEquals(2, results.size());
+			assertNull(results.get(0).getException());
+			assertNull(results.get(1).getException());
+
+			results = bookStoreProxy.performBatch(Arrays.asList(
+					BookStoreOperation.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, 1))),
+					BookStoreOperation.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + 1, 1))),
+					BookStoreOperation.rateBooks(Collections.singleton(new BookRating(TEST_ISBN, 4))),
+					BookStoreOperation.getBooks(Collections.singleton(TEST_ISBN)),
+					BookStoreOperation.getEditorPicks(1),
+					BookStoreOperation.getBooksByISBN(Collections.singleton(TEST_ISBN)),
+					new BookStoreOperation(BookStoreMessageTag.SHIPLOG, null),
+					BookStoreOperation.getTopRatedBooks(-1)));
+			assertEquals(8, results.size());
+
+			// Failures are answered in place and the later operations still run
+			assertNull(results.get(0).getException());
+			assertEquals(BookStoreResultCode.NOT_AVAILABLE, results.get(1).getResultCode());
+			assertNull(results.get(2).getException());
+			assertEquals(TEST_ISBN, ((Book) results.get(3).getList().get(0)).getISBN());
+			assertEquals(TEST_ISBN, ((Book) results.get(4).getList().get(0)).getISBN());
+			StockBook bought = (StockBook) results.get(5).getList().get(0);
+			assertEquals(NUM_COPIES - 1, bought.getNumCopies());
+			assertEquals(4, bought.getTotalRating());
+			assertEquals(BookStoreResultCode.INVALID, results.get(6).getResultCode());
+			assertNotNull(results.get(7).getException());
+
+			List<BookStoreOperation> tooMany = new ArrayList<>();
+			for (int i = 0; i <= BookStoreConstants.MAX_BATCH_SIZE; i++) {
+				tooMany.add(BookStoreOperation.listBooks());
+			}
+			try {
+				bookStoreProxy.performBatch(tooMany);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+			}
+		} finally {
+			if (bookStoreProxy != null) {
+				bookStoreProxy.stop();
+			}
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that proxies in HTTP/2 mode multiplex concurrent requests over one
+	 * connection each.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHTTP2() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		Server server = new Server();
+		ServerConnector connector = BookStoreHTTPServerUtility.createConnector(server, 0);
+		server.addConnector(connector);
+		server.setHandler(new BookStoreHTTPMessageHandler(store, store, null, null));
+		BookStoreHTTPProxy bookStoreProxy = null;
+		StockManagerHTTPProxy stockProxy = null;
+
+		try {
+			server.start();
+			String address = "http://localhost:" + connector.getLocalPort();
+
+			System.setProperty(BookStoreConstants.PROPERTY_KEY_HTTP2, "true");
+			try {
+				bookStoreProxy = new BookStoreHTTPProxy(address);
+				stockProxy = new StockManagerHTTPProxy(address + "/stock");
+			} finally {
+				System.clearProperty(BookStoreConstants.PROPERTY_KEY_HTTP2);
+			}
+
+			int numClients = 50;
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 0; i < numClients; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i, "Author", 10, NUM_COPIES, 0, 0, 0,
+						false));
+			}
+			stockProxy.addBooks(books);
+
+			BookStoreHTTPProxy proxy = bookStoreProxy;
+			List<Thread> clients = new ArrayList<>();
+			AtomicBoolean failed = new AtomicBoolean(false);
+			for (int i = 0; i < numClients; i++) {
+				int isbn = TEST_ISBN + i;
+				clients.add(new Thread(() -> {
+					try {
+						proxy.buyBooks(Collections.singleton(new BookCopy(isbn, 1)));
+						assertEquals(1, proxy.getBooks(Collections.singleton(isbn)).size());
+					} catch (BookStoreException | AssertionError ex) {
+						failed.set(true);
+					}
+				}));
+			}
+			for (Thread client : clients) {
+				client.start();
+			}
+			for (Thread client : clients) {
+				client.join();
+			}
+			assertFalse(failed.get());
+
+			for (StockBook book : stockProxy.getBooks()) {
+				assertEquals(NUM_COPIES - 1, book.getNumCopies());
+			}
+
+			// One connection for each proxy
+			assertEquals(2, connector.getConnectedEndPoints().size());
+		} finally {
+			if (bookStoreProxy != null) {
+				bookStoreProxy.stop();
+			}
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that the asynchronous proxies send many requests at once from one
+	 * thread, and that failures complete the futures with the book store
+	 * exception.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncProxies() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		Server server = new Server(0);
+		server.setHandler(new BookStoreHTTPMessageHandler(store, store, null, null));
+		AsyncBookStoreHTTPProxy bookStoreProxy = null;
+		AsyncStockManagerHTTPProxy stockProxy = null;
+
+		try {
+			server.start();
+			String address = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+			bookStoreProxy = new AsyncBookStoreHTTPProxy(address);
+			stockProxy = new AsyncStockManagerHTTPProxy(address + "/stock");
+
+			int numBooks = 100;
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 0; i < numBooks; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i, "Author", 10, NUM_COPIES, 0, 0, 0,
+						false));
+			}
+			stockProxy.addBooks(books).get();
+
+			List<CompletableFuture<Void>> purchases = new ArrayList<>();
+			for (int i = 0; i < numBooks; i++) {
+				purchases.add(bookStoreProxy.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + i, 1))));
+			}
+			CompletableFuture.allOf(purchases.toArray(new CompletableFuture<?>[0])).get();
+
+			List<StockBook> bought = stockProxy.getBooks().get();
+			assertEquals(numBooks, bought.size());
+			for (StockBook book : bought) {
+				assertEquals(NUM_COPIES - 1, book.getNumCopies());
+			}
+			assertEquals(TEST_ISBN, bookStoreProxy.getBooks(Collections.singleton(TEST_ISBN)).get().get(0).getISBN());
+
+			try {
+				bookStoreProxy.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + numBooks, 1))).get();
+				fail();
+			} catch (ExecutionException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ((BookStoreException) ex.getCause()).getResultCode());
+			}
+		} finally {
+			if (bookStoreProxy != null) {
+				bookStoreProxy.stop();
+			}
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that a server answering on a stage of its own serves many clients
+	 * at once, including large compressed answers and streamed exports.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncServer() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		Server server = new Server(0);
+		server.setHandler(
+				new AsyncBookStoreHTTPMessageHandler(new BookStoreHTTPMessageHandler(store, store, null, null), 2));
+		BookStoreHTTPProxy bookStoreProxy = null;
+		StockManagerHTTPProxy stockProxy = null;
+
+		try {
+			server.start();
+			String address = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+			bookStoreProxy = new BookStoreHTTPProxy(address);
+			stockProxy = new StockManagerHTTPProxy(address + "/stock");
+
+			int numClients = 50;
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 0; i < 1000; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i, "Author", 10, NUM_COPIES, 0, 0, 0,
+						false));
+			}
+			stockProxy.addBooks(books);
+
+			BookStoreHTTPProxy proxy = bookStoreProxy;
+			List<Thread> clients = new ArrayList<>();
+			AtomicBoolean failed = new AtomicBoolean(false);
+			for (int i = 0; i < numClients; i++) {
+				int isbn = TEST_ISBN + i;
+				clients.add(new Thread(() -> {
+					try {
+						proxy.buyBooks(Collections.singleton(new BookCopy(isbn, 1)));
+						assertEquals(1, proxy.getBooks(Collections.singleton(isbn)).size());
+					} catch (BookStoreException | AssertionError ex) {
+						failed.set(true);
+					}
+				}));
+			}
+			for (Thread client : clients) {
+				client.start();
+			}
+			for (Thread client : clients) {
+				client.join();
+			}
+			assertFalse(failed.get());
+
+			// Large enough to be compressed and written in several steps
+			List<StockBook> listed = stockProxy.getBooks();
+			assertEquals(1000, listed.size());
+			int bought = 0;
+			for (StockBook book : listed) {
+				bought += NUM_COPIES - book.getNumCopies();
+			}
+			assertEquals(numClients, bought);
+
+			ByteArrayOutputStream exported = new ByteArrayOutputStream();
+			stockProxy.exportBooks(exported, CatalogStream.Format.CSV);
+			assertTrue(exported.size() > 0);
+
+			try {
+				bookStoreProxy.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + 1000, 1)));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+		} finally {
+			if (bookStoreProxy != null) {
+				bookStoreProxy.stop();
+			}
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that the polls of a backup are answered while the mutations of an
+	 * asynchronous server hold its whole stage waiting for them, so that the
+	 * backup stays attached.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncServerBackup() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		SingleLockConcurrentCertainBookStore primaryStore = new SingleLockConcurrentCertainBookStore(false);
+		BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.parseTags(null), primaryStore);
+		primaryStore.setLog(log);
+		Server primary = new Server(0);
+		BookStoreHTTPMessageHandler primaryHandler = new BookStoreHTTPMessageHandler(primaryStore, primaryStore, log,
+				null);
+		primaryHandler.setInternalPort(BookStoreHTTPMessageHandler.ANY_PORT);
+		primary.setHandler(new AsyncBookStoreHTTPMessageHandler(primaryHandler, 1));
+
+		TwoLevelLockingConcurrentCertainBookStore backupStore = new TwoLevelLockingConcurrentCertainBookStore();
+		Server backupServer = new Server(0);
+		BookStoreReplica backup = null;
+		BookStoreHTTPProxy proxy = null;
+
+		try {
+			primary.start();
+			String primaryAddress = "http://localhost:" + ((ServerConnector) primary.getConnectors()[0]).getLocalPort();
+			primaryStore.addBooks(Collections.singleton(getDefaultBook()));
+
+			backup = new BookStoreReplica(primaryAddress, backupStore, BookStoreReplica.DEFAULT_MAX_STALENESS, true);
+			backupServer.setHandler(new BookStoreHTTPMessageHandler(backupStore, backupStore, null, backup));
+			backupServer.start();
+			backup.start();
+			awaitReplica(backupStore, TEST_ISBN, book -> book.getNumCopies() == NUM_COPIES);
+			assertTrue(log.isBackupAttached());
+
+			proxy = new BookStoreHTTPProxy(primaryAddress);
+			for (int i = 0; i < 3; i++) {
+				proxy.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, 1)));
+			}
+			assertEquals(0, log.getNumBackupDetaches());
+			assertTrue(log.isBackupAttached());
+			assertEquals(log.getAppendedPosition(), log.getAcknowledgedPosition());
+		} finally {
+			if (proxy != null) {
+				proxy.stop();
+			}
+			if (backup != null) {
+				backup.stop();
+			}
+			backupServer.stop();
+			primary.stop();
+			log.close();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests the proxies of the binary protocol, with the calls of many threads
+	 * pipelined over one connection.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTCPProxies() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		BookStoreTCPServer server = new BookStoreTCPServer(store, store, 0, 4);
+		BookStoreTCPProxy bookStoreProxy = null;
+		StockManagerTCPProxy stockProxy = null;
+
+		try {
+			server.start();
+			bookStoreProxy = new BookStoreTCPProxy("localhost", server.getLocalPort());
+			stockProxy = new StockManagerTCPProxy("localhost", server.getLocalPort());
+
+			int numClients = 50;
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 0; i < numClients; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i, "Author", 10, NUM_COPIES, 0, 0, 0,
+						false));
+			}
+			stockProxy.addBooks(books);
+			stockProxy.updateEditorPicks(Collections.singleton(new BookEditorPick(TEST_ISBN, true)));
+
+			BookStoreTCPProxy proxy = bookStoreProxy;
+			List<Thread> clients = new ArrayList<>();
+			AtomicBoolean failed = new AtomicBoolean(false);
+			for (int i = 0; i < numClients; i++) {
+				int isbn = TEST_ISBN + i;
+				clients.add(new Thread(() -> {
+					try {
+						for (int j = 0; j < 10; j++) {
+							assertEquals(isbn, proxy.getBooks(Collections.singleton(isbn)).get(0).getISBN());
+						}
+						proxy.buyBooks(Collections.singleton(new BookCopy(isbn, 1)));
+						proxy.rateBooks(Collections.singleton(new BookRating(isbn, 3)));
+					} catch (BookStoreException | AssertionError ex) {
+						failed.set(true);
+					}
+				}));
+			}
+			for (Thread client : clients) {
+				client.start();
+			}
+			for (Thread client : clients) {
+				client.join();
+			}
+			assertFalse(failed.get());
+
+			for (StockBook book : stockProxy.getBooks()) {
+				assertEquals(NUM_COPIES - 1, book.getNumCopies());
+				assertEquals(3, book.getTotalRating());
+			}
+			assertEquals(TEST_ISBN, bookStoreProxy.getEditorPicks(1).get(0).getISBN());
+			assertEquals(1, bookStoreProxy.getTopRatedBooks(1).size());
+
+			BookPage page = stockProxy.getBooks(null, 30);
+			assertEquals(30, page.getBooks().size());
+			assertEquals(numClients - 30, stockProxy.getBooks(page.getNextCursor(), 30).getBooks().size());
+
+			try {
+				bookStoreProxy.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + numClients, 1)));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+
+			// A sale miss puts a book in demand
+			try {
+				bookStoreProxy.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + 1, NUM_COPIES)));
+				fail();
+			} catch (BookStoreException ex) {
+				// Expected
+			}
+			assertEquals(TEST_ISBN + 1, stockProxy.getBooksInDemand().get(0).getISBN());
+			assertEquals(TEST_ISBN + 1, stockProxy.getBooksInDemand(60000).get(0).getISBN());
+			assertEquals(TEST_ISBN + 1, stockProxy.getTopBooksInDemand(1, 60000).get(0).getISBN());
+			assertEquals(1, stockProxy.getSalesVelocity(Collections.singleton(TEST_ISBN), 60000).size());
+
+			stockProxy.removeBooks(Collections.singleton(TEST_ISBN));
+			assertEquals(numClients - 1, stockProxy.getBooks().size());
+			stockProxy.removeAllBooks();
+			assertTrue(stockProxy.getBooks().isEmpty());
+		} finally {
+			if (bookStoreProxy != null) {
+				bookStoreProxy.stop();
+			}
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that only responses larger than the compression threshold are
+	 * compressed, with the coding the client accepts.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCompressedResponses() throws Exception {
+		SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore(false);
+		Server server = new Server(0);
+		server.setHandler(new BookStoreHTTPMessageHandler(store, store, null, null));
+
+		HttpClient client = new HttpClient();
+
+		try {
+			server.start();
+			client.start();
+
+			// The client leaves the content as it was sent
+			client.getContentDecoderFactories().clear();
+			String url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/"
+					+ BookStoreMessageTag.LISTBOOKS;
+
+			store.addBooks(Collections.singleton(new ImmutableStockBook(TEST_ISBN, "Title", "Author", 10,
+					NUM_COPIES, 0, 0, 0, false)));
+			ContentResponse small = client.newRequest(url).header(HttpHeader.ACCEPT_ENCODING, "gzip, deflate")
+					.send();
+			assertNull(small.getHeaders().get(HttpHeader.CONTENT_ENCODING));
+
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 1; i <= 1000; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i, "Author", 10, NUM_COPIES, 0, 0, 0,
+						false));
+			}
+			store.addBooks(books);
+
+			for (BookStoreEncoding encoding : BookStoreEncoding.values()) {
+				ContentResponse large = client.newRequest(url).header(HttpHeader.ACCEPT_ENCODING,
+						"identity, " + encoding.getName()).send();
+				assertEquals(encoding.getName(), large.getHeaders().get(HttpHeader.CONTENT_ENCODING));
+
+				BookStoreResponse response = (BookStoreResponse) BookStoreUtility.newSerializer()
+						.deserialize(encoding.decompress(new ByteArrayInputStream(large.getContent())));
+				assertEquals(books.size() + 1, response.getList().size());
+			}
+
+			// No coding is used which the client refuses
+			ContentResponse refused = client.newRequest(url).header(HttpHeader.ACCEPT_ENCODING, "deflate;q=0")
+					.send();
+			assertNull(refused.getHeaders().get(HttpHeader.CONTENT_ENCODING));
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Tests that a replica catches up from a checkpoint and the log of its
+	 * primary, answers reads with a bounded staleness, refuses writes, and
+	 * hands reads to the primary once it is too stale.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReadReplica() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		SingleLockConcurrentCertainBookStore primaryStore = new SingleLockConcurrentCertainBookStore(false);
+		BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.parseTags(null), 256, primaryStore);
+		primaryStore.setLog(log);
+		Server primary = new Server(0);
+		BookStoreHTTPMessageHandler primaryHandler = new BookStoreHTTPMessageHandler(primaryStore, primaryStore, log,
+				null);
+		primaryHandler.setInternalPort(BookStoreHTTPMessageHandler.ANY_PORT);
+		primary.setHandler(primaryHandler);
+
+		TwoLevelLockingConcurrentCertainBookStore replicaStore = new TwoLevelLockingConcurrentCertainBookStore();
+		Server replicaServer = new Server(0);
+		BookStoreReplica replica = null;
+		BookStoreHTTPProxy proxy = null;
+
+		try {
+			primary.start();
+			String primaryAddress = "http://localhost:" + ((ServerConnector) primary.getConnectors()[0]).getLocalPort();
+
+			// The first books only reach the replica through the checkpoint
+			Set<StockBook> books = new HashSet<>();
+			Set<Integer> isbns = new HashSet<>();
+			for (int i = 1; i <= 20; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Replicated", "Author", 10, NUM_COPIES, 0, 0, 0,
+						i % 2 == 0));
+				isbns.add(TEST_ISBN + i);
+			}
+			primaryStore.addBooks(books);
+			primaryStore.checkpoint();
+			primaryStore.rateBooks(new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN + 1, 5))));
+
+			replica = new BookStoreReplica(primaryAddress, replicaStore, 500);
+			replicaServer.setHandler(new BookStoreHTTPMessageHandler(replicaStore, replicaStore, null, replica));
+			replicaServer.start();
+			replica.start();
+			String replicaAddress = "http://localhost:"
+					+ ((ServerConnector) replicaServer.getConnectors()[0]).getLocalPort();
+			proxy = new BookStoreHTTPProxy(primaryAddress, Arrays.asList(replicaAddress));
+
+			awaitReplica(replicaStore, TEST_ISBN + 1, book -> book.getNumTimesRated() == 1);
+			assertEquals(20, proxy.getBooks(isbns).size());
+			assertEquals(1, proxy.getTopRatedBooks(1).size());
+			assertEquals(TEST_ISBN + 1, proxy.getTopRatedBooks(1).get(0).getISBN());
+			assertEquals(10, proxy.getEditorPicks(10).size());
+			assertTrue(proxy.getLastStaleness() <= 500);
+
+			// Writes go to the primary and are shipped to the replica
+			proxy.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 2, 2))));
+			awaitReplica(replicaStore, TEST_ISBN + 2, book -> book.getNumCopies() == NUM_COPIES - 2);
+
+			BookStoreHTTPProxy replicaProxy = new BookStoreHTTPProxy(replicaAddress);
+			try {
+				replicaProxy.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 2, 1))));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.READ_ONLY, ex.getResultCode());
+			} finally {
+				replicaProxy.stop();
+			}
+
+			// A replica which stopped following its primary refuses reads
+			replica.stop();
+			primaryStore.addCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 2, 2))));
+			Thread.sleep(600);
+			Book book = proxy.getBooks(new HashSet<>(Arrays.asList(TEST_ISBN + 2))).get(0);
+			assertEquals(0, proxy.getLastStaleness());
+			assertEquals(TEST_ISBN + 2, book.getISBN());
+			assertEquals(NUM_COPIES, primaryStore.getBooksByISBN(new HashSet<>(Arrays.asList(TEST_ISBN + 2))).get(0)
+					.getNumCopies());
+		} finally {
+			if (proxy != null) {
+				proxy.stop();
+			}
+			if (replica != null) {
+				replica.stop();
+			}
+			replicaServer.stop();
+			primary.stop();
+			log.close();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that a primary answers mutations once its backup acknowledged
+	 * them, that the backup refuses to take over from a live primary, and
+	 * that the proxies promote the backup once the primary is gone.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPrimaryBackup() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		SingleLockConcurrentCertainBookStore primaryStore = new SingleLockConcurrentCertainBookStore(false);
+		BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.parseTags(null), primaryStore);
+		primaryStore.setLog(log);
+		Server primary = new Server(0);
+		BookStoreHTTPMessageHandler primaryHandler = new BookStoreHTTPMessageHandler(primaryStore, primaryStore, log,
+				null);
+		primary.setHandler(primaryHandler);
+		ServerConnector primaryInternal = BookStoreHTTPServerUtility.createConnector(primary, 0);
+		primary.addConnector(primaryInternal);
+
+		TwoLevelLockingConcurrentCertainBookStore backupStore = new TwoLevelLockingConcurrentCertainBookStore();
+		Server backupServer = new Server(0);
+		ServerConnector backupInternal = BookStoreHTTPServerUtility.createConnector(backupServer, 0);
+		backupServer.addConnector(backupInternal);
+		BookStoreReplica backup = null;
+		BookStoreHTTPProxy proxy = null;
+		StockManagerHTTPProxy stockProxy = null;
+		HttpClient client = new HttpClient();
+
+		try {
+			primary.start();
+			primaryHandler.setInternalPort(primaryInternal.getLocalPort());
+			String primaryAddress = "http://localhost:" + ((ServerConnector) primary.getConnectors()[0]).getLocalPort();
+			String primaryInternalAddress = "http://localhost:" + primaryInternal.getLocalPort();
+			Set<StockBook> books = new HashSet<>();
+			for (int i = 1; i <= 4; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Backed up", "Author", 10, 100, 0, 0, 0, false));
+			}
+			primaryStore.addBooks(books);
+
+			backup = new BookStoreReplica(primaryInternalAddress, backupStore, BookStoreReplica.DEFAULT_MAX_STALENESS,
+					true);
+			BookStoreHTTPMessageHandler backupHandler = new BookStoreHTTPMessageHandler(backupStore, backupStore, null,
+					backup);
+			backupServer.setHandler(backupHandler);
+			backupServer.start();
+			backupHandler.setInternalPort(backupInternal.getLocalPort());
+			backup.start();
+			String backupAddress = "http://localhost:"
+					+ ((ServerConnector) backupServer.getConnectors()[0]).getLocalPort();
+			String backupInternalAddress = "http://localhost:" + backupInternal.getLocalPort();
+			awaitReplica(backupStore, TEST_ISBN + 4, book -> book.getNumCopies() == 100);
+			assertTrue(log.isBackupAttached());
+
+			// Clients reach neither the log nor the promotion through the public port
+			client.start();
+			for (String refused : Arrays.asList(primaryAddress + "/stock/" + BookStoreMessageTag.SHIPLOG,
+					backupAddress + "/" + BookStoreMessageTag.PROMOTE)) {
+				try {
+					BookStoreUtility.performHttpExchange(client, BookStoreRequest.newGetRequest(refused),
+							BookStoreUtility.newSerializer());
+					fail();
+				} catch (BookStoreException ex) {
+					assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+				}
+			}
+			assertFalse(backup.isPromoted());
+
+			proxy = new BookStoreHTTPProxy(primaryAddress);
+			proxy.setBackupAddress(backupAddress, backupInternalAddress);
+			stockProxy = new StockManagerHTTPProxy(primaryAddress + "/stock");
+			stockProxy.setBackupAddress(backupAddress + "/stock", backupInternalAddress + "/stock");
+
+			// Concurrent buyers share the acknowledgements of the backup
+			List<Thread> buyers = new ArrayList<>();
+			List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+			for (int i = 1; i <= 4; i++) {
+				int isbn = TEST_ISBN + i;
+				BookStoreHTTPProxy buyer = proxy;
+				buyers.add(new Thread(() -> {
+					try {
+						for (int j = 0; j < 25; j++) {
+							buyer.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(isbn, 1))));
+						}
+					} catch (Exception ex) {
+						failures.add(ex);
+					}
+				}));
+			}
+			buyers.forEach(Thread::start);
+			for (Thread buyer : buyers) {
+				buyer.join();
+			}
+			assertTrue(failures.isEmpty());
+			assertEquals(log.getAppendedPosition(), log.getAcknowledgedPosition());
+
+			// The backup hears from the primary, so it does not take over
+			BookStoreHTTPProxy cutOff = new BookStoreHTTPProxy("http://localhost:1");
+			cutOff.setBackupAddress(backupAddress, backupInternalAddress);
+			try {
+				cutOff.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1))));
+				fail();
+			} catch (BookStoreException ex) {
+				assertNull(ex.getResultCode());
+			} finally {
+				cutOff.stop();
+			}
+			assertFalse(backup.isPromoted());
+
+			// The primary fails and the proxies turn to the backup
+			primary.stop();
+			proxy.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1))));
+			assertTrue(backup.isPromoted());
+			assertEquals(backupAddress, proxy.getServerAddress());
+			stockProxy.addCopies(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 2, 5))));
+			assertEquals(backupAddress + "/stock", stockProxy.getServerAddress());
+
+			List<StockBook> backedUp = stockProxy.getBooks();
+			assertEquals(4, backedUp.size());
+			for (StockBook book : backedUp) {
+				int expected = 75 - (book.getISBN() == TEST_ISBN + 1 ? 1 : 0) + (book.getISBN() == TEST_ISBN + 2 ? 5 : 0);
+				assertEquals(expected, book.getNumCopies());
+			}
+		} finally {
+			if (proxy != null) {
+				proxy.stop();
+			}
+			if (stockProxy != null) {
+				stockProxy.stop();
+			}
+			if (backup != null) {
+				backup.stop();
+			}
+			client.stop();
+			backupServer.stop();
+			primary.stop();
+			log.close();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that a backup which stops acknowledging is detached and counted,
+	 * and that a log requiring a backup refuses the mutations meanwhile.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBackupRequired() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		SingleLockConcurrentCertainBookStore primaryStore = new SingleLockConcurrentCertainBookStore(false);
+		BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.parseTags(null), primaryStore);
+		primaryStore.setLog(log);
+		try {
+			log.setBackupRequired(true);
+			try {
+				primaryStore.addBooks(Collections.singleton(getDefaultBook()));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NO_BACKUP, ex.getResultCode());
+			}
+			assertTrue(primaryStore.getBooks().isEmpty());
+
+			// A backup which acknowledges once and then stays silent
+			log.acknowledge(log.getAppendedPosition());
+			assertTrue(log.isBackupAttached());
+			try {
+				primaryStore.addBooks(Collections.singleton(getDefaultBook()));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.UNKNOWN_OUTCOME, ex.getResultCode());
+			}
+			assertFalse(log.isBackupAttached());
+			assertEquals(1, log.getNumBackupDetaches());
+
+			// Without a required backup the primary carries on alone
+			log.setBackupRequired(false);
+			primaryStore.addCopies(Collections.singleton(new BookCopy(TEST_ISBN, 1)));
+			assertEquals(NUM_COPIES + 1, primaryStore.getBooks().get(0).getNumCopies());
+		} finally {
+			log.close();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that a cluster spreads the books over its shards by consistent
+	 * hashing, splits requests by shard and merges catalog-wide queries.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCluster() throws Exception {
+		List<SingleLockConcurrentCertainBookStore> shardStores = new ArrayList<>();
+		List<TransactionParticipant> participants = new ArrayList<>();
+		List<Server> shards = new ArrayList<>();
+		List<String> shardAddresses = new ArrayList<>();
+		BookStoreClusterProxy cluster = null;
+
+		try {
+			for (int i = 0; i < 3; i++) {
+				SingleLockConcurrentCertainBookStore shardStore = new SingleLockConcurrentCertainBookStore(false);
+				ShardGuard guard = new ShardGuard(shardStore, shardStore);
+				TransactionParticipant participant = new TransactionParticipant(shardStore, guard, null,
+						TransactionParticipant.DEFAULT_TIMEOUT);
+				participants.add(participant);
+				Server shard = new Server(0);
+				BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(guard, guard, null, null,
+						participant);
+				handler.setInternalPort(BookStoreHTTPMessageHandler.ANY_PORT);
+				shard.setHandler(handler);
+				shard.start();
+				shardStores.add(shardStore);
+				shards.add(shard);
+				shardAddresses.add("http://localhost:" + ((ServerConnector) shard.getConnectors()[0]).getLocalPort());
+			}
+			cluster = new BookStoreClusterProxy(shardAddresses);
+
+			Set<StockBook> books = new HashSet<>();
+			Set<Integer> isbns = new HashSet<>();
+			Set<BookRating> ratings = new HashSet<>();
+			for (int i = 1; i <= 60; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Sharded", "Author", 10, NUM_COPIES, 0, 0, 0,
+						i % 3 == 0));
+				isbns.add(TEST_ISBN + i);
+				ratings.add(new BookRating(TEST_ISBN + i, i % 6));
+			}
+			cluster.addBooks(books);
+			cluster.rateBooks(ratings);
+
+			// Every shard owns exactly the books the ring assigns to it
+			ConsistentHashRing ring = new ConsistentHashRing(shardAddresses);
+			for (int i = 0; i < shards.size(); i++) {
+				List<StockBook> shardBooks = shardStores.get(i).getBooks();
+				assertFalse(shardBooks.isEmpty());
+				for (StockBook book : shardBooks) {
+					assertEquals(shardAddresses.get(i), ring.shardOf(book.getISBN()));
+				}
+			}
+			assertEquals(60, cluster.getBooks().size());
+			assertEquals(60, cluster.getBooks(isbns).size());
+
+			// The pages of the shards are merged in ISBN order
+			Iterator<StockBook> pages = cluster.iterateBooks(7);
+			for (int i = 1; i <= 60; i++) {
+				assertEquals(TEST_ISBN + i, pages.next().getISBN());
+			}
+			assertFalse(pages.hasNext());
+			assertEquals(20, cluster.getEditorPicks(100).size());
+			assertEquals(5, cluster.getEditorPicks(5).size());
+
+			// The merged top rated books are in order across shards
+			List<Book> topRated = cluster.getTopRatedBooks(15);
+			assertEquals(15, topRated.size());
+			for (int i = 0; i < topRated.size(); i++) {
+				assertEquals(i < 10 ? 5 : 4, (topRated.get(i).getISBN() - TEST_ISBN) % 6);
+			}
+
+			// A missing book is found before any shard applies its part
+			Set<Integer> missing = new HashSet<>(isbns);
+			missing.add(TEST_ISBN + 100);
+			try {
+				cluster.removeBooks(missing);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+			Set<BookRating> missingRatings = new HashSet<>(Arrays.asList(new BookRating(TEST_ISBN + 1, 5),
+					new BookRating(TEST_ISBN + 2, 5), new BookRating(TEST_ISBN + 3, 5), new BookRating(TEST_ISBN + 100, 5)));
+			try {
+				cluster.rateBooks(missingRatings);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+			Set<StockBook> duplicated = new HashSet<>();
+			for (int i = 61; i <= 80; i++) {
+				duplicated.add(new ImmutableStockBook(TEST_ISBN + i, "Sharded", "Author", 10, NUM_COPIES, 0, 0, 0, false));
+			}
+			duplicated.add(new ImmutableStockBook(TEST_ISBN + 1, "Duplicated", "Author", 10, NUM_COPIES, 0, 0, 0, false));
+			try {
+				cluster.addBooks(duplicated);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.DUPLICATED, ex.getResultCode());
+			}
+
+			// An addBooks is not atomic across shards, only the refusing shard added none
+			String refusing = cluster.getRing().shardOf(TEST_ISBN + 1);
+			Set<Integer> added = new HashSet<>();
+			for (StockBook book : duplicated) {
+				if (book.getISBN() != TEST_ISBN + 1 && !cluster.getRing().shardOf(book.getISBN()).equals(refusing)) {
+					added.add(book.getISBN());
+				}
+			}
+			assertEquals(60 + added.size(), cluster.getBooks().size());
+			if (!added.isEmpty()) {
+				cluster.removeBooks(added);
+			}
+			assertEquals(60, cluster.getBooks().size());
+			for (StockBook book : cluster.getBooksByISBN(isbns)) {
+				assertEquals(1, book.getNumTimesRated());
+			}
+
+			cluster.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, NUM_COPIES),
+					new BookCopy(TEST_ISBN + 2, NUM_COPIES), new BookCopy(TEST_ISBN + 3, NUM_COPIES))));
+			try {
+				cluster.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN + 1, 1))));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+			assertEquals(1, cluster.getBooksInDemand().size());
+
+			cluster.removeBooks(new HashSet<>(Arrays.asList(TEST_ISBN + 1, TEST_ISBN + 2)));
+			assertEquals(58, cluster.getBooks().size());
+			cluster.removeAllBooks();
+			assertTrue(cluster.getBooks().isEmpty());
+		} finally {
+			if (cluster != null) {
+				cluster.stop();
+			}
+			for (Server shard : shards) {
+				shard.stop();
+			}
+			for (TransactionParticipant participant : participants) {
+				participant.stop();
+			}
+		}
+	}
+
+	/**
+	 * Tests that buying and adding copies on several shards is all-or-nothing,
+	 * that a buyer waits for the copies a prepared transaction reserves, and
+	 * that a transaction its coordinator left behind is resolved once its
+	 * prepare times out.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCrossShardTransaction() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-decisions").toFile();
+		List<SingleLockConcurrentCertainBookStore> shardStores = new ArrayList<>();
+		List<TransactionParticipant> participants = new ArrayList<>();
+		List<Server> shards = new ArrayList<>();
+		List<String> shardAddresses = new ArrayList<>();
+		BookStoreClusterProxy cluster = null;
+		StockManagerHTTPProxy coordinator = null;
+
+		try {
+			for (int i = 0; i < 2; i++) {
+				SingleLockConcurrentCertainBookStore shardStore = new SingleLockConcurrentCertainBookStore(false);
+				ShardGuard guard = new ShardGuard(shardStore, shardStore);
+				TransactionParticipant participant = new TransactionParticipant(shardStore, guard,
+						i == 0 ? logDirectory : null, 200);
+				Server shard = new Server(0);
+				BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(guard, guard, null, null,
+						participant);
+				handler.setInternalPort(BookStoreHTTPMessageHandler.ANY_PORT);
+				shard.setHandler(handler);
+				shard.start();
+				shardStores.add(shardStore);
+				participants.add(participant);
+				shards.add(shard);
+				shardAddresses.add("http://localhost:" + ((ServerConnector) shard.getConnectors()[0]).getLocalPort());
+			}
+			cluster = new BookStoreClusterProxy(shardAddresses);
+
+			// One book on each shard
+			int[] isbns = new int[2];
+			for (int isbn = TEST_ISBN + 1; isbns[0] == 0 || isbns[1] == 0; isbn++) {
+				isbns[shardAddresses.indexOf(cluster.getRing().shardOf(isbn))] = isbn;
+			}
+			Set<StockBook> books = new HashSet<>();
+			for (int isbn : isbns) {
+				books.add(new ImmutableStockBook(isbn, "Sharded", "Author", 10, NUM_COPIES, 0, 0, 0, false));
+			}
+			cluster.addBooks(books);
+
+			// A purchase one shard refuses leaves the other shard untouched
+			try {
+				cluster.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(isbns[0], NUM_COPIES),
+						new BookCopy(isbns[1], NUM_COPIES + 1))));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+			assertEquals(NUM_COPIES, shardStores.get(0).getBooks().get(0).getNumCopies());
+			assertEquals(1, shardStores.get(1).getBooks().get(0).getNumSaleMisses());
+
+			try {
+				cluster.addCopies(new HashSet<>(Arrays.asList(new BookCopy(isbns[0], 1), new BookCopy(isbns[1], 0))));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+			}
+			assertEquals(NUM_COPIES, shardStores.get(0).getBooks().get(0).getNumCopies());
+
+			cluster.addCopies(new HashSet<>(Arrays.asList(new BookCopy(isbns[0], 1), new BookCopy(isbns[1], 1))));
+			cluster.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(isbns[0], 2), new BookCopy(isbns[1], 3))));
+			assertEquals(NUM_COPIES - 1, shardStores.get(0).getBooks().get(0).getNumCopies());
+			assertEquals(NUM_COPIES - 2, shardStores.get(1).getBooks().get(0).getNumCopies());
+			assertEquals(0, participants.get(0).getNumPrepared() + participants.get(1).getNumPrepared());
+
+			// A coordinator lost after the prepares: the reservations are released
+			coordinator = new StockManagerHTTPProxy(shardAddresses.get(0) + "/stock");
+			StockManagerHTTPProxy other = new StockManagerHTTPProxy(shardAddresses.get(1) + "/stock");
+			try {
+				coordinator.prepare("lost", BookStoreMessageTag.BUYBOOKS, null,
+						Collections.singleton(new BookCopy(isbns[0], 1)));
+				other.prepare("lost", BookStoreMessageTag.BUYBOOKS, shardAddresses.get(0),
+						Collections.singleton(new BookCopy(isbns[1], 1)));
+				assertEquals(NUM_COPIES - 2, shardStores.get(0).getBooks().get(0).getNumCopies());
+
+				// A buyer of every copy waits for the reservation instead of missing a sale
+				cluster.buyBooks(Collections.singleton(new BookCopy(isbns[0], NUM_COPIES - 1)));
+				assertEquals(0, shardStores.get(0).getBooks().get(0).getNumCopies());
+				assertEquals(0, shardStores.get(0).getBooks().get(0).getNumSaleMisses());
+				awaitResolved(participants);
+
+				// A coordinator lost after the decision: the other shard learns it
+				coordinator.prepare("decided", BookStoreMessageTag.ADDCOPIES, null,
+						Collections.singleton(new BookCopy(isbns[0], 5)));
+				other.prepare("decided", BookStoreMessageTag.ADDCOPIES, shardAddresses.get(0),
+						Collections.singleton(new BookCopy(isbns[1], 5)));
+				coordinator.commit("decided");
+			} finally {
+				other.stop();
+			}
+
+			awaitResolved(participants);
+			assertEquals(5, shardStores.get(0).getBooks().get(0).getNumCopies());
+			assertEquals(NUM_COPIES + 3, shardStores.get(1).getBooks().get(0).getNumCopies());
+			assertFalse(coordinator.getOutcome("lost"));
+			assertTrue(coordinator.getOutcome("decided"));
+		} finally {
+			if (coordinator != null) {
+				coordinator.stop();
+			}
+			if (cluster != null) {
+				cluster.stop();
+			}
+			for (Server shard : shards) {
+				shard.stop();
+			}
+			for (TransactionParticipant participant : participants) {
+				participant.stop();
+			}
+		}
+
+		// The commit decisions outlive the decider
+		TransactionParticipant restarted = new TransactionParticipant(shardStores.get(0),
+				new ShardGuard(shardStores.get(0), shardStores.get(0)), logDirectory, 200);
+		try {
+			assertTrue(restarted.getOutcome("decided"));
+			assertFalse(restarted.getOutcome("lost"));
+		} finally {
+			restarted.stop();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that a restarted participant still knows the parts it prepared,
+	 * and that an aborted purchase gives its copies back without clearing the
+	 * sale misses or counting as sold.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPreparedPartsSurviveRestart() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-prepared").toFile();
+		SingleLockConcurrentCertainBookStore shardStore = new SingleLockConcurrentCertainBookStore(false);
+		shardStore.addBooks(new HashSet<>(Arrays.asList(getDefaultBook(),
+				new ImmutableStockBook(TEST_ISBN + 1, "Added", "Author", 10, NUM_COPIES, 0, 0, 0, false))));
+		try {
+			shardStore.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, NUM_COPIES + 1)));
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+		}
+
+		ShardGuard guard = new ShardGuard(shardStore, shardStore);
+		TransactionParticipant participant = new TransactionParticipant(shardStore, guard, logDirectory,
+				TransactionParticipant.DEFAULT_TIMEOUT);
+		try {
+			participant.prepare("buy", BookStoreMessageTag.BUYBOOKS, null,
+					Collections.singleton(new BookCopy(TEST_ISBN, 2)));
+			participant.prepare("add", BookStoreMessageTag.ADDCOPIES, "http://localhost:1",
+					Collections.singleton(new BookCopy(TEST_ISBN + 1, 3)));
+		} finally {
+			participant.stop();
+		}
+		assertEquals(NUM_COPIES - 2, shardStore.getBooksByISBN(Collections.singleton(TEST_ISBN)).get(0).getNumCopies());
+
+		guard = new ShardGuard(shardStore, shardStore);
+		participant = new TransactionParticipant(shardStore, guard, logDirectory, TransactionParticipant.DEFAULT_TIMEOUT);
+		try {
+			assertEquals(2, participant.getNumPrepared());
+
+			participant.abort("buy");
+			StockBook book = shardStore.getBooksByISBN(Collections.singleton(TEST_ISBN)).get(0);
+			assertEquals(NUM_COPIES, book.getNumCopies());
+			assertEquals(1, book.getNumSaleMisses());
+			List<BookDemand> velocity = shardStore.getSalesVelocity(Collections.singleton(TEST_ISBN), 60000);
+			assertEquals(0, velocity.get(0).getSales(), 0);
+
+			participant.commit("add");
+			assertEquals(NUM_COPIES + 3,
+					shardStore.getBooksByISBN(Collections.singleton(TEST_ISBN + 1)).get(0).getNumCopies());
+			assertEquals(0, participant.getNumPrepared());
+		} finally {
+			participant.stop();
+		}
+
+		guard = new ShardGuard(shardStore, shardStore);
+		participant = new TransactionParticipant(shardStore, guard, logDirectory, TransactionParticipant.DEFAULT_TIMEOUT);
+		try {
+			assertEquals(0, participant.getNumPrepared());
+		} finally {
+			participant.stop();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that the books of a prepared part are held from the other requests
+	 * until its outcome is applied, and that an outcome the store refuses is
+	 * applied again instead of being dropped.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPreparedBooksAreHeld() throws Exception {
+		File logDirectory = Files.createTempDirectory("bookstore-log").toFile();
+		SingleLockConcurrentCertainBookStore shardStore = new SingleLockConcurrentCertainBookStore(false);
+		BookStoreLog log = new BookStoreLog(logDirectory, BookStoreLog.parseTags(null), shardStore);
+		shardStore.setLog(log);
+		shardStore.addBooks(Collections.singleton(getDefaultBook()));
+		ShardGuard guard = new ShardGuard(shardStore, shardStore);
+		TransactionParticipant participant = new TransactionParticipant(shardStore, guard, null, 200);
+
+		try {
+			// A buyer waits for the reservation instead of missing a sale
+			participant.prepare("buy", BookStoreMessageTag.BUYBOOKS, null,
+					Collections.singleton(new BookCopy(TEST_ISBN, NUM_COPIES)));
+			CompletableFuture<Void> buyer = CompletableFuture.runAsync(() -> {
+				try {
+					guard.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN, 1)));
+				} catch (BookStoreException ex) {
+					throw new IllegalStateException(ex);
+				}
+			});
+			Thread.sleep(100);
+			assertFalse(buyer.isDone());
+			participant.abort("buy");
+			buyer.get();
+			StockBook book = guard.getBooksByISBN(Collections.singleton(TEST_ISBN)).get(0);
+			assertEquals(NUM_COPIES - 1, book.getNumCopies());
+			assertEquals(0, book.getNumSaleMisses());
+
+			// A reader waits for the added copies, which the store refuses at first
+			participant.prepare("add", BookStoreMessageTag.ADDCOPIES, null,
+					Collections.singleton(new BookCopy(TEST_ISBN, 5)));
+			log.setBackupRequired(true);
+			participant.commit("add");
+			assertEquals(1, participant.getNumPrepared());
+			CompletableFuture<List<StockBook>> reader = CompletableFuture.supplyAsync(() -> {
+				try {
+					return guard.getBooksByISBN(Collections.singleton(TEST_ISBN));
+				} catch (BookStoreException ex) {
+					throw new IllegalStateException(ex);
+				}
+			});
+			Thread.sleep(100);
+			assertFalse(reader.isDone());
+			log.setBackupRequired(false);
+			assertEquals(NUM_COPIES + 4, reader.get().get(0).getNumCopies());
+			assertEquals(0, participant.getNumPrepared());
+
+			// A removal waits until the added copies are in
+			participant.prepare("again", BookStoreMessageTag.ADDCOPIES, null,
+					Collections.singleton(new BookCopy(TEST_ISBN, 1)));
+			CompletableFuture<Void> remover = CompletableFuture.runAsync(() -> {
+				try {
+					guard.removeBooks(Collections.singleton(TEST_ISBN));
+				} catch (BookStoreException ex) {
+					throw new IllegalStateException(ex);
+				}
+			});
+			Thread.sleep(100);
+			assertFalse(remover.isDone());
+			participant.commit("again");
+			assertEquals(0, participant.getNumPrepared());
+			remover.get();
+			assertTrue(shardStore.getBooks().isEmpty());
+		} finally {
+			participant.stop();
+			log.close();
+			for (File file : logDirectory.listFiles()) {
+				file.delete();
+			}
+			logDirectory.delete();
+		}
+	}
+
+	/**
+	 * Tests that books move between running shards with all their counters
+	 * while another proxy keeps writing to them, and that the other proxy
+	 * follows the new routing.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRebalance() throws Exception {
+		List<SingleLockConcurrentCertainBookStore> shardStores = new ArrayList<>();
+		List<TransactionParticipant> participants = new ArrayList<>();
+		List<Server> shards = new ArrayList<>();
+		List<String> shardAddresses = new ArrayList<>();
+		BookStoreClusterProxy cluster = null;
+		BookStoreClusterProxy other = null;
+
+		try {
+			for (int i = 0; i < 3; i++) {
+				SingleLockConcurrentCertainBookStore shardStore = new SingleLockConcurrentCertainBookStore(false);
+				ShardGuard guard = new ShardGuard(shardStore, shardStore);
+				TransactionParticipant participant = new TransactionParticipant(shardStore, guard, null,
+						TransactionParticipant.DEFAULT_TIMEOUT);
+				Server shard = new Server(0);
+				BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(guard, guard, null, null,
+						participant);
+				handler.setInternalPort(BookStoreHTTPMessageHandler.ANY_PORT);
+				shard.setHandler(handler);
+				shard.start();
+				shardStores.add(shardStore);
+				participants.add(participant);
+				shards.add(shard);
+				shardAddresses.add("http://localhost:" + ((ServerConnector) shard.getConnectors()[0]).getLocalPort());
+			}
+			List<String> twoShards = shardAddresses.subList(0, 2);
+			cluster = new BookStoreClusterProxy(twoShards);
+			other = new BookStoreClusterProxy(twoShards);
+
+			Set<StockBook> books = new HashSet<>();
+			Set<BookRating> ratings = new HashSet<>();
+			for (int i = 1; i <= 60; i++) {
+				books.add(new ImmutableStockBook(TEST_ISBN + i, "Moving", "Author", 10, NUM_COPIES, 0, 0, 0,
+						i % 3 == 0));
+				ratings.add(new BookRating(TEST_ISBN + i, i % 6));
+			}
+			cluster.addBooks(books);
+			cluster.rateBooks(ratings);
+			try {
+				cluster.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + 7, NUM_COPIES + 2)));
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.NOT_AVAILABLE, ex.getResultCode());
+			}
+			List<StockBook> before = cluster.getBooks();
+
+			// Another proxy buys and restocks every book but the missed one while they move
+			BookStoreClusterProxy writer = other;
+			List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread traffic = new Thread(() -> {
+				for (int n = 0; running.get(); n++) {
+					int isbn = TEST_ISBN + 1 + n % 60;
+					int partner = TEST_ISBN + 1 + (n + 30) % 60;
+					if (isbn == TEST_ISBN + 7 || partner == TEST_ISBN + 7) {
+						continue; // Restocking would clear its sale misses
+					}
+					try {
+						writer.addCopies(new HashSet<>(Arrays.asList(new BookCopy(isbn, 1), new BookCopy(partner, 1))));
+						writer.buyBooks(new HashSet<>(Arrays.asList(new BookCopy(isbn, 1), new BookCopy(partner, 1))));
+					} catch (Exception ex) {
+						failures.add(ex);
+					}
+				}
+			});
+			traffic.start();
+
+			// Scale out, then in again
+			cluster.rebalance(shardAddresses);
+			assertEquals(1, cluster.getEpoch());
+			assertFalse(shardStores.get(2).getBooks().isEmpty());
+			cluster.rebalance(twoShards);
+			assertEquals(2, cluster.getEpoch());
+			running.set(false);
+			traffic.join();
+			assertTrue(failures.toString(), failures.isEmpty());
+
+			// Every book is on its shard alone, with all its counters
+			assertTrue(shardStores.get(2).getBooks().isEmpty());
+			for (int i = 0; i < 2; i++) {
+				for (StockBook book : shardStores.get(i).getBooks()) {
+					assertEquals(twoShards.get(i), cluster.getRing().shardOf(book.getISBN()));
+				}
+			}
+			List<StockBook> after = cluster.getBooks();
+			assertEquals(before.size(), after.size());
+			for (StockBook book : before) {
+				StockBook moved = after.stream().filter(b -> b.getISBN() == book.getISBN()).findFirst().get();
+				assertEquals(book.getNumCopies(), moved.getNumCopies());
+				assertEquals(book.getNumSaleMisses(), moved.getNumSaleMisses());
+				assertEquals(book.getNumTimesRated(), moved.getNumTimesRated());
+				assertEquals(book.getTotalRating(), moved.getTotalRating());
+				assertEquals(book.isEditorPick(), moved.isEditorPick());
+			}
+			long deadline = System.currentTimeMillis() + 10 * BookStoreClusterProxy.ROUTING_REFRESH;
+			while (other.getEpoch() < 2) {
+				assertTrue("The routing was not fetched", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertEquals(60, other.getBooks().size());
+			assertEquals(1, other.getBooksInDemand().size());
+		} finally {
+			if (cluster != null) {
+				cluster.stop();
+			}
+			if (other != null) {
+				other.stop();
+			}
+			for (Server shard : shards) {
+				shard.stop();
+			}
+			for (TransactionParticipant participant : participants) {
+				participant.stop();
+			}
+		}
+	}
+
+	/**
+	 * Waits until a book of a replica satisfies a condition.
+	 */
+	private static void awaitReplica(StockManager replicaStore, int isbn, Predicate<StockBook> condition)
+			throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			List<StockBook> books = replicaStore.getBooks().stream().filter(book -> book.getISBN() == isbn)
+					.collect(Collectors.toList());
+			if (!books.isEmpty() && condition.test(books.get(0))) {
+				return;
+			}
+			assertTrue("The replica did not catch up", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Waits until the participants have no prepared transaction left.
+	 */
+	private static void awaitResolved(List<TransactionParticipant> participants) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (participants.stream().mapToInt(TransactionParticipant::getNumPrepared).sum() > 0) {
+			assertTrue("The transactions were not resolved", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
 	/**
 	 * Tear down after class.
 	 *
@@ -3,7 +3,10 @@ package com.acertainbookstore.client.tests;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -16,16 +19,21 @@ import org.junit.Test;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.DemandHistory;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookPageIterator;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResultCode;
 
 /**
  * {@StockManagerTest} tests the {@link StockManager} interface.
@@ -254,6 +262,37 @@ public class StockManagerTest {
 				&& booksInStorePreTest.size() == booksInStorePostTest.size());
 	}
 
+	/**
+	 * Checks that a book whose title is too long to be logged is rejected as
+	 * invalid.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testAddBookTooLongTitle() throws BookStoreException {
+		List<StockBook> booksInStorePreTest = storeManager.getBooks();
+
+		// Few characters, but three bytes each once encoded
+		char[] title = new char[BookStoreConstants.MAX_TEXT_LENGTH / 3 + 1];
+		Arrays.fill(title, '\u20ac');
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, new String(title), "JUnit Rowling", (float) 100, 5, 0, 0,
+				0, false));
+
+		try {
+			storeManager.addBooks(booksToAdd);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+
+		List<StockBook> booksInStorePostTest = storeManager.getBooks();
+		assertTrue(booksInStorePreTest.containsAll(booksInStorePostTest)
+				&& booksInStorePreTest.size() == booksInStorePostTest.size());
+	}
+
 	/**
 	 * Tests adding copies of a book with correct parameters.
 	 *
@@ -627,6 +666,173 @@ public class StockManagerTest {
 		        && indemand.stream().mapToLong(m -> m.getNumSaleMisses()).allMatch(i -> i >= 1 && i <= 4));
 	}
 
+	/**
+	 * Tests the windowed and decayed demand queries and the sales velocity.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testRecentDemand() throws BookStoreException {
+		// The sold book must have the two copies bought
+		List<StockBook> books = storeManager.getBooks();
+		books.sort(Comparator.comparingInt(StockBook::getNumCopies).reversed());
+		StockBook sold = books.get(0);
+		StockBook missed = books.get(1);
+		StockBook missedMore = books.get(2);
+
+		HashSet<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(sold.getISBN(), 2));
+		client.buyBooks(booksToBuy);
+		for (StockBook book : new StockBook[] { missed, missedMore, missedMore }) {
+			booksToBuy.clear();
+			booksToBuy.add(new BookCopy(book.getISBN(), book.getNumCopies() + 1));
+			try {
+				client.buyBooks(booksToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		List<StockBook> inDemand = storeManager.getBooksInDemand(DemandHistory.HISTORY_MILLIS);
+		assertEquals(2, inDemand.size());
+		assertTrue(inDemand.stream().noneMatch(book -> book.getISBN() == sold.getISBN()));
+
+		// The decayed ranking puts the most missed book first
+		List<BookDemand> top = storeManager.getTopBooksInDemand(5, DemandHistory.BUCKET_MILLIS);
+		assertEquals(2, top.size());
+		assertEquals(missedMore.getISBN(), top.get(0).getISBN());
+		assertTrue(top.get(0).getSaleMisses() > top.get(1).getSaleMisses());
+		assertTrue(top.get(1).getSaleMisses() > 0 && top.get(1).getSaleMisses() <= 1);
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(sold.getISBN());
+		List<BookDemand> velocity = storeManager.getSalesVelocity(isbns, DemandHistory.HISTORY_MILLIS);
+		assertEquals(1, velocity.size());
+		assertEquals(2, velocity.get(0).getSales(), 0);
+		assertEquals(2, velocity.get(0).getSalesPerHour(), 0.001);
+
+		// Restocking clears the lifetime sale misses, not the history
+		booksToBuy.clear();
+		booksToBuy.add(new BookCopy(missed.getISBN(), 1));
+		storeManager.addCopies(booksToBuy);
+		assertEquals(2, storeManager.getBooksInDemand(DemandHistory.HISTORY_MILLIS).size());
+		assertEquals(1, storeManager.getBooksInDemand().size());
+
+		try {
+			storeManager.getBooksInDemand(DemandHistory.HISTORY_MILLIS + 1);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+		try {
+			storeManager.getTopBooksInDemand(1, 0);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+		isbns.add(-1);
+		try {
+			storeManager.getSalesVelocity(isbns, DemandHistory.BUCKET_MILLIS);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+	}
+
+	/**
+	 * Tests that the books are listed page by page in ISBN order, and by an
+	 * iterator fetching the pages.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBookPages() throws BookStoreException {
+		List<StockBook> booksInStore = storeManager.getBooks();
+		booksInStore.sort(Comparator.comparingInt(StockBook::getISBN));
+
+		List<StockBook> listedBooks = new ArrayList<>();
+		String cursor = null;
+		do {
+			BookPage page = storeManager.getBooks(cursor, 3);
+			assertTrue(page.getBooks().size() <= 3);
+			listedBooks.addAll(page.getBooks());
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		assertEquals(booksInStore.size(), listedBooks.size());
+		for (int i = 0; i < booksInStore.size(); i++) {
+			assertTrue(booksInStore.get(i).equals(listedBooks.get(i)));
+		}
+
+		// A page holding the last book exactly is the last one
+		assertTrue(storeManager.getBooks(null, booksInStore.size()).isLast());
+
+		Iterator<StockBook> iterator = new BookPageIterator(storeManager, 4, Runnable::run);
+		for (StockBook book : booksInStore) {
+			assertTrue(iterator.hasNext());
+			assertTrue(book.equals(iterator.next()));
+		}
+		assertFalse(iterator.hasNext());
+	}
+
+	/**
+	 * Tests that invalid cursors and page sizes are rejected.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBookPagesInvalid() throws BookStoreException {
+		for (int pageSize : new int[] { 0, BookStoreConstants.MAX_PAGE_SIZE + 1 }) {
+			try {
+				storeManager.getBooks(null, pageSize);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+			}
+		}
+
+		try {
+			storeManager.getBooks("not a cursor", 1);
+			fail();
+		} catch (BookStoreException ex) {
+			assertEquals(BookStoreResultCode.INVALID, ex.getResultCode());
+		}
+	}
+
+	/**
+	 * Tests that the demand history forgets what is older than its buckets
+	 * and decays by age.
+	 */
+	@Test
+	public void testDemandHistory() {
+		DemandHistory history = new DemandHistory();
+		long start = 1000 * DemandHistory.HISTORY_MILLIS;
+		history.recordSales(3, start);
+		history.recordSaleMisses(1, start);
+		history.recordSales(2, start + DemandHistory.BUCKET_MILLIS);
+
+		// In the middle of the second bucket
+		long now = start + DemandHistory.BUCKET_MILLIS * 3 / 2;
+		assertEquals(5, history.getSales(DemandHistory.HISTORY_MILLIS, now));
+		assertEquals(2, history.getSales(1, now));
+		assertEquals(1, history.getSaleMisses(DemandHistory.BUCKET_MILLIS, now));
+		assertEquals(0, history.getSaleMisses(1, now));
+
+		// The first bucket is one half-life older than the second
+		assertEquals(2 + 3 * 0.5, history.getDecayedSales(DemandHistory.BUCKET_MILLIS, now), 0.001);
+
+		// A turn of the ring later, the first bucket is stale and restarted
+		now = start + DemandHistory.HISTORY_MILLIS + DemandHistory.BUCKET_MILLIS / 2;
+		assertEquals(2, history.getSales(DemandHistory.HISTORY_MILLIS, now));
+		assertEquals(0, history.getSaleMisses(DemandHistory.HISTORY_MILLIS, now));
+		history.recordSales(4, now);
+		assertEquals(6, history.getSales(DemandHistory.HISTORY_MILLIS, now));
+		assertEquals(4, history.getSales(1, now));
+	}
+
 	/**
 	 * Tear down after class.
 	 *
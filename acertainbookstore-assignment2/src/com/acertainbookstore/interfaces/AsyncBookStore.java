@@ -0,0 +1,68 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AsyncBookStore} declares the methods of the {@link BookStore} without
+ * blocking the caller. Every method returns at once with a future, which
+ * completes with the result, or exceptionally with the
+ * {@link BookStoreException} the matching method of the {@link BookStore}
+ * would have thrown.
+ *
+ * @see BookStore
+ */
+public interface AsyncBookStore {
+
+	/**
+	 * Buys the sets of books specified.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @return the future completing once the books are bought
+	 */
+	public CompletableFuture<Void> buyBooks(Set<BookCopy> booksToBuy);
+
+	/**
+	 * Applies the BookRatings in the set, i.e. rates each book with their
+	 * respective rating.
+	 *
+	 * @param bookRating
+	 *            the book ratings to be made
+	 * @return the future completing once the books are rated
+	 */
+	public CompletableFuture<Void> rateBooks(Set<BookRating> bookRating);
+
+	/**
+	 * Returns the list of books corresponding to the set of ISBNs.
+	 *
+	 * @param ISBNList
+	 *            the ISBN list
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<Book>> getBooks(Set<Integer> ISBNList);
+
+	/**
+	 * Returns the top rated books.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<Book>> getTopRatedBooks(int numBooks);
+
+	/**
+	 * Returns the list of books containing numBooks editor picks.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<Book>> getEditorPicks(int numBooks);
+}
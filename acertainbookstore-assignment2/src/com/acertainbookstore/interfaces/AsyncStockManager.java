@@ -0,0 +1,137 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AsyncStockManager} declares the methods of the {@link StockManager}
+ * without blocking the caller. Every method returns at once with a future,
+ * which completes with the result, or exceptionally with the
+ * {@link BookStoreException} the matching method of the {@link StockManager}
+ * would have thrown.
+ *
+ * @see StockManager
+ */
+public interface AsyncStockManager {
+
+	/**
+	 * Adds the books in bookSet to the stock.
+	 *
+	 * @param bookSet
+	 *            the book set
+	 * @return the future completing once the books are added
+	 */
+	public CompletableFuture<Void> addBooks(Set<StockBook> bookSet);
+
+	/**
+	 * Adds copies of the existing books to the bookstore.
+	 *
+	 * @param bookCopiesSet
+	 *            the book copies set
+	 * @return the future completing once the copies are added
+	 */
+	public CompletableFuture<Void> addCopies(Set<BookCopy> bookCopiesSet);
+
+	/**
+	 * Gets the list of books in the bookstore.
+	 *
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<StockBook>> getBooks();
+
+	/**
+	 * Gets a page of the books in the bookstore, in ascending ISBN order.
+	 *
+	 * @param cursor
+	 *            the cursor of the previous page, or null for the first page
+	 * @param pageSize
+	 *            the most books on the page, at most
+	 *            {@link com.acertainbookstore.utils.BookStoreConstants#MAX_PAGE_SIZE}
+	 * @return the future of the page
+	 * @see StockManager#getBooks(String, int)
+	 */
+	public CompletableFuture<BookPage> getBooks(String cursor, int pageSize);
+
+	/**
+	 * Gets the books matching the set of ISBNs given.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<StockBook>> getBooksByISBN(Set<Integer> isbns);
+
+	/**
+	 * Gets the list of books which has sale miss.
+	 *
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<StockBook>> getBooksInDemand();
+
+	/**
+	 * Gets the books which had a sale miss within a window.
+	 *
+	 * @param windowMillis
+	 *            the window in milliseconds
+	 * @return the future of the books
+	 * @see StockManager#getBooksInDemand(long)
+	 */
+	public CompletableFuture<List<StockBook>> getBooksInDemand(long windowMillis);
+
+	/**
+	 * Gets the books with the most decayed sale misses.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @param halfLifeMillis
+	 *            the half-life of a sale miss in milliseconds
+	 * @return the future of the demands
+	 * @see StockManager#getTopBooksInDemand(int, long)
+	 */
+	public CompletableFuture<List<BookDemand>> getTopBooksInDemand(int numBooks, long halfLifeMillis);
+
+	/**
+	 * Gets the copies sold and the sale misses of books within a window.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @param windowMillis
+	 *            the window in milliseconds
+	 * @return the future of the demands
+	 * @see StockManager#getSalesVelocity(Set, long)
+	 */
+	public CompletableFuture<List<BookDemand>> getSalesVelocity(Set<Integer> isbns, long windowMillis);
+
+	/**
+	 * Updates the books by mark/unmark them as editor pick.
+	 *
+	 * @param editorPicks
+	 *            the editor picks
+	 * @return the future completing once the editor picks are updated
+	 */
+	public CompletableFuture<Void> updateEditorPicks(Set<BookEditorPick> editorPicks);
+
+	/**
+	 * Cleans up the bookstore - remove all the books and the associated data.
+	 *
+	 * @return the future completing once the books are removed
+	 */
+	public CompletableFuture<Void> removeAllBooks();
+
+	/**
+	 * Cleans up the bookstore selectively for the list of provided ISBNs.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs of the books
+	 * @return the future completing once the books are removed
+	 */
+	public CompletableFuture<Void> removeBooks(Set<Integer> isbnSet);
+}
@@ -1,6 +1,9 @@
 package com.acertainbookstore.interfaces;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * {@link BookStoreSerializer} specifies the serialization and de-serialization
@@ -29,4 +32,42 @@ public interface BookStoreSerializer {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	Object deserialize(byte[] bytes) throws IOException;
+
+	/**
+	 * Serializes an object into a stream. Serializers which can write as they
+	 * encode override it so that the whole sequence of bytes is not held at
+	 * once; the stream is flushed but not closed.
+	 *
+	 * @param object
+	 *            the object
+	 * @param out
+	 *            the stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	default void serialize(Object object, OutputStream out) throws IOException {
+		out.write(serialize(object));
+		out.flush();
+	}
+
+	/**
+	 * De-serializes the content of a stream into an object. Serializers which
+	 * can read as they decode override it so that the content is not copied
+	 * into an array first; the stream is not closed.
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the object
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	default Object deserialize(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int length;
+		while ((length = in.read(buffer)) >= 0) {
+			bytes.write(buffer, 0, length);
+		}
+		return deserialize(bytes.toByteArray());
+	}
 }
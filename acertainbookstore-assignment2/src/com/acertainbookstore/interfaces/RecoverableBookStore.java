@@ -0,0 +1,59 @@
+package com.acertainbookstore.interfaces;
+
+import java.io.IOException;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.MappedCatalog;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link RecoverableBookStore} declares the methods a store implements to be
+ * logged by a {@link BookStoreLog} and recovered from it.
+ */
+public interface RecoverableBookStore extends BookStore, StockManager {
+
+	/**
+	 * Sets the log the mutations are appended to. The log must have recovered
+	 * the store before, and the store must not be in use yet.
+	 *
+	 * @param log
+	 *            the log
+	 */
+	void setLog(BookStoreLog log);
+
+	/**
+	 * Puts the books of a checkpoint into an empty store, with all their
+	 * counters and without validating them. The titles and authors stay in
+	 * the catalog's mapping until they are needed.
+	 *
+	 * @param catalog
+	 *            the catalog of the checkpoint
+	 */
+	void restoreCatalog(MappedCatalog catalog);
+
+	/**
+	 * Adds back the copies of a purchase which is undone, as if it had never
+	 * been made: the sale misses of the books are kept, and the copies are
+	 * taken out of the sales of their demand history. Books removed since the
+	 * purchase get nothing back.
+	 *
+	 * @param bookCopies
+	 *            the copies bought
+	 * @param soldAt
+	 *            the time the copies were bought, in milliseconds
+	 * @throws BookStoreException
+	 *             if a number of copies is invalid
+	 */
+	void restoreCopies(Set<BookCopy> bookCopies, long soldAt) throws BookStoreException;
+
+	/**
+	 * Writes a checkpoint of the store to its log and truncates the log. The
+	 * store is locked against writers only while the books are collected.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void checkpoint() throws IOException;
+}
@@ -4,7 +4,9 @@ import java.util.List;
 import java.util.Set;
 
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreException;
 
@@ -43,6 +45,22 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooks() throws BookStoreException;
 
+	/**
+	 * Gets a page of the books in the bookstore, in ascending ISBN order. The
+	 * books are listed page by page without holding the whole catalog at once;
+	 * books added or removed while listing may or may not be listed.
+	 *
+	 * @param cursor
+	 *            the cursor of the previous page, or null for the first page
+	 * @param pageSize
+	 *            the most books on the page, at most
+	 *            {@link com.acertainbookstore.utils.BookStoreConstants#MAX_PAGE_SIZE}
+	 * @return the page
+	 * @throws BookStoreException
+	 *             if the cursor or the page size is invalid
+	 */
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException;
+
 	/**
 	 * Gets the books matching the set of ISBNs given, is different to getBooks
 	 * in the BookStore interface because of the return type of the books.
@@ -64,6 +82,48 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooksInDemand() throws BookStoreException;
 
+	/**
+	 * Gets the books which had a sale miss within a window, at the
+	 * granularity of the buckets of their
+	 * {@link com.acertainbookstore.business.DemandHistory}.
+	 *
+	 * @param windowMillis
+	 *            the milliseconds before now, at most one hour
+	 * @return the books in demand
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException;
+
+	/**
+	 * Gets the books with the most sale misses of the last hour, each sale
+	 * miss weighted by half for every half-life since it happened. Books
+	 * without sale misses in the last hour are left out.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @param halfLifeMillis
+	 *            the half-life in milliseconds
+	 * @return the decayed demand of the books, the most missed first
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException;
+
+	/**
+	 * Gets the copies sold and the sale misses of books within a window, from
+	 * which {@link BookDemand#getSalesPerHour()} gives their sales velocity.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @param windowMillis
+	 *            the milliseconds before now, at most one hour
+	 * @return the demand of the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbns, long windowMillis) throws BookStoreException;
+
 	/**
 	 * Updates the books by mark/unmark them as editor pick.
 	 *
@@ -0,0 +1,366 @@
+package com.acertainbookstore.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link AsyncBookStoreHTTPMessageHandler} answers the messages of a
+ * {@link BookStoreHTTPMessageHandler} without holding Jetty's threads while
+ * the store works. A request is read with non-blocking reads, handed to a
+ * bounded stage of threads of its own which decodes it, invokes the store and
+ * encodes the answer, and the answer is sent with non-blocking writes. Slow
+ * clients and waits for locks thus only hold threads of the stage, sized for
+ * the store, while Jetty's threads keep serving the connections.
+ * <p>
+ * A message arriving while the queue of the stage is full is refused with
+ * 503 (Service Unavailable). Imports and exports are streamed, so they are
+ * still answered on Jetty's thread. So are the messages of replication,
+ * failover, two-phase commit and rebalancing: mutations on the stage wait for
+ * the backup's polls and the decisions of their transactions, which must not
+ * queue behind them.
+ *
+ * @see BookStoreHTTPMessageHandler
+ */
+public class AsyncBookStoreHTTPMessageHandler extends AbstractHandler {
+
+	/** The messages whose contents are streamed rather than held. */
+	private static final Set<BookStoreMessageTag> STREAMED = EnumSet.of(BookStoreMessageTag.IMPORTBOOKS,
+			BookStoreMessageTag.EXPORTBOOKS);
+
+	/** The messages the mutations on the stage may wait for. */
+	private static final Set<BookStoreMessageTag> CONTROL = EnumSet.of(BookStoreMessageTag.SHIPLOG,
+			BookStoreMessageTag.SHIPCHECKPOINT, BookStoreMessageTag.PROMOTE, BookStoreMessageTag.PREPARE,
+			BookStoreMessageTag.COMMIT, BookStoreMessageTag.ABORT, BookStoreMessageTag.OUTCOME,
+			BookStoreMessageTag.GETROUTING, BookStoreMessageTag.SETROUTING, BookStoreMessageTag.FENCE,
+			BookStoreMessageTag.INSTALLBOOKS, BookStoreMessageTag.DROPBOOKS);
+
+	/** The longest a stopping handler waits for the messages taken by the stage, in milliseconds. */
+	private static final long MAX_STOP_WAIT = 10000;
+
+	/** The handler answering the messages. */
+	private final BookStoreHTTPMessageHandler handler;
+
+	/** The threads of the stage. */
+	private final int threads;
+
+	/** The stage, while the handler is started. */
+	private ThreadPoolExecutor stage = null;
+
+	/**
+	 * Instantiates a new {@link AsyncBookStoreHTTPMessageHandler}.
+	 *
+	 * @param handler
+	 *            the handler answering the messages
+	 * @param threads
+	 *            the threads of the stage
+	 */
+	public AsyncBookStoreHTTPMessageHandler(BookStoreHTTPMessageHandler handler, int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("The stage needs a thread");
+		}
+		this.handler = handler;
+		this.threads = threads;
+		addBean(handler);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.eclipse.jetty.server.handler.AbstractHandler#setServer(org.eclipse.
+	 * jetty.server.Server)
+	 */
+	@Override
+	public void setServer(Server server) {
+		super.setServer(server);
+		handler.setServer(server);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.eclipse.jetty.server.handler.AbstractHandler#doStart()
+	 */
+	@Override
+	protected void doStart() throws Exception {
+		stage = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(BookStoreConstants.ASYNC_QUEUE_CAPACITY), runnable -> {
+					Thread thread = new Thread(runnable, "bookstore-stage");
+					thread.setDaemon(true);
+					return thread;
+				});
+		super.doStart();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.eclipse.jetty.server.handler.AbstractHandler#doStop()
+	 */
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		stage.shutdown();
+		stage.awaitTermination(MAX_STOP_WAIT, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.eclipse.jetty.server.Handler#handle(java.lang.String,
+	 * org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest,
+	 * javax.servlet.http.HttpServletResponse)
+	 */
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		BookStoreMessageTag messageTag = BookStoreHTTPMessageHandler.messageTag(request);
+		if (STREAMED.contains(messageTag) || CONTROL.contains(messageTag)) {
+			handler.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		AsyncContext async = request.startAsync();
+
+		// The stage answers every message it takes
+		async.setTimeout(0);
+
+		ServletInputStream in = request.getInputStream();
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		in.setReadListener(new ReadListener() {
+
+			private final byte[] buffer = new byte[4096];
+
+			@Override
+			public void onDataAvailable() throws IOException {
+				int length;
+				while (in.isReady() && (length = in.read(buffer)) >= 0) {
+					content.write(buffer, 0, length);
+				}
+			}
+
+			@Override
+			public void onAllDataRead() throws IOException {
+				dispatch(async, request, response, content.toByteArray());
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				async.complete();
+			}
+		});
+
+		baseRequest.setHandled(true);
+	}
+
+	/**
+	 * Hands a request read to its end to the stage.
+	 *
+	 * @param async
+	 *            the context of the request
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param content
+	 *            the content of the request
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void dispatch(AsyncContext async, HttpServletRequest request, HttpServletResponse response,
+			byte[] content) throws IOException {
+		try {
+			stage.execute(() -> process(async, request, response, content));
+		} catch (RejectedExecutionException ex) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			async.complete();
+		}
+	}
+
+	/**
+	 * Answers a request on the stage and starts writing the answer.
+	 *
+	 * @param async
+	 *            the context of the request
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param content
+	 *            the content of the request
+	 */
+	private void process(AsyncContext async, HttpServletRequest request, HttpServletResponse response,
+			byte[] content) {
+		HeldResponse heldResponse = new HeldResponse(response);
+		try {
+			handler.process(new HeldRequest(request, content), heldResponse);
+			if (heldResponse.errorSent) {
+				async.complete();
+				return;
+			}
+
+			byte[] answer = heldResponse.content.toByteArray();
+			response.setContentLength(answer.length);
+			ServletOutputStream out = response.getOutputStream();
+			out.setWriteListener(new WriteListener() {
+
+				private boolean written = false;
+
+				@Override
+				public void onWritePossible() throws IOException {
+					while (out.isReady()) {
+						if (written) {
+							async.complete();
+							return;
+						}
+						out.write(answer);
+						written = true;
+					}
+				}
+
+				@Override
+				public void onError(Throwable t) {
+					async.complete();
+				}
+			});
+		} catch (IOException | RuntimeException ex) {
+			try {
+				if (!response.isCommitted()) {
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				}
+			} catch (IOException e) {
+				// The client is gone
+			} finally {
+				async.complete();
+			}
+		}
+	}
+
+	/**
+	 * Reads the content of a request from memory.
+	 */
+	private static final class HeldRequest extends HttpServletRequestWrapper {
+
+		/** The stream of the content. */
+		private final ServletInputStream in;
+
+		private HeldRequest(HttpServletRequest request, byte[] content) {
+			super(request);
+			ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+			in = new ServletInputStream() {
+
+				@Override
+				public int read() {
+					return bytes.read();
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) {
+					return bytes.read(buffer, offset, length);
+				}
+
+				@Override
+				public boolean isFinished() {
+					return bytes.available() == 0;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					throw new UnsupportedOperationException("Held requests are read blocking");
+				}
+			};
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			return in;
+		}
+	}
+
+	/**
+	 * Holds the content of a response in memory until it is written without
+	 * blocking. Headers and errors go to the response.
+	 */
+	private static final class HeldResponse extends HttpServletResponseWrapper {
+
+		/** The content. */
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		/** Whether an error was sent instead of the content. */
+		private boolean errorSent = false;
+
+		/** The stream of the content. */
+		private final ServletOutputStream out = new ServletOutputStream() {
+
+			@Override
+			public void write(int b) {
+				content.write(b);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				content.write(bytes, offset, length);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+				throw new UnsupportedOperationException("Held responses are written blocking");
+			}
+		};
+
+		private HeldResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			errorSent = true;
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			errorSent = true;
+			super.sendError(sc);
+		}
+	}
+}
@@ -1,52 +1,129 @@
 package com.acertainbookstore.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.CatalogStream;
 import com.acertainbookstore.business.StockBook;
-import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.acertainbookstore.interfaces.StockManager;
-import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
 import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResultCode;
 import com.acertainbookstore.utils.BookStoreUtility;
-import com.esotericsoftware.kryo.io.Input;
 
 /**
  * {@link BookStoreHTTPMessageHandler} implements the message handler class
  * which is invoked to handle messages received by the
  * {@link BookStoreHTTPServerUtility}. It decodes the HTTP message and invokes
  * the {@link CertainBookStore} server API.
+ * <p>
+ * Request contents are decoded as they are read from the request, and answers
+ * are encoded straight into the response, whose pooled direct buffers Jetty
+ * flushes as they fill up, so a large answer is never held as a whole.
+ * <p>
+ * Contents larger than {@link BookStoreConstants#COMPRESSION_THRESHOLD} are
+ * compressed with a coding the client accepts, and compressed requests are
+ * decompressed as they are read.
+ * <p>
+ * The messages only the members of a deployment send to each other, such as
+ * the shipping of the log to replicas, the promotion of a backup, the
+ * two-phase commit of cross-shard transactions and the moving of books
+ * between shards, are
+ * refused unless they arrive on the internal port set with
+ * {@link #setInternalPort(int)}, which clients are not given.
  * 
  * @see AbstractHandler
  * @see BookStoreHTTPServerUtility
  * @see CertainBookStore
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
+	/** The internal port of a handler which refuses the internal messages on every port. */
+	public static final int NO_INTERNAL_PORT = -1;
+
+	/** The internal port of a handler which answers the internal messages on every port. */
+	public static final int ANY_PORT = 0;
+
 	/** The book store. */
 	private BookStore bookStore = null;
 	
 	/** The stock manager. */
 	private StockManager stockManager = null;
 
-	/** The serializer. */
-	private static ThreadLocal<BookStoreSerializer> serializer;
+	/** The log shipped to replicas, or null. */
+	private BookStoreLog log = null;
+
+	/** The replica keeping the store up to date, or null on a primary. */
+	private BookStoreReplica replica = null;
+
+	/** The participant in cross-shard transactions, or null. */
+	private TransactionParticipant participant = null;
+
+	/** The guard of the store as a shard whose books can move, or null. */
+	private ShardGuard shard = null;
+
+	/** The port the internal messages are answered on. */
+	private volatile int internalPort = NO_INTERNAL_PORT;
+
+	/** Performs the operations of batches. */
+	private final BookStoreOperationPerformer performer;
+
+	/** The coding large responses are compressed with if accepted, or null. */
+	private final BookStoreEncoding encoding = BookStoreEncoding.preferred();
+
+	/** The messages a replica answers. */
+	private static final Set<BookStoreMessageTag> REPLICA_READS = EnumSet.of(BookStoreMessageTag.GETBOOKS,
+			BookStoreMessageTag.GETEDITORPICKS, BookStoreMessageTag.GETTOPRATEDBOOKS);
+
+	/** The messages answered only on the internal port. */
+	private static final Set<BookStoreMessageTag> INTERNAL = EnumSet.of(BookStoreMessageTag.SHIPLOG,
+			BookStoreMessageTag.SHIPCHECKPOINT, BookStoreMessageTag.PROMOTE, BookStoreMessageTag.PREPARE,
+			BookStoreMessageTag.COMMIT, BookStoreMessageTag.ABORT, BookStoreMessageTag.OUTCOME,
+			BookStoreMessageTag.GETROUTING, BookStoreMessageTag.SETROUTING, BookStoreMessageTag.FENCE,
+			BookStoreMessageTag.INSTALLBOOKS, BookStoreMessageTag.DROPBOOKS);
+
+	/** The bytes of log records shipped to a replica with one response. */
+	private static final int MAX_SHIPPED_BYTES = 1024 * 1024;
+
+	/** The longest a fence waits for the transactions on moving books, in milliseconds. */
+	private static final long MAX_FENCE_WAIT = 2 * TransactionParticipant.DEFAULT_TIMEOUT;
+
+	/** The longest a replica's poll is held, in milliseconds. */
+	private static final long MAX_SHIP_WAIT = 10000;
+
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
 
 	/**
 	 * Instantiates a new {@link BookStoreHTTPMessageHandler}.
@@ -55,17 +132,71 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 *            the book store
 	 */
 	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager) {
+		this(bookStore, stockManager, null, null);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} which ships its
+	 * log to replicas, or which is a replica itself.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param log
+	 *            the log shipped to replicas, or null
+	 * @param replica
+	 *            the replica keeping the store up to date, or null on a
+	 *            primary
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager, BookStoreLog log,
+			BookStoreReplica replica) {
+		this(bookStore, stockManager, log, replica, null);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} which also takes
+	 * part in cross-shard transactions.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param log
+	 *            the log shipped to replicas, or null
+	 * @param replica
+	 *            the replica keeping the store up to date, or null on a
+	 *            primary
+	 * @param participant
+	 *            the participant in cross-shard transactions, or null
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager, BookStoreLog log,
+			BookStoreReplica replica, TransactionParticipant participant) {
 		this.bookStore = bookStore;
 		this.stockManager = stockManager;
-
-		// Setup the type of serializer.
-		if (BookStoreConstants.BINARY_SERIALIZATION) {
-			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
-		} else {
-			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
+		this.log = log;
+		this.replica = replica;
+		this.participant = participant;
+		this.performer = new BookStoreOperationPerformer(bookStore, stockManager);
+
+		// A store served through a guard takes part in rebalancing
+		if (stockManager instanceof ShardGuard) {
+			this.shard = (ShardGuard) stockManager;
 		}
 	}
 
+	/**
+	 * Sets the port the internal messages are answered on. The members of the
+	 * deployment must be given the addresses of that port.
+	 *
+	 * @param internalPort
+	 *            the port, {@link #ANY_PORT} to answer them on every port, or
+	 *            {@link #NO_INTERNAL_PORT} to refuse them
+	 */
+	public void setInternalPort(int internalPort) {
+		this.internalPort = internalPort;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -75,24 +206,61 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
 			throws IOException, ServletException {
+		process(request, response);
+
+		// Read what the message left of a streamed request, such as the end of
+		// its chunks, as Jetty closes a connection with unread content
+		drain(baseRequest);
+
+		// Mark the request as handled so that the HTTP response can be sent
+		baseRequest.setHandled(true);
+	}
+
+	/**
+	 * Decodes a message, invokes the store and encodes its answer into the
+	 * response. What the message leaves of the request is not read.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void process(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		BookStoreMessageTag messageTag;
-		String requestURI;
 
-		response.setStatus(HttpServletResponse.SC_OK);
-		requestURI = request.getRequestURI();
+		try {
+			BookStoreEncoding contentEncoding = BookStoreEncoding
+					.of(request.getHeader(HttpHeader.CONTENT_ENCODING.asString()));
+			if (contentEncoding != null) {
+				request = new DecompressedRequest(request, contentEncoding);
+			}
+		} catch (IOException ex) {
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, ex.getMessage());
+			return;
+		}
 
-		// Need to do request multiplexing
-		if (!BookStoreUtility.isEmpty(requestURI) && requestURI.toLowerCase().startsWith("/stock")) {
-			// The request is from the store manager; more sophisticated.
-			// security features could be added here.
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI.substring(6));
-		} else {
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI);
+		CompressedResponse compressedResponse = null;
+		BookStoreEncoding accepted = BookStoreEncoding
+				.negotiate(request.getHeader(HttpHeader.ACCEPT_ENCODING.asString()), encoding);
+		if (accepted != null) {
+			compressedResponse = new CompressedResponse(response, accepted);
+			response = compressedResponse;
 		}
 
+		response.setStatus(HttpServletResponse.SC_OK);
+		messageTag = messageTag(request);
+
 		// The RequestURI before the switch.
 		if (messageTag == null) {
 			System.err.println("No message tag.");
+		} else if (INTERNAL.contains(messageTag) && !isInternal(request)) {
+			refuseExternal(messageTag, response);
+		} else if (messageTag == BookStoreMessageTag.PROMOTE) {
+			promote(response);
+		} else if (replica != null && !replica.isPromoted() && !REPLICA_READS.contains(messageTag)) {
+			refuseOnReplica(messageTag, response);
 		} else {
 			switch (messageTag) {
 			case REMOVEBOOKS:
@@ -115,6 +283,14 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				listBooks(response);
 				break;
 
+			case LISTBOOKPAGE:
+				listBookPage(request, response);
+				break;
+
+			case BATCH:
+				batch(request, response);
+				break;
+
 			case UPDATEEDITORPICKS:
 				updateEditorPicks(request, response);
 				break;
@@ -149,14 +325,421 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				getBooksInDemand(request, response);
 				break;
 
+			case GETRECENTBOOKSINDEMAND:
+			case GETTOPBOOKSINDEMAND:
+			case GETSALESVELOCITY:
+				getDemand(messageTag, request, response);
+				break;
+
+			case IMPORTBOOKS:
+				importBooks(request, response);
+				break;
+
+			case EXPORTBOOKS:
+				exportBooks(request, response);
+				break;
+
+			case SHIPLOG:
+				shipLog(request, response);
+				break;
+
+			case SHIPCHECKPOINT:
+				shipCheckpoint(response);
+				break;
+
+			case PREPARE:
+			case COMMIT:
+			case ABORT:
+			case OUTCOME:
+				takePart(messageTag, request, response);
+				break;
+
+			case GETROUTING:
+			case SETROUTING:
+			case FENCE:
+			case INSTALLBOOKS:
+			case DROPBOOKS:
+				rebalance(messageTag, request, response);
+				break;
+
 			default:
 				System.err.println("Unsupported message tag.");
 				break;
 			}
 		}
 
-		// Mark the request as handled so that the HTTP response can be sent
-		baseRequest.setHandled(true);
+		if (compressedResponse != null) {
+			compressedResponse.finish();
+		}
+	}
+
+	/**
+	 * Gets what performs operations on the store of the handler.
+	 *
+	 * @return the performer
+	 */
+	BookStoreOperationPerformer getPerformer() {
+		return performer;
+	}
+
+	/**
+	 * Gets the message a request carries.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the message tag, or null if the URI names none
+	 */
+	static BookStoreMessageTag messageTag(HttpServletRequest request) {
+		String requestURI = request.getRequestURI();
+
+		// Need to do request multiplexing
+		if (!BookStoreUtility.isEmpty(requestURI) && requestURI.toLowerCase().startsWith("/stock")) {
+			// The request is from the store manager; more sophisticated.
+			// security features could be added here.
+			return BookStoreUtility.convertURItoMessageTag(requestURI.substring(6));
+		}
+		return BookStoreUtility.convertURItoMessageTag(requestURI);
+	}
+
+	/**
+	 * Reads the content of a request to its end.
+	 *
+	 * @param request
+	 *            the request
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void drain(HttpServletRequest request) throws IOException {
+		InputStream in = request.getInputStream();
+		byte[] buffer = new byte[512];
+		while (in.read(buffer) >= 0) {
+			// Discard
+		}
+	}
+
+	/**
+	 * Checks that a replica may answer a read and reports its staleness in the
+	 * response. Does nothing on a primary.
+	 *
+	 * @param bookStoreResponse
+	 *            the response
+	 * @throws BookStoreException
+	 *             if the replica is too far behind its primary
+	 */
+	private void checkStaleness(BookStoreResponse bookStoreResponse) throws BookStoreException {
+		if (replica != null && !replica.isPromoted()) {
+			bookStoreResponse.setStaleness(replica.checkStaleness());
+		}
+	}
+
+	/**
+	 * Checks whether a request arrived on the internal port.
+	 *
+	 * @param request
+	 *            the request
+	 * @return true if the internal messages are answered for the request
+	 */
+	private boolean isInternal(HttpServletRequest request) {
+		int port = internalPort;
+		return port == ANY_PORT || (port != NO_INTERNAL_PORT && request.getLocalPort() == port);
+	}
+
+	/**
+	 * Refuses an internal message which did not arrive on the internal port.
+	 *
+	 * @param messageTag
+	 *            the message
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void refuseExternal(BookStoreMessageTag messageTag, HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		bookStoreResponse.setException(new BookStoreException(BookStoreResultCode.INVALID,
+				messageTag + " is only answered on the internal port"));
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Refuses a message a replica does not answer.
+	 *
+	 * @param messageTag
+	 *            the message
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void refuseOnReplica(BookStoreMessageTag messageTag, HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		bookStoreResponse.setException(
+				new BookStoreException(BookStoreResultCode.READ_ONLY, messageTag + " must be sent to the primary"));
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Promotes the backup to primary, once its primary is silent. The store
+	 * answers every message afterwards.
+	 *
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void promote(HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			if (replica == null) {
+				throw new BookStoreException(BookStoreResultCode.INVALID, "The server is already a primary");
+			}
+			replica.promote();
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Passes a message of the two-phase commit of a cross-shard transaction to
+	 * the participant. The outcome is answered as a list holding a boolean.
+	 *
+	 * @param messageTag
+	 *            the message, PREPARE, COMMIT, ABORT or OUTCOME
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void takePart(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		String transaction = request.getParameter(BookStoreConstants.TRANSACTION_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			if (participant == null) {
+				throw new BookStoreException(BookStoreResultCode.INVALID,
+						"The server takes no part in cross-shard transactions");
+			}
+			switch (messageTag) {
+			case PREPARE:
+				BookStoreMessageTag operation = BookStoreUtility
+						.convertURItoMessageTag("/" + request.getParameter(BookStoreConstants.OPERATION_PARAM));
+				Set<BookCopy> bookCopies = (Set<BookCopy>) serializer.get()
+						.deserialize(request.getInputStream());
+				participant.prepare(transaction, operation, request.getParameter(BookStoreConstants.DECIDER_PARAM),
+						bookCopies);
+				break;
+
+			case COMMIT:
+				participant.commit(transaction);
+				break;
+
+			case ABORT:
+				participant.abort(transaction);
+				break;
+
+			default:
+				bookStoreResponse.setList(Collections.singletonList(participant.getOutcome(transaction)));
+				break;
+			}
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Passes a message of the rebalancing of a cluster to the guard of the
+	 * shard. A fence is answered once the transactions prepared on the
+	 * fenced books are decided.
+	 *
+	 * @param messageTag
+	 *            the message, GETROUTING, SETROUTING, FENCE, INSTALLBOOKS or
+	 *            DROPBOOKS
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void rebalance(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			if (shard == null) {
+				throw new BookStoreException(BookStoreResultCode.INVALID, "The server is not a shard");
+			}
+			switch (messageTag) {
+			case GETROUTING:
+				bookStoreResponse.setList(shard.getRouting());
+				break;
+
+			case SETROUTING:
+				long epoch = Long.parseLong(request.getParameter(BookStoreConstants.EPOCH_PARAM));
+				shard.setRouting(epoch, request.getParameter(BookStoreConstants.SHARD_PARAM),
+						(List<String>) serializer.get().deserialize(request.getInputStream()));
+				break;
+
+			case FENCE:
+				shard.fence((List<String>) serializer.get().deserialize(request.getInputStream()));
+				if (participant != null && !participant.awaitSettled(shard::isFenced, MAX_FENCE_WAIT)) {
+					throw new BookStoreException(BookStoreResultCode.ABORTED,
+							"The transactions on the moving books were not decided in time");
+				}
+				break;
+
+			case INSTALLBOOKS:
+				shard.installBooks((Set<StockBook>) serializer.get().deserialize(request.getInputStream()));
+				break;
+
+			default:
+				shard.dropBooks((Set<Integer>) serializer.get().deserialize(request.getInputStream()));
+				break;
+			}
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		} catch (NumberFormatException ex) {
+			bookStoreResponse.setException(new BookStoreException(BookStoreResultCode.INVALID, "Invalid epoch"));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			bookStoreResponse.setException(new BookStoreException(BookStoreResultCode.ABORTED, "Interrupted"));
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Ships the synced log records after a position to a replica. The response
+	 * is the position after the last synced record, or
+	 * {@link BookStoreLog#NO_RECORD} if the replica must start over from a
+	 * checkpoint, followed by the length of the records and the records.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void shipLog(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (log == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "The store is not logged");
+			return;
+		}
+
+		long position;
+		long wait;
+		try {
+			position = Long.parseLong(request.getParameter(BookStoreConstants.POSITION_PARAM));
+			wait = Math.min(Long.parseLong(request.getParameter(BookStoreConstants.WAIT_PARAM)), MAX_SHIP_WAIT);
+		} catch (NumberFormatException ex) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid position or wait");
+			return;
+		}
+
+		if (Boolean.parseBoolean(request.getParameter(BookStoreConstants.BACKUP_PARAM))) {
+			// A backup polls once it received the records before the position
+			log.acknowledge(position);
+		}
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		long durablePosition;
+		try {
+			durablePosition = log.readRecords(position, MAX_SHIPPED_BYTES, wait, records);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		DataOutputStream out = new DataOutputStream(response.getOutputStream());
+		out.writeLong(durablePosition);
+		out.writeInt(records.size());
+		records.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Ships the latest checkpoint to a replica which starts over.
+	 *
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void shipCheckpoint(HttpServletResponse response) throws IOException {
+		File checkpoint = (log == null) ? null : log.getLatestCheckpoint();
+		if (checkpoint == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no checkpoint");
+			return;
+		}
+
+		try {
+			Files.copy(checkpoint.toPath(), response.getOutputStream());
+		} catch (NoSuchFileException ex) {
+			// Superseded in the meantime, the replica asks again
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * Imports books from the request content as it arrives, so that a chunked
+	 * request is never held in memory as a whole.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void importBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			CatalogStream.Format format = CatalogStream.parseFormat(request.getParameter(BookStoreConstants.FORMAT_PARAM));
+			long numBooks = CatalogStream.importBooks(request.getInputStream(), format, stockManager);
+			bookStoreResponse.setList(new ArrayList<>(Collections.singletonList(numBooks)));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		} catch (IOException ex) {
+			// A malformed stream; the chunks before it stay added
+			bookStoreResponse.setException(new BookStoreException(BookStoreResultCode.INVALID, ex.getMessage()));
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Exports the books. The response has no content length, so it is sent in
+	 * chunks as the books are written.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void exportBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		try {
+			CatalogStream.Format format = CatalogStream.parseFormat(request.getParameter(BookStoreConstants.FORMAT_PARAM));
+			CatalogStream.exportBooks(stockManager, response.getOutputStream(), format);
+		} catch (BookStoreException ex) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+		}
 	}
 
 	/**
@@ -171,9 +754,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void getStockBooksByISBN(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -182,8 +763,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -201,14 +781,14 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
+			checkStaleness(bookStoreResponse);
 			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
 			bookStoreResponse.setList(bookStore.getEditorPicks(numBooks));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -223,19 +803,17 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void getBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
+			checkStaleness(bookStoreResponse);
 			bookStoreResponse.setList(bookStore.getBooks(isbnSet));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -250,9 +828,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void buyBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -261,8 +837,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -277,10 +852,8 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void updateEditorPicks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
 		Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) serializer.get()
-				.deserialize(serializedRequestContent);
+				.deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -289,8 +862,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -309,8 +881,32 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Lists a page of the books, whose cursor is sent along with them.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void listBookPage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		try {
+			int pageSize = BookStoreUtility
+					.convertStringToInt(request.getParameter(BookStoreConstants.PAGE_SIZE_PARAM));
+			BookPage page = stockManager.getBooks(request.getParameter(BookStoreConstants.CURSOR_PARAM), pageSize);
+			bookStoreResponse.setList(page.getBooks());
+			bookStoreResponse.setCursor(page.getNextCursor());
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -325,9 +921,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void addCopies(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<BookCopy> listBookCopies = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		Set<BookCopy> listBookCopies = (Set<BookCopy>) serializer.get().deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -336,8 +930,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -352,9 +945,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void addBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<StockBook> newBooks = (Set<StockBook>) serializer.get().deserialize(serializedRequestContent);
+		Set<StockBook> newBooks = (Set<StockBook>) serializer.get().deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -363,8 +954,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -384,8 +974,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -400,9 +989,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void removeBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
-		Set<Integer> bookSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<Integer> bookSet = (Set<Integer>) serializer.get().deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -411,8 +998,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -427,10 +1013,8 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	@SuppressWarnings("unchecked")
 	private void rateBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
-
 		Set<BookRating> mapRateBookValues = (Set<BookRating>) serializer.get()
-				.deserialize(serializedRequestContent);
+				.deserialize(request.getInputStream());
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -439,8 +1023,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -458,14 +1041,14 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
+			checkStaleness(bookStoreResponse);
 			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
 			bookStoreResponse.setList(bookStore.getTopRatedBooks(numBooks));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
@@ -487,21 +1070,93 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Performs the operations of a batch in order, each answered by its own
+	 * response in the list of the response. An operation which fails does not
+	 * stop the ones after it.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void batch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		List<BookStoreOperation> operations = (List<BookStoreOperation>) serializer.get()
+				.deserialize(request.getInputStream());
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		if (operations == null || operations.size() > BookStoreConstants.MAX_BATCH_SIZE) {
+			bookStoreResponse.setException(new BookStoreException(BookStoreResultCode.INVALID,
+					BookStoreConstants.BATCH_SIZE + (operations == null ? null : operations.size())
+							+ BookStoreConstants.INVALID));
+		} else {
+			List<BookStoreResponse> results = new ArrayList<>(operations.size());
+			for (BookStoreOperation operation : operations) {
+				BookStoreResponse result = new BookStoreResponse();
+				try {
+					performer.perform(operation, result);
+				} catch (BookStoreException ex) {
+					result.setException(ex);
+				}
+				results.add(result);
+			}
+			bookStoreResponse.setList(results);
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 
 	/**
-	 * Gets the serialized request content.
+	 * Gets the books in demand within a window, the top books by decayed
+	 * demand or the sales velocity of books.
 	 *
-	 * @param request the request
-	 * @return the serialized request content
-	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @param messageTag
+	 *            the message, GETRECENTBOOKSINDEMAND, GETTOPBOOKSINDEMAND or
+	 *            GETSALESVELOCITY
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
 	 */
-	private byte[] getSerializedRequestContent(HttpServletRequest request) throws IOException {
-		Input in = new Input(request.getInputStream());
-		byte[] serializedRequestContent = in.readBytes(request.getContentLength());
-		in.close();
-		return serializedRequestContent;
+	@SuppressWarnings("unchecked")
+	private void getDemand(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			switch (messageTag) {
+			case GETRECENTBOOKSINDEMAND:
+				long windowMillis = BookStoreUtility
+						.convertStringToLong(request.getParameter(BookStoreConstants.WINDOW_PARAM));
+				bookStoreResponse.setList(stockManager.getBooksInDemand(windowMillis));
+				break;
+
+			case GETTOPBOOKSINDEMAND:
+				int numBooks = BookStoreUtility
+						.convertStringToInt(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM));
+				long halfLifeMillis = BookStoreUtility
+						.convertStringToLong(request.getParameter(BookStoreConstants.HALF_LIFE_PARAM));
+				bookStoreResponse.setList(stockManager.getTopBooksInDemand(numBooks, halfLifeMillis));
+				break;
+
+			default:
+				Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(request.getInputStream());
+				bookStoreResponse.setList(stockManager.getSalesVelocity(isbnSet,
+						BookStoreUtility.convertStringToLong(request.getParameter(BookStoreConstants.WINDOW_PARAM))));
+				break;
+			}
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		serializer.get().serialize(bookStoreResponse, response.getOutputStream());
 	}
 }
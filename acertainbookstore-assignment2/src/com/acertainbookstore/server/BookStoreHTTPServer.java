@@ -1,9 +1,18 @@
 package com.acertainbookstore.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.acertainbookstore.business.BookStoreLog;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.BookStoreClusterProxy;
 
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import com.acertainbookstore.interfaces.RecoverableBookStore;
 import com.acertainbookstore.utils.BookStoreConstants;
 
 /**
@@ -16,6 +25,12 @@ public class BookStoreHTTPServer {
 	private static final int DEFAULT_PORT = 8081;
 	private static final int MIN_THREADPOOL_SIZE = 10;
 	private static final int MAX_THREADPOOL_SIZE = 100;
+
+	/** The default number of seconds between checkpoints of a logged store. */
+	private static final long DEFAULT_CHECKPOINT_INTERVAL = 300;
+
+	/** The threads per processor a stage adds for mutations waiting for their log. */
+	private static final int LOG_WAITERS_PER_PROCESSOR = 4;
 	
 	/** The constant, defining which locking scheme implementation to use
 	 *  true - single lock 
@@ -39,16 +54,14 @@ public class BookStoreHTTPServer {
 		int listenOnPort = DEFAULT_PORT;
 		
 		BookStoreHTTPMessageHandler handler = null;
-		
-		if (SINGLE_LOCK) {
-			SingleLockConcurrentCertainBookStore bookStore = new SingleLockConcurrentCertainBookStore();
-			/* we pass bookStore to BookStoreHTTPMessageHandler constructor twice, 
-			 * since it implements both interfaces: BookStore and StockManager */
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
+
+		// A router forwards to the shards of a cluster instead of keeping a store
+		BookStoreClusterProxy cluster = openCluster();
+		if (cluster != null) {
+			handler = new BookStoreHTTPMessageHandler(cluster, cluster);
 		} else {
-			TwoLevelLockingConcurrentCertainBookStore bookStore = new TwoLevelLockingConcurrentCertainBookStore();
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
-		}		
+			handler = createStoreHandler();
+		}
 		
 		String serverPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
 
@@ -60,7 +73,252 @@ public class BookStoreHTTPServer {
 			}
 		}
 
+		// The messages between the servers are only answered on the internal port, if set
+		int internalPort = BookStoreHTTPMessageHandler.NO_INTERNAL_PORT;
+		String internalPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_INTERNAL_PORT);
+		if (internalPortString != null) {
+			try {
+				internalPort = Integer.parseInt(internalPortString);
+			} catch (NumberFormatException ex) {
+				internalPort = BookStoreHTTPMessageHandler.NO_INTERNAL_PORT;
+			}
+			if (internalPort <= 0 || internalPort == listenOnPort) {
+				System.err.println("Unsupported internal port, internal messages are refused");
+				internalPort = BookStoreHTTPMessageHandler.NO_INTERNAL_PORT;
+			}
+		}
+		handler.setInternalPort(internalPort);
+
+		// The store is also served over the binary protocol if the property is set
+		String tcpPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_TCP_PORT);
+		if (tcpPortString != null) {
+			startTCPServer(handler, tcpPortString, stageSize(cluster != null));
+		}
+
+		// The messages are answered by a stage of their own if the property is set
+		AbstractHandler served = handler;
+		if (Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_ASYNC))) {
+			served = new AsyncBookStoreHTTPMessageHandler(handler, stageSize(cluster != null));
+		}
+
 		QueuedThreadPool threadpool = new QueuedThreadPool(MAX_THREADPOOL_SIZE, MIN_THREADPOOL_SIZE);
-		BookStoreHTTPServerUtility.createServer(listenOnPort, handler, threadpool);
+		BookStoreHTTPServerUtility.createServer(listenOnPort, internalPort, served, threadpool);
+	}
+
+	/**
+	 * Starts serving the store of a handler over the binary protocol. A
+	 * replica is only served over HTTP, which refuses the writes.
+	 *
+	 * @param handler
+	 *            the handler
+	 * @param tcpPortString
+	 *            the port
+	 * @param threads
+	 *            the threads of the stage
+	 */
+	private static void startTCPServer(BookStoreHTTPMessageHandler handler, String tcpPortString, int threads) {
+		if (System.getProperty(BookStoreConstants.PROPERTY_KEY_REPLICA_OF) != null) {
+			System.err.println("Replicas are not served over the binary protocol");
+			return;
+		}
+
+		try {
+			new BookStoreTCPServer(handler.getPerformer(), Integer.parseInt(tcpPortString), threads).start();
+		} catch (NumberFormatException ex) {
+			System.err.println("Unsupported TCP port");
+		} catch (IOException ex) {
+			System.err.println("Could not serve the binary protocol: " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Sizes a stage answering the messages off the I/O threads for the
+	 * engine. A single lock lets one message into the store at a time, so
+	 * threads beyond the processors would only wait for it; finer locks let
+	 * messages waiting for different books overlap; a router mostly waits for
+	 * its shards. The mutations of a logged store wait for their group commit
+	 * and their backup after releasing their locks, so the stage has threads
+	 * for them besides.
+	 *
+	 * @param router
+	 *            whether the server forwards to the shards of a cluster
+	 * @return the threads of the stage
+	 */
+	private static int stageSize(boolean router) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		if (router) {
+			return MAX_THREADPOOL_SIZE;
+		}
+		int size = SINGLE_LOCK ? processors : 4 * processors;
+		if (System.getProperty(BookStoreConstants.PROPERTY_KEY_LOG_DIRECTORY) != null) {
+			size += LOG_WAITERS_PER_PROCESSOR * processors;
+		}
+		return Math.min(size, MAX_THREADPOOL_SIZE);
+	}
+
+	/**
+	 * Creates the store of the server, recovering it from its log or
+	 * replicating it from its primary, and the handler serving it.
+	 *
+	 * @return the handler
+	 */
+	private static BookStoreHTTPMessageHandler createStoreHandler() {
+		// Ratings are applied without serializing raters if the property is set
+		boolean relaxedRatings = Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_RELAXED_RATINGS));
+
+		// Catalog loads and removals do not block customers if the property is set
+		boolean stagedCatalog = Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_STAGED_CATALOG));
+
+		RecoverableBookStore bookStore;
+
+		if (SINGLE_LOCK) {
+			bookStore = new SingleLockConcurrentCertainBookStore(relaxedRatings);
+		} else {
+			bookStore = new TwoLevelLockingConcurrentCertainBookStore(relaxedRatings, stagedCatalog,
+					TwoLevelLockingConcurrentCertainBookStore.DEFAULT_ESCALATION_THRESHOLD,
+					TwoLevelLockingConcurrentCertainBookStore.DEFAULT_ESCALATION_FRACTION);
+		}
+
+		// A replica applies the log of its primary instead of keeping its own
+		BookStoreReplica replica = startReplica(bookStore);
+		BookStoreLog log = (replica == null) ? openLog(bookStore) : null;
+		if (log != null) {
+			bookStore.setLog(log);
+
+			String checkpointIntervalString = System.getProperty(BookStoreConstants.PROPERTY_KEY_CHECKPOINT_INTERVAL);
+			long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+			if (checkpointIntervalString != null) {
+				try {
+					checkpointInterval = Long.parseLong(checkpointIntervalString);
+				} catch (NumberFormatException ex) {
+					System.err.println("Unsupported checkpoint interval");
+				}
+			}
+			log.scheduleCheckpoints(checkpointInterval, TimeUnit.SECONDS);
+
+			// Records of asynchronous mutations are synced on a clean shutdown
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					log.close();
+				} catch (IOException ex) {
+					System.err.println("Could not sync the log: " + ex.getMessage());
+				}
+			}));
+		}
+
+		if (replica != null) {
+			/* we pass bookStore to BookStoreHTTPMessageHandler constructor twice, 
+			 * since it implements both interfaces: BookStore and StockManager */
+			return new BookStoreHTTPMessageHandler(bookStore, bookStore, null, replica);
+		}
+
+		// A primary may be a shard whose books move while it runs
+		ShardGuard shard = new ShardGuard(bookStore, bookStore);
+		return new BookStoreHTTPMessageHandler(shard, shard, log, null, openParticipant(bookStore, shard));
+	}
+
+	/**
+	 * Creates the participant of the store in cross-shard transactions, which
+	 * logs its commit decisions next to the write-ahead log if there is one.
+	 *
+	 * @param bookStore
+	 *            the store
+	 * @param shard
+	 *            the guard of the store as a shard
+	 * @return the participant
+	 */
+	private static TransactionParticipant openParticipant(RecoverableBookStore bookStore, ShardGuard shard) {
+		String logDirectory = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOG_DIRECTORY);
+		try {
+			return new TransactionParticipant(bookStore, shard, (logDirectory == null) ? null : new File(logDirectory),
+					TransactionParticipant.DEFAULT_TIMEOUT);
+		} catch (IOException ex) {
+			System.err.println("Could not open the transaction logs: " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Connects to the shards given by the shards property, for a router.
+	 *
+	 * @return the cluster, or null if the server keeps a store
+	 */
+	private static BookStoreClusterProxy openCluster() {
+		String shards = System.getProperty(BookStoreConstants.PROPERTY_KEY_SHARDS);
+		if (shards == null) {
+			return null;
+		}
+
+		try {
+			return new BookStoreClusterProxy(Arrays.asList(shards.split(",")));
+		} catch (Exception ex) {
+			System.err.println("Could not connect to the shards: " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts replicating the primary given by the replica property into the
+	 * store.
+	 *
+	 * @param bookStore
+	 *            the store of the replica
+	 * @return the replica, or null if the server is a primary
+	 */
+	private static BookStoreReplica startReplica(RecoverableBookStore bookStore) {
+		String primaryAddress = System.getProperty(BookStoreConstants.PROPERTY_KEY_REPLICA_OF);
+		if (primaryAddress == null) {
+			return null;
+		}
+
+		long maxStaleness = BookStoreReplica.DEFAULT_MAX_STALENESS;
+		String maxStalenessString = System.getProperty(BookStoreConstants.PROPERTY_KEY_MAX_STALENESS);
+		if (maxStalenessString != null) {
+			try {
+				maxStaleness = Long.parseLong(maxStalenessString);
+			} catch (NumberFormatException ex) {
+				System.err.println("Unsupported maximum staleness");
+			}
+		}
+
+		boolean backup = Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_BACKUP));
+		BookStoreReplica replica = new BookStoreReplica(primaryAddress, bookStore, maxStaleness, backup);
+		try {
+			replica.start();
+		} catch (Exception ex) {
+			System.err.println("Could not start the replica: " + ex.getMessage());
+			System.exit(1);
+		}
+		return replica;
+	}
+
+	/**
+	 * Opens the write-ahead log in the directory given by the log directory
+	 * property and recovers the store from it.
+	 *
+	 * @param bookStore
+	 *            the store to recover
+	 * @return the log, or null if the store is not logged
+	 */
+	private static BookStoreLog openLog(RecoverableBookStore bookStore) {
+		String logDirectory = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOG_DIRECTORY);
+		if (logDirectory == null) {
+			return null;
+		}
+
+		try {
+			BookStoreLog log = new BookStoreLog(new File(logDirectory),
+					BookStoreLog.parseTags(System.getProperty(BookStoreConstants.PROPERTY_KEY_LOG_SYNC)), bookStore);
+			log.setBackupRequired(
+					Boolean.parseBoolean(System.getProperty(BookStoreConstants.PROPERTY_KEY_REQUIRE_BACKUP)));
+			return log;
+		} catch (IOException | IllegalArgumentException ex) {
+			System.err.println("Could not open the log: " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
 	}
 }
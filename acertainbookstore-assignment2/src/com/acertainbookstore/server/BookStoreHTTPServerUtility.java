@@ -4,13 +4,20 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import com.acertainbookstore.utils.BookStoreConstants;
+
 /**
- * {@link BookStoreHTTPServerUtility} creates Jetty server instances.
+ * {@link BookStoreHTTPServerUtility} creates Jetty server instances. Their
+ * connectors accept HTTP/1.1 as well as cleartext HTTP/2 (h2c), either with
+ * prior knowledge or upgraded from HTTP/1.1.
  */
 public class BookStoreHTTPServerUtility {
 
@@ -31,14 +38,34 @@ public class BookStoreHTTPServerUtility {
 	 * @return true, if successful
 	 */
 	public static void createServer(int port, AbstractHandler handler, QueuedThreadPool threadpool) {
+		createServer(port, BookStoreHTTPMessageHandler.NO_INTERNAL_PORT, handler, threadpool);
+	}
+
+	/**
+	 * Creates a server on the port, and on the internal port if there is one,
+	 * and blocks the calling thread.
+	 *
+	 * @param port
+	 *            the port
+	 * @param internalPort
+	 *            the internal port, or
+	 *            {@link BookStoreHTTPMessageHandler#NO_INTERNAL_PORT}
+	 * @param handler
+	 *            the handler
+	 * @param threadpool
+	 *            the thread pool, or null
+	 */
+	public static void createServer(int port, int internalPort, AbstractHandler handler,
+			QueuedThreadPool threadpool) {
 		Server server = null;
 		if (threadpool != null) {
 			server = new Server(threadpool);
-			ServerConnector myConnector = new ServerConnector(server);
-			myConnector.setPort(port);
-			server.addConnector(myConnector);
 		} else {
-			server = new Server(port);
+			server = new Server();
+		}
+		server.addConnector(createConnector(server, port));
+		if (internalPort > 0) {
+			server.addConnector(createConnector(server, internalPort));
 		}
 
 		if (handler != null) {
@@ -69,6 +96,7 @@ public class BookStoreHTTPServerUtility {
 		InetAddress inetIpAddress;
 		InetSocketAddress address;
 		Server server;
+		ServerConnector connector;
 
 		if (ipAddress == null) {
 			return false;
@@ -82,7 +110,10 @@ public class BookStoreHTTPServerUtility {
 			return false;
 		}
 
-		server = new Server(address);
+		server = new Server();
+		connector = createConnector(server, address.getPort());
+		connector.setHost(inetIpAddress.getHostAddress());
+		server.addConnector(connector);
 
 		if (handler != null) {
 			server.setHandler(handler);
@@ -97,4 +128,24 @@ public class BookStoreHTTPServerUtility {
 
 		return true;
 	}
+
+	/**
+	 * Creates a connector accepting HTTP/1.1 and cleartext HTTP/2 on the port.
+	 * Many requests from a proxy are multiplexed over one HTTP/2 connection.
+	 *
+	 * @param server
+	 *            the server
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @return the connector
+	 */
+	public static ServerConnector createConnector(Server server, int port) {
+		HttpConfiguration configuration = new HttpConfiguration();
+		HTTP2CServerConnectionFactory http2 = new HTTP2CServerConnectionFactory(configuration);
+		http2.setMaxConcurrentStreams(BookStoreConstants.MAX_CONCURRENT_STREAMS);
+
+		ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(configuration), http2);
+		connector.setPort(port);
+		return connector;
+	}
 }
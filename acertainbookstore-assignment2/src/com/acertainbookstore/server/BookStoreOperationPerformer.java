@@ -0,0 +1,184 @@
+package com.acertainbookstore.server;
+
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResultCode;
+
+/**
+ * {@link BookStoreOperationPerformer} performs a {@link BookStoreOperation} on
+ * the store, for the operations of a batch and the messages of the binary
+ * transport.
+ *
+ * @see BookStoreHTTPMessageHandler
+ * @see BookStoreTCPServer
+ */
+final class BookStoreOperationPerformer {
+
+	/** The book store. */
+	private final BookStore bookStore;
+
+	/** The stock manager. */
+	private final StockManager stockManager;
+
+	/**
+	 * Instantiates a new {@link BookStoreOperationPerformer}.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 */
+	BookStoreOperationPerformer(BookStore bookStore, StockManager stockManager) {
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+	}
+
+	/**
+	 * Performs an operation.
+	 *
+	 * @param operation
+	 *            the operation
+	 * @param bookStoreResponse
+	 *            the response, which gets the list and the cursor answering
+	 *            the operation
+	 * @throws BookStoreException
+	 *             if the operation fails or is not supported
+	 */
+	@SuppressWarnings("unchecked")
+	void perform(BookStoreOperation operation, BookStoreResponse bookStoreResponse) throws BookStoreException {
+		if (operation == null || operation.getMessageTag() == null) {
+			throw new BookStoreException(BookStoreResultCode.INVALID,
+					BookStoreConstants.OPERATION + null + BookStoreConstants.INVALID);
+		}
+
+		Object argument = operation.getArgument();
+		try {
+			switch (operation.getMessageTag()) {
+			case BUYBOOKS:
+				bookStore.buyBooks((Set<BookCopy>) argument);
+				return;
+
+			case RATEBOOKS:
+				bookStore.rateBooks((Set<BookRating>) argument);
+				return;
+
+			case GETBOOKS:
+				bookStoreResponse.setList(bookStore.getBooks((Set<Integer>) argument));
+				return;
+
+			case GETTOPRATEDBOOKS:
+				bookStoreResponse.setList(bookStore.getTopRatedBooks(numBooks(argument)));
+				return;
+
+			case GETEDITORPICKS:
+				bookStoreResponse.setList(bookStore.getEditorPicks(numBooks(argument)));
+				return;
+
+			case ADDBOOKS:
+				stockManager.addBooks((Set<StockBook>) argument);
+				return;
+
+			case ADDCOPIES:
+				stockManager.addCopies((Set<BookCopy>) argument);
+				return;
+
+			case LISTBOOKS:
+				bookStoreResponse.setList(stockManager.getBooks());
+				return;
+
+			case LISTBOOKPAGE:
+				List<?> page = arguments(operation, 2);
+				if (!(page.get(1) instanceof Integer)) {
+					throw new BookStoreException(BookStoreResultCode.INVALID,
+							BookStoreConstants.PAGE_SIZE + page.get(1) + BookStoreConstants.INVALID);
+				}
+				BookPage bookPage = stockManager.getBooks((String) page.get(0), (Integer) page.get(1));
+				bookStoreResponse.setList(bookPage.getBooks());
+				bookStoreResponse.setCursor(bookPage.getNextCursor());
+				return;
+
+			case GETSTOCKBOOKSBYISBN:
+				bookStoreResponse.setList(stockManager.getBooksByISBN((Set<Integer>) argument));
+				return;
+
+			case GETBOOKSINDEMAND:
+				bookStoreResponse.setList(stockManager.getBooksInDemand());
+				return;
+
+			case GETRECENTBOOKSINDEMAND:
+				bookStoreResponse.setList(stockManager.getBooksInDemand(millis(argument, BookStoreConstants.WINDOW)));
+				return;
+
+			case GETTOPBOOKSINDEMAND:
+				List<?> top = arguments(operation, 2);
+				bookStoreResponse.setList(stockManager.getTopBooksInDemand(numBooks(top.get(0)),
+						millis(top.get(1), BookStoreConstants.HALF_LIFE)));
+				return;
+
+			case GETSALESVELOCITY:
+				List<?> velocity = arguments(operation, 2);
+				bookStoreResponse.setList(stockManager.getSalesVelocity((Set<Integer>) velocity.get(0),
+						millis(velocity.get(1), BookStoreConstants.WINDOW)));
+				return;
+
+			case UPDATEEDITORPICKS:
+				stockManager.updateEditorPicks((Set<BookEditorPick>) argument);
+				return;
+
+			case REMOVEALLBOOKS:
+				stockManager.removeAllBooks();
+				return;
+
+			case REMOVEBOOKS:
+				stockManager.removeBooks((Set<Integer>) argument);
+				return;
+
+			default:
+				break;
+			}
+		} catch (ClassCastException ex) {
+			// The argument, or an element of it, is not what the operation takes
+		}
+		throw new BookStoreException(BookStoreResultCode.INVALID,
+				BookStoreConstants.OPERATION + operation.getMessageTag() + BookStoreConstants.INVALID);
+	}
+
+	private static int numBooks(Object argument) throws BookStoreException {
+		if (!(argument instanceof Integer)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID,
+					BookStoreConstants.NUM_BOOKS + argument + BookStoreConstants.INVALID);
+		}
+		return (Integer) argument;
+	}
+
+	private static long millis(Object argument, String name) throws BookStoreException {
+		if (!(argument instanceof Long)) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, name + argument + BookStoreConstants.INVALID);
+		}
+		return (Long) argument;
+	}
+
+	/**
+	 * Gets the arguments of an operation taking several, sent as a list.
+	 */
+	private static List<?> arguments(BookStoreOperation operation, int size) throws BookStoreException {
+		Object arguments = operation.getArgument();
+		if (!(arguments instanceof List) || ((List<?>) arguments).size() != size) {
+			throw new BookStoreException(BookStoreResultCode.INVALID,
+					BookStoreConstants.OPERATION + operation.getMessageTag() + BookStoreConstants.INVALID);
+		}
+		return (List<?>) arguments;
+	}
+}
@@ -0,0 +1,482 @@
+package com.acertainbookstore.server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpStatus;
+
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.MappedCatalog;
+import com.acertainbookstore.client.BookStoreClientConstants;
+import com.acertainbookstore.interfaces.RecoverableBookStore;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResultCode;
+
+/**
+ * {@link BookStoreReplica} keeps a store up to date with the log of a primary
+ * server, so that the store can answer customer reads in place of the primary.
+ * <p>
+ * A receiver thread asks the primary for the records after the last received
+ * one; the primary holds the request until a record is synced or the poll
+ * times out. The receiver queues the records and polls again at once, while
+ * an applier thread applies the queued records through the store's API. A
+ * replica which is new, or whose records were truncated by a checkpoint or
+ * did not apply, starts over from the primary's latest checkpoint.
+ * <p>
+ * The staleness of the replica is the time since it last applied every record
+ * the primary had synced, measured from before it asked. Reads are refused
+ * once the staleness exceeds its bound, so that clients fall back to the
+ * primary.
+ * <p>
+ * A backup is a replica whose polls acknowledge the records received so far,
+ * and the primary answers its mutations once they are acknowledged. The next
+ * poll leaves as soon as the records arrived, so one round trip acknowledges
+ * every mutation synced in the meantime. Once the primary is silent for
+ * {@link #FAILOVER_TIMEOUT} the backup can be promoted: it applies what it
+ * received and becomes a primary without a log. A backup cut off from a
+ * primary which is still alive must not be promoted, since both would accept
+ * writes.
+ */
+public class BookStoreReplica {
+
+	/** The default bound on the staleness of reads, in milliseconds. */
+	public static final long DEFAULT_MAX_STALENESS = 1000;
+
+	/** The milliseconds the primary holds a poll without records. */
+	private static final long POLL_WAIT = 100;
+
+	/** The milliseconds a primary must be silent before its backup takes over. */
+	public static final long FAILOVER_TIMEOUT = 500;
+
+	/** The milliseconds to wait after a failed poll. */
+	private static final long RETRY_DELAY = 1000;
+
+	/** The staleness of a replica which was never synced. */
+	private static final long NEVER = Long.MIN_VALUE;
+
+	/** The batches received but not yet applied, at most. */
+	private static final int MAX_QUEUED_BATCHES = 64;
+
+	/** The address of the primary. */
+	private final String primaryAddress;
+
+	/** The store of the replica. */
+	private final RecoverableBookStore store;
+
+	/** The bound on the staleness of reads, in milliseconds. */
+	private final long maxStaleness;
+
+	/** The client polling the primary. */
+	private final HttpClient client;
+
+	/** Whether the polls acknowledge the received records. */
+	private final boolean backup;
+
+	/** The thread polling the primary. */
+	private final Thread receiver;
+
+	/** The thread applying the records. */
+	private final Thread applier;
+
+	/** The records received but not yet applied. */
+	private final BlockingQueue<Batch> batches = new LinkedBlockingQueue<>(MAX_QUEUED_BATCHES);
+
+	/** The position after the last received record, only used by the receiver. */
+	private long position = 0;
+
+	/** The position after the last applied or discarded record. */
+	private long appliedPosition = 0;
+
+	/** The nano time before the last poll which caught up, or NEVER. */
+	private volatile long syncedAt = NEVER;
+
+	/** The nano time of the last answer of the primary, or NEVER. */
+	private volatile long heardAt = NEVER;
+
+	/** Whether records failed to apply since the last restart. */
+	private volatile boolean diverged = false;
+
+	/** Whether the replica is stopped. */
+	private volatile boolean stopped = false;
+
+	/** Whether the backup was promoted to primary. */
+	private volatile boolean promoted = false;
+
+	/**
+	 * Instantiates a new {@link BookStoreReplica}.
+	 *
+	 * @param primaryAddress
+	 *            the address of the primary, e.g. http://localhost:8081
+	 * @param store
+	 *            the store of the replica, which must be empty and not logged
+	 * @param maxStaleness
+	 *            the bound on the staleness of reads, in milliseconds
+	 */
+	public BookStoreReplica(String primaryAddress, RecoverableBookStore store, long maxStaleness) {
+		this(primaryAddress, store, maxStaleness, false);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreReplica}.
+	 *
+	 * @param primaryAddress
+	 *            the address of the primary, e.g. http://localhost:8081
+	 * @param store
+	 *            the store of the replica, which must be empty and not logged
+	 * @param maxStaleness
+	 *            the bound on the staleness of reads, in milliseconds
+	 * @param backup
+	 *            whether the replica is the backup of the primary
+	 */
+	public BookStoreReplica(String primaryAddress, RecoverableBookStore store, long maxStaleness, boolean backup) {
+		this.primaryAddress = primaryAddress;
+		this.store = store;
+		this.maxStaleness = maxStaleness;
+		this.backup = backup;
+		this.client = new HttpClient();
+		this.client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		BookStoreEncoding.addDecoders(this.client);
+		this.receiver = new Thread(this::run, "bookstore-replica");
+		this.receiver.setDaemon(true);
+		this.applier = new Thread(this::apply, "bookstore-replica-applier");
+		this.applier.setDaemon(true);
+	}
+
+	/**
+	 * Starts tailing the log of the primary.
+	 *
+	 * @throws Exception
+	 *             if the client cannot be started
+	 */
+	public void start() throws Exception {
+		client.start();
+		applier.start();
+		receiver.start();
+	}
+
+	/**
+	 * Stops tailing the log of the primary.
+	 */
+	public void stop() {
+		stopped = true;
+		receiver.interrupt();
+		applier.interrupt();
+		try {
+			receiver.join();
+			applier.join();
+			client.stop();
+		} catch (Exception ex) {
+			System.err.println("Could not stop the replica: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Promotes the backup to primary once the primary was silent for
+	 * {@link #FAILOVER_TIMEOUT}: stops tailing its log and applies the records
+	 * received so far. Does nothing if the backup was already promoted.
+	 *
+	 * @throws BookStoreException
+	 *             if the replica is not a backup, never caught up with its
+	 *             primary, or still hears from it
+	 */
+	public synchronized void promote() throws BookStoreException {
+		if (promoted) {
+			return;
+		}
+		if (!backup) {
+			throw new BookStoreException(BookStoreResultCode.READ_ONLY, "Only a backup can take over");
+		}
+
+		long heard = heardAt;
+		if (heard == NEVER || syncedAt == NEVER) {
+			throw new BookStoreException(BookStoreResultCode.READ_ONLY, "The backup never caught up with its primary");
+		}
+		long silence;
+		while ((silence = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - heard)) < FAILOVER_TIMEOUT) {
+			try {
+				Thread.sleep(FAILOVER_TIMEOUT - silence);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new BookStoreException(BookStoreResultCode.READ_ONLY, "Interrupted while taking over");
+			}
+			if (heardAt != heard) {
+				throw new BookStoreException(BookStoreResultCode.READ_ONLY, "The primary is still alive");
+			}
+		}
+
+		stopped = true;
+		receiver.interrupt();
+		try {
+			receiver.join();
+			// The applier drains the queue before it stops
+			applier.interrupt();
+			applier.join();
+			client.stop();
+		} catch (Exception ex) {
+			System.err.println("Could not stop the backup: " + ex.getMessage());
+		}
+		if (diverged) {
+			throw new BookStoreException(BookStoreResultCode.READ_ONLY, "The backup diverged from its primary");
+		}
+		promoted = true;
+	}
+
+	/**
+	 * Checks whether the backup was promoted to primary.
+	 *
+	 * @return true if the store answers every message
+	 */
+	public boolean isPromoted() {
+		return promoted;
+	}
+
+	/**
+	 * Gets the staleness of the replica.
+	 *
+	 * @return the milliseconds the replica may lag behind the primary, or
+	 *         {@link Long#MAX_VALUE} if it never caught up
+	 */
+	public long getStaleness() {
+		long synced = syncedAt;
+		return synced == NEVER ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - synced);
+	}
+
+	/**
+	 * Gets the bound on the staleness of reads.
+	 *
+	 * @return the bound, in milliseconds
+	 */
+	public long getMaxStaleness() {
+		return maxStaleness;
+	}
+
+	/**
+	 * Checks that the replica may answer a read.
+	 *
+	 * @return the staleness of the answer, in milliseconds
+	 * @throws BookStoreException
+	 *             if the replica is too far behind
+	 */
+	public long checkStaleness() throws BookStoreException {
+		long staleness = getStaleness();
+		if (staleness > maxStaleness) {
+			throw new BookStoreException(BookStoreResultCode.STALE,
+					"The replica is more than " + maxStaleness + " ms behind its primary");
+		}
+		return staleness;
+	}
+
+	/**
+	 * Polls the primary and queues its records until stopped.
+	 */
+	private void run() {
+		boolean restart = true;
+		while (!stopped) {
+			try {
+				if (restart || diverged) {
+					awaitApplied();
+					restart();
+					restart = false;
+					diverged = false;
+				}
+				restart = !poll();
+			} catch (IOException | InterruptedException | ExecutionException | TimeoutException ex) {
+				if (stopped) {
+					return;
+				}
+				System.err.println("Could not replicate from " + primaryAddress + ": " + ex.getMessage());
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException interrupted) {
+					// Only stop ends the replica
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the queued records until stopped, and then the records still
+	 * queued. Once records fail to apply the following ones are discarded
+	 * until the receiver starts over.
+	 */
+	private void apply() {
+		while (true) {
+			Batch batch;
+			try {
+				batch = batches.take();
+			} catch (InterruptedException ex) {
+				if (!stopped) {
+					continue;
+				}
+				batch = batches.poll();
+				if (batch == null) {
+					return;
+				}
+			}
+
+			if (!diverged) {
+				try {
+					BookStoreLog.applyRecords(batch.records, store);
+					if (batch.end == batch.primaryPosition) {
+						syncedAt = batch.polledAt;
+					}
+				} catch (IOException ex) {
+					System.err.println("The replica diverged from its primary: " + ex.getMessage());
+					diverged = true;
+				}
+			}
+			synchronized (this) {
+				appliedPosition = batch.end;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until the applier is done with every received record.
+	 */
+	private void awaitApplied() throws InterruptedException {
+		synchronized (this) {
+			while (appliedPosition != position) {
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * Asks the primary for the records after the last received one, which
+	 * acknowledges them on a backup, and queues them.
+	 *
+	 * @return false if the replica must start over from a checkpoint
+	 */
+	private boolean poll() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		long polledAt = System.nanoTime();
+		String urlString = primaryAddress + "/stock/" + BookStoreMessageTag.SHIPLOG + "?"
+				+ BookStoreConstants.POSITION_PARAM + "=" + position + "&" + BookStoreConstants.WAIT_PARAM + "="
+				+ POLL_WAIT + (backup ? "&" + BookStoreConstants.BACKUP_PARAM + "=true" : "");
+		long primaryPosition;
+		byte[] records;
+		InputStream shipped = get(urlString);
+		if (shipped == null) {
+			throw new IOException("The primary has no log");
+		}
+		try (DataInputStream in = new DataInputStream(shipped)) {
+			primaryPosition = in.readLong();
+			if (primaryPosition == BookStoreLog.NO_RECORD) {
+				return false;
+			}
+			// A single record may be larger than the bytes asked for
+			records = new byte[in.readInt()];
+			in.readFully(records);
+		}
+		heardAt = System.nanoTime();
+
+		position += records.length;
+		batches.put(new Batch(records, position, primaryPosition, polledAt));
+		return true;
+	}
+
+	/**
+	 * Sends a request to the primary and streams the content of its response.
+	 *
+	 * @return the content, or null if the primary has nothing to send
+	 */
+	private InputStream get(String urlString)
+			throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		InputStreamResponseListener listener = new InputStreamResponseListener();
+		client.newRequest(urlString).send(listener);
+		Response response = listener.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS,
+				TimeUnit.MILLISECONDS);
+		InputStream in = listener.getInputStream();
+		if (response.getStatus() == HttpStatus.OK_200) {
+			return in;
+		}
+		in.close();
+		if (response.getStatus() == HttpStatus.NOT_FOUND_404) {
+			return null;
+		}
+		throw new IOException("The primary answered with status " + response.getStatus());
+	}
+
+	/**
+	 * Empties the store and loads the latest checkpoint of the primary into
+	 * it. Reads are refused until the replica catches up again.
+	 */
+	private void restart() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		syncedAt = NEVER;
+		try {
+			store.removeAllBooks();
+		} catch (BookStoreException ex) {
+			throw new IOException("Cannot empty the replica", ex);
+		}
+		setPosition(0);
+
+		String urlString = primaryAddress + "/stock/" + BookStoreMessageTag.SHIPCHECKPOINT;
+		try (InputStream in = get(urlString)) {
+			if (in == null) {
+				return; // The whole log is still there
+			}
+
+			// The mapping outlives the file
+			File file = File.createTempFile("bookstore-replica", ".checkpoint");
+			try {
+				Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				MappedCatalog catalog = new MappedCatalog(file);
+				store.restoreCatalog(catalog);
+				setPosition(catalog.getPosition());
+			} finally {
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the position the receiver and the applier start from.
+	 */
+	private synchronized void setPosition(long position) {
+		this.position = position;
+		appliedPosition = position;
+	}
+
+	/**
+	 * {@link Batch} holds the records of one poll until they are applied.
+	 */
+	private static final class Batch {
+
+		/** The records. */
+		private final byte[] records;
+
+		/** The position after the records. */
+		private final long end;
+
+		/** The position after the last record the primary had synced. */
+		private final long primaryPosition;
+
+		/** The nano time before the poll. */
+		private final long polledAt;
+
+		private Batch(byte[] records, long end, long primaryPosition, long polledAt) {
+			this.records = records;
+			this.end = end;
+			this.primaryPosition = primaryPosition;
+			this.polledAt = polledAt;
+		}
+	}
+}
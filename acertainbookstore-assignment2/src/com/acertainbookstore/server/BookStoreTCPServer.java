@@ -0,0 +1,375 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreTCPServer} serves the store over a binary protocol on raw
+ * TCP, next to HTTP, without the cost of parsing headers and routing URIs for
+ * small messages. Every message is a frame:
+ *
+ * <pre>
+ * request:  length (int) | request id (int) | serialized BookStoreOperation
+ * response: length (int) | request id (int) | serialized BookStoreResponse
+ * </pre>
+ *
+ * where the length counts the bytes after it. A client may send many requests
+ * on a connection without waiting for their responses; the responses carry
+ * the ids of their requests and may come in another order.
+ * <p>
+ * One thread multiplexes the connections with a {@link Selector}, reading and
+ * writing without blocking, and hands the requests to a bounded stage of
+ * threads which invoke the store. A request arriving while the queue of the
+ * stage is full is answered with an exception.
+ *
+ * @see BookStoreOperationPerformer
+ */
+public class BookStoreTCPServer {
+
+	/** The size of the header of a frame, after its length. */
+	public static final int HEADER_SIZE = 4;
+
+	/** The longest a stopping server waits for the requests taken by the stage, in milliseconds. */
+	private static final long MAX_STOP_WAIT = 10000;
+
+	/** The size of the buffer a connection reads into at first. */
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	/** Performs the requests. */
+	private final BookStoreOperationPerformer performer;
+
+	/** The port. */
+	private final int port;
+
+	/** The threads of the stage. */
+	private final int threads;
+
+	/** The selector, while the server is started. */
+	private Selector selector = null;
+
+	/** The channel accepting the connections, while the server is started. */
+	private ServerSocketChannel serverChannel = null;
+
+	/** The stage, while the server is started. */
+	private ThreadPoolExecutor stage = null;
+
+	/** The connections with responses to write. */
+	private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+
+	/** The serializers, one per thread and shared by all instances. */
+	private static final ThreadLocal<BookStoreSerializer> serializer = ThreadLocal
+			.withInitial(BookStoreUtility::newSerializer);
+
+	/**
+	 * Instantiates a new {@link BookStoreTCPServer}.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @param threads
+	 *            the threads of the stage
+	 */
+	public BookStoreTCPServer(BookStore bookStore, StockManager stockManager, int port, int threads) {
+		this(new BookStoreOperationPerformer(bookStore, stockManager), port, threads);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreTCPServer} serving the store of an
+	 * HTTP handler.
+	 *
+	 * @param performer
+	 *            performs the requests
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @param threads
+	 *            the threads of the stage
+	 */
+	BookStoreTCPServer(BookStoreOperationPerformer performer, int port, int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("The stage needs a thread");
+		}
+		this.performer = performer;
+		this.port = port;
+		this.threads = threads;
+	}
+
+	/**
+	 * Starts accepting connections.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public synchronized void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		stage = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(BookStoreConstants.ASYNC_QUEUE_CAPACITY), runnable -> {
+					Thread thread = new Thread(runnable, "bookstore-tcp-stage");
+					thread.setDaemon(true);
+					return thread;
+				});
+
+		Thread selectorThread = new Thread(this::select, "bookstore-tcp-selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * Gets the port the server accepts connections on.
+	 *
+	 * @return the port
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public synchronized int getLocalPort() throws IOException {
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Stops the server and closes its connections.
+	 */
+	public synchronized void stop() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException | ClosedSelectorException ex) {
+			System.err.println("Could not close the connections: " + ex.getMessage());
+		}
+
+		stage.shutdown();
+		try {
+			stage.awaitTermination(MAX_STOP_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Accepts, reads and writes as the channels get ready, until the selector
+	 * is closed.
+	 */
+	private void select() {
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+
+				// Listen for the room to write the responses done meanwhile
+				Connection connection;
+				while ((connection = writable.poll()) != null) {
+					if (connection.key.isValid()) {
+						connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							connection = (Connection) key.attachment();
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+						}
+					} catch (IOException ex) {
+						// The client is gone or sent a broken frame
+						close(key);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException ex) {
+			// The server is stopped
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ex) {
+			// Closed anyway
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection();
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	/**
+	 * Performs a request on the stage and queues its response.
+	 *
+	 * @param connection
+	 *            the connection of the request
+	 * @param requestId
+	 *            the id of the request
+	 * @param content
+	 *            the serialized operation
+	 */
+	private void perform(Connection connection, int requestId, byte[] content) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		try {
+			performer.perform((BookStoreOperation) serializer.get().deserialize(content), bookStoreResponse);
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		} catch (IOException | RuntimeException ex) {
+			bookStoreResponse.setException(new BookStoreException("Could not perform the request", ex));
+		}
+		respond(connection, requestId, bookStoreResponse);
+	}
+
+	/**
+	 * Queues a response to be written by the selector thread.
+	 *
+	 * @param connection
+	 *            the connection of the request
+	 * @param requestId
+	 *            the id of the request
+	 * @param bookStoreResponse
+	 *            the response
+	 */
+	private void respond(Connection connection, int requestId, BookStoreResponse bookStoreResponse) {
+		byte[] content;
+		try {
+			content = serializer.get().serialize(bookStoreResponse);
+		} catch (IOException ex) {
+			BookStoreResponse failure = new BookStoreResponse();
+			failure.setException(new BookStoreException("Serialization error", ex));
+			respond(connection, requestId, failure);
+			return;
+		}
+
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + HEADER_SIZE + content.length);
+		frame.putInt(HEADER_SIZE + content.length).putInt(requestId).put(content).flip();
+		connection.responses.add(frame);
+		writable.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * A connection, read and written by the selector thread only.
+	 */
+	private final class Connection {
+
+		/** The key of the channel. */
+		private SelectionKey key;
+
+		/** The bytes read and not yet taken as frames, ready to be written to. */
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		/** The responses to write, added by the stage. */
+		private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Reads what the channel has and hands the complete requests to the
+		 * stage.
+		 *
+		 * @throws IOException
+		 *             if the channel is closed or a frame is broken
+		 */
+		private void read() throws IOException {
+			if (((SocketChannel) key.channel()).read(in) < 0) {
+				throw new IOException("The connection is closed");
+			}
+
+			in.flip();
+			while (in.remaining() >= Integer.BYTES) {
+				int length = in.getInt(in.position());
+				if (length < HEADER_SIZE || length > BookStoreConstants.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (in.remaining() < Integer.BYTES + length) {
+					if (Integer.BYTES + length > in.capacity()) {
+						// The frame does not fit: grow the buffer for its rest
+						ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + length);
+						larger.put(in);
+						in = larger;
+						return;
+					}
+					break;
+				}
+
+				in.getInt();
+				int requestId = in.getInt();
+				byte[] content = new byte[length - HEADER_SIZE];
+				in.get(content);
+				try {
+					stage.execute(() -> perform(this, requestId, content));
+				} catch (RejectedExecutionException ex) {
+					BookStoreResponse busy = new BookStoreResponse();
+					busy.setException(new BookStoreException(BookStoreConstants.SERVER_BUSY));
+					respond(this, requestId, busy);
+				}
+			}
+			in.compact();
+		}
+
+		/**
+		 * Writes as many queued responses as the channel takes, and stops
+		 * listening for room to write once they are all written.
+		 *
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private void write() throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			ByteBuffer frame;
+			while ((frame = responses.peek()) != null) {
+				channel.write(frame);
+				if (frame.hasRemaining()) {
+					return;
+				}
+				responses.poll();
+			}
+
+			// A response queued meanwhile brings the connection back to the selector
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+}
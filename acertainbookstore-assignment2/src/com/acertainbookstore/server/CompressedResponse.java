@@ -0,0 +1,154 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.http.HttpHeader;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreEncoding;
+import com.acertainbookstore.utils.CompressingOutputStream;
+
+/**
+ * {@link CompressedResponse} compresses the content of a response with the
+ * coding negotiated with the client once it grows past
+ * {@link BookStoreConstants#COMPRESSION_THRESHOLD}, announcing it with the
+ * Content-Encoding header. Smaller contents are sent as they are.
+ * <p>
+ * The content must be completed with {@link #finish()}.
+ *
+ * @see BookStoreHTTPMessageHandler
+ * @see CompressingOutputStream
+ */
+public class CompressedResponse extends HttpServletResponseWrapper {
+
+	/** The stream of the content, or null until it is asked for. */
+	private CompressingServletOutputStream out = null;
+
+	/** The coding. */
+	private final BookStoreEncoding encoding;
+
+	/**
+	 * Instantiates a new {@link CompressedResponse}.
+	 *
+	 * @param response
+	 *            the response
+	 * @param encoding
+	 *            the coding accepted by the client
+	 */
+	public CompressedResponse(HttpServletResponse response, BookStoreEncoding encoding) {
+		super(response);
+		this.encoding = encoding;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see javax.servlet.ServletResponseWrapper#getOutputStream()
+	 */
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			HttpServletResponse response = (HttpServletResponse) getResponse();
+			out = new CompressingServletOutputStream(
+					new CompressingOutputStream(encoding, BookStoreConstants.COMPRESSION_THRESHOLD, coding -> {
+						if (coding != null) {
+							response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), coding.getName());
+						}
+						return response.getOutputStream();
+					}));
+		}
+		return out;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see javax.servlet.http.HttpServletResponseWrapper#sendError(int,
+	 * java.lang.String)
+	 */
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		discard();
+		super.sendError(sc, msg);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see javax.servlet.http.HttpServletResponseWrapper#sendError(int)
+	 */
+	@Override
+	public void sendError(int sc) throws IOException {
+		discard();
+		super.sendError(sc);
+	}
+
+	/**
+	 * Sends what is left of the content. The response is not closed.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void finish() throws IOException {
+		if (out != null) {
+			out.content.finish();
+		}
+	}
+
+	/**
+	 * Drops the content held back, unless part of it was sent already.
+	 */
+	private void discard() {
+		if (out != null && !out.content.isOpened()) {
+			out = null;
+		}
+	}
+
+	/**
+	 * Exposes a {@link CompressingOutputStream} as the stream of a response.
+	 */
+	private static final class CompressingServletOutputStream extends ServletOutputStream {
+
+		/** The content. */
+		private final CompressingOutputStream content;
+
+		private CompressingServletOutputStream(CompressingOutputStream content) {
+			this.content = content;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			content.write(b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			content.write(bytes, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			content.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			content.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			throw new UnsupportedOperationException("Compressed responses are written blocking");
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import com.acertainbookstore.utils.BookStoreEncoding;
+
+/**
+ * {@link DecompressedRequest} decompresses the content of a request sent with
+ * a Content-Encoding header as it is read.
+ *
+ * @see BookStoreHTTPMessageHandler
+ * @see BookStoreEncoding
+ */
+public class DecompressedRequest extends HttpServletRequestWrapper {
+
+	/** The coding of the content. */
+	private final BookStoreEncoding encoding;
+
+	/** The stream of the content, or null until it is asked for. */
+	private ServletInputStream in = null;
+
+	/**
+	 * Instantiates a new {@link DecompressedRequest}.
+	 *
+	 * @param request
+	 *            the request
+	 * @param encoding
+	 *            the coding of the content
+	 */
+	public DecompressedRequest(HttpServletRequest request, BookStoreEncoding encoding) {
+		super(request);
+		this.encoding = encoding;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see javax.servlet.ServletRequestWrapper#getInputStream()
+	 */
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+		if (in == null) {
+			ServletInputStream raw = getRequest().getInputStream();
+			InputStream content = encoding.decompress(raw);
+			in = new ServletInputStream() {
+
+				@Override
+				public int read() throws IOException {
+					return content.read();
+				}
+
+				@Override
+				public int read(byte[] bytes, int offset, int length) throws IOException {
+					return content.read(bytes, offset, length);
+				}
+
+				@Override
+				public boolean isFinished() {
+					return raw.isFinished();
+				}
+
+				@Override
+				public boolean isReady() {
+					return raw.isReady();
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					throw new UnsupportedOperationException("Compressed requests are read blocking");
+				}
+			};
+		}
+		return in;
+	}
+}
@@ -0,0 +1,750 @@
+package com.acertainbookstore.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToIntFunction;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResultCode;
+import com.acertainbookstore.utils.ConsistentHashRing;
+
+/**
+ * {@link ShardGuard} serves a store as a shard of a cluster whose books can
+ * move between shards while the cluster is in use.
+ * <p>
+ * The guard knows the routing of the cluster: the shards of its
+ * {@link ConsistentHashRing}, the name of this shard on the ring, and the
+ * epoch of the routing, which grows with every rebalancing. Requests naming
+ * ISBNs the shard does not own are refused with
+ * {@link BookStoreResultCode#MOVED}, so that clients fetch the routing again.
+ * Catalog-wide queries only answer the books the shard owns, so that books
+ * copied in or not dropped yet are not seen twice.
+ * <p>
+ * A rebalancing copies the moving books to their new shards while traffic
+ * continues, then fences the shard: writes to the ISBNs the next routing
+ * moves away are refused, once the writes in flight are done, until the next
+ * routing is installed. Without a routing the shard owns every ISBN.
+ * <p>
+ * The guard also keeps the books a {@link TransactionParticipant} prepared
+ * from the other requests until the transaction is decided. A prepared part
+ * holds its ISBNs once the requests using them are done; requests naming a
+ * held ISBN wait for the hold to be released, so that buyers are not refused
+ * copies only reserved and the stock manager never sees them, and the books
+ * cannot be removed before the outcome is applied. Catalog-wide requests of
+ * the stock manager wait until nothing is held. The reads of customers show
+ * no stock and do not wait.
+ */
+public class ShardGuard implements BookStore, StockManager {
+
+	/** The longest a request waits for the holds on its books, in milliseconds. */
+	public static final long MAX_HOLD_WAIT = 2 * TransactionParticipant.DEFAULT_TIMEOUT;
+
+	/** The book store. */
+	private final BookStore bookStore;
+
+	/** The stock manager. */
+	private final StockManager stockManager;
+
+	/** Held by writes while they check the fence, and by the fence to drain them. */
+	private final ReadWriteLock fenceLock = new ReentrantReadWriteLock();
+
+	/** The ring of the routing, or null if this shard owns every ISBN. */
+	private volatile ConsistentHashRing ring = null;
+
+	/** The ring of the next routing while the shard is fenced, or null. */
+	private volatile ConsistentHashRing fence = null;
+
+	/** The name of this shard on the ring. */
+	private volatile String self = null;
+
+	/** The epoch of the routing. */
+	private volatile long epoch = 0;
+
+	/** The monitor of the holds and of the requests using books. */
+	private final Object holdMonitor = new Object();
+
+	/** The transactions holding ISBNs, by ISBN. Guarded by holdMonitor. */
+	private final Map<Integer, String> holders = new HashMap<>();
+
+	/** The holds waiting for ISBNs, by ISBN. Guarded by holdMonitor. */
+	private final Map<Integer, Integer> wanted = new HashMap<>();
+
+	/** The requests using ISBNs, by ISBN. Guarded by holdMonitor. */
+	private final Map<Integer, Integer> users = new HashMap<>();
+
+	/** The holds waiting. Guarded by holdMonitor. */
+	private int numWaitingHolds = 0;
+
+	/** The catalog-wide requests in flight. Guarded by holdMonitor. */
+	private int numCatalogUsers = 0;
+
+	/**
+	 * Instantiates a new {@link ShardGuard}.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 */
+	public ShardGuard(BookStore bookStore, StockManager stockManager) {
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+	}
+
+	/**
+	 * Gets the routing of the cluster.
+	 *
+	 * @return the epoch of the routing followed by the list of shards, which
+	 *         is empty if no routing was installed
+	 */
+	public synchronized List<Object> getRouting() {
+		ConsistentHashRing current = ring;
+		List<Object> routing = new ArrayList<>();
+		routing.add(epoch);
+		routing.add((current == null) ? new ArrayList<String>() : new ArrayList<>(current.getShards()));
+		return routing;
+	}
+
+	/**
+	 * Installs a routing and lifts the fence.
+	 *
+	 * @param routingEpoch
+	 *            the epoch of the routing, at least the current one
+	 * @param shardName
+	 *            the name of this shard on the ring
+	 * @param shards
+	 *            the shards of the ring
+	 * @throws BookStoreException
+	 *             if the routing is older than the current one
+	 */
+	public synchronized void setRouting(long routingEpoch, String shardName, List<String> shards)
+			throws BookStoreException {
+		if (routingEpoch < epoch) {
+			throw new BookStoreException(BookStoreResultCode.INVALID,
+					"The routing " + routingEpoch + " is older than " + epoch);
+		}
+		ConsistentHashRing next = new ConsistentHashRing(shards);
+		fenceLock.writeLock().lock();
+		try {
+			ring = next;
+			self = shardName;
+			epoch = routingEpoch;
+			fence = null;
+		} finally {
+			fenceLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Fences the writes to the ISBNs a routing moves away from this shard, and
+	 * waits for the writes in flight.
+	 *
+	 * @param shards
+	 *            the shards of the next routing
+	 */
+	public synchronized void fence(List<String> shards) {
+		ConsistentHashRing next = new ConsistentHashRing(shards);
+		fenceLock.writeLock().lock();
+		try {
+			fence = next;
+		} finally {
+			fenceLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether an ISBN moves away from this shard with the fenced
+	 * routing.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return true if the shard is fenced and the ISBN moves away
+	 */
+	public boolean isFenced(int isbn) {
+		ConsistentHashRing next = fence;
+		return next != null && !next.shardOf(isbn).equals(self);
+	}
+
+	/**
+	 * Holds ISBNs for a prepared transaction, once the requests using them
+	 * are done, until the hold is released. New requests naming the ISBNs
+	 * wait from the moment the hold waits.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @param isbns
+	 *            the ISBNs
+	 * @param timeoutMillis
+	 *            the longest to wait, in milliseconds
+	 * @throws BookStoreException
+	 *             if the ISBNs could not be held in time
+	 */
+	public void hold(String transaction, Set<Integer> isbns, long timeoutMillis) throws BookStoreException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (holdMonitor) {
+			numWaitingHolds++;
+			count(wanted, isbns, 1);
+			try {
+				while (numCatalogUsers > 0 || isHeldByOther(transaction, isbns) || isCounted(users, isbns)) {
+					awaitHolds(deadline, "The books of " + transaction + " could not be held in time");
+				}
+				for (Integer isbn : isbns) {
+					holders.put(isbn, transaction);
+				}
+			} finally {
+				numWaitingHolds--;
+				count(wanted, isbns, -1);
+				holdMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Releases the ISBNs a transaction holds.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 */
+	public void release(String transaction) {
+		synchronized (holdMonitor) {
+			if (holders.values().removeIf(transaction::equals)) {
+				holdMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Puts copies of books into the store as they are, replacing the books
+	 * with the same ISBNs, whether or not the shard owns them yet.
+	 *
+	 * @param books
+	 *            the books, with all their counters
+	 * @throws BookStoreException
+	 *             if the books cannot be added
+	 */
+	public void installBooks(Set<StockBook> books) throws BookStoreException {
+		Set<Integer> isbns = new HashSet<>();
+		for (StockBook book : books) {
+			isbns.add(book.getISBN());
+		}
+		dropBooks(isbns);
+		stockManager.addBooks(books);
+	}
+
+	/**
+	 * Removes the books with some ISBNs from the store, whether or not the
+	 * shard owns them. ISBNs not in the store are ignored.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @throws BookStoreException
+	 *             if the books cannot be removed
+	 */
+	public void dropBooks(Set<Integer> isbns) throws BookStoreException {
+		Set<Integer> present = new HashSet<>();
+		for (StockBook book : stockManager.getBooks()) {
+			if (isbns.contains(book.getISBN())) {
+				present.add(book.getISBN());
+			}
+		}
+		if (!present.isEmpty()) {
+			stockManager.removeBooks(present);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> booksToBuy) throws BookStoreException {
+		Set<Integer> isbns = enter(booksToBuy, BookCopy::getISBN);
+		fenceLock.readLock().lock();
+		try {
+			checkWrite(booksToBuy, BookCopy::getISBN);
+			bookStore.buyBooks(booksToBuy);
+		} finally {
+			fenceLock.readLock().unlock();
+			leave(isbns);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		Set<Integer> isbns = enter(bookRating, BookRating::getISBN);
+		fenceLock.readLock().lock();
+		try {
+			checkWrite(bookRating, BookRating::getISBN);
+			bookStore.rateBooks(bookRating);
+		} finally {
+			fenceLock.readLock().unlock();
+			leave(isbns);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		checkOwned(isbnSet, Integer::intValue);
+		return bookStore.getBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		return owned(bookStore.getTopRatedBooks(numBooks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		return owned(bookStore.getEditorPicks(numBooks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		Set<Integer> isbns = enter(bookSet, StockBook::getISBN);
+		fenceLock.readLock().lock();
+		try {
+			checkWrite(bookSet, StockBook::getISBN);
+			stockManager.addBooks(bookSet);
+		} finally {
+			fenceLock.readLock().unlock();
+			leave(isbns);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		Set<Integer> isbns = enter(bookCopiesSet, BookCopy::getISBN);
+		fenceLock.readLock().lock();
+		try {
+			checkWrite(bookCopiesSet, BookCopy::getISBN);
+			stockManager.addCopies(bookCopiesSet);
+		} finally {
+			fenceLock.readLock().unlock();
+			leave(isbns);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		enterCatalog();
+		try {
+			return owned(stockManager.getBooks());
+		} finally {
+			leaveCatalog();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(java.lang.
+	 * String, int)
+	 */
+	@Override
+	public BookPage getBooks(String cursor, int pageSize) throws BookStoreException {
+		enterCatalog();
+		try {
+			// The cursor still moves past the books left out
+			BookPage page = stockManager.getBooks(cursor, pageSize);
+			return new BookPage(owned(page.getBooks()), page.getNextCursor());
+		} finally {
+			leaveCatalog();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException {
+		Set<Integer> used = enter(isbns, Integer::intValue);
+		try {
+			checkOwned(isbns, Integer::intValue);
+			return stockManager.getBooksByISBN(isbns);
+		} finally {
+			leave(used);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		enterCatalog();
+		try {
+			return owned(stockManager.getBooksInDemand());
+		} finally {
+			leaveCatalog();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(long)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(long windowMillis) throws BookStoreException {
+		enterCatalog();
+		try {
+			return owned(stockManager.getBooksInDemand(windowMillis));
+		} finally {
+			leaveCatalog();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getTopBooksInDemand(int,
+	 * long)
+	 */
+	@Override
+	public List<BookDemand> getTopBooksInDemand(int numBooks, long halfLifeMillis) throws BookStoreException {
+		enterCatalog();
+		try {
+			if (ring == null || numBooks <= 0) {
+				return stockManager.getTopBooksInDemand(numBooks, halfLifeMillis);
+			}
+			// Books which left the shard may still be ranked, they make room
+			List<BookDemand> owned = new ArrayList<>();
+			for (BookDemand demand : stockManager.getTopBooksInDemand(Integer.MAX_VALUE, halfLifeMillis)) {
+				if (owns(demand.getISBN()) && owned.size() < numBooks) {
+					owned.add(demand);
+				}
+			}
+			return owned;
+		} finally {
+			leaveCatalog();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getSalesVelocity(java.util.
+	 * Set, long)
+	 */
+	@Override
+	public List<BookDemand> getSalesVelocity(Set<Integer> isbns, long windowMillis) throws BookStoreException {
+		Set<Integer> used = enter(isbns, Integer::intValue);
+		try {
+			checkOwned(isbns, Integer::intValue);
+			return stockManager.getSalesVelocity(isbns, windowMillis);
+		} finally {
+			leave(used);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		Set<Integer> isbns = enter(editorPicks, BookEditorPick::getISBN);
+		fenceLock.readLock().lock();
+		try {
+			checkWrite(editorPicks, BookEditorPick::getISBN);
+			stockManager.updateEditorPicks(editorPicks);
+		} finally {
+			fenceLock.readLock().unlock();
+			leave(isbns);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		enterCatalog();
+		fenceLock.readLock().lock();
+		try {
+			if (fence != null) {
+				throw moved("The shard is being rebalanced");
+			}
+			if (ring == null) {
+				stockManager.removeAllBooks();
+				return;
+			}
+
+			// Books copied in before they are owned stay until they are dropped
+			Set<Integer> isbns = new HashSet<>();
+			for (StockBook book : owned(stockManager.getBooks())) {
+				isbns.add(book.getISBN());
+			}
+			if (!isbns.isEmpty()) {
+				stockManager.removeBooks(isbns);
+			}
+		} finally {
+			fenceLock.readLock().unlock();
+			leaveCatalog();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		Set<Integer> isbns = enter(isbnSet, Integer::intValue);
+		fenceLock.readLock().lock();
+		try {
+			checkWrite(isbnSet, Integer::intValue);
+			stockManager.removeBooks(isbnSet);
+		} finally {
+			fenceLock.readLock().unlock();
+			leave(isbns);
+		}
+	}
+
+	/**
+	 * Waits until no transaction holds, or waits to hold, the ISBNs of the
+	 * items of a request, and counts the request as using them.
+	 *
+	 * @return the ISBNs, to be passed to {@link #leave(Set)} once the request
+	 *         is done
+	 * @throws BookStoreException
+	 *             if the ISBNs are still held after {@link #MAX_HOLD_WAIT}
+	 */
+	private <E> Set<Integer> enter(Collection<E> items, ToIntFunction<E> isbnOf) throws BookStoreException {
+		Set<Integer> isbns = new HashSet<>();
+		if (items != null) {
+			for (E item : items) {
+				if (item != null) {
+					isbns.add(isbnOf.applyAsInt(item));
+				}
+			}
+		}
+		long deadline = System.currentTimeMillis() + MAX_HOLD_WAIT;
+		synchronized (holdMonitor) {
+			while (isHeldByOther(null, isbns) || isCounted(wanted, isbns)) {
+				awaitHolds(deadline, "The books are held by an undecided transaction");
+			}
+			count(users, isbns, 1);
+		}
+		return isbns;
+	}
+
+	/**
+	 * Counts a request as done with the ISBNs it used.
+	 */
+	private void leave(Set<Integer> isbns) {
+		synchronized (holdMonitor) {
+			count(users, isbns, -1);
+			holdMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until no transaction holds, or waits to hold, any ISBN, and counts
+	 * the catalog-wide request.
+	 *
+	 * @throws BookStoreException
+	 *             if ISBNs are still held after {@link #MAX_HOLD_WAIT}
+	 */
+	private void enterCatalog() throws BookStoreException {
+		long deadline = System.currentTimeMillis() + MAX_HOLD_WAIT;
+		synchronized (holdMonitor) {
+			while (!holders.isEmpty() || numWaitingHolds > 0) {
+				awaitHolds(deadline, "Books are held by an undecided transaction");
+			}
+			numCatalogUsers++;
+		}
+	}
+
+	/**
+	 * Counts a catalog-wide request as done.
+	 */
+	private void leaveCatalog() {
+		synchronized (holdMonitor) {
+			numCatalogUsers--;
+			holdMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for a change of the holds until a deadline. Guarded by
+	 * holdMonitor.
+	 *
+	 * @throws BookStoreException
+	 *             if the deadline passed or the thread is interrupted
+	 */
+	private void awaitHolds(long deadline, String message) throws BookStoreException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new BookStoreException(BookStoreResultCode.ABORTED, message);
+		}
+		try {
+			holdMonitor.wait(remaining);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreResultCode.ABORTED, "Interrupted while waiting for held books");
+		}
+	}
+
+	/**
+	 * Checks whether a transaction other than the given one holds an ISBN.
+	 * Guarded by holdMonitor.
+	 */
+	private boolean isHeldByOther(String transaction, Set<Integer> isbns) {
+		for (Integer isbn : isbns) {
+			String holder = holders.get(isbn);
+			if (holder != null && !holder.equals(transaction)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether an ISBN is counted. Guarded by holdMonitor.
+	 */
+	private static boolean isCounted(Map<Integer, Integer> counts, Set<Integer> isbns) {
+		for (Integer isbn : isbns) {
+			if (counts.containsKey(isbn)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds to the counts of ISBNs, dropping the counts which reach zero.
+	 * Guarded by holdMonitor.
+	 */
+	private static void count(Map<Integer, Integer> counts, Set<Integer> isbns, int delta) {
+		for (Integer isbn : isbns) {
+			counts.merge(isbn, delta, (count, added) -> (count + added == 0) ? null : count + added);
+		}
+	}
+
+	/**
+	 * Checks that this shard owns the ISBN of every item of a write, and that
+	 * none is fenced. Null input is left to the store to refuse.
+	 *
+	 * @throws BookStoreException
+	 *             if an ISBN is not owned or fenced
+	 */
+	<E> void checkWrite(Collection<E> items, ToIntFunction<E> isbnOf) throws BookStoreException {
+		checkOwned(items, isbnOf);
+		if (fence == null || items == null) {
+			return;
+		}
+		for (E item : items) {
+			if (item != null && isFenced(isbnOf.applyAsInt(item))) {
+				throw moved("The ISBN " + isbnOf.applyAsInt(item) + " is moving to another shard");
+			}
+		}
+	}
+
+	/**
+	 * Checks that this shard owns the ISBN of every item of a request.
+	 */
+	private <E> void checkOwned(Collection<E> items, ToIntFunction<E> isbnOf) throws BookStoreException {
+		if (ring == null || items == null) {
+			return;
+		}
+		for (E item : items) {
+			if (item != null && !owns(isbnOf.applyAsInt(item))) {
+				throw moved("The ISBN " + isbnOf.applyAsInt(item) + " belongs to another shard");
+			}
+		}
+	}
+
+	/**
+	 * Keeps the books this shard owns.
+	 */
+	private <B extends Book> List<B> owned(List<B> books) {
+		if (ring == null) {
+			return books;
+		}
+		List<B> owned = new ArrayList<>(books.size());
+		for (B book : books) {
+			if (owns(book.getISBN())) {
+				owned.add(book);
+			}
+		}
+		return owned;
+	}
+
+	private boolean owns(int isbn) {
+		ConsistentHashRing current = ring;
+		return current == null || current.shardOf(isbn).equals(self);
+	}
+
+	private BookStoreException moved(String message) {
+		return new BookStoreException(BookStoreResultCode.MOVED, message + " (routing " + epoch + ")");
+	}
+}
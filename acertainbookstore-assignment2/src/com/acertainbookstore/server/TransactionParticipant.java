@@ -0,0 +1,779 @@
+package com.acertainbookstore.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.RecoverableBookStore;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResultCode;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link TransactionParticipant} takes part in the two-phase commit of a
+ * buyBooks or addCopies spanning the shards of a cluster.
+ * <p>
+ * A prepare holds the ISBNs of its part in the {@link ShardGuard} of the
+ * store until the outcome is applied, so that the other requests on those
+ * books wait for the decision. A purchase is applied right away, so that the
+ * copies are reserved, and restored if the transaction aborts; added copies
+ * are validated, and added on commit. An outcome which cannot be applied,
+ * e.g. because the store's log refuses it, keeps the books held and is
+ * applied again until it succeeds.
+ * <p>
+ * With a log directory, a part is logged and synced before the participant
+ * votes to commit it, and again once its outcome is applied, so that a
+ * restarted participant still knows the parts it prepared and applies their
+ * outcomes. A participant failing right after the store applied a prepare or
+ * an outcome, and before logging it, loses or repeats that step.
+ * <p>
+ * One participant of every transaction, the decider, holds its outcome. The
+ * coordinator commits the decider first, which logs the decision before
+ * applying its part, and then the others. The protocol presumes abort: only
+ * commits are logged, and a transaction the decider knows no commit of is
+ * aborted. A prepared transaction which is not decided in time is aborted by
+ * the decider, and resolved by asking the decider on the other participants,
+ * so that a lost coordinator never leaves copies reserved.
+ */
+public class TransactionParticipant {
+
+	/** The default milliseconds a prepared transaction waits for a decision. */
+	public static final long DEFAULT_TIMEOUT = 10000;
+
+	/** The milliseconds a commit decision is remembered. */
+	private static final long DECISION_RETENTION = TimeUnit.DAYS.toMillis(1);
+
+	/** The name of the decision log in the log directory. */
+	private static final String DECISION_LOG = "decisions.log";
+
+	/** The name of the log of the prepared parts in the log directory. */
+	private static final String PREPARE_LOG = "prepared.log";
+
+	/** The kind of the record of a prepared part. */
+	private static final byte PREPARED_RECORD = 0;
+
+	/** The kind of the record of a part whose outcome is applied. */
+	private static final byte SETTLED_RECORD = 1;
+
+	/** The store. */
+	private final RecoverableBookStore store;
+
+	/** The guard of the shard, which holds the books of the prepared parts. */
+	private final ShardGuard guard;
+
+	/** The milliseconds a prepared transaction waits for a decision. */
+	private final long timeoutMillis;
+
+	/** The decision log, or null if the decisions are not durable. */
+	private final File decisionFile;
+
+	/** The open decision log, or null. */
+	private FileOutputStream decisionLog = null;
+
+	/** The log of the prepared parts, or null if they are not durable. */
+	private final File prepareFile;
+
+	/** The open log of the prepared parts, or null. */
+	private FileOutputStream prepareLog = null;
+
+	/** The prepared transactions by id. */
+	private final Map<String, Prepared> prepared = new HashMap<>();
+
+	/** The parts whose outcome is being applied. */
+	private final Set<Prepared> applying = new HashSet<>();
+
+	/** The committed transactions this participant decided, by id. */
+	private final Map<String, Long> committed = new HashMap<>();
+
+	/** The proxies of the deciders asked for outcomes, by address. */
+	private final Map<String, StockManagerHTTPProxy> deciders = new HashMap<>();
+
+	/** Resolves the transactions which timed out. */
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * A transaction prepared on this participant.
+	 */
+	private static final class Prepared {
+
+		/** The operation, BUYBOOKS or ADDCOPIES. */
+		final BookStoreMessageTag operation;
+
+		/** The copies of this participant's part. */
+		final Set<BookCopy> bookCopies;
+
+		/** The address of the decider, or null if this is the decider. */
+		final String decider;
+
+		/** The time the part was prepared, and a purchase made, in milliseconds. */
+		final long preparedAt;
+
+		/** The time at which the transaction times out. */
+		long deadline;
+
+		/** Whether the part is applied or validated. */
+		boolean ready = false;
+
+		/** Whether the transaction aborted before the part was ready. */
+		boolean aborted = false;
+
+		/** The outcome which could not be applied and is applied again, or null. */
+		Boolean outcome = null;
+
+		Prepared(BookStoreMessageTag operation, Set<BookCopy> bookCopies, String decider, long preparedAt,
+				long deadline) {
+			this.operation = operation;
+			this.bookCopies = bookCopies;
+			this.decider = decider;
+			this.preparedAt = preparedAt;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Instantiates a new {@link TransactionParticipant} on a shard served
+	 * through a guard. A part naming an ISBN the shard does not own, or which
+	 * is fenced, is refused.
+	 *
+	 * @param store
+	 *            the store
+	 * @param guard
+	 *            the guard the store is served through
+	 * @param logDirectory
+	 *            the directory of the decision log and of the prepared parts,
+	 *            or null if they are not durable
+	 * @param timeoutMillis
+	 *            the milliseconds a prepared transaction waits for a decision
+	 * @throws IOException
+	 *             if the logs cannot be read or written
+	 */
+	public TransactionParticipant(RecoverableBookStore store, ShardGuard guard, File logDirectory,
+			long timeoutMillis) throws IOException {
+		this.store = store;
+		this.guard = guard;
+		this.timeoutMillis = timeoutMillis;
+		this.decisionFile = (logDirectory == null) ? null : new File(logDirectory, DECISION_LOG);
+		this.prepareFile = (logDirectory == null) ? null : new File(logDirectory, PREPARE_LOG);
+		if (decisionFile != null) {
+			openDecisionLog();
+			openPrepareLog();
+		}
+
+		// The parts prepared before the participant stopped hold their books again
+		List<String> decided = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<String, Prepared> part : prepared.entrySet()) {
+				try {
+					guard.hold(part.getKey(), isbnsOf(part.getValue().bookCopies), timeoutMillis);
+				} catch (BookStoreException ex) {
+					System.err.println("Could not hold the books of " + part.getKey() + ": " + ex.getMessage());
+				}
+				// The parts this participant committed as the decider
+				if (committed.containsKey(part.getKey())) {
+					decided.add(part.getKey());
+				}
+			}
+		}
+		for (String transaction : decided) {
+			Prepared part;
+			synchronized (this) {
+				part = take(transaction);
+			}
+			apply(transaction, part, true);
+		}
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-transactions");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(timeoutMillis / 2, 1);
+		sweeper.scheduleWithFixedDelay(this::resolveTimedOut, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Prepares this participant's part of a transaction. Once the requests on
+	 * its books are done, the part holds them; a purchase is then applied, and
+	 * the sale misses of a refused one recorded, as by buyBooks; added copies
+	 * are validated as by addCopies.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @param operation
+	 *            the operation, BUYBOOKS or ADDCOPIES
+	 * @param decider
+	 *            the address of the decider, or null if this is the decider
+	 * @param bookCopies
+	 *            the copies of this participant's part
+	 * @throws BookStoreException
+	 *             if the books cannot be held in time or the part cannot be
+	 *             applied, which votes to abort
+	 */
+	public void prepare(String transaction, BookStoreMessageTag operation, String decider,
+			Set<BookCopy> bookCopies) throws BookStoreException {
+		if (transaction == null || operation == null || bookCopies == null) {
+			throw new BookStoreException(BookStoreResultCode.NULL_INPUT, BookStoreConstants.NULL_INPUT);
+		}
+
+		// Registered before the guard is asked, so that a fence waits for it
+		long now = System.currentTimeMillis();
+		Prepared part = new Prepared(operation, bookCopies, decider, now, now + timeoutMillis);
+		synchronized (this) {
+			if (prepared.containsKey(transaction) || committed.containsKey(transaction)) {
+				throw new BookStoreException(BookStoreResultCode.DUPLICATED,
+						"The transaction " + transaction + " is already prepared");
+			}
+			prepared.put(transaction, part);
+		}
+
+		try {
+			guard.checkWrite(bookCopies, BookCopy::getISBN);
+			guard.hold(transaction, isbnsOf(bookCopies), timeoutMillis);
+			prepare(operation, bookCopies);
+		} catch (BookStoreException ex) {
+			if (operation == BookStoreMessageTag.BUYBOOKS && ex.getResultCode() == BookStoreResultCode.UNKNOWN_OUTCOME) {
+				// The purchase was applied, the abort restores it
+				synchronized (this) {
+					part.ready = true;
+					take(transaction);
+				}
+				apply(transaction, part, false);
+				throw ex;
+			}
+			synchronized (this) {
+				prepared.remove(transaction);
+				notifyAll();
+			}
+			guard.release(transaction);
+			throw ex;
+		}
+
+		// A part which cannot be logged votes to abort
+		BookStoreException logFailure = null;
+		synchronized (this) {
+			try {
+				logPrepared(transaction, part);
+			} catch (BookStoreException ex) {
+				logFailure = ex;
+			}
+		}
+
+		boolean aborted;
+		synchronized (this) {
+			part.ready = true;
+			aborted = (part.aborted || logFailure != null) && take(transaction) != null;
+		}
+		if (aborted) {
+			apply(transaction, part, false);
+			throw (logFailure != null) ? logFailure
+					: new BookStoreException(BookStoreResultCode.ABORTED,
+							"The transaction " + transaction + " aborted while it was prepared");
+		}
+	}
+
+	/**
+	 * Applies a purchase, or validates added copies.
+	 */
+	private void prepare(BookStoreMessageTag operation, Set<BookCopy> bookCopies) throws BookStoreException {
+		switch (operation) {
+		case BUYBOOKS:
+			store.buyBooks(bookCopies);
+			break;
+
+		case ADDCOPIES:
+			Set<Integer> isbns = new HashSet<>();
+			for (BookCopy bookCopy : bookCopies) {
+				if (BookStoreUtility.isInvalidNoCopies(bookCopy.getNumCopies())) {
+					throw new BookStoreException(BookStoreResultCode.INVALID,
+							BookStoreConstants.NUM_COPIES + bookCopy.getNumCopies() + BookStoreConstants.INVALID);
+				}
+				isbns.add(bookCopy.getISBN());
+			}
+			store.getBooksByISBN(isbns);
+			break;
+
+		default:
+			throw new BookStoreException(BookStoreResultCode.INVALID,
+					"The operation " + operation + " cannot be prepared");
+		}
+	}
+
+	/**
+	 * Commits this participant's part of a transaction. On the decider the
+	 * commit is the decision, and is logged before the part is applied.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @throws BookStoreException
+	 *             if the decider already aborted the transaction
+	 */
+	public void commit(String transaction) throws BookStoreException {
+		Prepared part;
+		synchronized (this) {
+			part = prepared.get(transaction);
+			if (part != null && part.outcome != null) {
+				if (part.outcome) {
+					return;
+				}
+				throw new BookStoreException(BookStoreResultCode.ABORTED, "The transaction " + transaction + " aborted");
+			}
+			if (part == null || !part.ready) {
+				if (committed.containsKey(transaction)) {
+					return;
+				}
+				throw new BookStoreException(BookStoreResultCode.ABORTED,
+						"The transaction " + transaction + " is not prepared");
+			}
+			if (part.decider == null) {
+				logDecision(transaction);
+			}
+			take(transaction);
+		}
+		apply(transaction, part, true);
+	}
+
+	/**
+	 * Aborts this participant's part of a transaction. Aborting a transaction
+	 * which is not prepared does nothing.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 */
+	public void abort(String transaction) {
+		Prepared part;
+		synchronized (this) {
+			part = take(transaction);
+		}
+		if (part != null) {
+			apply(transaction, part, false);
+		}
+	}
+
+	/**
+	 * Gets the outcome of a transaction this participant decides. A
+	 * transaction which is not committed yet is aborted, so that it can no
+	 * longer commit.
+	 *
+	 * @param transaction
+	 *            the id of the transaction
+	 * @return true if the transaction committed
+	 */
+	public boolean getOutcome(String transaction) {
+		Prepared part;
+		synchronized (this) {
+			if (committed.containsKey(transaction)) {
+				return true;
+			}
+			part = prepared.get(transaction);
+			if (part == null || part.decider != null) {
+				return false;
+			}
+			part = take(transaction);
+		}
+		if (part != null) {
+			apply(transaction, part, false);
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of transactions prepared and not decided yet.
+	 *
+	 * @return the number of prepared transactions
+	 */
+	public synchronized int getNumPrepared() {
+		return prepared.size();
+	}
+
+	/**
+	 * Waits until no prepared transaction, nor one being applied, names an
+	 * ISBN, so that the books can be copied with their final state.
+	 *
+	 * @param isbns
+	 *            tests the ISBNs
+	 * @param timeoutMillis
+	 *            the longest to wait, in milliseconds
+	 * @return true if no transaction names an ISBN
+	 * @throws InterruptedException
+	 *             if the thread is interrupted
+	 */
+	public synchronized boolean awaitSettled(IntPredicate isbns, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (names(prepared.values(), isbns) || names(applying, isbns)) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	private static boolean names(Collection<Prepared> parts, IntPredicate isbns) {
+		for (Prepared part : parts) {
+			for (BookCopy bookCopy : part.bookCopies) {
+				if (bookCopy != null && isbns.test(bookCopy.getISBN())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops resolving transactions and closes the decision log.
+	 */
+	public void stop() {
+		sweeper.shutdownNow();
+		List<StockManagerHTTPProxy> proxies;
+		synchronized (this) {
+			proxies = new ArrayList<>(deciders.values());
+			deciders.clear();
+			if (decisionLog != null) {
+				try {
+					decisionLog.close();
+				} catch (IOException ex) {
+					System.err.println("Could not close the decision log: " + ex.getMessage());
+				}
+				decisionLog = null;
+			}
+			if (prepareLog != null) {
+				try {
+					prepareLog.close();
+				} catch (IOException ex) {
+					System.err.println("Could not close the log of the prepared parts: " + ex.getMessage());
+				}
+				prepareLog = null;
+			}
+		}
+		for (StockManagerHTTPProxy proxy : proxies) {
+			proxy.stop();
+		}
+	}
+
+	/**
+	 * Takes a part out of the prepared ones to apply its outcome. A part which
+	 * is not ready is marked aborted instead, and its prepare undoes it; a
+	 * part whose outcome is applied again is left to the sweeper. Guarded by
+	 * this.
+	 *
+	 * @return the part, or null if there is none to apply
+	 */
+	private Prepared take(String transaction) {
+		Prepared part = prepared.get(transaction);
+		if (part == null || part.outcome != null) {
+			return null;
+		}
+		if (!part.ready) {
+			part.aborted = true;
+			return null;
+		}
+		prepared.remove(transaction);
+		applying.add(part);
+		return part;
+	}
+
+	/**
+	 * Applies the outcome of a transaction to this participant's part and
+	 * releases its books: a committed addCopies adds the copies, an aborted
+	 * purchase restores the reserved copies and takes them out of the sales,
+	 * keeping the sale misses. An outcome which cannot be applied goes back to
+	 * the prepared parts, still holding the books, and the sweeper applies it
+	 * again.
+	 */
+	private void apply(String transaction, Prepared part, boolean commit) {
+		try {
+			if (part.operation == BookStoreMessageTag.ADDCOPIES && commit) {
+				store.addCopies(part.bookCopies);
+			} else if (part.operation == BookStoreMessageTag.BUYBOOKS && !commit) {
+				store.restoreCopies(part.bookCopies, part.preparedAt);
+			}
+		} catch (BookStoreException | RuntimeException ex) {
+			synchronized (this) {
+				part.outcome = commit;
+				part.deadline = System.currentTimeMillis();
+				applying.remove(part);
+				prepared.put(transaction, part);
+				notifyAll();
+			}
+			System.err.println("Could not " + (commit ? "commit" : "abort") + " the transaction " + transaction
+					+ ", retrying: " + ex.getMessage());
+			return;
+		}
+
+		synchronized (this) {
+			logSettled(transaction);
+			applying.remove(part);
+			notifyAll();
+		}
+		guard.release(transaction);
+	}
+
+	/**
+	 * Gets the ISBNs of the copies of a part.
+	 */
+	private static Set<Integer> isbnsOf(Set<BookCopy> bookCopies) {
+		Set<Integer> isbns = new HashSet<>();
+		for (BookCopy bookCopy : bookCopies) {
+			if (bookCopy != null) {
+				isbns.add(bookCopy.getISBN());
+			}
+		}
+		return isbns;
+	}
+
+	/**
+	 * Remembers a commit decision, durably if there is a decision log.
+	 */
+	private void logDecision(String transaction) throws BookStoreException {
+		long decidedAt = System.currentTimeMillis();
+		if (decisionLog != null) {
+			try {
+				DataOutputStream out = new DataOutputStream(decisionLog);
+				out.writeUTF(transaction);
+				out.writeLong(decidedAt);
+				out.flush();
+				decisionLog.getFD().sync();
+			} catch (IOException ex) {
+				throw new BookStoreException(BookStoreResultCode.ABORTED,
+						"Could not log the commit of " + transaction + ": " + ex.getMessage());
+			}
+		}
+		committed.put(transaction, decidedAt);
+	}
+
+	/**
+	 * Logs a prepared part and syncs it, if there is a log of the prepared
+	 * parts. Guarded by this.
+	 *
+	 * @throws BookStoreException
+	 *             if the part cannot be logged
+	 */
+	private void logPrepared(String transaction, Prepared part) throws BookStoreException {
+		if (prepareLog == null) {
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(prepareLog);
+			writePrepared(out, transaction, part);
+			out.flush();
+			prepareLog.getFD().sync();
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreResultCode.ABORTED,
+					"Could not log the prepare of " + transaction + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Logs that the outcome of a part is applied, if there is a log of the
+	 * prepared parts. Guarded by this.
+	 */
+	private void logSettled(String transaction) {
+		if (prepareLog == null) {
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(prepareLog);
+			out.writeByte(SETTLED_RECORD);
+			out.writeUTF(transaction);
+			out.flush();
+			prepareLog.getFD().sync();
+		} catch (IOException ex) {
+			System.err.println("Could not log the outcome of " + transaction + ": " + ex.getMessage());
+		}
+	}
+
+	private static void writePrepared(DataOutputStream out, String transaction, Prepared part) throws IOException {
+		out.writeByte(PREPARED_RECORD);
+		out.writeUTF(transaction);
+		out.writeByte(part.operation.ordinal());
+		out.writeBoolean(part.decider != null);
+		if (part.decider != null) {
+			out.writeUTF(part.decider);
+		}
+		out.writeLong(part.preparedAt);
+		out.writeInt(part.bookCopies.size());
+		for (BookCopy bookCopy : part.bookCopies) {
+			out.writeInt(bookCopy.getISBN());
+			out.writeInt(bookCopy.getNumCopies());
+		}
+	}
+
+	/**
+	 * Resolves the prepared transactions which timed out: the decider aborts
+	 * its own, the other participants ask the decider for the outcome. The
+	 * outcomes which could not be applied are applied again.
+	 */
+	private void resolveTimedOut() {
+		long now = System.currentTimeMillis();
+		Map<String, Prepared> timedOut = new HashMap<>();
+		synchronized (this) {
+			for (Map.Entry<String, Prepared> entry : prepared.entrySet()) {
+				if (entry.getValue().ready && entry.getValue().deadline <= now) {
+					timedOut.put(entry.getKey(), entry.getValue());
+				}
+			}
+			committed.values().removeIf(decidedAt -> decidedAt < now - DECISION_RETENTION);
+		}
+
+		for (Map.Entry<String, Prepared> entry : timedOut.entrySet()) {
+			String transaction = entry.getKey();
+			Prepared part = entry.getValue();
+			if (part.outcome != null) {
+				boolean retried;
+				synchronized (this) {
+					retried = prepared.remove(transaction, part);
+					if (retried) {
+						applying.add(part);
+					}
+				}
+				if (retried) {
+					apply(transaction, part, part.outcome);
+				}
+				continue;
+			}
+			if (part.decider == null) {
+				// Presumed abort, the coordinator never decided
+				getOutcome(transaction);
+				continue;
+			}
+
+			boolean commit;
+			try {
+				commit = getDecider(part.decider).getOutcome(transaction);
+			} catch (Exception ex) {
+				// The part stays reserved until the decider answers
+				synchronized (this) {
+					part.deadline = now + timeoutMillis;
+				}
+				System.err.println("Could not ask " + part.decider + " about " + transaction + ": " + ex.getMessage());
+				continue;
+			}
+
+			boolean undecided;
+			synchronized (this) {
+				undecided = prepared.get(transaction) == part && take(transaction) != null;
+			}
+			if (undecided) {
+				apply(transaction, part, commit);
+			}
+		}
+	}
+
+	/**
+	 * Gets the proxy of a decider.
+	 */
+	private synchronized StockManagerHTTPProxy getDecider(String address) throws Exception {
+		StockManagerHTTPProxy proxy = deciders.get(address);
+		if (proxy == null) {
+			proxy = new StockManagerHTTPProxy(address + "/stock");
+			deciders.put(address, proxy);
+		}
+		return proxy;
+	}
+
+	/**
+	 * Reads the commit decisions which are still retained from the decision
+	 * log, rewrites the log with only those, and opens it for appending.
+	 */
+	private void openDecisionLog() throws IOException {
+		long retainedFrom = System.currentTimeMillis() - DECISION_RETENTION;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(decisionFile))) {
+			while (true) {
+				String transaction = in.readUTF();
+				long decidedAt = in.readLong();
+				if (decidedAt >= retainedFrom) {
+					committed.put(transaction, decidedAt);
+				}
+			}
+		} catch (FileNotFoundException ex) {
+			// No transaction was committed yet
+		} catch (EOFException ex) {
+			// The last decision may be torn, it was never acknowledged
+		}
+
+		File compacted = new File(decisionFile.getPath() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(compacted);
+				DataOutputStream out = new DataOutputStream(file)) {
+			for (Map.Entry<String, Long> decision : committed.entrySet()) {
+				out.writeUTF(decision.getKey());
+				out.writeLong(decision.getValue());
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(compacted.toPath(), decisionFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		decisionLog = new FileOutputStream(decisionFile, true);
+	}
+
+	/**
+	 * Reads the parts which were prepared and not settled from the log of the
+	 * prepared parts, rewrites the log with only those, and opens it for
+	 * appending. The parts are ready, and wait for a decision again.
+	 */
+	private void openPrepareLog() throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(prepareFile))) {
+			while (true) {
+				byte kind = in.readByte();
+				String transaction = in.readUTF();
+				if (kind == SETTLED_RECORD) {
+					prepared.remove(transaction);
+					continue;
+				}
+
+				BookStoreMessageTag operation = BookStoreMessageTag.values()[in.readUnsignedByte()];
+				String decider = in.readBoolean() ? in.readUTF() : null;
+				long preparedAt = in.readLong();
+				int size = in.readInt();
+				Set<BookCopy> bookCopies = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					bookCopies.add(new BookCopy(in.readInt(), in.readInt()));
+				}
+				Prepared part = new Prepared(operation, bookCopies, decider, preparedAt, deadline);
+				part.ready = true;
+				prepared.put(transaction, part);
+			}
+		} catch (FileNotFoundException ex) {
+			// No part was prepared yet
+		} catch (EOFException ex) {
+			// The last record may be torn, its part never voted
+		}
+
+		File compacted = new File(prepareFile.getPath() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(compacted);
+				DataOutputStream out = new DataOutputStream(file)) {
+			for (Map.Entry<String, Prepared> part : prepared.entrySet()) {
+				writePrepared(out, part.getKey(), part.getValue());
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(compacted.toPath(), prepareFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		prepareLog = new FileOutputStream(prepareFile, true);
+	}
+}
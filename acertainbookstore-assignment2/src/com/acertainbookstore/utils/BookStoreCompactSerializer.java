@@ -0,0 +1,582 @@
+package com.acertainbookstore.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+
+/**
+ * {@link BookStoreCompactSerializer} encodes the messages of the bookstore
+ * with a fixed schema per type, without reflection or class names.
+ * <p>
+ * A value is a one byte tag followed by its fields. Integers are zigzag
+ * varints, so small ISBNs and counts take one to three bytes, and strings are
+ * their UTF-8 bytes prefixed by their length plus one, 0 standing for null.
+ * A list or set whose elements share a tag writes the tag once, before the
+ * elements; otherwise every element carries its own tag.
+ * <p>
+ * Only the types exchanged by the bookstore are supported: books, stock books,
+ * book copies, ratings, editor picks and demands, booleans, integers, longs,
+ * strings, lists and sets of them, {@link BookStoreResponse} and the
+ * {@link BookStoreOperation} of a batch. Any other
+ * type fails to encode.
+ *
+ * @see BookStoreSerializer
+ */
+public final class BookStoreCompactSerializer implements BookStoreSerializer {
+
+	/** The tag of null. */
+	private static final byte NULL = 0;
+
+	/** The tag of false. */
+	private static final byte FALSE = 1;
+
+	/** The tag of true. */
+	private static final byte TRUE = 2;
+
+	/** The tag of an integer. */
+	private static final byte INTEGER = 3;
+
+	/** The tag of a long. */
+	private static final byte LONG = 4;
+
+	/** The tag of a string. */
+	private static final byte STRING = 5;
+
+	/** The tag of a {@link BookCopy}. */
+	private static final byte BOOK_COPY = 6;
+
+	/** The tag of a {@link BookRating}. */
+	private static final byte BOOK_RATING = 7;
+
+	/** The tag of a {@link BookEditorPick}. */
+	private static final byte BOOK_EDITOR_PICK = 8;
+
+	/** The tag of a {@link Book}, decoded as an {@link ImmutableBook}. */
+	private static final byte BOOK = 9;
+
+	/** The tag of a {@link StockBook}, decoded as an {@link ImmutableStockBook}. */
+	private static final byte STOCK_BOOK = 10;
+
+	/** The tag of a {@link BookDemand}. */
+	private static final byte BOOK_DEMAND = 11;
+
+	/** The tag of a list, decoded as an {@link ArrayList}. */
+	private static final byte LIST = 12;
+
+	/** The tag of a set, decoded as a {@link HashSet}. */
+	private static final byte SET = 13;
+
+	/** The tag of a {@link BookStoreResponse}. */
+	private static final byte RESPONSE = 14;
+
+	/** The tag of a {@link BookStoreOperation}. */
+	private static final byte OPERATION = 15;
+
+	/** The tag written before the elements of a collection of mixed tags. */
+	private static final byte MIXED = -1;
+
+	/** The flag of a response carrying a result code. */
+	private static final int HAS_RESULT_CODE = 1;
+
+	/** The flag of a response carrying a fault. */
+	private static final int HAS_FAULT = 2;
+
+	/** The message tags by ordinal. */
+	private static final BookStoreMessageTag[] MESSAGE_TAGS = BookStoreMessageTag.values();
+
+	/** The result codes by ordinal. */
+	private static final BookStoreResultCode[] RESULT_CODES = BookStoreResultCode.values();
+
+	/**
+	 * The buffer encoded into, or a stream is read into, reused by the
+	 * serializations of a thread.
+	 */
+	private byte[] buffer = new byte[256];
+
+	/** The position in the buffer, or in the bytes being decoded. */
+	private int position;
+
+	/** The bytes being decoded. */
+	private byte[] input;
+
+	/** The end of the message in the bytes being decoded. */
+	private int limit;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object)
+	 */
+	@Override
+	public byte[] serialize(Object object) throws IOException {
+		position = 0;
+		writeValue(object);
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(byte[])
+	 */
+	@Override
+	public Object deserialize(byte[] bytes) throws IOException {
+		return decode(bytes, bytes.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object, java.io.OutputStream)
+	 */
+	@Override
+	public void serialize(Object object, OutputStream out) throws IOException {
+		position = 0;
+		writeValue(object);
+		out.write(buffer, 0, position);
+		out.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(java.io.
+	 * InputStream)
+	 */
+	@Override
+	public Object deserialize(InputStream in) throws IOException {
+		int length = 0;
+		int read;
+		while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+			length += read;
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+		}
+		return decode(buffer, length);
+	}
+
+	/**
+	 * Decodes a message, which must fill the given length.
+	 */
+	private Object decode(byte[] bytes, int length) throws IOException {
+		input = bytes;
+		limit = length;
+		position = 0;
+		try {
+			Object value = readValue(readByte());
+			if (position != limit) {
+				throw new IOException("Trailing bytes after the message");
+			}
+			return value;
+		} finally {
+			input = null;
+		}
+	}
+
+	/**
+	 * Gets the tag of a value.
+	 */
+	private static byte tagOf(Object value) throws IOException {
+		if (value == null) {
+			return NULL;
+		} else if (value instanceof Boolean) {
+			return ((Boolean) value) ? TRUE : FALSE;
+		} else if (value instanceof Integer) {
+			return INTEGER;
+		} else if (value instanceof Long) {
+			return LONG;
+		} else if (value instanceof String) {
+			return STRING;
+		} else if (value instanceof BookCopy) {
+			return BOOK_COPY;
+		} else if (value instanceof BookRating) {
+			return BOOK_RATING;
+		} else if (value instanceof BookEditorPick) {
+			return BOOK_EDITOR_PICK;
+		} else if (value instanceof StockBook) {
+			return STOCK_BOOK;
+		} else if (value instanceof Book) {
+			return BOOK;
+		} else if (value instanceof BookDemand) {
+			return BOOK_DEMAND;
+		} else if (value instanceof List) {
+			return LIST;
+		} else if (value instanceof Set) {
+			return SET;
+		} else if (value instanceof BookStoreResponse) {
+			return RESPONSE;
+		} else if (value instanceof BookStoreOperation) {
+			return OPERATION;
+		}
+		throw new IOException("Cannot encode a " + value.getClass().getSimpleName());
+	}
+
+	private void writeValue(Object value) throws IOException {
+		byte tag = tagOf(value);
+		writeByte(tag);
+		writeFields(tag, value);
+	}
+
+	/**
+	 * Writes the fields of a value, after its tag.
+	 */
+	private void writeFields(byte tag, Object value) throws IOException {
+		switch (tag) {
+		case INTEGER:
+			writeVarLong((Integer) value);
+			break;
+
+		case LONG:
+			writeVarLong((Long) value);
+			break;
+
+		case STRING:
+			writeString((String) value);
+			break;
+
+		case BOOK_COPY:
+			BookCopy bookCopy = (BookCopy) value;
+			writeVarLong(bookCopy.getISBN());
+			writeVarLong(bookCopy.getNumCopies());
+			break;
+
+		case BOOK_RATING:
+			BookRating bookRating = (BookRating) value;
+			writeVarLong(bookRating.getISBN());
+			writeVarLong(bookRating.getRating());
+			break;
+
+		case BOOK_EDITOR_PICK:
+			BookEditorPick editorPick = (BookEditorPick) value;
+			writeVarLong(editorPick.getISBN());
+			writeByte(editorPick.isEditorPick() ? TRUE : FALSE);
+			break;
+
+		case BOOK:
+			writeBook((Book) value);
+			break;
+
+		case STOCK_BOOK:
+			StockBook stockBook = (StockBook) value;
+			writeBook(stockBook);
+			writeVarLong(stockBook.getNumCopies());
+			writeVarLong(stockBook.getNumSaleMisses());
+			writeVarLong(stockBook.getNumTimesRated());
+			writeVarLong(stockBook.getTotalRating());
+			writeByte(stockBook.isEditorPick() ? TRUE : FALSE);
+			break;
+
+		case BOOK_DEMAND:
+			BookDemand demand = (BookDemand) value;
+			writeVarLong(demand.getISBN());
+			writeLong(Double.doubleToLongBits(demand.getSales()));
+			writeLong(Double.doubleToLongBits(demand.getSaleMisses()));
+			writeVarLong(demand.getWindowMillis());
+			break;
+
+		case LIST:
+		case SET:
+			writeCollection((Collection<?>) value);
+			break;
+
+		case RESPONSE:
+			writeResponse((BookStoreResponse) value);
+			break;
+
+		case OPERATION:
+			BookStoreOperation operation = (BookStoreOperation) value;
+			writeVarLong(operation.getMessageTag().ordinal());
+			writeValue(operation.getArgument());
+			break;
+
+		default:
+			// Null and booleans are their tag
+			break;
+		}
+	}
+
+	private void writeBook(Book book) {
+		writeVarLong(book.getISBN());
+		writeString(book.getTitle());
+		writeString(book.getAuthor());
+		writeInt(Float.floatToIntBits(book.getPrice()));
+	}
+
+	private void writeCollection(Collection<?> collection) throws IOException {
+		writeVarLong(collection.size());
+		if (collection.isEmpty()) {
+			return;
+		}
+
+		byte elementTag = 0;
+		boolean first = true;
+		for (Object element : collection) {
+			byte tag = tagOf(element);
+			if (first) {
+				elementTag = tag;
+				first = false;
+			} else if (tag != elementTag || tag == TRUE || tag == FALSE) {
+				elementTag = MIXED;
+				break;
+			}
+		}
+
+		writeByte(elementTag);
+		for (Object element : collection) {
+			if (elementTag == MIXED) {
+				writeValue(element);
+			} else {
+				writeFields(elementTag, element);
+			}
+		}
+	}
+
+	private void writeResponse(BookStoreResponse response) throws IOException {
+		BookStoreResultCode resultCode = response.getResultCode();
+		BookStoreException fault = (resultCode == null) ? response.getException() : null;
+		writeByte((byte) ((resultCode != null ? HAS_RESULT_CODE : 0) | (fault != null ? HAS_FAULT : 0)));
+		if (resultCode != null) {
+			writeVarLong(resultCode.ordinal());
+			writeString(response.getException().getMessage());
+		} else if (fault != null) {
+			writeString(fault.getMessage());
+		}
+		writeVarLong(response.getStaleness());
+		writeString(response.getCursor());
+		writeValue(response.getList());
+	}
+
+	private Object readValue(byte tag) throws IOException {
+		switch (tag) {
+		case NULL:
+			return null;
+
+		case FALSE:
+			return Boolean.FALSE;
+
+		case TRUE:
+			return Boolean.TRUE;
+
+		case INTEGER:
+			return (int) readVarLong();
+
+		case LONG:
+			return readVarLong();
+
+		case STRING:
+			return readString();
+
+		case BOOK_COPY:
+			return new BookCopy((int) readVarLong(), (int) readVarLong());
+
+		case BOOK_RATING:
+			return new BookRating((int) readVarLong(), (int) readVarLong());
+
+		case BOOK_EDITOR_PICK:
+			return new BookEditorPick((int) readVarLong(), readByte() == TRUE);
+
+		case BOOK:
+			return new ImmutableBook((int) readVarLong(), readString(), readString(),
+					Float.intBitsToFloat(readInt()));
+
+		case STOCK_BOOK:
+			return new ImmutableStockBook((int) readVarLong(), readString(), readString(),
+					Float.intBitsToFloat(readInt()), (int) readVarLong(), readVarLong(), readVarLong(), readVarLong(),
+					readByte() == TRUE);
+
+		case BOOK_DEMAND:
+			return new BookDemand((int) readVarLong(), Double.longBitsToDouble(readLong()),
+					Double.longBitsToDouble(readLong()), readVarLong());
+
+		case LIST:
+		case SET:
+			int size = (int) readVarLong();
+			if (size < 0 || size > limit - position) {
+				throw new IOException("Invalid size " + size);
+			}
+			Collection<Object> collection = (tag == LIST) ? new ArrayList<>(size) : new HashSet<>(size * 2);
+			byte elementTag = (size == 0) ? NULL : readByte();
+			for (int i = 0; i < size; i++) {
+				collection.add(readValue(elementTag == MIXED ? readByte() : elementTag));
+			}
+			return collection;
+
+		case RESPONSE:
+			return readResponse();
+
+		case OPERATION:
+			int ordinal = (int) readVarLong();
+			if (ordinal < 0 || ordinal >= MESSAGE_TAGS.length) {
+				throw new IOException("Unknown message tag " + ordinal);
+			}
+			return new BookStoreOperation(MESSAGE_TAGS[ordinal], readValue(readByte()));
+
+		default:
+			throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+	private BookStoreResponse readResponse() throws IOException {
+		BookStoreResponse response = new BookStoreResponse();
+		int flags = readByte();
+		if ((flags & HAS_RESULT_CODE) != 0) {
+			int ordinal = (int) readVarLong();
+			if (ordinal < 0 || ordinal >= RESULT_CODES.length) {
+				throw new IOException("Unknown result code " + ordinal);
+			}
+			response.setException(new BookStoreException(RESULT_CODES[ordinal], readString()));
+		} else if ((flags & HAS_FAULT) != 0) {
+			response.setException(new BookStoreException(readString()));
+		}
+		response.setStaleness(readVarLong());
+		response.setCursor(readString());
+		response.setList((List<?>) readValue(readByte()));
+		return response;
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+		}
+	}
+
+	private void writeByte(byte value) {
+		ensureCapacity(1);
+		buffer[position++] = value;
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >>> shift);
+		}
+	}
+
+	private void writeLong(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >>> shift);
+		}
+	}
+
+	/**
+	 * Writes a zigzag varint, seven bits per byte with the high bit set on all
+	 * bytes but the last.
+	 */
+	private void writeVarLong(long value) {
+		ensureCapacity(10);
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		buffer[position++] = (byte) zigzag;
+	}
+
+	private void writeString(String value) {
+		if (value == null) {
+			writeVarLong(0);
+			return;
+		}
+
+		// ASCII, the common case, is copied without encoding
+		int length = value.length();
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++) {
+			ascii = value.charAt(i) < 0x80;
+		}
+		if (ascii) {
+			writeVarLong(length + 1L);
+			ensureCapacity(length);
+			for (int i = 0; i < length; i++) {
+				buffer[position++] = (byte) value.charAt(i);
+			}
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length + 1L);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+	}
+
+	/**
+	 * Checks that the message holds a number of bytes past the position.
+	 */
+	private void require(int bytes) throws IOException {
+		if (bytes > limit - position) {
+			throw new IOException("Truncated message");
+		}
+	}
+
+	private byte readByte() throws IOException {
+		require(1);
+		return input[position++];
+	}
+
+	private int readInt() throws IOException {
+		require(4);
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (input[position++] & 0xFF);
+		}
+		return value;
+	}
+
+	private long readLong() throws IOException {
+		require(8);
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (input[position++] & 0xFF);
+		}
+		return value;
+	}
+
+	private long readVarLong() throws IOException {
+		long zigzag = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = readByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private String readString() throws IOException {
+		long length = readVarLong() - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > limit - position) {
+			throw new IOException("Invalid string length " + length);
+		}
+		String value = new String(input, position, (int) length, StandardCharsets.UTF_8);
+		position += length;
+		return value;
+	}
+}
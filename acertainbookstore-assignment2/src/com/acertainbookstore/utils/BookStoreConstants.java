@@ -19,6 +19,45 @@ public final class BookStoreConstants {
 	/** The Constant BOOK_NUM_PARAM. */
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 
+	/** The Constant WINDOW_PARAM, the milliseconds of a window of the demand history. */
+	public static final String WINDOW_PARAM = "window";
+
+	/** The Constant HALF_LIFE_PARAM, the half-life of decayed demand in milliseconds. */
+	public static final String HALF_LIFE_PARAM = "half_life";
+
+	/** The Constant FORMAT_PARAM, the format of an imported or exported stream. */
+	public static final String FORMAT_PARAM = "format";
+
+	/** The Constant POSITION_PARAM, the log position a replica reads from. */
+	public static final String POSITION_PARAM = "position";
+
+	/** The Constant WAIT_PARAM, the milliseconds a replica waits for records. */
+	public static final String WAIT_PARAM = "wait";
+
+	/** The Constant TRANSACTION_PARAM, the id of a cross-shard transaction. */
+	public static final String TRANSACTION_PARAM = "tx";
+
+	/** The Constant OPERATION_PARAM, the operation a transaction prepares. */
+	public static final String OPERATION_PARAM = "op";
+
+	/** The Constant DECIDER_PARAM, the address of the decider of a transaction. */
+	public static final String DECIDER_PARAM = "decider";
+
+	/** The Constant EPOCH_PARAM, the epoch of the routing of a cluster. */
+	public static final String EPOCH_PARAM = "epoch";
+
+	/** The Constant SHARD_PARAM, the name of a shard on the ring. */
+	public static final String SHARD_PARAM = "shard";
+
+	/** The Constant BACKUP_PARAM, set by a backup acknowledging the records it received. */
+	public static final String BACKUP_PARAM = "backup";
+
+	/** The Constant CURSOR_PARAM, the cursor of a page of the books. */
+	public static final String CURSOR_PARAM = "cursor";
+
+	/** The Constant PAGE_SIZE_PARAM, the number of books asked for on a page. */
+	public static final String PAGE_SIZE_PARAM = "page_size";
+
 	/** The Constant XMLSTRINGLEN_PARAM. */
 	public static final String XMLSTRINGLEN_PARAM = "len";
 
@@ -28,6 +67,18 @@ public final class BookStoreConstants {
 	 */
 	public static final int INVALID_PARAMS = -1;
 
+	/** The Constant MAX_PAGE_SIZE, the most books listed on one page. */
+	public static final int MAX_PAGE_SIZE = 10000;
+
+	/** The Constant MAX_TEXT_LENGTH, the most bytes of a title or an author once encoded. */
+	public static final int MAX_TEXT_LENGTH = 65535;
+
+	/** The Constant MAX_BATCH_SIZE, the most operations sent in one batch. */
+	public static final int MAX_BATCH_SIZE = 1000;
+
+	/** The Constant COMPRESSION_THRESHOLD, the bytes above which a message is compressed. */
+	public static final int COMPRESSION_THRESHOLD = 8192;
+
 	// Constants used when creating exception messages
 
 	/** The Constant INVALID when the book has an invalid ISBN. */
@@ -48,6 +99,30 @@ public final class BookStoreConstants {
 	/** The Constant NUM_COPIES. */
 	public static final String NUM_COPIES = "The Number of copies: ";
 
+	/** The Constant NUM_BOOKS. */
+	public static final String NUM_BOOKS = "The Number of books: ";
+
+	/** The Constant WINDOW. */
+	public static final String WINDOW = "The window in milliseconds: ";
+
+	/** The Constant HALF_LIFE. */
+	public static final String HALF_LIFE = "The half-life in milliseconds: ";
+
+	/** The Constant CURSOR. */
+	public static final String CURSOR = "The cursor: ";
+
+	/** The Constant PAGE_SIZE. */
+	public static final String PAGE_SIZE = "The page size: ";
+
+	/** The Constant BATCH_SIZE. */
+	public static final String BATCH_SIZE = "The batch size: ";
+
+	/** The Constant OPERATION. */
+	public static final String OPERATION = "The operation: ";
+
+	/** The Constant SERVER_BUSY. */
+	public static final String SERVER_BUSY = "The server is busy";
+
 	/** The Constant RATING. */
 	public static final String RATING = "The rating: ";
 
@@ -60,9 +135,103 @@ public final class BookStoreConstants {
 	/** The Constant PROPERTY_KEY_SINGLE_LOCK. */
 	public static final String PROPERTY_KEY_SINGLE_LOCK = "singlelock";
 
+	/** The Constant PROPERTY_KEY_RELAXED_RATINGS. */
+	public static final String PROPERTY_KEY_RELAXED_RATINGS = "relaxedratings";
+
+	/** The Constant PROPERTY_KEY_STAGED_CATALOG. */
+	public static final String PROPERTY_KEY_STAGED_CATALOG = "stagedcatalog";
+
+	/** The Constant PROPERTY_KEY_LOG_DIRECTORY. */
+	public static final String PROPERTY_KEY_LOG_DIRECTORY = "logdir";
+
+	/** The Constant PROPERTY_KEY_LOG_SYNC. */
+	public static final String PROPERTY_KEY_LOG_SYNC = "logsync";
+
+	/** The Constant PROPERTY_KEY_CHECKPOINT_INTERVAL. */
+	public static final String PROPERTY_KEY_CHECKPOINT_INTERVAL = "checkpointinterval";
+
+	/** The Constant PROPERTY_KEY_REPLICA_OF, the address of the internal port of the primary of a replica. */
+	public static final String PROPERTY_KEY_REPLICA_OF = "replicaof";
+
+	/** The Constant PROPERTY_KEY_BACKUP, whether a replica acknowledges as a backup. */
+	public static final String PROPERTY_KEY_BACKUP = "backup";
+
+	/**
+	 * The Constant PROPERTY_KEY_REQUIRE_BACKUP, whether a logged primary refuses
+	 * mutations while no backup acknowledges them.
+	 */
+	public static final String PROPERTY_KEY_REQUIRE_BACKUP = "requirebackup";
+
+	/** The Constant PROPERTY_KEY_MAX_STALENESS, in milliseconds. */
+	public static final String PROPERTY_KEY_MAX_STALENESS = "maxstaleness";
+
+	/** The Constant PROPERTY_KEY_SHARDS, the comma separated internal addresses of the shards of a router. */
+	public static final String PROPERTY_KEY_SHARDS = "shards";
+
+	/**
+	 * The Constant PROPERTY_KEY_SERIALIZER, "kryo" or "kryounregistered" to use
+	 * Kryo rather than the compact encoding when serializing to binary. Clients
+	 * and servers must agree on it.
+	 */
+	public static final String PROPERTY_KEY_SERIALIZER = "serializer";
+
+	/** The Constant KRYO_SERIALIZER, Kryo with the message classes registered. */
+	public static final String KRYO_SERIALIZER = "kryo";
+
+	/** The Constant KRYO_UNREGISTERED_SERIALIZER, Kryo writing class names. */
+	public static final String KRYO_UNREGISTERED_SERIALIZER = "kryounregistered";
+
+	/**
+	 * The Constant PROPERTY_KEY_COMPRESSION, "deflate", "gzip" or "none", the
+	 * coding large messages are compressed with when the other side accepts
+	 * it. Deflate, the default, compresses fastest.
+	 */
+	public static final String PROPERTY_KEY_COMPRESSION = "compression";
+
+	/** The Constant NO_COMPRESSION, to send every message as is. */
+	public static final String NO_COMPRESSION = "none";
+
+	/**
+	 * The Constant PROPERTY_KEY_HTTP2, whether the proxies send their requests
+	 * over cleartext HTTP/2. Servers accept both HTTP/1.1 and HTTP/2.
+	 */
+	public static final String PROPERTY_KEY_HTTP2 = "http2";
+
+	/**
+	 * The Constant MAX_CONCURRENT_STREAMS, the requests a server accepts at
+	 * once over one HTTP/2 connection. It leaves room above the streams a
+	 * proxy opens, which it counts until they are fully closed.
+	 */
+	public static final int MAX_CONCURRENT_STREAMS = 1024;
+
+	/**
+	 * The Constant PROPERTY_KEY_ASYNC, whether the server hands the messages
+	 * from its I/O threads to a bounded stage of its own.
+	 */
+	public static final String PROPERTY_KEY_ASYNC = "async";
+
+	/** The Constant ASYNC_QUEUE_CAPACITY, the messages waiting for the stage of an asynchronous server. */
+	public static final int ASYNC_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * The Constant PROPERTY_KEY_TCP_PORT, the port the server also serves the
+	 * binary protocol on, if set.
+	 */
+	public static final String PROPERTY_KEY_TCP_PORT = "tcpport";
+
+	/** The Constant MAX_FRAME_SIZE, the most bytes of a frame of the binary protocol. */
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
 	/** The Constant PROPERTY_KEY_SERVER_PORT. */
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
 
+	/**
+	 * The Constant PROPERTY_KEY_INTERNAL_PORT, the port the server answers the
+	 * messages of replication, failover, two-phase commit and rebalancing on.
+	 * Without it the server refuses them.
+	 */
+	public static final String PROPERTY_KEY_INTERNAL_PORT = "internalport";
+
 	/** The Constant EPSILON used for floating point number comparison */
 	public static final float EPSILON = 0.000001F;
 
@@ -0,0 +1,253 @@
+package com.acertainbookstore.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jetty.client.ContentDecoder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.component.Destroyable;
+
+/**
+ * {@link BookStoreEncoding} enumerates the content codings messages between
+ * the clients and the server may be compressed with. They are negotiated with
+ * the Accept-Encoding and Content-Encoding HTTP headers, and only messages
+ * larger than {@link BookStoreConstants#COMPRESSION_THRESHOLD} are compressed.
+ * <p>
+ * Jetty's HTTP client accepts and decodes gzip by itself; clients accept
+ * deflate once {@link #addDecoders(HttpClient)} registered its decoder.
+ *
+ * @see CompressingOutputStream
+ */
+public enum BookStoreEncoding {
+
+	/** The gzip coding, at the default level. */
+	GZIP("gzip"),
+
+	/** The zlib deflate coding, at the fastest level. */
+	DEFLATE("deflate");
+
+	/** The size of the buffers of the compressing and inflating streams. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** The name of the coding in HTTP headers. */
+	private final String name;
+
+	private BookStoreEncoding(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the name of the coding in HTTP headers.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Compresses into a stream. Closing the compressing stream finishes the
+	 * compressed data and flushes the stream, which is not closed.
+	 *
+	 * @param out
+	 *            the stream
+	 * @return the compressing stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public OutputStream compress(OutputStream out) throws IOException {
+		OutputStream target = new FilterOutputStream(out) {
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException {
+				out.write(bytes, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+
+		if (this == GZIP) {
+			return new GZIPOutputStream(target, BUFFER_SIZE);
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		return new DeflaterOutputStream(target, deflater, BUFFER_SIZE) {
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					// Only the default deflater is released by the stream
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Decompresses a stream.
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the decompressing stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public InputStream decompress(InputStream in) throws IOException {
+		return (this == GZIP) ? new GZIPInputStream(in, BUFFER_SIZE) : new InflaterInputStream(in);
+	}
+
+	/**
+	 * Gets the coding named by a Content-Encoding header.
+	 *
+	 * @param contentEncoding
+	 *            the header, or null
+	 * @return the coding, or null if the content is not encoded
+	 * @throws IOException
+	 *             if the coding is not supported
+	 */
+	public static BookStoreEncoding of(String contentEncoding) throws IOException {
+		if (contentEncoding == null || contentEncoding.trim().equalsIgnoreCase("identity")) {
+			return null;
+		}
+		for (BookStoreEncoding encoding : values()) {
+			if (encoding.name.equalsIgnoreCase(contentEncoding.trim())) {
+				return encoding;
+			}
+		}
+		throw new IOException("Unsupported content encoding " + contentEncoding);
+	}
+
+	/**
+	 * Chooses the coding of a response.
+	 *
+	 * @param acceptEncoding
+	 *            the Accept-Encoding header of the request, or null
+	 * @param preferred
+	 *            the coding to use if it is accepted, or null to not compress
+	 * @return the preferred coding if it is accepted, otherwise another
+	 *         accepted one, or null if none is accepted
+	 */
+	public static BookStoreEncoding negotiate(String acceptEncoding, BookStoreEncoding preferred) {
+		if (acceptEncoding == null || preferred == null) {
+			return null;
+		}
+
+		BookStoreEncoding chosen = null;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			if (parameters.length > 1 && parameters[1].trim().matches("q=0(\\.0*)?")) {
+				continue;
+			}
+			for (BookStoreEncoding encoding : values()) {
+				if (encoding.name.equalsIgnoreCase(parameters[0].trim())) {
+					if (encoding == preferred) {
+						return encoding;
+					}
+					chosen = (chosen == null) ? encoding : chosen;
+				}
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Gets the coding chosen by {@link BookStoreConstants#PROPERTY_KEY_COMPRESSION}.
+	 *
+	 * @return the coding, deflate by default, or null if compression is off
+	 */
+	public static BookStoreEncoding preferred() {
+		String compression = System.getProperty(BookStoreConstants.PROPERTY_KEY_COMPRESSION);
+		if (compression == null) {
+			return DEFLATE;
+		} else if (BookStoreConstants.NO_COMPRESSION.equalsIgnoreCase(compression)) {
+			return null;
+		}
+		try {
+			return of(compression);
+		} catch (IOException ex) {
+			System.err.println("Unsupported compression " + compression);
+			return DEFLATE;
+		}
+	}
+
+	/**
+	 * Registers the decoders of the codings Jetty does not decode by itself,
+	 * so that the client accepts them.
+	 *
+	 * @param client
+	 *            the client, before it is started
+	 */
+	public static void addDecoders(HttpClient client) {
+		client.getContentDecoderFactories().add(new ContentDecoder.Factory(DEFLATE.name) {
+
+			@Override
+			public ContentDecoder newContentDecoder() {
+				return new InflatingDecoder();
+			}
+		});
+	}
+
+	/**
+	 * Decodes deflated content as it arrives.
+	 */
+	private static final class InflatingDecoder implements ContentDecoder, Destroyable {
+
+		/** The inflater. */
+		private final Inflater inflater = new Inflater();
+
+		/** The buffer inflated into. */
+		private final byte[] chunk = new byte[BUFFER_SIZE];
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see org.eclipse.jetty.client.ContentDecoder#decode(java.nio.ByteBuffer)
+		 */
+		@Override
+		public ByteBuffer decode(ByteBuffer buffer) {
+			byte[] input = new byte[buffer.remaining()];
+			buffer.get(input);
+			inflater.setInput(input);
+
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream(input.length * 4);
+			try {
+				int length;
+				while ((length = inflater.inflate(chunk)) > 0) {
+					decoded.write(chunk, 0, length);
+				}
+			} catch (DataFormatException ex) {
+				throw new IllegalArgumentException("Invalid deflated content", ex);
+			}
+			if (inflater.needsDictionary()) {
+				throw new IllegalArgumentException("Invalid deflated content");
+			}
+			return ByteBuffer.wrap(decoded.toByteArray());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see org.eclipse.jetty.util.component.Destroyable#destroy()
+		 */
+		@Override
+		public void destroy() {
+			inflater.end();
+		}
+	}
+}
@@ -1,18 +1,25 @@
 package com.acertainbookstore.utils;
 
 /**
- * {@link BookStoreException} signals a book store error.
+ * {@link BookStoreException} signals a book store error. Expected business
+ * outcomes, such as a sale miss or a validation failure, carry a
+ * {@link BookStoreResultCode} and are created without a stack trace; real
+ * faults have no result code.
  */
 public class BookStoreException extends Exception {
 
 	/** The Constant serialVersionUID. */
 	private static final long serialVersionUID = 1L;
 
+	/** The result code, null if the exception signals a fault. */
+	private final BookStoreResultCode resultCode;
+
 	/**
 	 * Instantiates a new {@link BookStoreException}.
 	 */
 	public BookStoreException() {
 		super();
+		this.resultCode = null;
 	}
 
 	/**
@@ -23,6 +30,7 @@ public class BookStoreException extends Exception {
 	 */
 	public BookStoreException(String message) {
 		super(message);
+		this.resultCode = null;
 	}
 
 	/**
@@ -35,6 +43,7 @@ public class BookStoreException extends Exception {
 	 */
 	public BookStoreException(String message, Throwable cause) {
 		super(message, cause);
+		this.resultCode = null;
 	}
 
 	/**
@@ -45,5 +54,30 @@ public class BookStoreException extends Exception {
 	 */
 	public BookStoreException(Throwable ex) {
 		super(ex);
+		this.resultCode = null;
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreException} for an expected business
+	 * outcome. The exception has neither a stack trace nor suppressed
+	 * exceptions, so it is cheap to create and may be shared between threads.
+	 *
+	 * @param resultCode
+	 *            the result code
+	 * @param message
+	 *            the message
+	 */
+	public BookStoreException(BookStoreResultCode resultCode, String message) {
+		super(message, null, false, false);
+		this.resultCode = resultCode;
+	}
+
+	/**
+	 * Gets the result code.
+	 *
+	 * @return the result code, or null if the exception signals a fault
+	 */
+	public BookStoreResultCode getResultCode() {
+		return resultCode;
 	}
 }
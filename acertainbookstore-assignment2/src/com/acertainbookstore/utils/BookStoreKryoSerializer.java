@@ -1,61 +1,326 @@
 package com.acertainbookstore.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookDemand;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoPool;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 /**
  * {@link BookStoreKryoSerializer} serializes objects to arrays of bytes
  * representing strings using the Kryo library.
- * 
+ * <p>
+ * The {@link Kryo} instances are borrowed from pools shared by all the
+ * serializers of the process, and every serializer reuses its own buffers, so
+ * a serializer must be used by one thread at a time. With registration every
+ * message and collection class is written as a small id instead of its fully
+ * qualified name, which requires clients and servers to register the same
+ * classes in the same order; a class which is not registered fails the
+ * serialization rather than being written by name.
+ * <p>
+ * Exceptions are written as their result code and message, as by the compact
+ * encoding, and the lists of {@link Arrays#asList(Object...)} and the
+ * unmodifiable collections as their elements, since Kryo can neither read
+ * their fields nor add to them.
+ *
  * @see BookStoreSerializer
  */
 public final class BookStoreKryoSerializer implements BookStoreSerializer {
 
-	/** The binary stream. */
-	private final Kryo binaryStream;
+	/** The initial size of the output buffer. */
+	private static final int BUFFER_SIZE = 4096;
+
+	/** The largest output buffer kept for the next serialization. */
+	private static final int MAX_KEPT_BUFFER_SIZE = 1 << 20;
+
+	/** The empty array the input is reset to, to not retain the last message. */
+	private static final byte[] NO_BYTES = new byte[0];
+
+	/** The class of the lists of {@link Arrays#asList(Object...)}. */
+	private static final Class<?> ARRAY_LIST_VIEW = Arrays.asList().getClass();
+
+	/** The class of the unmodifiable lists of random access lists. */
+	private static final Class<?> UNMODIFIABLE_RANDOM_ACCESS_LIST = Collections
+			.unmodifiableList(new ArrayList<>()).getClass();
+
+	/** The class of the unmodifiable lists of other lists. */
+	private static final Class<?> UNMODIFIABLE_LIST = Collections.unmodifiableList(new LinkedList<>()).getClass();
+
+	/** The class of the unmodifiable sets. */
+	private static final Class<?> UNMODIFIABLE_SET = Collections.unmodifiableSet(new HashSet<>()).getClass();
+
+	/** The class of the unmodifiable collections. */
+	private static final Class<?> UNMODIFIABLE_COLLECTION = Collections.unmodifiableCollection(new ArrayList<>())
+			.getClass();
+
+	/** The pool of the {@link Kryo} instances registering the message classes. */
+	private static final KryoPool REGISTERED_POOL = new KryoPool.Builder(() -> newKryo(true)).softReferences()
+			.build();
+
+	/** The pool of the {@link Kryo} instances writing class names. */
+	private static final KryoPool UNREGISTERED_POOL = new KryoPool.Builder(() -> newKryo(false)).softReferences()
+			.build();
+
+	/** The pool the binary streams are borrowed from. */
+	private final KryoPool binaryStreams;
+
+	/** The output, reused across serializations. */
+	private Output out = new Output(BUFFER_SIZE, -1);
+
+	/** The input, reused across deserializations of arrays. */
+	private final Input in = new Input();
+
+	/** The input, reused across deserializations of streams. */
+	private final Input streamIn = new Input(BUFFER_SIZE);
 
 	/**
-	 * Instantiates a new {@link BookStoreKryoSerializer}.
+	 * Instantiates a new {@link BookStoreKryoSerializer} registering the
+	 * message classes.
 	 */
 	public BookStoreKryoSerializer() {
-		binaryStream = new Kryo();
+		this(true);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreKryoSerializer}.
+	 *
+	 * @param registered
+	 *            whether the message classes are registered, otherwise they
+	 *            are written by name
+	 */
+	public BookStoreKryoSerializer(boolean registered) {
+		binaryStreams = registered ? REGISTERED_POOL : UNREGISTERED_POOL;
+	}
+
+	/**
+	 * Creates a binary stream.
+	 */
+	private static Kryo newKryo(boolean registered) {
+		Kryo binaryStream = new Kryo();
 		binaryStream.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+		binaryStream.addDefaultSerializer(BookStoreException.class, new ExceptionSerializer());
+		binaryStream.addDefaultSerializer(ARRAY_LIST_VIEW,
+				new ElementsSerializer(elements -> Arrays.asList(elements.toArray())));
+		binaryStream.addDefaultSerializer(UNMODIFIABLE_RANDOM_ACCESS_LIST,
+				new ElementsSerializer(Collections::unmodifiableList));
+		binaryStream.addDefaultSerializer(UNMODIFIABLE_LIST,
+				new ElementsSerializer(elements -> Collections.unmodifiableList(new LinkedList<>(elements))));
+		binaryStream.addDefaultSerializer(UNMODIFIABLE_SET,
+				new ElementsSerializer(elements -> Collections.unmodifiableSet(new HashSet<>(elements))));
+		binaryStream.addDefaultSerializer(UNMODIFIABLE_COLLECTION,
+				new ElementsSerializer(Collections::unmodifiableCollection));
 		binaryStream.register(ImmutableStockBook.class);
+		if (registered) {
+			binaryStream.setRegistrationRequired(true);
+			binaryStream.register(ImmutableBook.class);
+			binaryStream.register(BookCopy.class);
+			binaryStream.register(BookRating.class);
+			binaryStream.register(BookEditorPick.class);
+			binaryStream.register(BookDemand.class);
+			binaryStream.register(BookStoreResponse.class);
+			binaryStream.register(BookStoreResultCode.class);
+			binaryStream.register(HashSet.class);
+			binaryStream.register(ArrayList.class);
+			binaryStream.register(Collections.singletonList(null).getClass());
+			binaryStream.register(Collections.emptyList().getClass());
+			binaryStream.register(Collections.emptySet().getClass());
+			binaryStream.register(BookStoreOperation.class);
+			binaryStream.register(BookStoreMessageTag.class);
+			binaryStream.register(BookPage.class);
+			binaryStream.register(BookStoreException.class);
+			binaryStream.register(Collections.singleton(null).getClass());
+			binaryStream.register(ARRAY_LIST_VIEW);
+			binaryStream.register(UNMODIFIABLE_RANDOM_ACCESS_LIST);
+			binaryStream.register(UNMODIFIABLE_LIST);
+			binaryStream.register(UNMODIFIABLE_SET);
+			binaryStream.register(UNMODIFIABLE_COLLECTION);
+		}
+		return binaryStream;
+	}
+
+	/**
+	 * Writes an exception as its result code and message.
+	 */
+	private static final class ExceptionSerializer extends Serializer<BookStoreException> {
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.esotericsoftware.kryo.Serializer#write(com.esotericsoftware.
+		 * kryo.Kryo, com.esotericsoftware.kryo.io.Output, java.lang.Object)
+		 */
+		@Override
+		public void write(Kryo kryo, Output output, BookStoreException exception) {
+			kryo.writeObjectOrNull(output, exception.getResultCode(), BookStoreResultCode.class);
+			output.writeString(exception.getMessage());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.esotericsoftware.kryo.Serializer#read(com.esotericsoftware.
+		 * kryo.Kryo, com.esotericsoftware.kryo.io.Input, java.lang.Class)
+		 */
+		@Override
+		public BookStoreException read(Kryo kryo, Input input, Class<BookStoreException> type) {
+			BookStoreResultCode resultCode = kryo.readObjectOrNull(input, BookStoreResultCode.class);
+			String message = input.readString();
+			return (resultCode == null) ? new BookStoreException(message) : new BookStoreException(resultCode, message);
+		}
+	}
+
+	/**
+	 * Writes a collection as its elements, and reads it back as the
+	 * collection wrapping them.
+	 */
+	private static final class ElementsSerializer extends Serializer<Collection<?>> {
+
+		/** Wraps the elements read. */
+		private final Function<List<Object>, Collection<?>> wrap;
+
+		private ElementsSerializer(Function<List<Object>, Collection<?>> wrap) {
+			this.wrap = wrap;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.esotericsoftware.kryo.Serializer#write(com.esotericsoftware.
+		 * kryo.Kryo, com.esotericsoftware.kryo.io.Output, java.lang.Object)
+		 */
+		@Override
+		public void write(Kryo kryo, Output output, Collection<?> collection) {
+			output.writeVarInt(collection.size(), true);
+			for (Object element : collection) {
+				kryo.writeClassAndObject(output, element);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.esotericsoftware.kryo.Serializer#read(com.esotericsoftware.
+		 * kryo.Kryo, com.esotericsoftware.kryo.io.Input, java.lang.Class)
+		 */
+		@Override
+		public Collection<?> read(Kryo kryo, Input input, Class<Collection<?>> type) {
+			int size = input.readVarInt(true);
+			List<Object> elements = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				elements.add(kryo.readClassAndObject(input));
+			}
+			return wrap.apply(elements);
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see
 	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
 	 * Object)
 	 */
 	@Override
 	public byte[] serialize(Object object) throws IOException {
-		try (ByteArrayOutputStream outStream = new ByteArrayOutputStream(); Output out = new Output(outStream)) {
+		Kryo binaryStream = binaryStreams.borrow();
+		try {
+			out.clear();
+			binaryStream.writeClassAndObject(out, object);
+			return out.toBytes();
+		} catch (KryoException | IllegalArgumentException ex) {
+			throw new IOException("Cannot serialize the object", ex);
+		} finally {
+			binaryStreams.release(binaryStream);
+
+			// An exceptionally large message does not pin its buffer
+			if (out.getBuffer().length > MAX_KEPT_BUFFER_SIZE) {
+				out = new Output(BUFFER_SIZE, -1);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object, java.io.OutputStream)
+	 */
+	@Override
+	public void serialize(Object object, OutputStream stream) throws IOException {
+		Kryo binaryStream = binaryStreams.borrow();
+		try {
+			// The output is flushed to the stream whenever its buffer fills up
+			out.setOutputStream(stream);
 			binaryStream.writeClassAndObject(out, object);
 			out.flush();
-			return outStream.toByteArray();
+		} catch (KryoException | IllegalArgumentException ex) {
+			throw new IOException("Cannot serialize the object", ex);
+		} finally {
+			out.setOutputStream(null);
+			binaryStreams.release(binaryStream);
 		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(byte[])
 	 */
 	@Override
 	public Object deserialize(byte[] bytes) throws IOException {
-		try (InputStream inStream = new ByteArrayInputStream(bytes); Input in = new Input(inStream)) {
+		Kryo binaryStream = binaryStreams.borrow();
+		try {
+			in.setBuffer(bytes);
 			return binaryStream.readClassAndObject(in);
+		} catch (KryoException | IllegalArgumentException ex) {
+			throw new IOException("Cannot deserialize the object", ex);
+		} finally {
+			in.setBuffer(NO_BYTES);
+			binaryStreams.release(binaryStream);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(java.io.
+	 * InputStream)
+	 */
+	@Override
+	public Object deserialize(InputStream stream) throws IOException {
+		Kryo binaryStream = binaryStreams.borrow();
+		try {
+			streamIn.setInputStream(stream);
+			return binaryStream.readClassAndObject(streamIn);
+		} catch (KryoException | IllegalArgumentException ex) {
+			throw new IOException("Cannot deserialize the object", ex);
+		} finally {
+			streamIn.setInputStream(null);
+			binaryStreams.release(binaryStream);
 		}
 	}
 }
@@ -43,5 +43,65 @@ public enum BookStoreMessageTag {
 	GETTOPRATEDBOOKS,
 
 	/** The tag for getting the books in demand */
-	GETBOOKSINDEMAND;
+	GETBOOKSINDEMAND,
+
+	/** The tag for streaming books into the store */
+	IMPORTBOOKS,
+
+	/** The tag for streaming the books out of the store */
+	EXPORTBOOKS,
+
+	/** The tag for shipping log records to a replica */
+	SHIPLOG,
+
+	/** The tag for shipping the latest checkpoint to a replica */
+	SHIPCHECKPOINT,
+
+	/** The tag for preparing a part of a cross-shard transaction */
+	PREPARE,
+
+	/** The tag for committing a prepared part of a transaction */
+	COMMIT,
+
+	/** The tag for aborting a prepared part of a transaction */
+	ABORT,
+
+	/** The tag for asking the decider of a transaction for its outcome */
+	OUTCOME,
+
+	/** The tag for getting the routing of a shard */
+	GETROUTING,
+
+	/** The tag for installing a new routing on a shard */
+	SETROUTING,
+
+	/** The tag for fencing the writes to the books leaving a shard */
+	FENCE,
+
+	/** The tag for copying moving books into a shard */
+	INSTALLBOOKS,
+
+	/** The tag for dropping books which left a shard */
+	DROPBOOKS,
+
+	/** The tag for promoting a backup to primary */
+	PROMOTE,
+
+	/** The tag for getting the books with sale misses within a window */
+	GETRECENTBOOKSINDEMAND,
+
+	/** The tag for getting the books with the most decayed sale misses */
+	GETTOPBOOKSINDEMAND,
+
+	/** The tag for getting the sales velocity of books */
+	GETSALESVELOCITY,
+
+	/** The tag for listing a page of the books */
+	LISTBOOKPAGE,
+
+	/** The tag for a batch of independent operations */
+	BATCH,
+
+	/** The tag for adding back the copies of an undone purchase */
+	RESTORECOPIES;
 }
@@ -0,0 +1,248 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * {@link BookStoreOperation} is one operation of a batch sent with the
+ * {@link BookStoreMessageTag#BATCH} message: the message it stands for and
+ * the argument the message would carry on its own. The operations of a batch
+ * are independent of each other, and each gets its own
+ * {@link BookStoreResponse}. Operations are also the messages of the binary
+ * transport. An operation taking several arguments carries them as a list.
+ */
+public class BookStoreOperation {
+
+	/** The message. */
+	private final BookStoreMessageTag messageTag;
+
+	/** The argument, or null. */
+	private final Object argument;
+
+	/**
+	 * Instantiates a new {@link BookStoreOperation}.
+	 *
+	 * @param messageTag
+	 *            the message
+	 * @param argument
+	 *            the argument, or null
+	 */
+	public BookStoreOperation(BookStoreMessageTag messageTag, Object argument) {
+		this.messageTag = messageTag;
+		this.argument = argument;
+	}
+
+	/**
+	 * Gets the message.
+	 *
+	 * @return the message
+	 */
+	public BookStoreMessageTag getMessageTag() {
+		return messageTag;
+	}
+
+	/**
+	 * Gets the argument.
+	 *
+	 * @return the argument, or null
+	 */
+	public Object getArgument() {
+		return argument;
+	}
+
+	/**
+	 * Creates the operation buying books.
+	 *
+	 * @param booksToBuy
+	 *            the copies to buy
+	 * @return the operation
+	 */
+	public static BookStoreOperation buyBooks(Set<BookCopy> booksToBuy) {
+		return new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, booksToBuy);
+	}
+
+	/**
+	 * Creates the operation rating books.
+	 *
+	 * @param bookRating
+	 *            the ratings
+	 * @return the operation
+	 */
+	public static BookStoreOperation rateBooks(Set<BookRating> bookRating) {
+		return new BookStoreOperation(BookStoreMessageTag.RATEBOOKS, bookRating);
+	}
+
+	/**
+	 * Creates the operation getting books.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs
+	 * @return the operation
+	 */
+	public static BookStoreOperation getBooks(Set<Integer> isbnSet) {
+		return new BookStoreOperation(BookStoreMessageTag.GETBOOKS, isbnSet);
+	}
+
+	/**
+	 * Creates the operation getting the top rated books.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the operation
+	 */
+	public static BookStoreOperation getTopRatedBooks(int numBooks) {
+		return new BookStoreOperation(BookStoreMessageTag.GETTOPRATEDBOOKS, numBooks);
+	}
+
+	/**
+	 * Creates the operation getting editor picks.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the operation
+	 */
+	public static BookStoreOperation getEditorPicks(int numBooks) {
+		return new BookStoreOperation(BookStoreMessageTag.GETEDITORPICKS, numBooks);
+	}
+
+	/**
+	 * Creates the operation adding books.
+	 *
+	 * @param bookSet
+	 *            the books
+	 * @return the operation
+	 */
+	public static BookStoreOperation addBooks(Set<StockBook> bookSet) {
+		return new BookStoreOperation(BookStoreMessageTag.ADDBOOKS, bookSet);
+	}
+
+	/**
+	 * Creates the operation adding copies.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies
+	 * @return the operation
+	 */
+	public static BookStoreOperation addCopies(Set<BookCopy> bookCopiesSet) {
+		return new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+	}
+
+	/**
+	 * Creates the operation listing the books.
+	 *
+	 * @return the operation
+	 */
+	public static BookStoreOperation listBooks() {
+		return new BookStoreOperation(BookStoreMessageTag.LISTBOOKS, null);
+	}
+
+	/**
+	 * Creates the operation listing a page of the books.
+	 *
+	 * @param cursor
+	 *            the cursor of the page, or null for the first page
+	 * @param pageSize
+	 *            the most books in the page
+	 * @return the operation
+	 */
+	public static BookStoreOperation listBooks(String cursor, int pageSize) {
+		return new BookStoreOperation(BookStoreMessageTag.LISTBOOKPAGE,
+				new ArrayList<>(Arrays.asList(cursor, pageSize)));
+	}
+
+	/**
+	 * Creates the operation getting stock books.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the operation
+	 */
+	public static BookStoreOperation getBooksByISBN(Set<Integer> isbns) {
+		return new BookStoreOperation(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns);
+	}
+
+	/**
+	 * Creates the operation getting the books in demand.
+	 *
+	 * @return the operation
+	 */
+	public static BookStoreOperation getBooksInDemand() {
+		return new BookStoreOperation(BookStoreMessageTag.GETBOOKSINDEMAND, null);
+	}
+
+	/**
+	 * Creates the operation getting the books in demand within a window.
+	 *
+	 * @param windowMillis
+	 *            the window in milliseconds
+	 * @return the operation
+	 */
+	public static BookStoreOperation getBooksInDemand(long windowMillis) {
+		return new BookStoreOperation(BookStoreMessageTag.GETRECENTBOOKSINDEMAND, windowMillis);
+	}
+
+	/**
+	 * Creates the operation getting the top books by decayed demand.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @param halfLifeMillis
+	 *            the half-life of the demand in milliseconds
+	 * @return the operation
+	 */
+	public static BookStoreOperation getTopBooksInDemand(int numBooks, long halfLifeMillis) {
+		return new BookStoreOperation(BookStoreMessageTag.GETTOPBOOKSINDEMAND,
+				new ArrayList<>(Arrays.asList(numBooks, halfLifeMillis)));
+	}
+
+	/**
+	 * Creates the operation getting the sales velocity of books.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @param windowMillis
+	 *            the window in milliseconds
+	 * @return the operation
+	 */
+	public static BookStoreOperation getSalesVelocity(Set<Integer> isbns, long windowMillis) {
+		return new BookStoreOperation(BookStoreMessageTag.GETSALESVELOCITY,
+				new ArrayList<>(Arrays.asList(isbns, windowMillis)));
+	}
+
+	/**
+	 * Creates the operation updating editor picks.
+	 *
+	 * @param editorPicks
+	 *            the editor picks
+	 * @return the operation
+	 */
+	public static BookStoreOperation updateEditorPicks(Set<BookEditorPick> editorPicks) {
+		return new BookStoreOperation(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicks);
+	}
+
+	/**
+	 * Creates the operation removing all books.
+	 *
+	 * @return the operation
+	 */
+	public static BookStoreOperation removeAllBooks() {
+		return new BookStoreOperation(BookStoreMessageTag.REMOVEALLBOOKS, null);
+	}
+
+	/**
+	 * Creates the operation removing books.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs
+	 * @return the operation
+	 */
+	public static BookStoreOperation removeBooks(Set<Integer> isbnSet) {
+		return new BookStoreOperation(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+	}
+}
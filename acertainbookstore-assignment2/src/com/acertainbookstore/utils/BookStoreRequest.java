@@ -83,4 +83,20 @@ public final class BookStoreRequest {
 	public static BookStoreRequest newPostRequest(String urlString, Object inputValue) {
 		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue);
 	}
+
+	/**
+	 * Gets the same request sent to another server.
+	 *
+	 * @param fromAddress
+	 *            the address of the server the request was built for
+	 * @param toAddress
+	 *            the address of the other server
+	 * @return the book store request
+	 */
+	public BookStoreRequest redirect(String fromAddress, String toAddress) {
+		if (!urlString.startsWith(fromAddress)) {
+			throw new IllegalArgumentException("The request is not for " + fromAddress);
+		}
+		return new BookStoreRequest(method, toAddress + urlString.substring(fromAddress.length()), inputValue);
+	}
 }
@@ -7,16 +7,30 @@ import com.acertainbookstore.business.Book;
 /**
  * {@link BookStoreResponse} is the data structure that encapsulates a HTTP
  * response from the bookstore server to the client. The data structure contains
- * error messages from the server if an error occurred.
+ * error messages from the server if an error occurred. Expected business
+ * outcomes are sent as a {@link BookStoreResultCode} and a message instead of
+ * the full exception.
  */
 public class BookStoreResponse {
 
-	/** The exception. */
+	/** The exception, only set for faults. */
 	private BookStoreException exception;
 
+	/** The result code of a business outcome. */
+	private BookStoreResultCode resultCode;
+
+	/** The message of a business outcome. */
+	private String resultMessage;
+
 	/** The list. */
 	private List<?> list;
 
+	/** The milliseconds a replica answering may lag behind its primary. */
+	private long staleness = 0;
+
+	/** The cursor of the page following the listed books, or null. */
+	private String cursor = null;
+
 	/**
 	 * Instantiates a new {@link BookStoreResponse}.
 	 *
@@ -58,21 +72,84 @@ public class BookStoreResponse {
 	}
 
 	/**
-	 * Gets the exception.
+	 * Gets the exception. A business outcome is turned back into a stackless
+	 * {@link BookStoreException} carrying its result code.
 	 *
 	 * @return the exception
 	 */
 	public BookStoreException getException() {
+		if (exception == null && resultCode != null) {
+			return new BookStoreException(resultCode, resultMessage);
+		}
+
 		return exception;
 	}
 
 	/**
-	 * Sets the exception.
+	 * Sets the exception. If the exception carries a result code only the code
+	 * and message are kept.
 	 *
 	 * @param exception
 	 *            the new exception
 	 */
 	public void setException(BookStoreException exception) {
-		this.exception = exception;
+		if (exception != null && exception.getResultCode() != null) {
+			this.exception = null;
+			this.resultCode = exception.getResultCode();
+			this.resultMessage = exception.getMessage();
+		} else {
+			this.exception = exception;
+			this.resultCode = null;
+			this.resultMessage = null;
+		}
+	}
+
+	/**
+	 * Gets the result code.
+	 *
+	 * @return the result code, or null if there was no business outcome
+	 */
+	public BookStoreResultCode getResultCode() {
+		return resultCode;
+	}
+
+	/**
+	 * Gets the staleness of the answer.
+	 *
+	 * @return the milliseconds the answering replica may lag behind its
+	 *         primary, or 0 if the primary answered
+	 */
+	public long getStaleness() {
+		return staleness;
+	}
+
+	/**
+	 * Sets the staleness of the answer.
+	 *
+	 * @param staleness
+	 *            the milliseconds the answering replica may lag behind its
+	 *            primary
+	 */
+	public void setStaleness(long staleness) {
+		this.staleness = staleness;
+	}
+
+	/**
+	 * Gets the cursor of the page following the listed books.
+	 *
+	 * @return the cursor, or null if the list is not a page or the last one
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Sets the cursor of the page following the listed books.
+	 *
+	 * @param cursor
+	 *            the cursor, or null
+	 */
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
 	}
 }
@@ -0,0 +1,44 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link BookStoreResultCode} enumerates the expected business outcomes that a
+ * bookstore operation can end with besides success. Outcomes carrying a result
+ * code are reported without a stack trace, since they are not faults.
+ * 
+ * @see BookStoreException
+ */
+public enum BookStoreResultCode {
+
+	/** The input parameters were null. */
+	NULL_INPUT,
+
+	/** An argument, e.g. an ISBN, number of copies or rating, is invalid. */
+	INVALID,
+
+	/** The book is already in the store. */
+	DUPLICATED,
+
+	/** The book is not in the store, or not enough copies are in stock. */
+	NOT_AVAILABLE,
+
+	/** The replica asked is further behind its primary than it may be. */
+	STALE,
+
+	/** The server is a read replica and only answers customer reads. */
+	READ_ONLY,
+
+	/** The transaction was aborted, e.g. after its prepare timed out. */
+	ABORTED,
+
+	/** The book belongs, or is moving, to another shard of the cluster. */
+	MOVED,
+
+	/** No backup is attached to a primary requiring one; nothing was applied. */
+	NO_BACKUP,
+
+	/**
+	 * The primary applied the mutation but its backup was detached before
+	 * acknowledging it; retrying may apply it twice.
+	 */
+	UNKNOWN_OUTCOME;
+}
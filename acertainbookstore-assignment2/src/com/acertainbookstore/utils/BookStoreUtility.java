@@ -1,16 +1,28 @@
 package com.acertainbookstore.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.api.ContentProvider;
-import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
 import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.client.util.OutputStreamContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
 
+import com.acertainbookstore.business.DemandHistory;
 import com.acertainbookstore.client.BookStoreClientConstants;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.thoughtworks.xstream.XStream;
@@ -32,6 +44,27 @@ public final class BookStoreUtility {
 		}
 	};
 
+	/**
+	 * Creates the serializer chosen by {@link BookStoreConstants#BINARY_SERIALIZATION}
+	 * and {@link BookStoreConstants#PROPERTY_KEY_SERIALIZER}.
+	 *
+	 * @return a new serializer, to be used by one thread
+	 */
+	public static BookStoreSerializer newSerializer() {
+		if (!BookStoreConstants.BINARY_SERIALIZATION) {
+			return new BookStoreXStreamSerializer();
+		}
+
+		String serializer = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERIALIZER);
+		if (BookStoreConstants.KRYO_SERIALIZER.equals(serializer)) {
+			return new BookStoreKryoSerializer(true);
+		} else if (BookStoreConstants.KRYO_UNREGISTERED_SERIALIZER.equals(serializer)) {
+			return new BookStoreKryoSerializer(false);
+		}
+
+		return new BookStoreCompactSerializer();
+	}
+
 	/**
 	 * Prevents the instantiation of a new {@link BookStoreUtility}.
 	 */
@@ -72,6 +105,88 @@ public final class BookStoreUtility {
 		return copies < 1;
 	}
 
+	/**
+	 * Checks if a window of the demand history is invalid.
+	 *
+	 * @param windowMillis
+	 *            the window in milliseconds
+	 * @return true, if the window is empty or longer than the history
+	 */
+	public static boolean isInvalidWindow(long windowMillis) {
+		return windowMillis < 1 || windowMillis > DemandHistory.HISTORY_MILLIS;
+	}
+
+	/**
+	 * Checks if a page size is invalid.
+	 *
+	 * @param pageSize
+	 *            the number of books asked for on a page
+	 * @return true, if the page is empty or larger than
+	 *         {@link BookStoreConstants#MAX_PAGE_SIZE}
+	 */
+	public static boolean isInvalidPageSize(int pageSize) {
+		return pageSize < 1 || pageSize > BookStoreConstants.MAX_PAGE_SIZE;
+	}
+
+	/**
+	 * Encodes the cursor of the page following a book. The cursor is opaque to
+	 * clients; it holds the ISBN of the last book listed.
+	 *
+	 * @param isbn
+	 *            the ISBN of the last book listed
+	 * @return the cursor
+	 */
+	public static String encodeCursor(int isbn) {
+		return Integer.toString(isbn, Character.MAX_RADIX);
+	}
+
+	/**
+	 * Decodes a cursor into the ISBN the next page starts after.
+	 *
+	 * @param cursor
+	 *            the cursor, or null for the first page
+	 * @return the ISBN of the last book listed, 0 for the first page
+	 * @throws BookStoreException
+	 *             if the cursor was not made by {@link #encodeCursor(int)}
+	 */
+	public static int decodeCursor(String cursor) throws BookStoreException {
+		if (cursor == null) {
+			return 0;
+		}
+		try {
+			int isbn = Integer.parseInt(cursor, Character.MAX_RADIX);
+			if (!isInvalidISBN(isbn)) {
+				return isbn;
+			}
+		} catch (NumberFormatException ex) {
+			// Reported below
+		}
+		throw new BookStoreException(BookStoreResultCode.INVALID,
+				BookStoreConstants.CURSOR + cursor + BookStoreConstants.INVALID);
+	}
+
+	/**
+	 * Checks if a title or an author is invalid.
+	 *
+	 * @param text
+	 *            the title or the author
+	 * @return true, if it is empty, null, or longer than
+	 *         {@link BookStoreConstants#MAX_TEXT_LENGTH} once encoded
+	 */
+	public static boolean isInvalidText(String text) {
+		if (isEmpty(text)) {
+			return true;
+		}
+
+		// The modified UTF-8 of DataOutput#writeUTF, which logs and checkpoints books
+		long length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF) ? 2 : 3;
+		}
+		return length > BookStoreConstants.MAX_TEXT_LENGTH;
+	}
+
 	/**
 	 * Checks if a string is empty or null.
 	 *
@@ -128,6 +243,23 @@ public final class BookStoreUtility {
 		return returnValue;
 	}
 
+	/**
+	 * Converts a string to a long if possible.
+	 *
+	 * @param str
+	 *            the string
+	 * @return the long
+	 * @throws BookStoreException
+	 *             if the string is not a number
+	 */
+	public static long convertStringToLong(String str) throws BookStoreException {
+		try {
+			return Long.parseLong(str);
+		} catch (NumberFormatException ex) {
+			throw new BookStoreException(BookStoreResultCode.INVALID, str + BookStoreConstants.INVALID);
+		}
+	}
+
 	/**
 	 * Convert a request URI to the message tags supported in CertainBookStore.
 	 *
@@ -149,7 +281,11 @@ public final class BookStoreUtility {
 	}
 
 	/**
-	 * Perform HTTP exchange.
+	 * Perform HTTP exchange. The value of a POST is serialized into the
+	 * request as it is sent, and the response is deserialized as it is
+	 * received. A value larger than
+	 * {@link BookStoreConstants#COMPRESSION_THRESHOLD} is compressed with the
+	 * {@link BookStoreEncoding#preferred()} coding.
 	 *
 	 * @param client
 	 *            the client
@@ -163,32 +299,75 @@ public final class BookStoreUtility {
 	 */
 	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
 			BookStoreSerializer serializer) throws BookStoreException {
-		Request request;
-
 		switch (bookStoreRequest.getMethod()) {
 		case GET:
-			request = client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET);
-			break;
+			return performHttpExchange(client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET),
+					serializer);
 
 		case POST:
+			OutputStreamContentProvider content = new OutputStreamContentProvider();
+			Request request = client.POST(bookStoreRequest.getURLString()).content(content);
+			InputStreamResponseListener listener = new InputStreamResponseListener();
+
+			// The request is sent once it is known whether it is compressed
+			CompressingOutputStream out = new CompressingOutputStream(BookStoreEncoding.preferred(),
+					BookStoreConstants.COMPRESSION_THRESHOLD, encoding -> {
+						if (encoding != null) {
+							request.header(HttpHeader.CONTENT_ENCODING, encoding.getName());
+						}
+						request.send(listener);
+						return content.getOutputStream();
+					});
+
 			try {
-				byte[] serializedValue = serializer.serialize(bookStoreRequest.getInputValue());
-				ContentProvider contentProvider = new BytesContentProvider(serializedValue);
-				request = client.POST(bookStoreRequest.getURLString()).content(contentProvider);
+				serializer.serialize(bookStoreRequest.getInputValue(), out);
+				out.close();
 			} catch (IOException ex) {
-				throw new BookStoreException("Serialization error", ex);
+				// Unless the exchange failed first, which the listener reports
+				if (!out.isOpened() || request.abort(ex)) {
+					throw new BookStoreException("Serialization error", ex);
+				}
+			} catch (RuntimeException ex) {
+				if (out.isOpened()) {
+					request.abort(ex);
+				}
+				throw ex;
 			}
 
-			break;
+			return receive(request, listener, serializer);
 
 		default:
 			throw new IllegalArgumentException("HTTP Method not supported.");
 		}
+	}
 
-		ContentResponse response;
+	/**
+	 * Perform HTTP exchange of a request which is already built, such as a
+	 * request streaming its content.
+	 *
+	 * @param request
+	 *            the request
+	 * @param serializer
+	 *            the serializer
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static BookStoreResponse performHttpExchange(Request request, BookStoreSerializer serializer)
+			throws BookStoreException {
+		InputStreamResponseListener listener = new InputStreamResponseListener();
+		request.send(listener);
+		return receive(request, listener, serializer);
+	}
 
+	/**
+	 * Waits for the response to a request, within the timeout of the request
+	 * if it has one, and deserializes its content as it arrives.
+	 */
+	private static BookStoreResponse receive(Request request, InputStreamResponseListener listener,
+			BookStoreSerializer serializer) throws BookStoreException {
 		try {
-			response = request.send();
+			listener.get(request.getTimeout() > 0 ? request.getTimeout() : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException ex) {
 			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
 		} catch (TimeoutException ex) {
@@ -199,8 +378,8 @@ public final class BookStoreUtility {
 
 		BookStoreResponse bookStoreResponse;
 
-		try {
-			bookStoreResponse = (BookStoreResponse) serializer.deserialize(response.getContent());
+		try (InputStream in = listener.getInputStream()) {
+			bookStoreResponse = (BookStoreResponse) serializer.deserialize(in);
 		} catch (IOException ex) {
 			throw new BookStoreException("Deserialization error", ex);
 		}
@@ -213,4 +392,123 @@ public final class BookStoreUtility {
 
 		return bookStoreResponse;
 	}
+
+	/**
+	 * Perform HTTP exchange without blocking the caller. The value of a POST
+	 * is serialized by the caller, compressed if large, and sent along with
+	 * the request. The response is buffered by Jetty's non-blocking client as
+	 * it arrives, then deserialized by the executor, so that no thread waits
+	 * for the server.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the request
+	 * @param serializer
+	 *            the serializers, one per thread
+	 * @param executor
+	 *            deserializes the responses
+	 * @param result
+	 *            gets the result from the book store response, run by the
+	 *            executor
+	 * @return the future of the result, which completes exceptionally with a
+	 *         {@link BookStoreException} if the exchange or the request fails
+	 */
+	public static <T> CompletableFuture<T> performHttpExchangeAsync(HttpClient client,
+			BookStoreRequest bookStoreRequest, ThreadLocal<BookStoreSerializer> serializer, Executor executor,
+			Function<BookStoreResponse, T> result) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		Request request;
+
+		switch (bookStoreRequest.getMethod()) {
+		case GET:
+			request = client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET);
+			break;
+
+		case POST:
+			Request post = client.POST(bookStoreRequest.getURLString());
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			try (CompressingOutputStream out = new CompressingOutputStream(BookStoreEncoding.preferred(),
+					BookStoreConstants.COMPRESSION_THRESHOLD, encoding -> {
+						if (encoding != null) {
+							post.header(HttpHeader.CONTENT_ENCODING, encoding.getName());
+						}
+						return content;
+					})) {
+				serializer.get().serialize(bookStoreRequest.getInputValue(), out);
+			} catch (IOException ex) {
+				future.completeExceptionally(new BookStoreException("Serialization error", ex));
+				return future;
+			}
+			request = post.content(new BytesContentProvider(content.toByteArray()));
+			break;
+
+		default:
+			throw new IllegalArgumentException("HTTP Method not supported.");
+		}
+
+		request.timeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS)
+				.send(new BufferingResponseListener(Integer.MAX_VALUE) {
+
+					@Override
+					public void onComplete(Result exchange) {
+						if (exchange.isFailed()) {
+							Throwable failure = exchange.getFailure();
+							future.completeExceptionally(new BookStoreException(failure instanceof TimeoutException
+									? BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT
+									: BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, failure));
+							return;
+						}
+
+						byte[] bytes = getContent();
+						try {
+							executor.execute(() -> complete(future, bytes, serializer.get(), result));
+						} catch (RejectedExecutionException ex) {
+							future.completeExceptionally(
+									new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex));
+						}
+					}
+				});
+		return future;
+	}
+
+	/**
+	 * Completes the future of an asynchronous exchange with the response
+	 * deserialized from its content.
+	 */
+	private static <T> void complete(CompletableFuture<T> future, byte[] content, BookStoreSerializer serializer,
+			Function<BookStoreResponse, T> result) {
+		try {
+			BookStoreResponse bookStoreResponse = (BookStoreResponse) serializer.deserialize(content);
+			BookStoreException exception = bookStoreResponse.getException();
+			if (exception != null) {
+				future.completeExceptionally(exception);
+			} else {
+				future.complete(result.apply(bookStoreResponse));
+			}
+		} catch (IOException ex) {
+			future.completeExceptionally(new BookStoreException("Deserialization error", ex));
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Checks whether an exchange failed because the server could not be
+	 * reached, so that the request was not sent.
+	 *
+	 * @param ex
+	 *            the exception of the exchange
+	 * @return true if the connection to the server was refused or timed out
+	 */
+	public static boolean isUnreachable(BookStoreException ex) {
+		for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConnectException) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
@@ -1,5 +1,8 @@
 package com.acertainbookstore.utils;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
@@ -39,4 +42,28 @@ public final class BookStoreXStreamSerializer implements BookStoreSerializer {
 		String xml = new String(bytes);
 		return xmlStream.fromXML(xml);
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object, java.io.OutputStream)
+	 */
+	@Override
+	public void serialize(Object object, OutputStream out) {
+		xmlStream.toXML(object, out);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(java.io.
+	 * InputStream)
+	 */
+	@Override
+	public Object deserialize(InputStream in) {
+		return xmlStream.fromXML(in);
+	}
 }
@@ -0,0 +1,164 @@
+package com.acertainbookstore.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * {@link CompressingOutputStream} compresses a message only if it grows past a
+ * threshold. The start of the message is held until either the threshold is
+ * crossed or the message is finished; only then is the target stream opened,
+ * knowing whether the message is compressed, so that a header announcing the
+ * coding can still be sent before it.
+ * <p>
+ * Flushing before the threshold is crossed does not send the held bytes.
+ *
+ * @see BookStoreEncoding
+ */
+public final class CompressingOutputStream extends OutputStream {
+
+	/**
+	 * The stream a message is sent to, opened once the coding is known.
+	 */
+	@FunctionalInterface
+	public interface Target {
+
+		/**
+		 * Opens the stream, e.g. after announcing the coding.
+		 *
+		 * @param encoding
+		 *            the coding of the message, or null if it is not
+		 *            compressed
+		 * @return the stream
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		OutputStream open(BookStoreEncoding encoding) throws IOException;
+	}
+
+	/** The coding, or null to never compress. */
+	private final BookStoreEncoding encoding;
+
+	/** The size above which the message is compressed. */
+	private final int threshold;
+
+	/** The target. */
+	private final Target target;
+
+	/** The start of the message, until the target is opened. */
+	private byte[] held = new byte[256];
+
+	/** The number of bytes held. */
+	private int count = 0;
+
+	/** The opened target stream, or null. */
+	private OutputStream out = null;
+
+	/** The stream the message is written to once the target is opened. */
+	private OutputStream sink = null;
+
+	/**
+	 * Instantiates a new {@link CompressingOutputStream}.
+	 *
+	 * @param encoding
+	 *            the coding, or null to never compress
+	 * @param threshold
+	 *            the size above which the message is compressed
+	 * @param target
+	 *            opens the stream the message is sent to
+	 */
+	public CompressingOutputStream(BookStoreEncoding encoding, int threshold, Target target) {
+		this.encoding = encoding;
+		this.threshold = threshold;
+		this.target = target;
+	}
+
+	/**
+	 * Checks whether the target was opened.
+	 *
+	 * @return true, if the target was opened
+	 */
+	public boolean isOpened() {
+		return out != null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if (sink == null) {
+			if (count + length <= threshold) {
+				if (count + length > held.length) {
+					held = Arrays.copyOf(held, Math.min(threshold, Math.max(held.length * 2, count + length)));
+				}
+				System.arraycopy(bytes, offset, held, count, length);
+				count += length;
+				return;
+			}
+			open(encoding);
+		}
+		sink.write(bytes, offset, length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.OutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (sink != null) {
+			sink.flush();
+		}
+	}
+
+	/**
+	 * Finishes the message and flushes the target stream, which is not
+	 * closed. A message which did not cross the threshold is sent as is.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void finish() throws IOException {
+		if (sink == null) {
+			open(null);
+		}
+		if (sink != out) {
+			// Finishes the compressed data, keeping the target open
+			sink.close();
+			sink = out;
+		}
+		out.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	private void open(BookStoreEncoding coding) throws IOException {
+		out = target.open(coding);
+		sink = (coding == null) ? out : coding.compress(out);
+		sink.write(held, 0, count);
+		held = null;
+	}
+}
@@ -0,0 +1,97 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link ConsistentHashRing} assigns ISBNs to shards by consistent hashing.
+ * Every shard is placed on a ring of hash values at a number of virtual nodes,
+ * and an ISBN belongs to the shard of the first virtual node at or after the
+ * hash of the ISBN. Adding or removing a shard only moves the ISBNs next to
+ * its virtual nodes.
+ * <p>
+ * The hashes only depend on the shard names and the ISBNs, so every client and
+ * router built with the same shards routes alike.
+ */
+public final class ConsistentHashRing {
+
+	/** The default number of virtual nodes per shard. */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	/** The shards by the hash of their virtual nodes. */
+	private final TreeMap<Integer, String> ring = new TreeMap<>();
+
+	/** The shards, in the order given. */
+	private final List<String> shards;
+
+	/**
+	 * Instantiates a new {@link ConsistentHashRing} with
+	 * {@link #DEFAULT_VIRTUAL_NODES} per shard.
+	 *
+	 * @param shards
+	 *            the names of the shards, e.g. their addresses
+	 */
+	public ConsistentHashRing(Collection<String> shards) {
+		this(shards, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Instantiates a new {@link ConsistentHashRing}.
+	 *
+	 * @param shards
+	 *            the names of the shards, e.g. their addresses
+	 * @param virtualNodes
+	 *            the number of virtual nodes per shard
+	 */
+	public ConsistentHashRing(Collection<String> shards, int virtualNodes) {
+		if (shards.isEmpty() || virtualNodes < 1) {
+			throw new IllegalArgumentException("A ring needs a shard and a virtual node per shard");
+		}
+		this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+		for (String shard : this.shards) {
+			for (int i = 0; i < virtualNodes; i++) {
+				// On a collision the shard placed first keeps the node
+				ring.putIfAbsent(hash((shard + "#" + i).hashCode()), shard);
+			}
+		}
+	}
+
+	/**
+	 * Gets the shards.
+	 *
+	 * @return the shards, in the order given
+	 */
+	public List<String> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Gets the shard an ISBN belongs to.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the shard
+	 */
+	public String shardOf(int isbn) {
+		Map.Entry<Integer, String> node = ring.ceilingEntry(hash(isbn));
+		return (node != null) ? node.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * Spreads the bits of a value over the ring, with the finalizer of
+	 * MurmurHash3.
+	 */
+	private static int hash(int value) {
+		int h = value;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}